@@ -0,0 +1,1331 @@
+package com.cs6238.project2.s2dr.server.app;
+
+import com.cs6238.project2.s2dr.server.app.objects.DocumentDownload;
+import com.cs6238.project2.s2dr.server.app.objects.UploadPart;
+import com.cs6238.project2.s2dr.server.app.storage.ChunkCodec;
+import com.cs6238.project2.s2dr.server.app.storage.ChunkCodec.ChunkDescriptor;
+import com.cs6238.project2.s2dr.server.app.storage.ChunkLocation;
+import com.cs6238.project2.s2dr.server.app.storage.ContentDefinedChunker;
+import com.cs6238.project2.s2dr.server.app.storage.DocumentStore;
+import com.cs6238.project2.s2dr.server.app.storage.FileRegion;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
+import com.cs6238.project2.s2dr.server.config.database.Transaction;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.UnsignedBytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+// Stores the contents of documents deduplicated. Contents are split into content-defined chunks (see
+// `ContentDefinedChunker`), every distinct chunk is stored once in `s2dr.ContentChunks` together with the number
+// of manifest entries that refer to it, and a document is stored as its manifest: the list of its chunks, in
+// order, in `s2dr.DocumentManifests`. Checking in a document that is mostly the same as one that is already
+// stored therefore only writes the chunks that changed.
+//
+// What a chunk is stored as, and which documents can share it, is up to the `ChunkCodec` it is stored with. Where
+// its bytes are kept is up to the `DocumentStore`, the chunk's row only records where that is. Chunks nothing
+// refers to anymore are left with a reference count of 0, and are shredded by `DocumentShredder`.
+//
+// Contents are stored ahead of the check-in's transaction, as staged contents that hold references on their chunks
+// (see `stageContents`), and only become the document's in that transaction. The chunks' rows are never locked for
+// longer than it takes to update a batch of them, so concurrent check-ins of contents that share chunks don't wait
+// for each other to finish streaming.
+//
+// When a document is overwritten, its manifest can be kept as the manifest of an earlier version of it (in
+// `s2dr.VersionManifests`, see `archiveContents`) together with its references, so an earlier version costs only
+// the chunks that aren't part of the versions after it.
+//
+// The parts of a document uploaded in parts (see `UploadSessionService`) are stored the same way as they arrive,
+// with manifests of their own in `s2dr.UploadManifests`, which become the document's manifest when the upload is
+// committed.
+public class DocumentContentDao {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DocumentContentDao.class);
+
+    // `-Ds2dr.dedup.averageChunkSize`. Only affects contents stored from then on, but chunks of contents stored
+    // with a different average size won't match the new ones
+    private static final int AVERAGE_CHUNK_SIZE = Integer.getInteger("s2dr.dedup.averageChunkSize", 16 * 1024);
+
+    // chunks are staged (see `stageContents`) in batches of this many, which are kept in memory until then. About
+    // a megabyte of chunks, so a batch is well over the size a codec spreads over the crypto pool at (see
+    // `s2dr.crypto.parallelThresholdBytes`)
+    private static final int STAGING_BATCH_SIZE = 64;
+
+    // chunks of a check-out are looked up (see `openContents`) in batches of this many, and the ones kept in the
+    // database are held in memory until they are sent
+    private static final int CHECKOUT_BATCH_SIZE = 16;
+
+    private final Connection conn;
+    private final DocumentStore documentStore;
+
+    @Inject
+    public DocumentContentDao(Connection conn, DocumentStore documentStore) {
+        this.conn = conn;
+        this.documentStore = documentStore;
+    }
+
+    // How many chunk indexes a part of an upload of at most `maxPartBytes` needs to itself. Parts arrive in any
+    // order, and the index of a CONFIDENTIALITY chunk is part of how its key is encrypted, so every part is given
+    // its own range of indexes up front rather than being renumbered when the upload is committed.
+    public static int chunkIndexStride(long maxPartBytes) {
+        return Ints.saturatedCast(ContentDefinedChunker.maxChunks(maxPartBytes, AVERAGE_CHUNK_SIZE));
+    }
+
+    // the columns a manifest entry is filed under, ahead of its chunk's: its document's name, or its upload and part
+    private interface ManifestKey {
+        // sets them on `manifest`, and returns the index of the parameter after them
+        int set(PreparedStatement manifest) throws SQLException;
+    }
+
+    // Splits `contents` into chunks, stores the chunks that aren't stored yet, and stages a reference on every chunk
+    // of the contents, numbered from `firstChunkIndex`, in `s2dr.StagedManifests`. The staged contents belong to
+    // nothing until they are adopted as a document's contents or an upload's part (see `adoptStagedContents` and
+    // `adoptStagedPart`), and hold their references until then, or until they are released.
+    //
+    // The connection must be in auto-commit mode: the references are committed a batch of chunks at a time, each in
+    // a transaction that only lasts as long as it takes to update the batch's rows, so check-ins that share chunks
+    // never wait on each other while their contents are streamed, however long that takes. If staging fails, what
+    // was staged so far is released.
+    public StagedContents stageContents(int firstChunkIndex, InputStream contents, ChunkCodec codec)
+            throws SQLException, IOException {
+
+        String stagingId = UUID.randomUUID().toString();
+        ContentDefinedChunker chunker = new ContentDefinedChunker(contents, AVERAGE_CHUNK_SIZE);
+        List<byte[]> batch = new ArrayList<>();
+        boolean staged = false;
+        try {
+            int chunkIndex = firstChunkIndex;
+            long offset = 0;
+            int newChunks = 0;
+            Optional<byte[]> chunk;
+            while ((chunk = chunker.nextChunk()).isPresent()) {
+                batch.add(chunk.get());
+                if (batch.size() == STAGING_BATCH_SIZE) {
+                    newChunks += stageBatch(stagingId, chunkIndex, offset, batch, codec);
+                    chunkIndex += batch.size();
+                    offset += totalLength(batch);
+                    batch.clear();
+                }
+            }
+            newChunks += stageBatch(stagingId, chunkIndex, offset, batch, codec);
+            chunkIndex += batch.size();
+            offset += totalLength(batch);
+            staged = true;
+
+            LOG.info("Staged {} chunks as \"{}\", {} of which were new", chunkIndex - firstChunkIndex, stagingId,
+                    newChunks);
+            return new StagedContents(stagingId, chunkIndex - firstChunkIndex, offset);
+        } finally {
+            if (!staged) {
+                discardStagedContents(stagingId);
+            }
+        }
+    }
+
+    // Stores the chunks of the batch (the chunks numbered from `firstChunkIndex`, which start at `firstOffset` of the
+    // contents) that aren't stored yet, and stages a reference for each of them. Returns how many chunks were new.
+    private int stageBatch(
+            String stagingId,
+            int firstChunkIndex,
+            long firstOffset,
+            List<byte[]> chunks,
+            ChunkCodec codec) throws SQLException, IOException {
+
+        if (chunks.isEmpty()) {
+            return 0;
+        }
+
+        // the whole batch is described (and its new chunks encoded) at once, so the codec can do it in parallel
+        List<ChunkDescriptor> descriptors = codec.describeAll(chunks, firstChunkIndex);
+        List<StagedChunk> batch = new ArrayList<>(chunks.size());
+        long offset = firstOffset;
+        for (int i = 0; i < chunks.size(); i++) {
+            batch.add(new StagedChunk(firstChunkIndex + i, offset, chunks.get(i), descriptors.get(i)));
+            offset += chunks.get(i).length;
+        }
+
+        // The rows are updated in the order of their hashes, so that two batches that share chunks can't deadlock.
+        // A chunk can be in the batch more than once, and holds a reference for every time it is
+        Map<byte[], List<StagedChunk>> chunksByHash = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        for (StagedChunk chunk: batch) {
+            chunksByHash.computeIfAbsent(chunk.descriptor.getChunkHash(), hash -> new ArrayList<>()).add(chunk);
+        }
+
+        // The chunks that look new are written (and synced) ahead of the transaction, so that it only updates rows.
+        // They are written in the order they come in, so that contents stored in a segment file stay in one piece
+        Map<byte[], ChunkLocation> written = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        List<ChunkLocation> unused = new ArrayList<>();
+        boolean committed = false;
+        try {
+            Set<byte[]> newChunkHashes = new TreeSet<>(UnsignedBytes.lexicographicalComparator());
+            for (byte[] chunkHash: chunksByHash.keySet()) {
+                if (!isStored(chunkHash)) {
+                    newChunkHashes.add(chunkHash);
+                }
+            }
+            List<StagedChunk> unstoredChunks = new ArrayList<>();
+            for (StagedChunk chunk: batch) {
+                if (newChunkHashes.remove(chunk.descriptor.getChunkHash())) {
+                    unstoredChunks.add(chunk);
+                }
+            }
+            List<ChunkDescriptor> unstoredDescriptors = new ArrayList<>(unstoredChunks.size());
+            List<byte[]> unstoredChunkBytes = new ArrayList<>(unstoredChunks.size());
+            for (StagedChunk chunk: unstoredChunks) {
+                unstoredDescriptors.add(chunk.descriptor);
+                unstoredChunkBytes.add(chunk.bytes);
+            }
+            List<byte[]> encodedChunks = codec.encodeAll(unstoredDescriptors, unstoredChunkBytes);
+            for (int i = 0; i < unstoredChunks.size(); i++) {
+                written.put(unstoredChunks.get(i).descriptor.getChunkHash(), documentStore.write(encodedChunks.get(i)));
+            }
+            documentStore.sync(new ArrayList<>(written.values()));
+
+            int newChunks = stageReferences(stagingId, batch, chunksByHash, written, codec, unused);
+            committed = true;
+
+            // nothing refers to those copies, so they are shredded right away
+            eraseQuietly(unused);
+            return newChunks;
+        } finally {
+            if (!committed) {
+                // the rows that would have referred to them were rolled back, so nothing would ever shred them
+                eraseQuietly(new ArrayList<>(written.values()));
+            }
+        }
+    }
+
+    private static long totalLength(List<byte[]> chunks) {
+        long length = 0;
+        for (byte[] chunk: chunks) {
+            length += chunk.length;
+        }
+        return length;
+    }
+
+    // The chunks the batch holds references on may have been stored, or shredded, by someone else since they were
+    // looked up: a chunk whose row is gone is stored after all, and a chunk that was stored first by someone else
+    // refers to their copy, in which case ours is added to `unused`
+    private int stageReferences(
+            String stagingId,
+            List<StagedChunk> batch,
+            Map<byte[], List<StagedChunk>> chunksByHash,
+            Map<byte[], ChunkLocation> written,
+            ChunkCodec codec,
+            List<ChunkLocation> unused) throws SQLException, IOException {
+
+        String incrementQuery =
+                "UPDATE s2dr.ContentChunks\n" +
+                "   SET refCount = refCount + ?\n" +
+                " WHERE chunkHash = ?";
+
+        String insertQuery =
+                "INSERT INTO s2dr.ContentChunks\n" +
+                "  (chunkHash, contents, segmentId, segmentOffset, storedLength, refCount)\n" +
+                "VALUES (?, ?, ?, ?, ?, ?)";
+
+        String manifestQuery =
+                "INSERT INTO s2dr.StagedManifests\n" +
+                "  (stagingId, chunkIndex, chunkHash, chunkOffset, chunkLength, wrappedKey)\n" +
+                "VALUES (?, ?, ?, ?, ?, ?)";
+
+        LOG.debug("Query:\n{}", incrementQuery);
+        LOG.debug("Query:\n{}", insertQuery);
+        LOG.debug("Query:\n{}", manifestQuery);
+
+        PreparedStatement increment = null;
+        PreparedStatement insert = null;
+        PreparedStatement manifest = null;
+        Transaction transaction = Transaction.begin(conn);
+        try {
+            increment = conn.prepareStatement(incrementQuery);
+            insert = conn.prepareStatement(insertQuery);
+            manifest = conn.prepareStatement(manifestQuery);
+
+            int newChunks = 0;
+            for (Map.Entry<byte[], List<StagedChunk>> chunks: chunksByHash.entrySet()) {
+                int references = chunks.getValue().size();
+                if (addReferences(increment, chunks.getKey(), references)) {
+                    if (written.containsKey(chunks.getKey())) {
+                        unused.add(written.get(chunks.getKey()));
+                    }
+                    continue;
+                }
+
+                ChunkLocation location = written.get(chunks.getKey());
+                if (location == null) {
+                    StagedChunk chunk = chunks.getValue().get(0);
+                    location = documentStore.write(codec.encode(chunk.descriptor, chunk.bytes));
+                    written.put(chunks.getKey(), location);
+                    documentStore.sync(Collections.singletonList(location));
+                }
+                if (storeChunk(insert, increment, chunks.getKey(), location, references)) {
+                    newChunks++;
+                } else {
+                    unused.add(location);
+                }
+            }
+
+            for (StagedChunk chunk: batch) {
+                manifest.setString(1, stagingId);
+                manifest.setInt(2, chunk.chunkIndex);
+                manifest.setBytes(3, chunk.descriptor.getChunkHash());
+                manifest.setLong(4, chunk.offset);
+                manifest.setInt(5, chunk.bytes.length);
+                manifest.setBytes(6, chunk.descriptor.getWrappedKey().orElse(null));
+                manifest.addBatch();
+            }
+            manifest.executeBatch();
+
+            transaction.commit();
+            return newChunks;
+        } finally {
+            transaction.end();
+            if (increment != null) {
+                increment.close();
+            }
+            if (insert != null) {
+                insert.close();
+            }
+            if (manifest != null) {
+                manifest.close();
+            }
+        }
+    }
+
+    private boolean isStored(byte[] chunkHash) throws SQLException {
+        String query =
+                "SELECT 1\n" +
+                "  FROM s2dr.ContentChunks\n" +
+                " WHERE chunkHash = ?";
+
+        LOG.debug("Query:\n{}", query);
+
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(query);
+            ps.setBytes(1, chunkHash);
+            return ps.executeQuery().next();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    private static boolean addReferences(PreparedStatement increment, byte[] chunkHash, int references)
+            throws SQLException {
+
+        increment.setInt(1, references);
+        increment.setBytes(2, chunkHash);
+        return increment.executeUpdate() > 0;
+    }
+
+    // returns false if a concurrent check-in stored the same chunk first, in which case it refers to theirs
+    private static boolean storeChunk(
+            PreparedStatement insert,
+            PreparedStatement increment,
+            byte[] chunkHash,
+            ChunkLocation location,
+            int references) throws SQLException {
+
+        try {
+            insert.setBytes(1, chunkHash);
+            insert.setBytes(2, location.getRowContents().orElse(null));
+            if (location.isInRow()) {
+                insert.setNull(3, Types.INTEGER);
+                insert.setNull(4, Types.BIGINT);
+            } else {
+                insert.setInt(3, location.getSegmentId());
+                insert.setLong(4, location.getOffset());
+            }
+            insert.setInt(5, location.getLength());
+            insert.setInt(6, references);
+            insert.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            if (DocumentDao.DUPLICATE_KEY_SQL_STATE.equals(e.getSQLState())
+                    && addReferences(increment, chunkHash, references)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void eraseQuietly(List<ChunkLocation> locations) {
+        for (ChunkLocation location: locations) {
+            try {
+                documentStore.erase(location);
+            } catch (IOException e) {
+                LOG.warn("Unable to erase a chunk nothing refers to", e);
+            }
+        }
+    }
+
+    // Makes the staged contents the document's contents, and moves their references to the document's manifest.
+    // The document must not have a manifest yet (see `releaseContents`). Fails if the staged contents aren't all
+    // there anymore, which only happens if they were released as abandoned (see `DocumentShredder`).
+    public void adoptStagedContents(StagedContents staged, String documentName) throws SQLException, IOException {
+
+        String adoptQuery =
+                "INSERT INTO s2dr.DocumentManifests\n" +
+                "  (documentName, chunkIndex, chunkHash, chunkOffset, chunkLength, wrappedKey)\n" +
+                "SELECT ?, chunkIndex, chunkHash, chunkOffset, chunkLength, wrappedKey\n" +
+                "  FROM s2dr.StagedManifests\n" +
+                " WHERE stagingId = ?";
+
+        ManifestKey key = manifest -> {
+            manifest.setString(1, documentName);
+            return 2;
+        };
+        adoptStaged(staged, adoptQuery, key);
+        LOG.info("Stored document \"{}\" as staged contents \"{}\"", documentName, staged.getStagingId());
+    }
+
+    // like `adoptStagedContents`, as part `partNumber` of an upload, whose row must already be in `s2dr.UploadParts`.
+    // The part's manifest holds the references until it is moved to the document (see `adoptUploadedContents`) or
+    // released (see `releaseUpload`)
+    public void adoptStagedPart(StagedContents staged, String sessionId, int partNumber)
+            throws SQLException, IOException {
+
+        String adoptQuery =
+                "INSERT INTO s2dr.UploadManifests\n" +
+                "  (sessionId, partNumber, chunkIndex, chunkHash, chunkOffset, chunkLength, wrappedKey)\n" +
+                "SELECT ?, ?, chunkIndex, chunkHash, chunkOffset, chunkLength, wrappedKey\n" +
+                "  FROM s2dr.StagedManifests\n" +
+                " WHERE stagingId = ?";
+
+        ManifestKey key = manifest -> {
+            manifest.setString(1, sessionId);
+            manifest.setInt(2, partNumber);
+            return 3;
+        };
+        adoptStaged(staged, adoptQuery, key);
+        LOG.info("Stored part {} of upload \"{}\" as staged contents \"{}\"",
+                partNumber, sessionId, staged.getStagingId());
+    }
+
+    private void adoptStaged(StagedContents staged, String adoptQuery, ManifestKey key)
+            throws SQLException, IOException {
+
+        String deleteQuery =
+                "DELETE\n" +
+                "  FROM s2dr.StagedManifests\n" +
+                " WHERE stagingId = ?";
+
+        LOG.debug("Query:\n{}", adoptQuery);
+        LOG.debug("Query:\n{}", deleteQuery);
+
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = conn.prepareStatement(adoptQuery);
+            ps1.setString(key.set(ps1), staged.getStagingId());
+            if (ps1.executeUpdate() != staged.chunkCount) {
+                throw new IOException(String.format(
+                        "The staged contents \"%s\" were released before they were stored", staged.getStagingId()));
+            }
+        } finally {
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        PreparedStatement ps2 = null;
+        try {
+            ps2 = conn.prepareStatement(deleteQuery);
+            ps2.setString(1, staged.getStagingId());
+            ps2.executeUpdate();
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
+            }
+        }
+    }
+
+    // Removes what is left of the staged contents, and the references they held on their chunks, like
+    // `releaseContents` does for a document. Does nothing for staged contents that were adopted.
+    public void releaseStagedContents(String stagingId) throws SQLException {
+
+        String releaseQuery =
+                "UPDATE s2dr.ContentChunks c\n" +
+                "   SET refCount = refCount - (SELECT COUNT(*)\n" +
+                "                                FROM s2dr.StagedManifests m\n" +
+                "                               WHERE m.stagingId = ?\n" +
+                "                                 AND m.chunkHash = c.chunkHash)\n" +
+                " WHERE chunkHash IN (SELECT chunkHash\n" +
+                "                       FROM s2dr.StagedManifests\n" +
+                "                      WHERE stagingId = ?)";
+
+        String deleteQuery =
+                "DELETE\n" +
+                "  FROM s2dr.StagedManifests\n" +
+                " WHERE stagingId = ?";
+
+        LOG.debug("Query:\n{}", releaseQuery);
+        LOG.debug("Query:\n{}", deleteQuery);
+
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = conn.prepareStatement(releaseQuery);
+            ps1.setString(1, stagingId);
+            ps1.setString(2, stagingId);
+            ps1.executeUpdate();
+        } finally {
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        PreparedStatement ps2 = null;
+        try {
+            ps2 = conn.prepareStatement(deleteQuery);
+            ps2.setString(1, stagingId);
+            ps2.executeUpdate();
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
+            }
+        }
+    }
+
+    // Releases the staged contents in a transaction of its own, for a check-in that didn't adopt them. The
+    // connection must be in auto-commit mode. A failure is only logged: staged contents that are left behind are
+    // released by `DocumentShredder` once they have been abandoned for long enough.
+    public void discardStagedContents(String stagingId) {
+        try {
+            Transaction transaction = Transaction.begin(conn);
+            try {
+                releaseStagedContents(stagingId);
+                transaction.commit();
+            } finally {
+                transaction.end();
+            }
+        } catch (SQLException e) {
+            LOG.warn(String.format("Unable to release staged contents \"%s\"", stagingId), e);
+        }
+    }
+
+    // where a row of `s2dr.ContentChunks` says its chunk's bytes are
+    public static ChunkLocation readChunkLocation(ResultSet rs) throws SQLException {
+        byte[] contents = rs.getBytes("contents");
+        if (contents != null) {
+            return ChunkLocation.inRow(contents);
+        }
+        return ChunkLocation.inSegment(rs.getInt("segmentId"), rs.getLong("segmentOffset"), rs.getInt("storedLength"));
+    }
+
+    // Removes the document's manifest, and the references it held on its chunks. Does nothing for a document that
+    // has no manifest.
+    public void releaseContents(String documentName) throws SQLException {
+
+        // a document can contain the same chunk more than once, and holds a reference for every time it does
+        String releaseQuery =
+                "UPDATE s2dr.ContentChunks c\n" +
+                "   SET refCount = refCount - (SELECT COUNT(*)\n" +
+                "                                FROM s2dr.DocumentManifests m\n" +
+                "                               WHERE m.documentName = ?\n" +
+                "                                 AND m.chunkHash = c.chunkHash)\n" +
+                " WHERE chunkHash IN (SELECT chunkHash\n" +
+                "                       FROM s2dr.DocumentManifests\n" +
+                "                      WHERE documentName = ?)";
+
+        String deleteQuery =
+                "DELETE\n" +
+                "  FROM s2dr.DocumentManifests\n" +
+                " WHERE documentName = ?";
+
+        LOG.debug("Query:\n{}", releaseQuery);
+        LOG.debug("Query:\n{}", deleteQuery);
+
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = conn.prepareStatement(releaseQuery);
+            ps1.setString(1, documentName);
+            ps1.setString(2, documentName);
+            ps1.executeUpdate();
+        } finally {
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        PreparedStatement ps2 = null;
+        try {
+            ps2 = conn.prepareStatement(deleteQuery);
+            ps2.setString(1, documentName);
+            ps2.executeUpdate();
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
+            }
+        }
+    }
+
+    // Moves the document's manifest, and the references it holds, to the manifest of its earlier version `version`,
+    // whose row must already be in `s2dr.DocumentVersions`. The document has no manifest afterwards.
+    public void archiveContents(String documentName, int version) throws SQLException {
+
+        String archiveQuery =
+                "INSERT INTO s2dr.VersionManifests\n" +
+                "  (documentName, version, chunkIndex, chunkHash, chunkOffset, chunkLength, wrappedKey)\n" +
+                "SELECT documentName, ?, chunkIndex, chunkHash, chunkOffset, chunkLength, wrappedKey\n" +
+                "  FROM s2dr.DocumentManifests\n" +
+                " WHERE documentName = ?";
+
+        String deleteQuery =
+                "DELETE\n" +
+                "  FROM s2dr.DocumentManifests\n" +
+                " WHERE documentName = ?";
+
+        LOG.debug("Query:\n{}", archiveQuery);
+        LOG.debug("Query:\n{}", deleteQuery);
+
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = conn.prepareStatement(archiveQuery);
+            ps1.setInt(1, version);
+            ps1.setString(2, documentName);
+            ps1.executeUpdate();
+        } finally {
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        PreparedStatement ps2 = null;
+        try {
+            ps2 = conn.prepareStatement(deleteQuery);
+            ps2.setString(1, documentName);
+            ps2.executeUpdate();
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
+            }
+        }
+    }
+
+    // Removes the manifests of the document's earlier versions before `version`, and the references they held on
+    // their chunks, like `releaseContents` does for the document's own manifest.
+    public void releaseVersions(String documentName, int version) throws SQLException {
+
+        String releaseQuery =
+                "UPDATE s2dr.ContentChunks c\n" +
+                "   SET refCount = refCount - (SELECT COUNT(*)\n" +
+                "                                FROM s2dr.VersionManifests m\n" +
+                "                               WHERE m.documentName = ?\n" +
+                "                                 AND m.version < ?\n" +
+                "                                 AND m.chunkHash = c.chunkHash)\n" +
+                " WHERE chunkHash IN (SELECT chunkHash\n" +
+                "                       FROM s2dr.VersionManifests\n" +
+                "                      WHERE documentName = ?\n" +
+                "                        AND version < ?)";
+
+        String deleteQuery =
+                "DELETE\n" +
+                "  FROM s2dr.VersionManifests\n" +
+                " WHERE documentName = ?\n" +
+                "   AND version < ?";
+
+        LOG.debug("Query:\n{}", releaseQuery);
+        LOG.debug("Query:\n{}", deleteQuery);
+
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = conn.prepareStatement(releaseQuery);
+            ps1.setString(1, documentName);
+            ps1.setInt(2, version);
+            ps1.setString(3, documentName);
+            ps1.setInt(4, version);
+            ps1.executeUpdate();
+        } finally {
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        PreparedStatement ps2 = null;
+        try {
+            ps2 = conn.prepareStatement(deleteQuery);
+            ps2.setString(1, documentName);
+            ps2.setInt(2, version);
+            ps2.executeUpdate();
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
+            }
+        }
+    }
+
+    // Moves the manifests of an upload's parts (and the references they hold) to the document, whose contents are
+    // then the parts one after the other. The document must not have a manifest yet. Nothing but manifest rows is
+    // copied, the chunks stay where they are.
+    public void adoptUploadedContents(String sessionId, String documentName, List<UploadPart> parts)
+            throws SQLException {
+
+        String adoptQuery =
+                "INSERT INTO s2dr.DocumentManifests\n" +
+                "  (documentName, chunkIndex, chunkHash, chunkOffset, chunkLength, wrappedKey)\n" +
+                "SELECT ?, chunkIndex, chunkHash, chunkOffset + ?, chunkLength, wrappedKey\n" +
+                "  FROM s2dr.UploadManifests\n" +
+                " WHERE sessionId = ?\n" +
+                "   AND partNumber = ?";
+
+        String deleteQuery =
+                "DELETE\n" +
+                "  FROM s2dr.UploadManifests\n" +
+                " WHERE sessionId = ?";
+
+        LOG.debug("Query:\n{}", adoptQuery);
+        LOG.debug("Query:\n{}", deleteQuery);
+
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = conn.prepareStatement(adoptQuery);
+
+            long partOffset = 0;
+            for (UploadPart part: parts) {
+                ps1.setString(1, documentName);
+                ps1.setLong(2, partOffset);
+                ps1.setString(3, sessionId);
+                ps1.setInt(4, part.getPartNumber());
+                ps1.addBatch();
+
+                partOffset += part.getPartLength();
+            }
+            ps1.executeBatch();
+        } finally {
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        PreparedStatement ps2 = null;
+        try {
+            ps2 = conn.prepareStatement(deleteQuery);
+            ps2.setString(1, sessionId);
+            ps2.executeUpdate();
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
+            }
+        }
+    }
+
+    // Removes the manifests of an upload's parts, and the references they held on their chunks, like
+    // `releaseContents` does for a document.
+    public void releaseUpload(String sessionId) throws SQLException {
+
+        String releaseQuery =
+                "UPDATE s2dr.ContentChunks c\n" +
+                "   SET refCount = refCount - (SELECT COUNT(*)\n" +
+                "                                FROM s2dr.UploadManifests m\n" +
+                "                               WHERE m.sessionId = ?\n" +
+                "                                 AND m.chunkHash = c.chunkHash)\n" +
+                " WHERE chunkHash IN (SELECT chunkHash\n" +
+                "                       FROM s2dr.UploadManifests\n" +
+                "                      WHERE sessionId = ?)";
+
+        String deleteQuery =
+                "DELETE\n" +
+                "  FROM s2dr.UploadManifests\n" +
+                " WHERE sessionId = ?";
+
+        LOG.debug("Query:\n{}", releaseQuery);
+        LOG.debug("Query:\n{}", deleteQuery);
+
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = conn.prepareStatement(releaseQuery);
+            ps1.setString(1, sessionId);
+            ps1.setString(2, sessionId);
+            ps1.executeUpdate();
+        } finally {
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        PreparedStatement ps2 = null;
+        try {
+            ps2 = conn.prepareStatement(deleteQuery);
+            ps2.setString(1, sessionId);
+            ps2.executeUpdate();
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
+            }
+        }
+    }
+
+    // like `openContents`, for the whole of part `partNumber` of an upload
+    public InputStream openUploadPart(String sessionId, int partNumber, ChunkCodec codec) throws SQLException {
+
+        String query =
+                "SELECT m.chunkIndex,\n" +
+                "       m.chunkHash,\n" +
+                "       m.chunkOffset,\n" +
+                "       m.wrappedKey,\n" +
+                "       c.contents,\n" +
+                "       c.segmentId,\n" +
+                "       c.segmentOffset,\n" +
+                "       c.storedLength\n" +
+                "  FROM s2dr.UploadManifests m\n" +
+                "  JOIN s2dr.ContentChunks c\n" +
+                "    ON c.chunkHash = m.chunkHash\n" +
+                " WHERE m.sessionId = ?\n" +
+                "   AND m.partNumber = ?\n" +
+                " ORDER BY m.chunkIndex";
+
+        LOG.debug("Query:\n{}", query);
+
+        PreparedStatement ps = conn.prepareStatement(query);
+        try {
+            ps.setString(1, sessionId);
+            ps.setInt(2, partNumber);
+
+            InputStream contents = new ManifestInputStream(ps, ps.executeQuery(), documentStore, codec, 0);
+            ps = null; // the stream owns the statement now
+            return contents;
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    // The returned stream decodes the chunks of a checked-out document one at a time as it is read, starting `offset`
+    // bytes into the contents. Only chunks at or after `offset` are read. They are looked up `CHECKOUT_BATCH_SIZE` at
+    // a time, each batch with a connection borrowed from `connectionPool` rather than this DAO's, so the stream can
+    // still be read after the request's connection has been released. Every batch comes from the version that was
+    // checked out, whether the document has been overwritten since (which made it an earlier version) or not. If it
+    // isn't kept anymore, or the document was deleted, reading fails rather than going on with other contents.
+    public InputStream openContents(DocumentDownload download, long offset, ChunkCodec codec,
+                                    ConnectionPool connectionPool) {
+
+        return new CheckoutInputStream(connectionPool, documentStore, codec, download, offset);
+    }
+
+    // Returns the parts of files that hold bytes `[offset, offset + length)` of a document stored with
+    // `PlainChunkCodec` (whose stored chunks are the contents themselves), in order, so they can be sent without
+    // reading them. Chunks written one after the other are merged into a single region. Empty if any of the chunks
+    // isn't kept in a file.
+    public Optional<List<FileRegion>> locateContents(String documentName, long offset, long length)
+            throws SQLException {
+
+        String query =
+                "SELECT m.chunkOffset,\n" +
+                "       m.chunkLength,\n" +
+                "       c.contents IS NULL AS inSegment,\n" +
+                "       c.segmentId,\n" +
+                "       c.segmentOffset\n" +
+                "  FROM s2dr.DocumentManifests m\n" +
+                "  JOIN s2dr.ContentChunks c\n" +
+                "    ON c.chunkHash = m.chunkHash\n" +
+                " WHERE m.documentName = ?\n" +
+                "   AND m.chunkOffset + m.chunkLength > ?\n" +
+                "   AND m.chunkOffset < ?\n" +
+                " ORDER BY m.chunkIndex";
+
+        LOG.debug("Query:\n{}", query);
+
+        long end = offset + length;
+
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(query);
+            ps.setString(1, documentName);
+            ps.setLong(2, offset);
+            ps.setLong(3, end);
+            ResultSet rs = ps.executeQuery();
+
+            List<FileRegion> regions = new ArrayList<>();
+            while (rs.next()) {
+                if (!rs.getBoolean("inSegment")) {
+                    return Optional.empty();
+                }
+
+                long chunkOffset = rs.getLong("chunkOffset");
+                int chunkLength = rs.getInt("chunkLength");
+                Optional<FileRegion> chunkRegion = documentStore.fileRegion(ChunkLocation.inSegment(
+                        rs.getInt("segmentId"), rs.getLong("segmentOffset"), chunkLength));
+                if (!chunkRegion.isPresent()) {
+                    return Optional.empty();
+                }
+
+                // only the part of the chunk that falls inside the requested bytes
+                long skip = Math.max(0, offset - chunkOffset);
+                long count = Math.min(chunkLength, end - chunkOffset) - skip;
+                FileRegion region = chunkRegion.get().slice(skip, count);
+
+                int last = regions.size() - 1;
+                if (last >= 0 && regions.get(last).isFollowedBy(region)) {
+                    regions.set(last, regions.get(last).extendBy(region.getCount()));
+                } else {
+                    regions.add(region);
+                }
+            }
+            return Optional.of(regions);
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    // Reads the document's contents at any offset, decoding the chunk the offset is in (and keeping the last one
+    // decoded). The manifest is read into memory up front, so the contents can still be read after the manifest is
+    // released or archived, until the transaction that did so commits and the chunks may be shredded.
+    public ChunkedContents openChunkedContents(String documentName, ChunkCodec codec) throws SQLException {
+
+        String manifestQuery =
+                "SELECT chunkIndex,\n" +
+                "       chunkHash,\n" +
+                "       chunkOffset,\n" +
+                "       chunkLength,\n" +
+                "       wrappedKey\n" +
+                "  FROM s2dr.DocumentManifests\n" +
+                " WHERE documentName = ?\n" +
+                " ORDER BY chunkIndex";
+
+        String chunkQuery =
+                "SELECT contents,\n" +
+                "       segmentId,\n" +
+                "       segmentOffset,\n" +
+                "       storedLength\n" +
+                "  FROM s2dr.ContentChunks\n" +
+                " WHERE chunkHash = ?";
+
+        LOG.debug("Query:\n{}", manifestQuery);
+        LOG.debug("Query:\n{}", chunkQuery);
+
+        List<ManifestEntry> manifest = new ArrayList<>();
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(manifestQuery);
+            ps.setString(1, documentName);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                manifest.add(new ManifestEntry(
+                        rs.getInt("chunkIndex"),
+                        new ChunkDescriptor(rs.getBytes("chunkHash"), Optional.ofNullable(rs.getBytes("wrappedKey"))),
+                        rs.getLong("chunkOffset"),
+                        rs.getInt("chunkLength")));
+            }
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+
+        return new ChunkedContents(conn.prepareStatement(chunkQuery), documentStore, codec, manifest);
+    }
+
+    // a chunk of the contents being staged, kept in memory until its batch is staged
+    private static final class StagedChunk {
+
+        private final int chunkIndex;
+        private final long offset;
+        private final byte[] bytes;
+        private final ChunkDescriptor descriptor;
+
+        StagedChunk(int chunkIndex, long offset, byte[] bytes, ChunkDescriptor descriptor) {
+            this.chunkIndex = chunkIndex;
+            this.offset = offset;
+            this.bytes = bytes;
+            this.descriptor = descriptor;
+        }
+    }
+
+    // see `stageContents`
+    public static final class StagedContents {
+
+        private final String stagingId;
+        private final int chunkCount;
+        private final long length;
+
+        StagedContents(String stagingId, int chunkCount, long length) {
+            this.stagingId = stagingId;
+            this.chunkCount = chunkCount;
+            this.length = length;
+        }
+
+        public String getStagingId() {
+            return stagingId;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    private static final class ManifestEntry {
+
+        private final int chunkIndex;
+        private final ChunkDescriptor descriptor;
+        private final long offset;
+        private final int length;
+
+        ManifestEntry(int chunkIndex, ChunkDescriptor descriptor, long offset, int length) {
+            this.chunkIndex = chunkIndex;
+            this.descriptor = descriptor;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // see `openChunkedContents`
+    public static class ChunkedContents implements Closeable {
+
+        private final PreparedStatement chunkStatement;
+        private final DocumentStore documentStore;
+        private final ChunkCodec codec;
+        private final List<ManifestEntry> manifest;
+        private final long[] offsets;
+
+        private int decodedIndex = -1;
+        private byte[] decodedChunk;
+
+        ChunkedContents(
+                PreparedStatement chunkStatement,
+                DocumentStore documentStore,
+                ChunkCodec codec,
+                List<ManifestEntry> manifest) {
+
+            this.chunkStatement = chunkStatement;
+            this.documentStore = documentStore;
+            this.codec = codec;
+            this.manifest = manifest;
+            this.offsets = new long[manifest.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = manifest.get(i).offset;
+            }
+        }
+
+        public long getLength() {
+            if (manifest.isEmpty()) {
+                return 0;
+            }
+            ManifestEntry last = manifest.get(manifest.size() - 1);
+            return last.offset + last.length;
+        }
+
+        // reads up to `length` bytes at `position`, but never past the end of the chunk `position` is in. Returns
+        // how many bytes were read, or -1 at the end of the contents
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            if (position < 0 || position >= getLength()) {
+                return -1;
+            }
+
+            // the chunk that starts at or before the position
+            int index = Arrays.binarySearch(offsets, position);
+            if (index < 0) {
+                index = -index - 2;
+            }
+
+            byte[] chunk = decode(index);
+            int start = (int) (position - offsets[index]);
+            int read = Math.min(length, chunk.length - start);
+            System.arraycopy(chunk, start, buffer, offset, read);
+            return read;
+        }
+
+        private byte[] decode(int index) throws IOException {
+            if (index == decodedIndex) {
+                return decodedChunk;
+            }
+
+            ManifestEntry entry = manifest.get(index);
+            try {
+                chunkStatement.setBytes(1, entry.descriptor.getChunkHash());
+                ResultSet rs = chunkStatement.executeQuery();
+                if (!rs.next()) {
+                    throw new IOException("Chunk " + entry.chunkIndex + " of the document is no longer stored");
+                }
+
+                byte[] stored = documentStore.read(readChunkLocation(rs));
+                byte[] chunk = codec.decode(entry.descriptor, entry.chunkIndex, stored);
+                if (chunk.length != entry.length) {
+                    throw new IOException("Chunk " + entry.chunkIndex + " of the document doesn't have its length");
+                }
+
+                decodedIndex = index;
+                decodedChunk = chunk;
+                return chunk;
+            } catch (SQLException e) {
+                throw new IOException("Unable to read chunk " + entry.chunkIndex + " of the document", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                chunkStatement.close();
+            } catch (SQLException e) {
+                throw new IOException("Unable to close the statement reading the document's chunks", e);
+            }
+        }
+    }
+
+    private static class ManifestInputStream extends InputStream {
+
+        private final PreparedStatement ps;
+        private final ResultSet rs;
+        private final DocumentStore documentStore;
+        private final ChunkCodec codec;
+
+        private long skip;
+        private byte[] chunk = new byte[0];
+        private int position = 0;
+        private boolean closed = false;
+
+        ManifestInputStream(
+                PreparedStatement ps,
+                ResultSet rs,
+                DocumentStore documentStore,
+                ChunkCodec codec,
+                long offset) {
+
+            this.ps = ps;
+            this.rs = rs;
+            this.documentStore = documentStore;
+            this.codec = codec;
+            this.skip = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == chunk.length && !nextChunk()) {
+                return -1;
+            }
+
+            int read = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, buffer, offset, read);
+            position += read;
+            return read;
+        }
+
+        private boolean nextChunk() throws IOException {
+            try {
+                if (closed || !rs.next()) {
+                    return false;
+                }
+
+                int chunkIndex = rs.getInt("chunkIndex");
+                ChunkDescriptor descriptor = new ChunkDescriptor(
+                        rs.getBytes("chunkHash"), Optional.ofNullable(rs.getBytes("wrappedKey")));
+
+                chunk = codec.decode(descriptor, chunkIndex, documentStore.read(readChunkLocation(rs)));
+
+                // only the first chunk can start before the offset
+                position = (int) Math.max(0, skip - rs.getLong("chunkOffset"));
+                skip = 0;
+                return true;
+            } catch (SQLException e) {
+                throw new IOException("Unable to read the next chunk of the document", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                LOG.warn("Unable to close the statement backing a document contents stream", e);
+            }
+        }
+    }
+
+    // see `openContents`
+    private static class CheckoutInputStream extends PooledBatchInputStream {
+
+        // the manifest of the version, wherever it is now: the document's own while it is the current version, the
+        // earlier version's once the document has been overwritten
+        private static final String QUERY =
+                "SELECT m.chunkIndex,\n" +
+                "       m.chunkHash,\n" +
+                "       m.chunkOffset,\n" +
+                "       m.chunkLength,\n" +
+                "       m.wrappedKey,\n" +
+                "       c.contents,\n" +
+                "       c.segmentId,\n" +
+                "       c.segmentOffset,\n" +
+                "       c.storedLength\n" +
+                "  FROM s2dr.DocumentManifests m\n" +
+                "  JOIN s2dr.Documents d\n" +
+                "    ON d.documentName = m.documentName\n" +
+                "  JOIN s2dr.ContentChunks c\n" +
+                "    ON c.chunkHash = m.chunkHash\n" +
+                " WHERE m.documentName = ?\n" +
+                "   AND d.version = ?\n" +
+                "   AND d.lastModified = ?\n" +
+                "   AND m.chunkIndex > ?\n" +
+                "   AND m.chunkOffset + m.chunkLength > ?\n" +
+                "UNION ALL\n" +
+                "SELECT m.chunkIndex,\n" +
+                "       m.chunkHash,\n" +
+                "       m.chunkOffset,\n" +
+                "       m.chunkLength,\n" +
+                "       m.wrappedKey,\n" +
+                "       c.contents,\n" +
+                "       c.segmentId,\n" +
+                "       c.segmentOffset,\n" +
+                "       c.storedLength\n" +
+                "  FROM s2dr.VersionManifests m\n" +
+                "  JOIN s2dr.DocumentVersions v\n" +
+                "    ON v.documentName = m.documentName\n" +
+                "   AND v.version = m.version\n" +
+                "  JOIN s2dr.ContentChunks c\n" +
+                "    ON c.chunkHash = m.chunkHash\n" +
+                " WHERE m.documentName = ?\n" +
+                "   AND m.version = ?\n" +
+                "   AND v.lastModified = ?\n" +
+                "   AND m.chunkIndex > ?\n" +
+                "   AND m.chunkOffset + m.chunkLength > ?\n" +
+                " ORDER BY 1\n" +
+                " LIMIT ?";
+
+        private final DocumentStore documentStore;
+        private final ChunkCodec codec;
+        private final DocumentDownload download;
+
+        // where the contents read so far end, and the last chunk they end with
+        private long nextOffset;
+        private int lastChunkIndex = -1;
+
+        private final List<BatchedChunk> batch = new ArrayList<>();
+        private Iterator<BatchedChunk> unread = Collections.emptyIterator();
+
+        CheckoutInputStream(ConnectionPool connectionPool, DocumentStore documentStore, ChunkCodec codec,
+                            DocumentDownload download, long offset) {
+
+            super(connectionPool);
+            this.documentStore = documentStore;
+            this.codec = codec;
+            this.download = download;
+            this.nextOffset = offset;
+        }
+
+        @Override
+        protected boolean fetchBatch(Connection connection) throws SQLException, IOException {
+            if (nextOffset >= download.getStoredLength()) {
+                return false;
+            }
+
+            LOG.debug("Query:\n{}", QUERY);
+
+            batch.clear();
+            PreparedStatement ps = null;
+            try {
+                ps = connection.prepareStatement(QUERY);
+                Timestamp lastModified = new Timestamp(download.getLastModifiedMillis());
+                for (int leg = 0; leg < 2; leg++) {
+                    ps.setString(leg * 5 + 1, download.getDocumentName());
+                    ps.setInt(leg * 5 + 2, download.getVersion());
+                    ps.setTimestamp(leg * 5 + 3, lastModified);
+                    ps.setInt(leg * 5 + 4, lastChunkIndex);
+                    ps.setLong(leg * 5 + 5, nextOffset);
+                }
+                ps.setInt(11, CHECKOUT_BATCH_SIZE);
+
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    int chunkIndex = rs.getInt("chunkIndex");
+                    if (chunkIndex <= lastChunkIndex) {
+                        // both manifests, read while the document was being overwritten
+                        continue;
+                    }
+
+                    long chunkOffset = rs.getLong("chunkOffset");
+                    if (chunkOffset > nextOffset) {
+                        throw new IOException(String.format(
+                                "Version %d of document \"%s\" changed while it was being read",
+                                download.getVersion(), download.getDocumentName()));
+                    }
+
+                    ChunkDescriptor descriptor = new ChunkDescriptor(
+                            rs.getBytes("chunkHash"), Optional.ofNullable(rs.getBytes("wrappedKey")));
+                    batch.add(new BatchedChunk(
+                            chunkIndex, descriptor, readChunkLocation(rs), (int) (nextOffset - chunkOffset)));
+
+                    lastChunkIndex = chunkIndex;
+                    nextOffset = chunkOffset + rs.getInt("chunkLength");
+                }
+            } finally {
+                if (ps != null) {
+                    ps.close();
+                }
+            }
+
+            if (batch.isEmpty()) {
+                throw new IOException(String.format(
+                        "Version %d of document \"%s\" was deleted while it was being read",
+                        download.getVersion(), download.getDocumentName()));
+            }
+            unread = batch.iterator();
+            return true;
+        }
+
+        @Override
+        protected byte[] nextPiece() throws IOException {
+            if (!unread.hasNext()) {
+                return null;
+            }
+
+            BatchedChunk next = unread.next();
+            byte[] chunk = codec.decode(next.descriptor, next.chunkIndex, documentStore.read(next.location));
+
+            // only the first chunk can start before the offset
+            return next.skip == 0 ? chunk : Arrays.copyOfRange(chunk, Math.min(next.skip, chunk.length), chunk.length);
+        }
+    }
+
+    private static final class BatchedChunk {
+
+        private final int chunkIndex;
+        private final ChunkDescriptor descriptor;
+        private final ChunkLocation location;
+        private final int skip;
+
+        BatchedChunk(int chunkIndex, ChunkDescriptor descriptor, ChunkLocation location, int skip) {
+            this.chunkIndex = chunkIndex;
+            this.descriptor = descriptor;
+            this.location = location;
+            this.skip = skip;
+        }
+    }
+}
@@ -1,21 +1,30 @@
 package com.cs6238.project2.s2dr.server.app;
 
+import com.cs6238.project2.s2dr.server.app.exceptions.DocumentConflictException;
 import com.cs6238.project2.s2dr.server.app.exceptions.NoQueryResultsException;
 import com.cs6238.project2.s2dr.server.app.exceptions.TooManyQueryResultsException;
 import com.cs6238.project2.s2dr.server.app.exceptions.UnexpectedQueryResultsException;
 import com.cs6238.project2.s2dr.server.app.objects.CurrentUser;
-import com.cs6238.project2.s2dr.server.app.objects.DelegatePermissionParams;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentAccess;
 import com.cs6238.project2.s2dr.server.app.objects.DocumentDownload;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentGrant;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentGrantUpdate;
 import com.cs6238.project2.s2dr.server.app.objects.DocumentPermission;
+import com.cs6238.project2.s2dr.server.app.objects.EnumBits;
 import com.cs6238.project2.s2dr.server.app.objects.SecurityFlag;
+import com.cs6238.project2.s2dr.server.app.storage.ContentCoding;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
+import com.cs6238.project2.s2dr.server.config.database.Transaction;
 import com.google.common.collect.ImmutableSet;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.shiro.util.ByteSource;
+import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.spec.RSAPublicKeySpec;
 import java.sql.Connection;
@@ -23,25 +32,41 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.util.EnumSet;
-import java.util.HashSet;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
 
 public class DocumentDao {
 
     private static final Logger LOG = LoggerFactory.getLogger(DocumentDao.class);
 
+    // the bytes of a document stored in its own BLOB that a check-out reads at a time, see `openContents`
+    private static final int CHECKOUT_BATCH_BYTES = 256 * 1024;
+
+    // the SQLSTATE of a unique index or primary key violation
+    static final String DUPLICATE_KEY_SQL_STATE = "23505";
+
     private final Connection conn;
     private final CurrentUser currentUser;
+    private final NameIds nameIds;
 
     @Inject
     public DocumentDao(
             Connection conn,
-            CurrentUser currentUser) {
+            CurrentUser currentUser,
+            NameIds nameIds) {
 
         this.conn = conn;
         this.currentUser = currentUser;
+        this.nameIds = nameIds;
+    }
+
+    // check-ins run in a single transaction, see `DocumentService.uploadDocument`
+    public Transaction beginTransaction() throws SQLException {
+        return Transaction.begin(conn);
     }
 
     public boolean documentExists(String documentName) throws SQLException {
@@ -74,15 +99,18 @@ public class DocumentDao {
 
     }
 
+    // `contents` are streamed into the document's BLOB. Without them, the document is stored as chunks by
+    // `DocumentContentDao` instead
     public void uploadDocument(String documentName,
-                               ByteSource contents,
+                               Optional<InputStream> contents,
                                Optional<byte[]> encryptionKey,
                                Optional<byte[]> signature)
-            throws SQLException, FileNotFoundException, UnexpectedQueryResultsException {
+            throws SQLException, FileNotFoundException, DocumentConflictException {
 
         String query =
-                "INSERT INTO s2dr.Documents (documentName, contents, uploadUser, encryptionKey, signature)\n" +
-                "VALUES (?, ?, ?, ?, ?)";
+                "INSERT INTO s2dr.Documents\n" +
+                "  (documentName, contents, uploadUser, encryptionKey, signature, lastModified, chunked)\n" +
+                "VALUES (?, ?, ?, ?, ?, CURRENT_TIMESTAMP(), ?)";
 
         LOG.debug("Query:\n{}", query);
 
@@ -91,13 +119,22 @@ public class DocumentDao {
             ps = conn.prepareStatement(query);
 
             ps.setString(1, documentName);
-            ps.setBytes(2, contents.getBytes());
+            setContents(ps, 2, contents);
             ps.setString(3, currentUser.getUserName());
             ps.setBytes(4, encryptionKey.orElse(null)); // this is a nullable field
             ps.setBytes(5, signature.orElse(null)); // nullable field
+            ps.setBoolean(6, !contents.isPresent());
 
             ps.executeUpdate();
 
+        } catch (SQLException e) {
+            // the document didn't exist when we checked, but a concurrent check-in of the same name has stored
+            // it since. The primary key makes sure only one of them creates it
+            if (DUPLICATE_KEY_SQL_STATE.equals(e.getSQLState())) {
+                throw new DocumentConflictException(
+                        String.format("The document \"%s\" was checked in by someone else at the same time", documentName));
+            }
+            throw e;
         } finally {
             if (ps != null) {
                 ps.close();
@@ -105,18 +142,30 @@ public class DocumentDao {
         }
     }
 
+    // see `uploadDocument`. If `expectedVersion` is given, only that version of the document is overwritten
     public void overwriteDocument(String documentName,
-                                  ByteSource contents,
+                                  Optional<InputStream> contents,
                                   Optional<byte[]> encryptionKey,
-                                  Optional<byte[]> signature) throws SQLException, FileNotFoundException {
+                                  Optional<byte[]> signature,
+                                  Optional<Integer> expectedVersion)
+            throws SQLException, FileNotFoundException, DocumentConflictException {
 
         String query =
                 "UPDATE s2dr.Documents\n" +
                 "   SET contents = (?),\n" +
                 "       uploadUser = (?),\n" +
                 "       encryptionKey = (?),\n" +
-                "       signature = (?)\n" +
-                " WHERE documentName = (?)";
+                "       signature = (?),\n" +
+                "       lastModified = CURRENT_TIMESTAMP(),\n" +
+                "       contentDigest = NULL,\n" +
+                "       signatureVerified = FALSE,\n" +
+                "       chunked = (?),\n" +
+                "       contentLength = NULL,\n" +
+                "       contentCoding = 'identity',\n" +
+                "       contentCrc32 = NULL,\n" +
+                "       version = version + 1\n" +
+                " WHERE documentName = (?)\n" +
+                "   AND version = COALESCE(?, version)";
 
         LOG.debug("Query:\n{}", query);
 
@@ -124,13 +173,19 @@ public class DocumentDao {
         try {
             ps = conn.prepareCall(query);
 
-            ps.setBytes(1, contents.getBytes());
+            setContents(ps, 1, contents);
             ps.setString(2, currentUser.getUserName());
             ps.setBytes(3, encryptionKey.orElse(null)); // this is a nullable field
             ps.setBytes(4, signature.orElse(null)); // nullable field
-            ps.setString(5, documentName);
-
-            ps.executeUpdate();
+            ps.setBoolean(5, !contents.isPresent());
+            ps.setString(6, documentName);
+            ps.setObject(7, expectedVersion.orElse(null), Types.INTEGER);
+
+            if (ps.executeUpdate() == 0) {
+                throw new DocumentConflictException(expectedVersion.isPresent()
+                        ? String.format("The document \"%s\" was changed while it was being checked in", documentName)
+                        : String.format("The document \"%s\" was deleted while it was being checked in", documentName));
+            }
         } finally {
             if (ps != null) {
                 ps.close();
@@ -138,11 +193,29 @@ public class DocumentDao {
         }
     }
 
-    public void setDocumentSecurity(String documentName, SecurityFlag securityFlag) throws SQLException {
+    private static void setContents(PreparedStatement ps, int index, Optional<InputStream> contents)
+            throws SQLException {
+
+        if (contents.isPresent()) {
+            ps.setBinaryStream(index, contents.get()); // streamed into the BLOB, never buffered as a whole
+        } else {
+            ps.setNull(index, Types.BLOB);
+        }
+    }
+
+    // records the length of a document stored as chunks, which (unlike a BLOB's) can't be asked for in SQL, along
+    // with how its chunks are coded and the CRC-32 of its contents
+    public void setChunkedContents(String documentName,
+                                   long contentLength,
+                                   ContentCoding contentCoding,
+                                   long contentCrc32) throws SQLException {
 
         String query =
-                "INSERT INTO s2dr.DocumentSecurity (documentName, securityFlag)\n" +
-                "VALUES (?, ?)";
+                "UPDATE s2dr.Documents\n" +
+                "   SET contentLength = (?),\n" +
+                "       contentCoding = (?),\n" +
+                "       contentCrc32 = (?)\n" +
+                " WHERE documentName = (?)";
 
         LOG.debug("Query:\n{}", query);
 
@@ -150,8 +223,10 @@ public class DocumentDao {
         try {
             ps = conn.prepareStatement(query);
 
-            ps.setString(1, documentName);
-            ps.setString(2, securityFlag.name());
+            ps.setLong(1, contentLength);
+            ps.setString(2, contentCoding.getName());
+            ps.setLong(3, contentCrc32);
+            ps.setString(4, documentName);
 
             ps.executeUpdate();
         } finally {
@@ -161,23 +236,39 @@ public class DocumentDao {
         }
     }
 
-    public void clearDocumentSecurity(String documentName) throws SQLException {
+    // records that the document's signature was verified when it was checked in, and the digest of the contents
+    // that were verified
+    public void setVerifiedContentDigest(String documentName, byte[] contentDigest) throws SQLException {
 
         String query =
-                "DELETE\n" +
-                "  FROM s2dr.DocumentSecurity\n" +
+                "UPDATE s2dr.Documents\n" +
+                "   SET contentDigest = (?),\n" +
+                "       signatureVerified = TRUE\n" +
                 " WHERE documentName = (?)";
 
         LOG.debug("Query:\n{}", query);
 
-        deleteByDocumentName(documentName, query);
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(query);
+
+            ps.setBytes(1, contentDigest);
+            ps.setString(2, documentName);
+
+            ps.executeUpdate();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
     }
 
-    public EnumSet<SecurityFlag> getDocumentSecurity(String documentName) throws SQLException {
+    // replaces the document's flags
+    public void setDocumentSecurity(String documentName, Set<SecurityFlag> securityFlags) throws SQLException {
 
         String query =
-                "SELECT securityFlag\n" +
-                "  FROM s2dr.DocumentSecurity\n" +
+                "UPDATE s2dr.Documents\n" +
+                "   SET securityFlags = (?)\n" +
                 " WHERE documentName = (?)";
 
         LOG.debug("Query:\n{}", query);
@@ -186,15 +277,10 @@ public class DocumentDao {
         try {
             ps = conn.prepareStatement(query);
 
-            ps.setString(1, documentName);
-
-            ResultSet rs = ps.executeQuery();
+            ps.setInt(1, EnumBits.toBits(securityFlags));
+            ps.setString(2, documentName);
 
-            Set<SecurityFlag> flags = new HashSet<>();
-            while (rs.next()) {
-                flags.add(SecurityFlag.valueOf(rs.getString("securityFlag")));
-            }
-            return EnumSet.copyOf(flags);
+            ps.executeUpdate();
         } finally {
             if (ps != null) {
                 ps.close();
@@ -202,17 +288,33 @@ public class DocumentDao {
         }
     }
 
-    public DocumentDownload downloadDocument(String documentName)
+    // Fetches the document's metadata together with its security flags and the uploader's public key, in a single
+    // round trip. The current user's permissions on the document are checked by `UserAuthRealm`, which usually has
+    // them cached.
+    public DocumentAccess getDocumentAccess(String documentName)
             throws SQLException, UnexpectedQueryResultsException {
 
         String query =
-                "SELECT documentName,\n" +
-                "       uploadUser,\n" +
-                "       contents,\n" +
-                "       encryptionKey,\n" +
-                "       signature\n" +
-                "  FROM s2dr.Documents\n" +
-                " WHERE documentName = ?";
+                "SELECT d.documentName,\n" +
+                "       d.uploadUser,\n" +
+                "       d.encryptionKey,\n" +
+                "       d.signature,\n" +
+                "       CASE WHEN d.chunked THEN d.contentLength ELSE LENGTH(d.contents) END AS storedLength,\n" +
+                "       d.chunked,\n" +
+                "       d.contentCoding,\n" +
+                "       d.contentCrc32,\n" +
+                "       d.lastModified,\n" +
+                "       d.version,\n" +
+                "       FALSE AS archived,\n" +
+                "       d.contentDigest,\n" +
+                "       d.signatureVerified,\n" +
+                "       d.securityFlags,\n" +
+                "       u.pubKeyModulus,\n" +
+                "       u.pubKeyExponent\n" +
+                "  FROM s2dr.Documents d\n" +
+                "  JOIN s2dr.Users u\n" +
+                "    ON u.userName = d.uploadUser\n" +
+                " WHERE d.documentName = (?)";
 
         LOG.debug("Query:\n{}", query);
 
@@ -229,12 +331,12 @@ public class DocumentDao {
                 throw new NoQueryResultsException("There are no documents stored by the given name");
             }
 
-            DocumentDownload download = DocumentDownload.builder()
-                    .setDocumentName(rs.getString("documentName"))
-                    .setUploadUserName(rs.getString("uploadUser"))
-                    .setContents(rs.getBytes("contents"))
-                    .setEncryptionKey(Optional.ofNullable(rs.getBytes("encryptionKey")))
-                    .setSignature(Optional.ofNullable(rs.getBytes("signature")))
+            DocumentAccess access = DocumentAccess.builder()
+                    .setDownload(readDocumentDownload(rs))
+                    .setSecurityFlags(EnumBits.fromBits(SecurityFlag.class, rs.getInt("securityFlags")))
+                    .setUploaderPubKeySpec(new RSAPublicKeySpec(
+                            new BigInteger(rs.getBytes("pubKeyModulus")),
+                            new BigInteger(rs.getBytes("pubKeyExponent"))))
                     .build();
 
             if (rs.next()) {
@@ -243,8 +345,7 @@ public class DocumentDao {
                         String.format("Was expecting only a single result from query: %s", query));
             }
 
-            return download;
-
+            return access;
         } finally {
             if (ps != null) {
                 ps.close();
@@ -252,15 +353,53 @@ public class DocumentDao {
         }
     }
 
-    public void delegateNewPermission(
-            String documentName,
-            DocumentPermission permission,
-            DelegatePermissionParams params,
-            Optional<Long> maxTime) throws SQLException {
+    private DocumentDownload readDocumentDownload(ResultSet rs) throws SQLException {
+        return DocumentDownload.builder()
+                .setDocumentName(rs.getString("documentName"))
+                .setUploadUserName(rs.getString("uploadUser"))
+                .setEncryptionKey(Optional.ofNullable(rs.getBytes("encryptionKey")))
+                .setSignature(Optional.ofNullable(rs.getBytes("signature")))
+                .setVerifiedContentDigest(rs.getBoolean("signatureVerified")
+                        ? Optional.ofNullable(rs.getBytes("contentDigest"))
+                        : Optional.empty())
+                .setStoredLength(rs.getLong("storedLength"))
+                .setChunked(rs.getBoolean("chunked"))
+                .setContentCoding(ContentCoding.fromName(rs.getString("contentCoding")))
+                .setContentCrc32(Optional.ofNullable((Long) rs.getObject("contentCrc32")))
+                .setLastModifiedMillis(rs.getTimestamp("lastModified").getTime())
+                .setVersion(rs.getInt("version"))
+                .setArchived(rs.getBoolean("archived"))
+                .build();
+    }
+
+    // Fetches the earlier version `version` of a document like `getDocumentAccess` fetches the document, with its
+    // security flags and the public key of whoever checked that version in. Permissions aren't kept per version:
+    // whoever can read the document as it is now can read its earlier versions.
+    public DocumentAccess getArchivedVersionAccess(String documentName, int version)
+            throws SQLException, NoQueryResultsException {
+
         String query =
-                "INSERT INTO s2dr.DocumentPermissions\n" +
-                "   (documentName, userName, permission, timeLimit, canPropogate)\n" +
-                "VALUES (?, ?, ?, ?, ?)";
+                "SELECT v.documentName,\n" +
+                "       v.uploadUser,\n" +
+                "       v.encryptionKey,\n" +
+                "       v.signature,\n" +
+                "       v.contentLength AS storedLength,\n" +
+                "       v.chunked,\n" +
+                "       v.contentCoding,\n" +
+                "       v.contentCrc32,\n" +
+                "       v.lastModified,\n" +
+                "       v.version,\n" +
+                "       TRUE AS archived,\n" +
+                "       v.contentDigest,\n" +
+                "       v.signatureVerified,\n" +
+                "       v.securityFlags,\n" +
+                "       u.pubKeyModulus,\n" +
+                "       u.pubKeyExponent\n" +
+                "  FROM s2dr.DocumentVersions v\n" +
+                "  JOIN s2dr.Users u\n" +
+                "    ON u.userName = v.uploadUser\n" +
+                " WHERE v.documentName = (?)\n" +
+                "   AND v.version = (?)";
 
         LOG.debug("Query:\n{}", query);
 
@@ -269,68 +408,22 @@ public class DocumentDao {
             ps = conn.prepareStatement(query);
 
             ps.setString(1, documentName);
-            ps.setString(2, params.getUserName());
-            ps.setString(3, permission.name());
-
-            Timestamp timeLimit = null;
-            // if neither maxTime nor params.timeLimitMillis is present, then we just just set
-            // null for the time limit
-            if (maxTime.isPresent() || params.getTimeLimitMillis().isPresent()) {
-                // maxTime takes precedence over the params.timeLimitMillis because params.timeLimitMillis
-                // is the value selected by the user, but maxTime is the value selected by the system,
-                // which may be less than what is selected by the user.
-                Long timeLimitMillis = maxTime.orElse(params.getTimeLimitMillis().orElse(null));
-                timeLimit = new Timestamp(System.currentTimeMillis() + timeLimitMillis);
-            }
-            ps.setTimestamp(4, timeLimit);
-
-            ps.setBoolean(5, params.getCanPropogate());
-
-            ps.executeUpdate();
-
-        } finally {
-            if (ps != null) {
-                ps.close();
-            }
-        }
-    }
+            ps.setInt(2, version);
 
-    public void updateDocumentPermission(
-            String documentName,
-            DocumentPermission permission,
-            DelegatePermissionParams delegationParams,
-            Optional<Long> maxTime) throws SQLException {
-
-        String query =
-                "UPDATE s2dr.DocumentPermissions\n" +
-                "   SET timeLimit = (?),\n" +
-                "       canPropogate = (?)\n" +
-                " WHERE documentName = (?)\n" +
-                "   AND userName = (?)\n" +
-                "   AND permission = (?)";
-
-        PreparedStatement ps = null;
-        try {
-            ps = conn.prepareStatement(query);
+            ResultSet rs = ps.executeQuery();
 
-            Timestamp timeLimit = null;
-            // if neither maxTime nor params.timeLimitMillis is present, then we just just set
-            // null for the time limit
-            if (maxTime.isPresent() || delegationParams.getTimeLimitMillis().isPresent()) {
-                // maxTime takes precedence over the params.timeLimitMillis because params.timeLimitMillis
-                // is the value selected by the user, but maxTime is the value selected by the system,
-                // which may be less than what is selected by the user.
-                Long timeLimitMillis = maxTime.orElse(delegationParams.getTimeLimitMillis().orElse(null));
-                timeLimit = new Timestamp(System.currentTimeMillis() + timeLimitMillis);
+            if (!rs.next()) {
+                throw new NoQueryResultsException(
+                        String.format("Document \"%s\" has no version %d", documentName, version));
             }
-            ps.setTimestamp(1, timeLimit);
 
-            ps.setBoolean(2, delegationParams.getCanPropogate());
-            ps.setString(3, documentName);
-            ps.setString(4, delegationParams.getUserName());
-            ps.setString(5, permission.name());
-
-            ps.executeUpdate();
+            return DocumentAccess.builder()
+                    .setDownload(readDocumentDownload(rs))
+                    .setSecurityFlags(EnumBits.fromBits(SecurityFlag.class, rs.getInt("securityFlags")))
+                    .setUploaderPubKeySpec(new RSAPublicKeySpec(
+                            new BigInteger(rs.getBytes("pubKeyModulus")),
+                            new BigInteger(rs.getBytes("pubKeyExponent"))))
+                    .build();
         } finally {
             if (ps != null) {
                 ps.close();
@@ -338,86 +431,108 @@ public class DocumentDao {
         }
     }
 
+    // Keeps the document as it is now as an earlier version of it, before it is overwritten. The contents of a
+    // document stored in its own BLOB are copied along with its row, the manifest of one stored as chunks is moved
+    // along by `DocumentContentDao.archiveContents`. Returns the version that was kept, if the document exists
+    public Optional<Integer> archiveCurrentVersion(String documentName)
+            throws SQLException, DocumentConflictException {
 
-    public void deleteDocument(String documentName) throws SQLException, NoQueryResultsException {
-        Integer clobLength;
-        //This query gets the length of the current clob
-        String sizeQuery =
-                "SELECT *\n" +
-                "FROM s2dr.Documents\n" +
-                "WHERE documentName = (?)";
-
-        LOG.debug("Query:\n{}", sizeQuery);
+        String versionQuery =
+                "SELECT version\n" +
+                "  FROM s2dr.Documents\n" +
+                " WHERE documentName = (?)";
 
+        String archiveQuery =
+                "INSERT INTO s2dr.DocumentVersions\n" +
+                "  (documentName, version, contents, chunked, uploadUser, encryptionKey, signature, lastModified,\n" +
+                "   contentDigest, signatureVerified, contentLength, contentCoding, contentCrc32, securityFlags)\n" +
+                "SELECT d.documentName,\n" +
+                "       d.version,\n" +
+                "       d.contents,\n" +
+                "       d.chunked,\n" +
+                "       d.uploadUser,\n" +
+                "       d.encryptionKey,\n" +
+                "       d.signature,\n" +
+                "       d.lastModified,\n" +
+                "       d.contentDigest,\n" +
+                "       d.signatureVerified,\n" +
+                "       CASE WHEN d.chunked THEN d.contentLength ELSE LENGTH(d.contents) END,\n" +
+                "       d.contentCoding,\n" +
+                "       d.contentCrc32,\n" +
+                "       d.securityFlags\n" +
+                "  FROM s2dr.Documents d\n" +
+                " WHERE d.documentName = (?)\n" +
+                "   AND d.version = (?)";
+
+        LOG.debug("Query:\n{}", versionQuery);
+        LOG.debug("Query:\n{}", archiveQuery);
+
+        int version;
         PreparedStatement ps1 = null;
         try {
-            ps1 = conn.prepareStatement(sizeQuery);
+            ps1 = conn.prepareStatement(versionQuery);
             ps1.setString(1, documentName);
             ResultSet rs = ps1.executeQuery();
 
             if (!rs.next()) {
-                // no documents matched the given documentName
-                throw new NoQueryResultsException("No documents matched the given document name");
+                return Optional.empty();
             }
-            //get clob size
-            clobLength = rs.getClob("contents").getSubString((long)1, (int)(rs.getClob("contents").length())).length() - 1;
+            version = rs.getInt("version");
         } finally {
             if (ps1 != null) {
                 ps1.close();
             }
         }
 
-        //Now that we know the clob length we insert a clob of zeros to overwrite it in memory
-        String zeroClob = StringUtils.repeat("0", clobLength);
-        String zeroQuery =
-                "UPDATE s2dr.Documents\n" +
-                "SET contents = (?)\n" +
-                "WHERE documentName = (?)";
-
-        LOG.debug("Query:\n{}", zeroClob);
-
         PreparedStatement ps2 = null;
         try {
-            ps2 = conn.prepareStatement(zeroQuery);
-
-            ps2.setString(1, zeroClob);
-            ps2.setString(2, documentName);
-            ps2.executeUpdate();
+            ps2 = conn.prepareStatement(archiveQuery);
+            ps2.setString(1, documentName);
+            ps2.setInt(2, version);
 
+            if (ps2.executeUpdate() == 0) {
+                throw new DocumentConflictException(
+                        String.format("The document \"%s\" was changed while it was being checked in", documentName));
+            }
+        } catch (SQLException e) {
+            // a concurrent check-in is keeping the same version
+            if (DUPLICATE_KEY_SQL_STATE.equals(e.getSQLState())) {
+                throw new DocumentConflictException(String.format(
+                        "The document \"%s\" was checked in by someone else at the same time", documentName));
+            }
+            throw e;
         } finally {
             if (ps2 != null) {
                 ps2.close();
             }
         }
 
-        //Finally we delete the document securely since the file content was overwritten with zeroes
-        String query =
-                "DELETE\n" +
-                "FROM s2dr.Documents\n" +
-                "WHERE documentName = (?)";
-
-        LOG.debug("Query:\n{}", query);
-
-        deleteByDocumentName(documentName, query);
+        return Optional.of(version);
     }
 
-    public void deleteAllDocumentPermissions(String documentName) throws SQLException {
+    // deletes the document's earlier versions before `version`, whose manifests must have been released with
+    // `DocumentContentDao.releaseVersions` first
+    public void deleteVersionsBefore(String documentName, int version) throws SQLException {
+
         String query =
                 "DELETE\n" +
-                "  FROM s2dr.DocumentPermissions\n" +
-                " WHERE documentName = (?)";
+                "  FROM s2dr.DocumentVersions\n" +
+                " WHERE documentName = (?)\n" +
+                "   AND version < (?)";
 
         LOG.debug("Query:\n{}", query);
 
-        deleteByDocumentName(documentName, query);
-    }
-
-    private void deleteByDocumentName(String documentName, String query) throws SQLException {
         PreparedStatement ps = null;
         try {
             ps = conn.prepareStatement(query);
+
             ps.setString(1, documentName);
-            ps.executeUpdate();
+            ps.setInt(2, version);
+
+            int deleted = ps.executeUpdate();
+            if (deleted > 0) {
+                LOG.info("Deleted {} earlier versions of document \"{}\"", deleted, documentName);
+            }
         } finally {
             if (ps != null) {
                 ps.close();
@@ -425,154 +540,377 @@ public class DocumentDao {
         }
     }
 
-    public Set<DocumentPermission> getDocPermsForCurrentUser(String documentName) throws SQLException {
-        ImmutableSet.Builder<DocumentPermission> permissionBuilder = ImmutableSet.builder();
+    // The returned stream reads the BLOB straight from the database, starting `offset` bytes in. It keeps its
+    // statement open until it is closed, so callers must always close it, and must do so before the request's
+    // connection is released. Documents stored as chunks are read with `DocumentContentDao.openContents` instead.
+    public InputStream openDocumentContents(String documentName, long offset)
+            throws SQLException, IOException, NoQueryResultsException {
 
         String query =
-                "SELECT permission\n" +
-                "  FROM s2dr.DocumentPermissions\n" +
-                " WHERE documentName = (?)\n" +
-                "   AND (userName = (?)\n" +
-                "          OR userName = 'ALL')\n" +
-                "   AND (timeLimit IS NULL\n" +
-                "          OR timeLimit > NOW())";
+                "SELECT contents\n" +
+                "  FROM s2dr.Documents\n" +
+                " WHERE documentName = ?";
 
         LOG.debug("Query:\n{}", query);
 
-        PreparedStatement ps = null;
-        try {
-            ps = conn.prepareStatement(query);
+        return openContents(query, offset, "There are no documents stored by the given name", documentName);
+    }
 
-            ps.setString(1, documentName);
-            ps.setString(2, currentUser.getUserName());
+    // reads the BLOB of the earlier `version` of a document like `openDocumentContents` reads the document's. Versions
+    // stored as chunks are read with `DocumentContentDao.openVersionContents` instead
+    public InputStream openVersionContents(String documentName, int version, long offset)
+            throws SQLException, IOException, NoQueryResultsException {
+
+        String query =
+                "SELECT contents\n" +
+                "  FROM s2dr.DocumentVersions\n" +
+                " WHERE documentName = ?\n" +
+                "   AND version = ?";
+
+        LOG.debug("Query:\n{}", query);
+
+        return openContents(query, offset,
+                String.format("Document \"%s\" has no version %d", documentName, version), documentName, version);
+    }
+
+    // Like `DocumentContentDao.openContents`, for a checked-out document stored in its own BLOB, which is read
+    // `CHECKOUT_BATCH_BYTES` at a time with connections borrowed from `connectionPool`, from the row of the version
+    // that was checked out wherever it is now. `openDocumentContents` reads the BLOB with this DAO's connection
+    public InputStream openContents(DocumentDownload download, long offset, ConnectionPool connectionPool) {
+        return new CheckoutInputStream(connectionPool, download, offset);
+    }
+
+    // runs `query`, which selects the `contents` BLOB of a single row, and hands its statement over to the returned
+    // stream
+    private InputStream openContents(String query, long offset, String notFoundMessage, Object... parameters)
+            throws SQLException, IOException, NoQueryResultsException {
+
+        PreparedStatement ps = conn.prepareStatement(query);
+        try {
+            for (int i = 0; i < parameters.length; i++) {
+                ps.setObject(i + 1, parameters[i]);
+            }
 
             ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                permissionBuilder.add(DocumentPermission.valueOf(rs.getString("permission")));
+
+            if (!rs.next()) {
+                // the document (or version) was deleted after its metadata was read
+                throw new NoQueryResultsException(notFoundMessage);
+            }
+
+            InputStream contents = new StatementClosingInputStream(rs.getBinaryStream("contents"), ps);
+            ps = null; // the stream owns the statement now
+
+            try {
+                ByteStreams.skipFully(contents, offset);
+            } catch (IOException e) {
+                contents.close();
+                throw e;
             }
+            return contents;
         } finally {
             if (ps != null) {
                 ps.close();
             }
         }
+    }
+
+    // Grants the permissions of every update to its grantee, replacing the ones of the same kind they had (see
+    // `DocumentGrantUpdate`). Each grantee's row is updated in place, or inserted if they have none yet, and the
+    // updates and inserts are each sent as a single batch.
+    public void grantPermissions(List<DocumentGrantUpdate> updates) throws SQLException {
+        // a time limit is only set if its permission is replaced, which is the first parameter of each
+        StringBuilder timeLimits = new StringBuilder();
+        StringBuilder newTimeLimits = new StringBuilder();
+        StringBuilder timeLimitColumns = new StringBuilder();
+        StringBuilder timeLimitParameters = new StringBuilder();
+        for (DocumentPermission permission: DocumentPermission.values()) {
+            String column = DocumentGrant.timeLimitColumn(permission);
+            String newTimeLimit = "CASE WHEN (?) THEN (?) ELSE " + column + " END";
+
+            timeLimits.append("       ").append(column).append(" = ").append(newTimeLimit).append(",\n");
+            newTimeLimits.append(newTimeLimits.length() == 0 ? "" : ", ").append(newTimeLimit);
+            timeLimitColumns.append(column).append(", ");
+            timeLimitParameters.append("?, ");
+        }
+
+        String updateQuery =
+                "UPDATE s2dr.DocumentGrants\n" +
+                "   SET permissions = BITOR(BITAND(permissions, (?)), (?)),\n" +
+                timeLimits +
+                "       nextExpiry = LEAST(" + newTimeLimits + ")\n" +
+                " WHERE documentId = (?)\n" +
+                "   AND userId = (?)";
 
-        Set<DocumentPermission> permissions = permissionBuilder.build();
-        LOG.info("User \"{}\" possesses the following permissions for document \"{}\": {}",
-                currentUser.getUserName(), documentName, permissions);
+        String insertQuery =
+                "INSERT INTO s2dr.DocumentGrants\n" +
+                "   (documentId, userId, permissions, " + timeLimitColumns + "nextExpiry)\n" +
+                "VALUES (?, ?, ?, " + timeLimitParameters + "?)";
+
+        LOG.debug("Query:\n{}", updateQuery);
+        LOG.debug("Query:\n{}", insertQuery);
+
+        // the grantees who had no row to update
+        List<Integer> inserts = new ArrayList<>();
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = conn.prepareStatement(updateQuery);
+            for (int i = 0; i < updates.size(); i++) {
+                setUpdateParameters(ps1, updates.get(i));
+                ps1.addBatch();
+            }
+
+            int[] updateCounts = ps1.executeBatch();
+            for (int i = 0; i < updateCounts.length; i++) {
+                if (updateCounts[i] == 0) {
+                    inserts.add(i);
+                }
+            }
+        } finally {
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        if (inserts.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement ps2 = null;
+        try {
+            ps2 = conn.prepareStatement(insertQuery);
+            for (int i: inserts) {
+                setInsertParameters(ps2, updates.get(i));
+                ps2.addBatch();
+            }
 
-        return permissions;
+            ps2.executeBatch();
+        } catch (SQLException e) {
+            if (!DUPLICATE_KEY_SQL_STATE.equals(e.getSQLState())) {
+                throw e;
+            }
+            // some of the grantees were granted other permissions on the document at the same time. Updating a
+            // grant twice leaves it the same, so each of them is simply updated (or inserted) again on its own
+            for (int i: inserts) {
+                grantPermissions(updateQuery, insertQuery, updates.get(i));
+            }
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
+            }
+        }
     }
 
-    public boolean userHasPermission(String documentName, String userName, DocumentPermission documentPermission)
+    private void grantPermissions(String updateQuery, String insertQuery, DocumentGrantUpdate update)
             throws SQLException {
 
-        String query =
-                "SELECT permission\n" +
-                "  FROM s2dr.DocumentPermissions\n" +
-                " WHERE documentName = (?)\n" +
-                "   AND userName = (?)\n" +
-                "   AND permission = (?)\n" +
-                "   AND (timeLimit IS NULL\n" +
-                "          OR timeLimit > NOW())";
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = conn.prepareStatement(updateQuery);
+            setUpdateParameters(ps1, update);
 
-        PreparedStatement ps = null;
+            if (ps1.executeUpdate() > 0) {
+                return;
+            }
+        } finally {
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        PreparedStatement ps2 = null;
         try {
-            ps = conn.prepareStatement(query);
+            ps2 = conn.prepareStatement(insertQuery);
+            setInsertParameters(ps2, update);
+            ps2.executeUpdate();
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
+            }
+        }
+    }
 
-            ps.setString(1, documentName);
-            ps.setString(2, userName);
-            ps.setString(3, documentPermission.name());
+    private static void setUpdateParameters(PreparedStatement ps, DocumentGrantUpdate update) throws SQLException {
 
-            ResultSet rs = ps.executeQuery();
+        int parameter = 1;
+        ps.setInt(parameter++, ~update.getReplacedBits());
+        ps.setInt(parameter++, update.getPermissionBits());
+        // once for the time limits, and once more for `nextExpiry`
+        for (int i = 0; i < 2; i++) {
+            for (DocumentPermission permission: DocumentPermission.values()) {
+                ps.setBoolean(parameter++, update.replaces(permission));
+                ps.setTimestamp(parameter++, getTimeLimit(update, permission));
+            }
+        }
+        ps.setInt(parameter++, update.getDocumentId());
+        ps.setInt(parameter, update.getUserId());
+    }
 
-            if (rs.next()) {
-                return true;
+    private static void setInsertParameters(PreparedStatement ps, DocumentGrantUpdate update) throws SQLException {
+        int parameter = 1;
+        ps.setInt(parameter++, update.getDocumentId());
+        ps.setInt(parameter++, update.getUserId());
+        ps.setInt(parameter++, update.getPermissionBits());
+
+        Timestamp nextExpiry = null;
+        for (DocumentPermission permission: DocumentPermission.values()) {
+            Timestamp timeLimit = getTimeLimit(update, permission);
+            ps.setTimestamp(parameter++, timeLimit);
+
+            if (timeLimit != null && (nextExpiry == null || timeLimit.before(nextExpiry))) {
+                nextExpiry = timeLimit;
+            }
+        }
+        ps.setTimestamp(parameter, nextExpiry);
+    }
+
+    // null for a permission granted for good, or one that isn't replaced
+    private static Timestamp getTimeLimit(DocumentGrantUpdate update, DocumentPermission permission) {
+        return update.getTimeLimitMillis(permission).map(Timestamp::new).orElse(null);
+    }
+
+    // Moves a document out of the way so that `DocumentShredder` can overwrite its contents in the background:
+    // the row is renamed to a tombstone (which frees the document's name right away) and the tombstone is queued
+    // in `s2dr.ShredQueue`. The document's permissions must already have been deleted, since they reference it
+    // by name. Returns the tombstone's name.
+    public String queueForShredding(String documentName) throws SQLException, NoQueryResultsException {
+        String tombstoneName = "shred:" + UUID.randomUUID();
+
+        String renameQuery =
+                "UPDATE s2dr.Documents\n" +
+                "   SET documentName = ?\n" +
+                " WHERE documentName = ?";
+
+        LOG.debug("Query:\n{}", renameQuery);
+
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = conn.prepareStatement(renameQuery);
+            ps1.setString(1, tombstoneName);
+            ps1.setString(2, documentName);
+
+            if (ps1.executeUpdate() == 0) {
+                // no documents matched the given documentName
+                throw new NoQueryResultsException("No documents matched the given document name");
             }
-            return false;
         } finally {
-            if (ps != null) {
-                ps.close();
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        String queueQuery =
+                "INSERT INTO s2dr.ShredQueue\n" +
+                "  (tombstoneName)\n" +
+                "VALUES (?)";
+
+        LOG.debug("Query:\n{}", queueQuery);
+
+        PreparedStatement ps2 = null;
+        try {
+            ps2 = conn.prepareStatement(queueQuery);
+            ps2.setString(1, tombstoneName);
+            ps2.executeUpdate();
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
             }
         }
+
+        return tombstoneName;
     }
 
-    public boolean userCanDelegate(String documentName, EnumSet<DocumentPermission> permissions)
-            throws SQLException {
+    // returns the users who had permissions on the document (including 'ALL'), whose cached permissions are stale
+    // once this commits
+    public Set<String> deleteAllDocumentPermissions(String documentName) throws SQLException {
+        Optional<Integer> documentId = nameIds.getDocumentId(conn, documentName);
+        if (!documentId.isPresent()) {
+            return ImmutableSet.of();
+        }
 
-        LOG.debug("Checking for \"{}\"", permissions);
+        String granteesQuery =
+                "SELECT userId\n" +
+                "  FROM s2dr.DocumentGrants\n" +
+                " WHERE documentId = (?)";
 
         String query =
-                "SELECT permission\n" +
-                "  FROM s2dr.DocumentPermissions\n" +
-                appendPermissionInClause(permissions.size()) +
-                "   AND documentName = (?)\n" +
-                "   AND userName = (?)\n" +
-                "   AND canPropogate = 'TRUE'\n" +
-                "   AND (timeLimit IS NULL\n" +
-                "          OR timeLimit > NOW())";
+                "DELETE\n" +
+                "  FROM s2dr.DocumentGrants\n" +
+                " WHERE documentId = (?)";
 
+        LOG.debug("Query:\n{}", granteesQuery);
         LOG.debug("Query:\n{}", query);
 
-        PreparedStatement ps = null;
+        List<Integer> granteeIds = new ArrayList<>();
+        PreparedStatement ps1 = null;
         try {
-            int bindIndex = 0;
-            ps = conn.prepareStatement(query);
-
-            bindIndex = bindQueryPermissions(ps, permissions, bindIndex);
+            ps1 = conn.prepareStatement(granteesQuery);
+            ps1.setInt(1, documentId.get());
 
-            ps.setString(++bindIndex, documentName);
-            ps.setString(++bindIndex, currentUser.getUserName());
-
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                return true;
+            ResultSet rs = ps1.executeQuery();
+            while (rs.next()) {
+                granteeIds.add(rs.getInt("userId"));
             }
-            return false;
         } finally {
-            if (ps != null) {
-                ps.close();
+            if (ps1 != null) {
+                ps1.close();
             }
         }
+
+        PreparedStatement ps2 = null;
+        try {
+            ps2 = conn.prepareStatement(query);
+            ps2.setInt(1, documentId.get());
+            ps2.executeUpdate();
+        } finally {
+            if (ps2 != null) {
+                ps2.close();
+            }
+        }
+
+        ImmutableSet.Builder<String> grantees = ImmutableSet.builder();
+        for (int granteeId: granteeIds) {
+            nameIds.getUserName(conn, granteeId).ifPresent(grantees::add);
+        }
+        return grantees.build();
     }
 
+    // once the document's delete has committed, see `NameIds`
+    public void forgetDocumentId(String documentName) {
+        nameIds.forgetDocument(documentName);
+    }
 
-    public Optional<Long> getMaxDelegationTime(String documentName, EnumSet<DocumentPermission> permissions)
-            throws SQLException, NoQueryResultsException {
+    // what the user (or 'ALL') was granted on the document, expired permissions included
+    public Optional<DocumentGrant> getDocumentGrant(String documentName, String userName) throws SQLException {
+        Optional<Integer> documentId = nameIds.getDocumentId(conn, documentName);
+        Optional<Integer> userId = nameIds.getUserId(conn, userName);
+        if (!documentId.isPresent() || !userId.isPresent()) {
+            return Optional.empty();
+        }
 
         String query =
-                "  SELECT timeLimit\n" +
-                "    FROM s2dr.DocumentPermissions\n" +
-                appendPermissionInClause(permissions.size()) +
-                "     AND documentName = (?)\n" +
-                "     AND userName = (?)\n" +
-                "     AND (timeLimit > NOW()\n" +
-                "            OR timeLimit IS NULL)\n" +
-                "ORDER BY timeLimit ASC";
+                "SELECT permissions,\n" +
+                "       readUntil,\n" +
+                "       writeUntil,\n" +
+                "       ownerUntil\n" +
+                "  FROM s2dr.DocumentGrants\n" +
+                " WHERE documentId = (?)\n" +
+                "   AND userId = (?)";
 
         LOG.debug("Query:\n{}", query);
 
         PreparedStatement ps = null;
         try {
-            int bindIndex = 0;
             ps = conn.prepareStatement(query);
 
-            bindIndex = bindQueryPermissions(ps, permissions, bindIndex);
-
-            ps.setString(++bindIndex, documentName);
-            ps.setString(++bindIndex, currentUser.getUserName());
+            ps.setInt(1, documentId.get());
+            ps.setInt(2, userId.get());
 
             ResultSet rs = ps.executeQuery();
-
-            if (rs.next()) {
-                Timestamp timeLimit = rs.getTimestamp("timeLimit");
-
-                if (timeLimit == null) {
-                    return Optional.empty();
-                }
-                return Optional.of(timeLimit.getTime() - System.currentTimeMillis());
+            if (!rs.next()) {
+                return Optional.empty();
             }
-
-            throw new NoQueryResultsException("Expected at least one result from the query");
+            return Optional.of(DocumentGrant.fromResultSet(rs));
         } finally {
             if (ps != null) {
                 ps.close();
@@ -580,34 +918,37 @@ public class DocumentDao {
         }
     }
 
-    private String appendPermissionInClause(int permissionsLength) {
-        // crappy approach but I don't want to put more effort into a school project
-        if (permissionsLength == 0) {
-            throw new IllegalArgumentException("Must provide at least one permission to check");
-        }
-
-        if (permissionsLength == 1) {
-            return "   WHERE permission IN (?)\n";
-        }
+    // empty if there is no document by that name (anymore)
+    public Optional<Integer> getDocumentId(String documentName) throws SQLException {
+        return nameIds.getDocumentId(conn, documentName);
+    }
 
-        if (permissionsLength == 2) {
-            return "   WHERE permission IN (?, ?)\n";
-        }
+    // 'ALL' included, empty if there is no user by that name
+    public Optional<Integer> getUserId(String userName) throws SQLException {
+        return nameIds.getUserId(conn, userName);
+    }
 
-        if (permissionsLength == 3) {
-            return "   WHERE permission IN (?, ?, ?)\n";
-        }
+    private static class StatementClosingInputStream extends FilterInputStream {
 
-        throw new IllegalArgumentException("This method is set up to handle no more than three permissions");
-    }
+        private final PreparedStatement ps;
 
-    private int bindQueryPermissions(
-            PreparedStatement ps, EnumSet<DocumentPermission> permissions, int bindIndex) throws SQLException {
+        StatementClosingInputStream(InputStream in, PreparedStatement ps) {
+            super(in);
+            this.ps = ps;
+        }
 
-        for (DocumentPermission permission: permissions) {
-            ps.setString(++bindIndex, permission.name());
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                try {
+                    ps.close();
+                } catch (SQLException e) {
+                    LOG.warn("Unable to close the statement backing a document contents stream", e);
+                }
+            }
         }
-        return bindIndex;
     }
 
     // This method really doesn't belong in this DAO, but I don't feel like adding another
@@ -643,4 +984,87 @@ public class DocumentDao {
             }
         }
     }
+
+    // see `openContents`
+    private static class CheckoutInputStream extends PooledBatchInputStream {
+
+        // the row of the version, wherever it is now: the document's while it is the current version, the earlier
+        // version's once the document has been overwritten
+        private static final String QUERY =
+                "SELECT contents\n" +
+                "  FROM s2dr.Documents\n" +
+                " WHERE documentName = ?\n" +
+                "   AND version = ?\n" +
+                "   AND lastModified = ?\n" +
+                "   AND chunked = FALSE\n" +
+                "UNION ALL\n" +
+                "SELECT contents\n" +
+                "  FROM s2dr.DocumentVersions\n" +
+                " WHERE documentName = ?\n" +
+                "   AND version = ?\n" +
+                "   AND lastModified = ?\n" +
+                "   AND chunked = FALSE";
+
+        private final DocumentDownload download;
+
+        private long position;
+        private byte[] batch;
+
+        CheckoutInputStream(ConnectionPool connectionPool, DocumentDownload download, long offset) {
+            super(connectionPool);
+            this.download = download;
+            this.position = offset;
+        }
+
+        @Override
+        protected boolean fetchBatch(Connection connection) throws SQLException, IOException {
+            if (position >= download.getStoredLength()) {
+                return false;
+            }
+
+            LOG.debug("Query:\n{}", QUERY);
+
+            PreparedStatement ps = null;
+            try {
+                ps = connection.prepareStatement(QUERY);
+                Timestamp lastModified = new Timestamp(download.getLastModifiedMillis());
+                for (int leg = 0; leg < 2; leg++) {
+                    ps.setString(leg * 3 + 1, download.getDocumentName());
+                    ps.setInt(leg * 3 + 2, download.getVersion());
+                    ps.setTimestamp(leg * 3 + 3, lastModified);
+                }
+
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next()) {
+                    throw new IOException(String.format(
+                            "Version %d of document \"%s\" was deleted while it was being read",
+                            download.getVersion(), download.getDocumentName()));
+                }
+
+                byte[] buffer = new byte[(int) Math.min(CHECKOUT_BATCH_BYTES, download.getStoredLength() - position)];
+                InputStream contents = rs.getBinaryStream("contents");
+                try {
+                    ByteStreams.skipFully(contents, position);
+                    ByteStreams.readFully(contents, buffer);
+                } finally {
+                    contents.close();
+                }
+
+                batch = buffer;
+                position += buffer.length;
+                return true;
+            } finally {
+                if (ps != null) {
+                    ps.close();
+                }
+            }
+        }
+
+        @Override
+        protected byte[] nextPiece() {
+            byte[] next = batch;
+            batch = null;
+            return next;
+        }
+    }
 }
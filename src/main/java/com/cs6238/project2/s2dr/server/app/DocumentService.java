@@ -1,60 +1,301 @@
 package com.cs6238.project2.s2dr.server.app;
 
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao.ChunkedContents;
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao.StagedContents;
+import com.cs6238.project2.s2dr.server.app.crypto.PublicKeyCache;
+import com.cs6238.project2.s2dr.server.app.crypto.SignatureVerifyingInputStream;
+import com.cs6238.project2.s2dr.server.app.delta.BlockSignatureOutputStream;
+import com.cs6238.project2.s2dr.server.app.delta.DeltaInputStream;
+import com.cs6238.project2.s2dr.server.app.exceptions.DocumentConflictException;
 import com.cs6238.project2.s2dr.server.app.exceptions.DocumentIntegrityVerificationException;
+import com.cs6238.project2.s2dr.server.app.exceptions.InvalidDeltaException;
 import com.cs6238.project2.s2dr.server.app.exceptions.NoQueryResultsException;
 import com.cs6238.project2.s2dr.server.app.exceptions.UnexpectedQueryResultsException;
 import com.cs6238.project2.s2dr.server.app.exceptions.UserLacksPermissionException;
+import com.cs6238.project2.s2dr.server.app.objects.BlockSignatures;
+import com.cs6238.project2.s2dr.server.app.objects.BulkDelegationItem;
+import com.cs6238.project2.s2dr.server.app.objects.BulkDelegationResult;
+import com.cs6238.project2.s2dr.server.app.objects.ByteRange;
 import com.cs6238.project2.s2dr.server.app.objects.CurrentUser;
 import com.cs6238.project2.s2dr.server.app.objects.DelegatePermissionParams;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentAccess;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentCheckout;
 import com.cs6238.project2.s2dr.server.app.objects.DocumentDownload;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentGrant;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentGrantUpdate;
 import com.cs6238.project2.s2dr.server.app.objects.DocumentPermission;
 import com.cs6238.project2.s2dr.server.app.objects.EncryptedDocument;
 import com.cs6238.project2.s2dr.server.app.objects.SecurityFlag;
-import com.google.common.io.Files;
+import com.cs6238.project2.s2dr.server.app.objects.UploadPart;
+import com.cs6238.project2.s2dr.server.app.objects.UploadSession;
+import com.cs6238.project2.s2dr.server.app.storage.ChunkCodec;
+import com.cs6238.project2.s2dr.server.app.storage.ContentCoding;
+import com.cs6238.project2.s2dr.server.app.storage.DeflateChunkCodec;
+import com.cs6238.project2.s2dr.server.app.storage.FileRegion;
+import com.cs6238.project2.s2dr.server.app.storage.PlainChunkCodec;
+import com.cs6238.project2.s2dr.server.config.authentication.DocumentLevelPermission;
+import com.cs6238.project2.s2dr.server.config.authentication.UserAuthRealm;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
+import com.cs6238.project2.s2dr.server.config.database.RequestConnection;
+import com.cs6238.project2.s2dr.server.config.database.Transaction;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
 import org.apache.shiro.util.ByteSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.spec.RSAPublicKeySpec;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 public class DocumentService {
 
     private static final Logger LOG = LoggerFactory.getLogger(DocumentService.class);
 
+    // documents are read, decrypted, verified and written in chunks of this size
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // INTEGRITY documents are verified against their signature when they are checked in, so check-outs only have
+    // to compare a SHA-256 of the contents. Strict verification checks the signature on every check-out instead
+    private static final boolean STRICT_INTEGRITY_VERIFICATION = Boolean.getBoolean("s2dr.integrity.strict");
+
+    // documents are checked in as deduplicated chunks (see `DocumentContentDao`) unless this is turned off, in which
+    // case they are stored whole, in their own BLOB, like before chunks existed. Documents already stored one way
+    // are read back that way either way
+    private static final boolean DEDUPLICATE = Boolean.parseBoolean(System.getProperty("s2dr.dedup.enabled", "true"));
+
+    // documents that are kept unchanged in the document store's files are sent straight from those files (see
+    // `locateDocument`) unless this is turned off, in which case they are read and copied like any other
+    private static final boolean ZERO_COPY = Boolean.parseBoolean(System.getProperty("s2dr.download.zeroCopy", "true"));
+
+    // documents checked in as chunks are compressed before they are encrypted and stored (see `DeflateChunkCodec`)
+    // unless this is turned off, or their first `s2dr.compression.sampleSize` bytes don't compress well
+    static final boolean COMPRESS = Boolean.parseBoolean(
+            System.getProperty("s2dr.compression.enabled", "true"));
+    static final int COMPRESSION_SAMPLE_SIZE = Integer.getInteger("s2dr.compression.sampleSize", 64 * 1024);
+
+    // overwriting a document keeps what it replaces as an earlier version of it (see
+    // `DocumentDao.archiveCurrentVersion`). This many earlier versions are kept, 0 keeps none
+    private static final int RETAINED_VERSIONS = Integer.getInteger("s2dr.versions.retained", 10);
+
+    // the bounds of the block size of a document's block signatures (see `getBlockSignatures`)
+    private static final int MIN_DELTA_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_DELTA_BLOCK_SIZE = 128 * 1024;
+
+    // `-Ds2dr.delta.maxDocumentBytes`, the longest contents a delta may rebuild (see `DeltaInputStream`)
+    private static final long MAX_DELTA_DOCUMENT_BYTES = Long.getLong("s2dr.delta.maxDocumentBytes", 16L << 30);
+
     private final CurrentUser currentUser;
     private final DocumentDao documentDao;
+    private final DocumentContentDao documentContentDao;
+    private final UploadSessionDao uploadSessionDao;
     private final EncryptionService encryptionService;
+    private final PublicKeyCache publicKeyCache;
+    private final UserAuthRealm userAuthRealm;
+    private final RequestConnection requestConnection;
+    private final ConnectionPool connectionPool;
 
     @Inject
     public DocumentService(
             CurrentUser currentUser,
             DocumentDao documentDao,
-            EncryptionService encryptionService) {
+            DocumentContentDao documentContentDao,
+            UploadSessionDao uploadSessionDao,
+            EncryptionService encryptionService,
+            PublicKeyCache publicKeyCache,
+            UserAuthRealm userAuthRealm,
+            RequestConnection requestConnection,
+            ConnectionPool connectionPool) {
 
         this.currentUser = currentUser;
         this.documentDao = documentDao;
+        this.documentContentDao = documentContentDao;
+        this.uploadSessionDao = uploadSessionDao;
         this.encryptionService = encryptionService;
+        this.publicKeyCache = publicKeyCache;
+        this.userAuthRealm = userAuthRealm;
+        this.requestConnection = requestConnection;
+        this.connectionPool = connectionPool;
     }
 
-    public void uploadDocument(File document,
+    public void uploadDocument(InputStream document,
                                String documentName,
                                Set<SecurityFlag> securityFlags,
                                InputStream signature)
-            throws SQLException, FileNotFoundException, UnexpectedQueryResultsException, UserLacksPermissionException {
+            throws SQLException,
+            IOException,
+            UnexpectedQueryResultsException,
+            UserLacksPermissionException,
+            DocumentIntegrityVerificationException,
+            DocumentConflictException {
+
+        checkInDocument(document, documentName, securityFlags, signature, Optional.empty());
+    }
+
+    // Returns the block signatures of a document stored as chunks, which a client needs to send its edited copy of
+    // the document as a delta (see `uploadDelta`). Without a `blockSize`, one is chosen from the document's length
+    public BlockSignatures getBlockSignatures(String documentName, Optional<Integer> blockSize) throws
+            SQLException,
+            IOException,
+            UnexpectedQueryResultsException,
+            UserLacksPermissionException,
+            DocumentIntegrityVerificationException,
+            DocumentConflictException {
+
+        DocumentCheckout checkout = downloadDocument(documentName);
+        DocumentDownload download = checkout.getDownload();
+        requireDeltaBasis(download);
+
+        // about as many blocks as there are bytes in a block, which keeps both the signatures and the bytes of the
+        // delta that aren't copies of blocks small
+        long contentLength = download.getStoredLength();
+        int signatureBlockSize = blockSize.orElse((int) Math.min(Math.sqrt(contentLength), MAX_DELTA_BLOCK_SIZE));
+        signatureBlockSize = Math.max(MIN_DELTA_BLOCK_SIZE, Math.min(signatureBlockSize, MAX_DELTA_BLOCK_SIZE));
+
+        LOG.info("Signing version {} of document \"{}\" in blocks of {} bytes",
+                download.getVersion(), documentName, signatureBlockSize);
+
+        BlockSignatureOutputStream signatures = new BlockSignatureOutputStream(signatureBlockSize);
+        streamDocument(checkout, Optional.empty(), signatures);
+        signatures.close();
+
+        return new BlockSignatures(
+                download.getVersion(), signatureBlockSize, contentLength, signatures.getSignatures());
+    }
+
+    // Overwrites a document stored as chunks with the contents `delta` rebuilds out of its current contents (see
+    // `DeltaInputStream`), which must still be `baseVersion` when the check-in commits. Otherwise this is the same
+    // check-in as `uploadDocument`: the contents are verified, encrypted and chunked the same way, and the chunks the
+    // delta copied are already stored, so they are only referred to again.
+    public void uploadDelta(InputStream delta,
+                            String documentName,
+                            int baseVersion,
+                            Set<SecurityFlag> securityFlags,
+                            InputStream signature)
+            throws SQLException,
+            IOException,
+            UnexpectedQueryResultsException,
+            UserLacksPermissionException,
+            DocumentIntegrityVerificationException,
+            DocumentConflictException {
+
+        // the delta is read against the current contents, so the user must be able to read those, too
+        DocumentCheckout basis = downloadDocument(documentName);
+        DocumentDownload download = basis.getDownload();
+        requireDeltaBasis(download);
+        if (download.getVersion() != baseVersion) {
+            throw new DocumentConflictException(String.format(
+                    "The delta is against version %d of document \"%s\", but it is at version %d",
+                    baseVersion, documentName, download.getVersion()));
+        }
+
+        LOG.info("Applying a delta against version {} of document \"{}\"", baseVersion, documentName);
+
+        ChunkCodec basisCodec = download.getContentCoding().wrap(openChunkCodec(basis));
+        ChunkedContents basisContents = documentContentDao.openChunkedContents(documentName, basisCodec);
+        try {
+            checkInDocument(new DeltaInputStream(delta, basisContents, MAX_DELTA_DOCUMENT_BYTES),
+                    documentName, securityFlags, signature, Optional.of(baseVersion));
+        } catch (SQLException e) {
+            // contents stored whole are read by the driver, which wraps what the delta throws
+            for (Throwable cause: Throwables.getCausalChain(e)) {
+                if (cause instanceof InvalidDeltaException) {
+                    throw (InvalidDeltaException) cause;
+                }
+            }
+            throw e;
+        } finally {
+            basisContents.close();
+        }
+    }
+
+    private void requireDeltaBasis(DocumentDownload download) throws DocumentConflictException {
+        if (!download.isChunked()) {
+            throw new DocumentConflictException(String.format(
+                    "Document \"%s\" isn't stored as chunks, so it can only be overwritten whole",
+                    download.getDocumentName()));
+        }
+    }
+
+    // Checks in the document. If `expectedVersion` is given, the check-in overwrites that version of an existing
+    // document, or fails with `DocumentConflictException`
+    private void checkInDocument(InputStream document,
+                                 String documentName,
+                                 Set<SecurityFlag> securityFlags,
+                                 InputStream signature,
+                                 Optional<Integer> expectedVersion)
+            throws SQLException,
+            IOException,
+            UnexpectedQueryResultsException,
+            UserLacksPermissionException,
+            DocumentIntegrityVerificationException,
+            DocumentConflictException {
 
-        ByteSource documentContents;
+        // a user who couldn't overwrite the document is turned away before any of it is read (let alone chunked,
+        // encrypted and written). `storeDocument` checks again, in the check-in's transaction
+        checkCanCheckIn(documentName);
+
+        // the document is never held in memory. It is streamed (and verified and encrypted, if needed) straight
+        // into the database while the insert/update (or the chunks) below are being written
+        Optional<InputStream> documentContents;
+        ChunkCodec chunkCodec = PlainChunkCodec.INSTANCE;
         Optional<byte[]> encryptionKey;
         Optional<byte[]> documentSignature;
+        Optional<SignatureVerifyingInputStream> verifyingDocument = Optional.empty();
+
+        ContentCoding contentCoding = ContentCoding.IDENTITY;
+        if (DEDUPLICATE && COMPRESS) {
+            // the sample is read ahead of everything below, and then read again from the buffer
+            BufferedInputStream bufferedDocument = new BufferedInputStream(document, COMPRESSION_SAMPLE_SIZE);
+            contentCoding = chooseContentCoding(bufferedDocument);
+            document = bufferedDocument;
+        }
+
+        if (securityFlags.contains(SecurityFlag.INTEGRITY)) {
+            documentSignature = Optional.of(ByteSource.Util.bytes(signature).getBytes());
+
+            // the signature is checked against the plaintext as it goes by, and a document that doesn't match it
+            // fails the insert/update before anything is stored
+            LOG.info("INTEGRITY was selected for the document \"{}\" check-in. Verifying it against its signature",
+                    documentName);
+
+            PublicKey uploaderPublicKey = publicKeyCache.get(currentUser.getUserName(), documentDao::getUserPubKeySpec);
+            verifyingDocument = Optional.of(new SignatureVerifyingInputStream(
+                    document,
+                    encryptionService.beginSignatureVerification(uploaderPublicKey),
+                    documentSignature.get(),
+                    encryptionService.beginContentDigest()));
+
+            document = verifyingDocument.get();
+        } else {
+            documentSignature = Optional.empty();
+        }
 
         if (securityFlags.contains(SecurityFlag.CONFIDENTIALITY)) {
 
@@ -64,11 +305,19 @@ public class DocumentService {
             LOG.info("CONFIDENTIALITY was selected for the document \"{}\" check-in. Encrypting the file before write",
                     documentName);
 
-            EncryptedDocument encryptedDocument = encryptionService.encryptDocument(document);
-
-            // use the encrypted contents and the encrypted encryption key for write
-            documentContents = encryptedDocument.getEncryptedDocument();
-            encryptionKey = Optional.of(encryptedDocument.getEncryptedAesKey().getBytes());
+            if (DEDUPLICATE) {
+                // every chunk is encrypted on its own, so that it can be shared with the uploader's other documents
+                encryptionKey = Optional.of(encryptionService.newWrappedDocumentKey(documentName));
+                chunkCodec = encryptionService.openConfidentialChunks(
+                        documentName, currentUser.getUserName(), encryptionKey.get());
+                documentContents = Optional.empty();
+            } else {
+                EncryptedDocument encryptedDocument = encryptionService.encryptDocument(document);
+
+                // use the encrypted contents and the encrypted encryption key for write
+                documentContents = Optional.of(encryptedDocument.getEncryptedDocument());
+                encryptionKey = Optional.of(encryptedDocument.getEncryptedAesKey().getBytes());
+            }
 
         } else {
 
@@ -77,36 +326,180 @@ public class DocumentService {
             LOG.info("CONFIDENTIALITY was not selected for the document \"{}\" check-in. Writing unencrypted document",
                     documentName);
 
+            documentContents = DEDUPLICATE ? Optional.empty() : Optional.of(document);
+            encryptionKey = Optional.empty();
+        }
+
+        Optional<StagedContents> stagedContents = Optional.empty();
+        Transaction transaction = null;
+        try {
+            boolean overwritten;
             try {
-                documentContents = ByteSource.Util.bytes(Files.toByteArray(document));
-            } catch (IOException e) {
-                LOG.error("Unable to read document bytes", e);
-                throw new RuntimeException(e);
+                CheckedInputStream checkedDocument = new CheckedInputStream(document, new CRC32());
+                if (!documentContents.isPresent()) {
+                    // the chunks are stored before the transaction below begins, so it doesn't hold on to their rows
+                    // for as long as the contents take to stream
+                    stagedContents = Optional.of(documentContentDao.stageContents(
+                            0, checkedDocument, contentCoding.wrap(chunkCodec)));
+                }
+
+                // everything below is committed together (or not at all), so other requests never see a document
+                // without its owner or its security flags, and a rejected check-in leaves no trace
+                transaction = documentDao.beginTransaction();
+                overwritten = storeDocument(
+                        documentName, documentContents, encryptionKey, documentSignature, expectedVersion);
+
+                if (stagedContents.isPresent()) {
+                    documentContentDao.adoptStagedContents(stagedContents.get(), documentName);
+                    documentDao.setChunkedContents(documentName, stagedContents.get().getLength(), contentCoding,
+                            checkedDocument.getChecksum().getValue());
+                }
+            } catch (SQLException | IOException e) {
+                if (verifyingDocument.isPresent() && verifyingDocument.get().isSignatureMismatch()) {
+                    LOG.info("Document \"{}\" does not match its signature. Rejecting the check-in", documentName);
+                    throw new DocumentIntegrityVerificationException();
+                }
+                throw e;
+            }
+
+            if (verifyingDocument.isPresent()) {
+                // the contents were stored, so all of them were read and matched the signature
+                LOG.info("Signature of document \"{}\" verified. Storing its content digest", documentName);
+                documentDao.setVerifiedContentDigest(documentName, verifyingDocument.get().getContentDigest().get());
+            }
+
+            // add any security flags for the document
+            LOG.info("Adding SecurityFlags {} to document \"{}\"", securityFlags, documentName);
+            documentDao.setDocumentSecurity(documentName, securityFlags);
+
+            transaction.commit();
+            stagedContents = Optional.empty();
+
+            if (overwritten) {
+                // the old contents' AES key must not outlive them in memory
+                encryptionService.invalidateDocumentKey(documentName);
+            } else {
+                // the uploader is the new document's owner
+                userAuthRealm.invalidateAuthorization(currentUser.getUserName());
+            }
+        } finally {
+            if (transaction != null) {
+                transaction.end();
+            }
+            if (stagedContents.isPresent()) {
+                // the check-in failed after its contents were staged
+                documentContentDao.discardStagedContents(stagedContents.get().getStagingId());
             }
-            encryptionKey = Optional.empty();
         }
+    }
 
-        if (securityFlags.contains(SecurityFlag.INTEGRITY)) {
-            documentSignature = Optional.of(ByteSource.Util.bytes(signature).getBytes());
-        } else {
-            documentSignature = Optional.empty();
+    // Fails early, before anything is uploaded, if the current user couldn't check in the document: an existing
+    // document can only be overwritten with WRITE permission. The check-in checks again
+    void checkCanCheckIn(String documentName) throws SQLException, UserLacksPermissionException {
+        if (documentDao.documentExists(documentName)
+                && !isPermitted(DocumentPermission.WRITE, documentName)) {
+
+            LOG.info("User \"{}\" lacks WRITE permission for document \"{}\"",
+                    currentUser.getUserName(), documentName);
+
+            throw new UserLacksPermissionException(
+                    "You must have the correct permission before writing to an existing file");
         }
+    }
+
+    // Checks in the parts of an upload as the document (see `UploadSessionService.commitUpload`), like
+    // `uploadDocument` does with a document it was sent whole. The parts were already encrypted (and their digest
+    // checked against the signature) as they arrived, so only rows are written here, however large the document is.
+    void checkInUpload(
+            UploadSession session,
+            List<UploadPart> parts,
+            long contentCrc32,
+            Optional<byte[]> verifiedContentDigest)
+            throws SQLException, FileNotFoundException, UserLacksPermissionException, DocumentConflictException {
+
+        String documentName = session.getDocumentName();
+        ContentCoding contentCoding = parts.isEmpty() ? ContentCoding.IDENTITY : parts.get(0).getContentCoding();
+        long contentLength = 0;
+        for (UploadPart part: parts) {
+            contentLength += part.getPartLength();
+        }
+
+        Transaction transaction = documentDao.beginTransaction();
+        try {
+            boolean overwritten = storeDocument(documentName,
+                    Optional.empty(), session.getEncryptionKey(), session.getSignature(), Optional.empty());
+
+            LOG.info("Checking in {} parts ({} bytes) of upload \"{}\" as document \"{}\"",
+                    parts.size(), contentLength, session.getSessionId(), documentName);
+            documentContentDao.adoptUploadedContents(session.getSessionId(), documentName, parts);
+            documentDao.setChunkedContents(documentName, contentLength, contentCoding, contentCrc32);
+
+            if (verifiedContentDigest.isPresent()) {
+                documentDao.setVerifiedContentDigest(documentName, verifiedContentDigest.get());
+            }
+
+            LOG.info("Adding SecurityFlags {} to document \"{}\"", session.getSecurityFlags(), documentName);
+            documentDao.setDocumentSecurity(documentName, session.getSecurityFlags());
+
+            uploadSessionDao.deleteSession(session.getSessionId());
+
+            transaction.commit();
+
+            if (overwritten) {
+                // the old contents' AES key must not outlive them in memory
+                encryptionService.invalidateDocumentKey(documentName);
+            } else {
+                // the uploader is the new document's owner
+                userAuthRealm.invalidateAuthorization(currentUser.getUserName());
+            }
+        } finally {
+            transaction.end();
+        }
+    }
+
+    // Compresses documents whose first bytes compress well, judging by a sample read from `document`. The stream is
+    // reset to where it started afterwards
+    static ContentCoding chooseContentCoding(BufferedInputStream document) throws IOException {
+        document.mark(COMPRESSION_SAMPLE_SIZE);
+        byte[] sample = new byte[COMPRESSION_SAMPLE_SIZE];
+        int sampleLength = ByteStreams.read(document, sample, 0, sample.length);
+        document.reset();
+
+        return DeflateChunkCodec.isCompressible(sample, sampleLength) ? ContentCoding.DEFLATE : ContentCoding.IDENTITY;
+    }
+
+    // writes the document's row, and returns whether it replaced an existing document
+    private boolean storeDocument(String documentName,
+                                  Optional<InputStream> documentContents,
+                                  Optional<byte[]> encryptionKey,
+                                  Optional<byte[]> documentSignature,
+                                  Optional<Integer> expectedVersion)
+            throws SQLException, FileNotFoundException, UserLacksPermissionException, DocumentConflictException {
 
         LOG.info("Checking if document \"{}\" already exists", documentName);
         if (!documentDao.documentExists(documentName)) {
 
+            if (expectedVersion.isPresent()) {
+                throw new DocumentConflictException(
+                        String.format("The document \"%s\" was deleted while it was being checked in", documentName));
+            }
+
             // the document does not already exist, so we add a new document
             LOG.info("Uploading new document \"{}\"", documentName);
             documentDao.uploadDocument(documentName, documentContents, encryptionKey, documentSignature);
 
             // lastly, when a user uploads a new document, we add an "Owner" permission for that user.
             LOG.info("Adding owner permission to document \"{}\" for user \"{}\"", documentName, currentUser.getUserName());
-            documentDao.delegateNewPermission(
-                    documentName,
-                    DocumentPermission.OWNER,
+            // the document was inserted above, and the uploader is logged in
+            int documentId = documentDao.getDocumentId(documentName).get();
+            int userId = documentDao.getUserId(currentUser.getUserName()).get();
+            documentDao.grantPermissions(ImmutableList.of(new DocumentGrantUpdate(
+                    documentId,
+                    userId,
                     DelegatePermissionParams.getUploaderPermissions(currentUser.getUserName()),
-                    Optional.empty());
+                    ImmutableMap.of())));
 
+            return false;
         } else {
             LOG.info("Document \"{}\" already exists", documentName);
 
@@ -115,7 +508,7 @@ public class DocumentService {
             LOG.info("Checking if user \"{}\" has proper permission to over-write document \"{}\"",
                     currentUser.getUserName(), documentName);
 
-            if (!hasWritePermission(documentDao.getDocPermsForCurrentUser(documentName))) {
+            if (!isPermitted(DocumentPermission.WRITE, documentName)) {
                 // the user does not have WRITE permission (or a dominating permission) so we throw an exception
                 // to prevent them from over-writing
 
@@ -126,116 +519,359 @@ public class DocumentService {
                         "You must have the correct permission before writing to an existing file");
             }
 
+            // keep the document as it is now. The contents of a document stored in its own BLOB are copied, the
+            // manifest of one stored as chunks (and the references it holds on its chunks) becomes the manifest of
+            // the earlier version
+            Optional<Integer> archivedVersion = Optional.empty();
+            if (RETAINED_VERSIONS > 0) {
+                archivedVersion = documentDao.archiveCurrentVersion(documentName);
+                if (archivedVersion.isPresent()) {
+                    LOG.info("Keeping version {} of document \"{}\"", archivedVersion.get(), documentName);
+                    documentContentDao.archiveContents(documentName, archivedVersion.get());
+                }
+            }
+
             // since the exception wasn't thrown above, the user has permission to WRITE
             LOG.info("Overwriting document");
-            documentDao.overwriteDocument(documentName, documentContents, encryptionKey, documentSignature);
+            documentDao.overwriteDocument(
+                    documentName, documentContents, encryptionKey, documentSignature, expectedVersion);
+
+            // let go of the old contents' chunks, if there were any and they weren't kept. The new contents are
+            // stored after this
+            documentContentDao.releaseContents(documentName);
+
+            // let go of the versions that are too old to be kept now
+            if (archivedVersion.isPresent()) {
+                deleteVersionsBefore(documentName, archivedVersion.get() - RETAINED_VERSIONS + 1);
+            } else if (RETAINED_VERSIONS == 0) {
+                deleteVersionsBefore(documentName, Integer.MAX_VALUE);
+            }
 
-            // clear out the existing security options for the document. They will be re-set with the new
-            // values below
-            LOG.info("Removing current security flags");
-            documentDao.clearDocumentSecurity(documentName);
+            return true;
         }
+    }
 
-        // add any security flags for the document
-        for (SecurityFlag securityFlag: securityFlags) {
-            LOG.info("Adding SecurityFlag \"{}\" to document \"{}\"", securityFlag, documentName);
-            documentDao.setDocumentSecurity(documentName, securityFlag);
-        }
+    private void deleteVersionsBefore(String documentName, int version) throws SQLException {
+        documentContentDao.releaseVersions(documentName, version);
+        documentDao.deleteVersionsBefore(documentName, version);
     }
 
-    public DocumentDownload downloadDocument(String documentName) throws
+    public DocumentCheckout downloadDocument(String documentName) throws
             SQLException,
+            IOException,
             UnexpectedQueryResultsException,
-            UserLacksPermissionException,
-            DocumentIntegrityVerificationException {
+            UserLacksPermissionException {
+
+        return downloadDocument(documentName, Optional.empty());
+    }
+
+    // Performs every check that can fail a check-out (existence, permissions, looking up the uploader's key)
+    // without touching the document's contents. The contents are written afterwards by `streamDocument`. Checks out
+    // the earlier `version` of the document if one is given (and isn't the current version), which can be read by
+    // whoever can read the document now.
+    public DocumentCheckout downloadDocument(String documentName, Optional<Integer> version) throws
+            SQLException,
+            IOException,
+            UnexpectedQueryResultsException,
+            UserLacksPermissionException {
 
-        // we actually get the document from the database before checking if the user has READ permission, because we
-        // want to catch the `NoQueryResultsException` before we throw the `UserLackPermissionException`.
-        // Otherwise we will return a 401 if a document doesn't exist (or has been deleted) instead of a 404
-        DocumentDownload unalteredDownload = documentDao.downloadDocument(documentName);
+        // the document, its security flags and the uploader's key all come back from a single query, and the user's
+        // permissions are usually cached. A document that doesn't exist still throws `NoQueryResultsException` before
+        // we get to throw the `UserLackPermissionException`, so it is a 404 rather than a 401
+        DocumentAccess documentAccess = documentDao.getDocumentAccess(documentName);
 
         LOG.info("Checking if user \"{}\" has proper permission to check-out document \"{}\"",
                 currentUser.getUserName(), documentName);
 
         // if the user doesn't have read permission, then we throw an exception
-        if (!hasReadPermission(documentDao.getDocPermsForCurrentUser(documentName))) {
+        if (!isPermitted(DocumentPermission.READ, documentName)) {
             LOG.info("User \"{}\" lacks READ permission for document \"{}\"", currentUser.getUserName(), documentName);
             throw new UserLacksPermissionException("You must have the correct permission before checking-out a file");
         }
 
-        // see if any security settings were configured for the document
-        LOG.info("Checking if any security flags are configured for \"{}\"", documentName);
-        EnumSet<SecurityFlag> documentSecurity = documentDao.getDocumentSecurity(documentName);
+        boolean archived = version.isPresent() && version.get() != documentAccess.getDownload().getVersion();
+        DocumentAccess access = archived
+                ? documentDao.getArchivedVersionAccess(documentName, version.get())
+                : documentAccess;
+        DocumentDownload download = access.getDownload();
+        if (archived) {
+            LOG.info("Checking-out earlier version {} of document \"{}\"", download.getVersion(), documentName);
+        }
+
+        EnumSet<SecurityFlag> documentSecurity = access.getSecurityFlags();
         LOG.info("Found security flags {}", documentSecurity);
 
-        DocumentDownload returnValue; // where the eventual document return value will be held
+        // documents verified at check-in are checked against their content digest instead, which needs no key
+        Optional<PublicKey> uploaderPublicKey = Optional.empty();
+        if (documentSecurity.contains(SecurityFlag.INTEGRITY)
+                && (STRICT_INTEGRITY_VERIFICATION || !download.getVerifiedContentDigest().isPresent())) {
+            // the key material already came back with the document, so a cache miss only costs building the key
+            LOG.info("Fetching public key of document uploader \"{}\"", download.getUploadUserName());
+            uploaderPublicKey = Optional.of(
+                    publicKeyCache.get(download.getUploadUserName(), userName -> access.getUploaderPubKeySpec()));
+        }
+
+        Optional<Long> contentLength;
+        if (documentSecurity.contains(SecurityFlag.CONFIDENTIALITY) && !download.isChunked()) {
+            // the decrypted size follows from the encryption header at the start of the stored contents
+            InputStream storedContents = openStoredContents(download, 0);
+            try {
+                contentLength = encryptionService.decryptedLength(storedContents, download.getStoredLength());
+            } finally {
+                storedContents.close();
+            }
+        } else {
+            contentLength = Optional.of(download.getStoredLength());
+        }
+
+        return DocumentCheckout.builder()
+                .setDownload(download)
+                .setSecurityFlags(documentSecurity)
+                .setUploaderPublicKey(uploaderPublicKey)
+                .setContentLength(contentLength)
+                .build();
+    }
+
+    // Streams the contents of a checked-out document (or just `range` of them) to `output`, decrypting and
+    // verifying them in fixed-size chunks along the way, so memory use doesn't depend on the document's size.
+    // Ranges of unverified documents only read the stored bytes (or encrypted chunks) that cover the range. The
+    // contents are read a batch at a time with connections of their own, so this works after `releaseConnection`.
+    //
+    // Because the signature can only be checked once every byte has gone through it, a document that fails
+    // INTEGRITY verification has already been (partially) written when `DocumentIntegrityVerificationException`
+    // is thrown. The caller must make sure the response is aborted rather than completed in that case.
+    public void streamDocument(DocumentCheckout checkout, Optional<ByteRange> range, OutputStream output) throws
+            SQLException,
+            IOException,
+            UnexpectedQueryResultsException,
+            DocumentIntegrityVerificationException {
+
+        String documentName = checkout.getDocumentName();
+        DocumentDownload download = checkout.getDownload();
+
+        long rangeStart = range.map(ByteRange::getFirst).orElse(0L);
+        long rangeEnd = range.map(r -> r.getLast() + 1).orElse(Long.MAX_VALUE);
 
-        if (documentSecurity.contains(SecurityFlag.CONFIDENTIALITY)) {
+        // the signature covers the whole document, so verifying means reading all of it even when only a range
+        // is sent to the user
+        boolean verify = checkout.hasSecurityFlag(SecurityFlag.INTEGRITY);
+        long readStart = verify ? 0 : rangeStart;
+        long readLength = verify ? Long.MAX_VALUE : rangeEnd - rangeStart;
 
-            // since CONFIDENTIALITY was chosen, me must first decrypt the file before returning it to the users
+        InputStream storedContents;
+        InputStream contents;
+        if (download.isChunked()) {
 
-            ByteSource encryptionKey = ByteSource.Util.bytes(unalteredDownload.getEncryptionKey().get());
-            ByteSource encryptedContents = ByteSource.Util.bytes(unalteredDownload.getContents());
+            // documents stored as chunks are decrypted (and decompressed) chunk by chunk, and only from the chunk the
+            // read starts in
+            ChunkCodec chunkCodec = download.getContentCoding().wrap(openChunkCodec(checkout));
+            storedContents = documentContentDao.openContents(download, readStart, chunkCodec, connectionPool);
+            contents = ByteStreams.limit(storedContents, readLength);
+        } else if (checkout.hasSecurityFlag(SecurityFlag.CONFIDENTIALITY)) {
 
-            EncryptedDocument document = new EncryptedDocument(
-                    encryptionKey,
-                    encryptedContents);
+            // since CONFIDENTIALITY was chosen, me must decrypt the file on its way to the user
 
-            LOG.info("CONFIDENTIALITY was chosen for file \"{}\". Decrypting document before check-out", documentName);
-            ByteSource decryptedDocument = encryptionService.decryptDocument(document);
+            LOG.info("CONFIDENTIALITY was chosen for file \"{}\". Decrypting document during check-out",
+                    documentName);
 
-            returnValue = DocumentDownload.builder()
-                    .setDocumentName(unalteredDownload.getDocumentName())
-                    .setUploadUserName(unalteredDownload.getUploadUserName())
-                    .setContents(decryptedDocument.getBytes())
-                    // no need to set encryptionKey at this point
-                    .setSignature(unalteredDownload.getSignature())
-                    .build();
+            storedContents = documentDao.openContents(download, 0, connectionPool);
+            ByteSource encryptionKey = ByteSource.Util.bytes(download.getEncryptionKey().get());
+            contents = encryptionService.decryptDocumentRange(
+                    documentName, new EncryptedDocument(encryptionKey, storedContents), readStart, readLength);
         } else {
 
             // since CONFIDENTIALITY was not chosen, we return the unaltered document
-            returnValue = unalteredDownload;
+            storedContents = documentDao.openContents(download, readStart, connectionPool);
+            contents = ByteStreams.limit(storedContents, readLength);
         }
 
-        if (documentSecurity.contains(SecurityFlag.INTEGRITY)) {
+        try {
+            Signature verifier = null;
+            MessageDigest contentDigest = null;
+            if (verify && checkout.getUploaderPublicKey().isPresent()) {
+                LOG.info("INTEGRITY was chosen for file \"{}\". Will verify document using public key of uploader",
+                        documentName);
 
-            LOG.info("INTEGRITY was chosen for file \"{}\". Will verify document using public key of uploader",
-                    documentName);
+                verifier = encryptionService.beginSignatureVerification(checkout.getUploaderPublicKey().get());
+            } else if (verify) {
+                LOG.info("INTEGRITY was chosen for file \"{}\". Will compare document to its verified digest",
+                        documentName);
+
+                contentDigest = encryptionService.beginContentDigest();
+            }
+
+            LOG.info("User \"{}\" checking-out document \"{}\"", currentUser.getUserName(), documentName);
+
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            long position = readStart;
+            int read;
+            while ((read = contents.read(buffer)) != -1) {
+                if (verifier != null) {
+                    verifier.update(buffer, 0, read);
+                }
+                if (contentDigest != null) {
+                    contentDigest.update(buffer, 0, read);
+                }
+
+                // only write the part of the buffer that falls inside the requested range
+                long writeFrom = Math.max(position, rangeStart);
+                long writeTo = Math.min(position + read, rangeEnd);
+                if (writeFrom < writeTo) {
+                    output.write(buffer, (int) (writeFrom - position), (int) (writeTo - writeFrom));
+                }
+                position += read;
+            }
 
-            LOG.info("Fetching public key of document uploader \"{}\"", returnValue.getUploadUserName());
-            RSAPublicKeySpec uploaderKeySpec
-                    = documentDao.getUserPubKeySpec(returnValue.getUploadUserName());
+            if (verifier != null) {
+                // `getSignature().get()` will throw a runtime exception if the signature is not present, but it
+                // should *always* be present if the INTEGRITY flag is set, therefore we will let it explode
+                if (!verifier.verify(download.getSignature().get())) {
+                    LOG.info("Could not verify the document's signature");
+                    throw new DocumentIntegrityVerificationException();
+                }
 
-            ByteSource contentsToVerify = ByteSource.Util.bytes(returnValue.getContents());
+                LOG.info("Successfully verified the signature");
+            }
 
-            // `getSignature().get()` will throw a runtime exception if the signature is not present, but it should
-            // *always* be present if the INTEGRITY flag is set, therefore we will let it explode
-            ByteSource documentSignature = ByteSource.Util.bytes(returnValue.getSignature().get());
+            if (contentDigest != null) {
+                if (!MessageDigest.isEqual(contentDigest.digest(), download.getVerifiedContentDigest().get())) {
+                    LOG.info("The document does not match the digest it was verified with");
+                    throw new DocumentIntegrityVerificationException();
+                }
 
-            if (!encryptionService.canVerifySignature(contentsToVerify, documentSignature, uploaderKeySpec)) {
-                LOG.info("Could not verify the document's signature");
-                throw new DocumentIntegrityVerificationException();
+                LOG.info("Successfully matched the verified digest");
             }
+        } catch (SignatureException e) {
+            LOG.error("Error verifying file", e);
+            throw new RuntimeException("Internal Server Error");
+        } finally {
+            storedContents.close();
+        }
+    }
+
+    // the codec a checked-out document's chunks were stored with, apart from their content coding
+    private ChunkCodec openChunkCodec(DocumentCheckout checkout) {
+        if (!checkout.hasSecurityFlag(SecurityFlag.CONFIDENTIALITY)) {
+            return PlainChunkCodec.INSTANCE;
+        }
+
+        LOG.info("CONFIDENTIALITY was chosen for file \"{}\". Decrypting document during check-out",
+                checkout.getDocumentName());
 
-            LOG.info("Successfully verified the signature");
+        DocumentDownload download = checkout.getDownload();
+        return encryptionService.openConfidentialChunks(
+                checkout.getDocumentName(), download.getUploadUserName(), download.getEncryptionKey().get());
+    }
+
+    // reads the BLOB of the version of the document that was checked out, with the request's connection
+    private InputStream openStoredContents(DocumentDownload download, long offset)
+            throws SQLException, IOException, NoQueryResultsException {
+
+        if (download.isArchived()) {
+            return documentDao.openVersionContents(download.getDocumentName(), download.getVersion(), offset);
         }
+        return documentDao.openDocumentContents(download.getDocumentName(), offset);
+    }
+
+    // Hands the request's connection back to the pool once a check-out has looked up everything it needs with it
+    // (in `downloadDocument`, `canSendCompressed` and `locateDocument`), so it isn't kept while the client reads the
+    // response. The contents are read with connections borrowed just for that, see `streamDocument`. Nothing but
+    // streaming and transferring the checked-out document may be done with this service afterwards
+    public void releaseConnection() {
+        requestConnection.release();
+    }
 
-        // if the signature needed to be verified and could not, an exception would have been thrown above.
-        // at this point we can confidently return the valid document
-        LOG.info("User \"{}\" checking-out document \"{}\"", currentUser.getUserName(), documentName);
-        return returnValue;
+    // Whether a checked-out document can be sent whole as gzip, straight from its compressed chunks (see
+    // `streamCompressedDocument`). INTEGRITY documents can't, since verifying them means decompressing them anyway
+    public boolean canSendCompressed(DocumentCheckout checkout) {
+        DocumentDownload download = checkout.getDownload();
+        return download.isChunked()
+                && download.getContentCoding() == ContentCoding.DEFLATE
+                && download.getContentCrc32().isPresent()
+                && !checkout.hasSecurityFlag(SecurityFlag.INTEGRITY);
+    }
+
+    // Writes the whole of a document that `canSendCompressed` to `output` as a gzip stream. Its chunks are decrypted
+    // if needed, but not decompressed: one after the other they already are the DEFLATE stream gzip wraps
+    public void streamCompressedDocument(DocumentCheckout checkout, OutputStream output)
+            throws SQLException, IOException {
+
+        String documentName = checkout.getDocumentName();
+        DocumentDownload download = checkout.getDownload();
+
+        LOG.info("User \"{}\" checking-out document \"{}\" compressed", currentUser.getUserName(), documentName);
+
+        InputStream compressedContents = documentContentDao.openContents(
+                download, 0, openChunkCodec(checkout), connectionPool);
+        try {
+            DeflateChunkCodec.writeGzipHeader(output);
+            ByteStreams.copy(compressedContents, output);
+            DeflateChunkCodec.writeGzipTrailer(output, download.getContentCrc32().get(), download.getStoredLength());
+        } finally {
+            compressedContents.close();
+        }
+    }
+
+    // Returns where the contents of a checked-out document (or just `range` of them) are kept, if they can be sent
+    // to the user straight from there: the document must be stored as chunks that are its plaintext (so neither
+    // encrypted nor compressed), and must not need INTEGRITY verification, since that has to see every byte.
+    // Otherwise the contents are written with `streamDocument`.
+    public Optional<List<FileRegion>> locateDocument(DocumentCheckout checkout, Optional<ByteRange> range)
+            throws SQLException {
+
+        if (!ZERO_COPY
+                || !checkout.getDownload().isChunked()
+                || checkout.getDownload().isArchived()
+                || checkout.getDownload().getContentCoding() != ContentCoding.IDENTITY
+                || checkout.hasSecurityFlag(SecurityFlag.CONFIDENTIALITY)
+                || checkout.hasSecurityFlag(SecurityFlag.INTEGRITY)) {
+            return Optional.empty();
+        }
+
+        long rangeStart = range.map(ByteRange::getFirst).orElse(0L);
+        long rangeLength = range.map(ByteRange::getLength).orElse(Long.MAX_VALUE - rangeStart);
+        return documentContentDao.locateContents(checkout.getDocumentName(), rangeStart, rangeLength);
+    }
+
+    // Writes the regions found by `locateDocument` to `output`. The file channel moves the bytes through a small
+    // buffer it reuses, instead of decoding them chunk by chunk into new arrays. This is only used when the
+    // container can't send the file itself (see `RestEndpoint.downloadDocument`)
+    public void transferDocument(DocumentCheckout checkout, List<FileRegion> regions, OutputStream output)
+            throws IOException {
+
+        LOG.info("User \"{}\" checking-out document \"{}\" from {} file regions",
+                currentUser.getUserName(), checkout.getDocumentName(), regions.size());
+
+        // not closed, that would close the servlet's output
+        WritableByteChannel target = Channels.newChannel(output);
+        for (FileRegion region: regions) {
+            FileChannel source = FileChannel.open(region.getFile(), StandardOpenOption.READ);
+            try {
+                long position = region.getPosition();
+                while (position < region.getEnd()) {
+                    long transferred = source.transferTo(position, region.getEnd() - position, target);
+                    if (transferred == 0) {
+                        throw new IOException("Unable to read past byte " + position + " of " + region.getFile());
+                    }
+                    position += transferred;
+                }
+            } finally {
+                source.close();
+            }
+        }
     }
 
     public InputStream getDocumentSignature(String documentName)
             throws SQLException, UserLacksPermissionException, UnexpectedQueryResultsException {
 
-        DocumentDownload download = documentDao.downloadDocument(documentName);
+        DocumentAccess access = documentDao.getDocumentAccess(documentName);
+        DocumentDownload download = access.getDownload();
 
         LOG.info("Checking if user \"{}\" has proper permission to view signature of \"{}\"",
                 currentUser.getUserName(), documentName);
 
         // if the user doesn't have read permission, then we throw an exception
-        if (!hasReadPermission(documentDao.getDocPermsForCurrentUser(documentName))) {
+        if (!isPermitted(DocumentPermission.READ, documentName)) {
             LOG.info("User \"{}\" lacks READ permission for document \"{}\"", currentUser.getUserName(), documentName);
             throw new UserLacksPermissionException(
                     "You must have the correct permission before viewing a documents signature");
@@ -245,69 +881,148 @@ public class DocumentService {
         return new ByteArrayInputStream(download.getSignature().get());
     }
 
+    // Every permission asked for is checked against the current user's grant on the document, which is read once,
+    // and they are all granted to the delegatee in a single transaction. Nothing is granted if the current user
+    // can't delegate one of them.
     public void delegatePermissions(String documentName, DelegatePermissionParams delegationParams)
             throws SQLException, UserLacksPermissionException, NoQueryResultsException {
 
-        for (DocumentPermission permission: delegationParams.getPermissions()) {
-            delegateSinglePermission(documentName, permission, delegationParams);
+        LOG.info("Checking if user \"{}\" can delegate permissions \"{}\" to file \"{}\"",
+                currentUser.getUserName(), delegationParams.getPermissions(), documentName);
+
+        Optional<DocumentGrant> delegatorGrant =
+                documentDao.getDocumentGrant(documentName, currentUser.getUserName());
+        long nowMillis = System.currentTimeMillis();
+
+        Map<DocumentPermission, Long> timeLimitsMillis =
+                getDelegationTimeLimits(documentName, delegatorGrant, delegationParams, nowMillis);
+
+        Optional<Integer> documentId = documentDao.getDocumentId(documentName);
+        if (!documentId.isPresent()) {
+            throw new NoQueryResultsException("There are no documents stored by the given name");
+        }
+        Optional<Integer> userId = documentDao.getUserId(delegationParams.getUserName());
+        if (!userId.isPresent()) {
+            throw new NoQueryResultsException(String.format("There is no user \"%s\"", delegationParams.getUserName()));
+        }
+
+        // a permission the user already has is overridden
+        LOG.info("Delegating \"{}\" to user \"{}\" for document \"{}\"",
+                delegationParams.getPermissions(), delegationParams.getUserName(), documentName);
+
+        Transaction transaction = documentDao.beginTransaction();
+        try {
+            documentDao.grantPermissions(ImmutableList.of(
+                    new DocumentGrantUpdate(documentId.get(), userId.get(), delegationParams, timeLimitsMillis)));
+            transaction.commit();
+        } finally {
+            transaction.end();
         }
+        userAuthRealm.invalidateAuthorization(delegationParams.getUserName());
     }
 
-    private void delegateSinglePermission(String documentName,
-                                          DocumentPermission permission,
-                                          DelegatePermissionParams delegationParams)
-            throws SQLException, UserLacksPermissionException, NoQueryResultsException {
+    // The delegations of `delegatePermissions` for any number of documents and users, with the current user's
+    // grant on each document read once. Every delegation that is allowed is granted in a single transaction, and
+    // the ones that aren't don't keep the others from being granted, see `BulkDelegationResult`.
+    public List<BulkDelegationResult> delegatePermissions(List<BulkDelegationItem> items) throws SQLException {
 
-        LOG.info("Checking if user \"{}\" can delegate permission \"{}\" to file \"{}\"",
-                currentUser.getUserName(), permission, documentName);
-
-        // build the set of "valid permission" able to propagate the permission further
-        // for instance having the BOTH permission allows a user to propagate READ
-        EnumSet<DocumentPermission> validPermissions;
-        switch (permission) {
-            case READ:
-                validPermissions = EnumSet.of(
-                        DocumentPermission.READ,
-                        DocumentPermission.OWNER);
-                break;
-            case WRITE:
-                validPermissions = EnumSet.of(
-                        DocumentPermission.WRITE,
-                        DocumentPermission.OWNER);
-                break;
-            case OWNER:
-                validPermissions = EnumSet.of(DocumentPermission.OWNER);
-                break;
-            default:
-                throw new IllegalArgumentException(
-                        String.format("Was not expecting DocumentPermission %s", permission));
-        }
-
-        if (!documentDao.userCanDelegate(documentName, validPermissions)) {
-            // if the user doesn't have the correct permission, *or* doesn't have the ability to propagate it
-            // further, then we don't allow them to go any further.
-            LOG.info("User \"{}\" cannot propagate \"{}\" further for document \"{}\".",
-                    currentUser.getUserName(), permission, documentName);
+        LOG.info("User \"{}\" is delegating {} permissions in bulk", currentUser.getUserName(), items.size());
 
-            throw new UserLacksPermissionException(
-                    "You do not possess the ability to further propagate the permission");
+        Map<String, Optional<DocumentGrant>> delegatorGrants = new HashMap<>();
+        long nowMillis = System.currentTimeMillis();
+
+        List<BulkDelegationResult> results = new ArrayList<>();
+        List<DocumentGrantUpdate> updates = new ArrayList<>();
+        Set<String> grantees = new HashSet<>();
+        for (BulkDelegationItem item: items) {
+            if (!item.hasRequiredFields()) {
+                results.add(BulkDelegationResult.failed(item, BulkDelegationResult.INVALID,
+                        "A document name, a user name and at least one permission are required"));
+                continue;
+            }
+
+            Optional<DocumentGrant> delegatorGrant = delegatorGrants.get(item.getDocumentName());
+            if (delegatorGrant == null) {
+                delegatorGrant = documentDao.getDocumentGrant(item.getDocumentName(), currentUser.getUserName());
+                delegatorGrants.put(item.getDocumentName(), delegatorGrant);
+            }
+
+            DelegatePermissionParams delegationParams = item.toDelegatePermissionParams();
+            Map<DocumentPermission, Long> timeLimitsMillis;
+            try {
+                timeLimitsMillis =
+                        getDelegationTimeLimits(item.getDocumentName(), delegatorGrant, delegationParams, nowMillis);
+            } catch (UserLacksPermissionException e) {
+                results.add(BulkDelegationResult.failed(item, BulkDelegationResult.DENIED, e.getMessage()));
+                continue;
+            }
+
+            // resolved now, so that a document deleted (or a user unknown) by the time the grants are written can't
+            // fail the other items
+            Optional<Integer> documentId = documentDao.getDocumentId(item.getDocumentName());
+            if (!documentId.isPresent()) {
+                results.add(BulkDelegationResult.failed(item, BulkDelegationResult.NOT_FOUND,
+                        String.format("There is no document \"%s\"", item.getDocumentName())));
+                continue;
+            }
+            Optional<Integer> userId = documentDao.getUserId(item.getUserName());
+            if (!userId.isPresent()) {
+                results.add(BulkDelegationResult.failed(item, BulkDelegationResult.NOT_FOUND,
+                        String.format("There is no user \"%s\"", item.getUserName())));
+                continue;
+            }
+
+            updates.add(new DocumentGrantUpdate(documentId.get(), userId.get(), delegationParams, timeLimitsMillis));
+            grantees.add(item.getUserName());
+            results.add(BulkDelegationResult.granted(item));
         }
 
-        // find the max delegation time (depends on the delegating user's time limit)
-        Optional<Long> timeLimit = documentDao.getMaxDelegationTime(documentName, validPermissions);
+        LOG.info("Delegating {} of the {} permissions", updates.size(), items.size());
 
-        if (documentDao.userHasPermission(documentName, delegationParams.getUserName(), permission)) {
-            // the user already has the permission, so it should be overridden
-            LOG.info("\"{}\" already has a valid {} permission.", delegationParams.getUserName(), permission);
-            LOG.info("Overriding current {} permission for \"{}\"", permission, delegationParams.getUserName());
+        if (!updates.isEmpty()) {
+            Transaction transaction = documentDao.beginTransaction();
+            try {
+                documentDao.grantPermissions(updates);
+                transaction.commit();
+            } finally {
+                transaction.end();
+            }
+        }
+        for (String grantee: grantees) {
+            userAuthRealm.invalidateAuthorization(grantee);
+        }
 
-            documentDao.updateDocumentPermission(documentName, permission, delegationParams, timeLimit);
-        } else {
-            LOG.info("Delegating \"{}\" to user \"{}\" for document \"{}\"",
-                    permission, delegationParams.getUserName(), documentName);
+        return results;
+    }
+
+    // The time limit of each of the permissions when they are delegated by the user the grant belongs to, or
+    // throws if one of them can't be
+    private Map<DocumentPermission, Long> getDelegationTimeLimits(
+            String documentName,
+            Optional<DocumentGrant> delegatorGrant,
+            DelegatePermissionParams delegationParams,
+            long nowMillis) throws UserLacksPermissionException {
+
+        Map<DocumentPermission, Long> timeLimitsMillis = new EnumMap<>(DocumentPermission.class);
+        for (DocumentPermission permission: delegationParams.getPermissions()) {
+            if (!delegatorGrant.isPresent() || !delegatorGrant.get().canDelegate(permission, nowMillis)) {
+                // if the user doesn't have the correct permission, *or* doesn't have the ability to propagate it
+                // further, then we don't allow them to go any further.
+                LOG.info("User \"{}\" cannot propagate \"{}\" further for document \"{}\".",
+                        currentUser.getUserName(), permission, documentName);
 
-            documentDao.delegateNewPermission(documentName, permission, delegationParams, timeLimit);
+                throw new UserLacksPermissionException(
+                        "You do not possess the ability to further propagate the permission");
+            }
+
+            // the delegating user's time limit takes precedence over the one asked for, which may be later
+            Optional<Long> timeLimitMillis = delegatorGrant.get().getDelegationTimeLimitMillis(permission, nowMillis);
+            if (!timeLimitMillis.isPresent() && delegationParams.getTimeLimitMillis().isPresent()) {
+                timeLimitMillis = Optional.of(nowMillis + delegationParams.getTimeLimitMillis().get());
+            }
+            timeLimitMillis.ifPresent(t -> timeLimitsMillis.put(permission, t));
         }
+        return timeLimitsMillis;
     }
 
     public void deleteDocument(String documentName)
@@ -316,31 +1031,47 @@ public class DocumentService {
         LOG.info("Checking if user \"{}\" has proper permission to delete document \"{}\"",
                 currentUser.getUserName(), documentName);
 
-        if (!hasWritePermission(documentDao.getDocPermsForCurrentUser(documentName))) {
+        if (!isPermitted(DocumentPermission.WRITE, documentName)) {
             LOG.info("User \"{}\" must have a valid OWNER permission to delete a document", currentUser.getUserName());
             throw new UserLacksPermissionException("Only a document's owner is allowed to delete a file.");
         }
 
-        // delete all permissions for the document before deleting the document
-        LOG.info("Deleting all permissions for document \"{}\"", documentName);
-        documentDao.deleteAllDocumentPermissions(documentName);
+        // the document is gone as soon as this commits. Its contents are overwritten by `DocumentShredder` in
+        // the background, so that deleting a large document doesn't have to wait for it
+        Set<String> grantees;
+        Transaction transaction = documentDao.beginTransaction();
+        try {
+            // delete all permissions for the document before deleting the document
+            LOG.info("Deleting all permissions for document \"{}\"", documentName);
+            grantees = documentDao.deleteAllDocumentPermissions(documentName);
+
+            String tombstoneName = documentDao.queueForShredding(documentName);
+            LOG.info("Queued document \"{}\" to be shredded as \"{}\"", documentName, tombstoneName);
+
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+        encryptionService.invalidateDocumentKey(documentName);
 
-        LOG.info("Removing all security flags for document \"{}\"", documentName);
-        documentDao.clearDocumentSecurity(documentName);
+        // a document checked in by the same name later gets an id of its own
+        documentDao.forgetDocumentId(documentName);
 
-        LOG.info("Performing safe delete on document \"{}\"", documentName);
-        documentDao.deleteDocument(documentName);
+        // a document checked in by the same name later must not inherit these
+        for (String grantee: grantees) {
+            userAuthRealm.invalidateAuthorization(grantee);
+        }
 
         LOG.info("Successfully deleted document \"{}\"", documentName);
     }
 
-    private boolean hasReadPermission(Set<DocumentPermission> permissions) {
-        return permissions.contains(DocumentPermission.READ)
-                || permissions.contains(DocumentPermission.OWNER);
-    }
+    // OWNER implies READ and WRITE (see `DocumentLevelPermission`)
+    private boolean isPermitted(DocumentPermission permission, String documentName) {
+        boolean permitted = userAuthRealm.isPermitted(
+                currentUser.getUserName(), new DocumentLevelPermission(permission, documentName));
 
-    private boolean hasWritePermission(Set<DocumentPermission> permissions) {
-        return permissions.contains(DocumentPermission.WRITE)
-                || permissions.contains(DocumentPermission.OWNER);
+        LOG.info("User \"{}\" {} {} permission for document \"{}\"",
+                currentUser.getUserName(), permitted ? "has" : "lacks", permission, documentName);
+        return permitted;
     }
 }
@@ -1,9 +1,15 @@
 package com.cs6238.project2.s2dr.server.app;
 
+import com.cs6238.project2.s2dr.server.app.crypto.ChunkedGcmDecryptingInputStream;
+import com.cs6238.project2.s2dr.server.app.crypto.ChunkedGcmEncryptingInputStream;
+import com.cs6238.project2.s2dr.server.app.crypto.ChunkedGcmFormat;
+import com.cs6238.project2.s2dr.server.app.crypto.ConvergentChunkCodec;
+import com.cs6238.project2.s2dr.server.app.crypto.DataKeyCache;
+import com.cs6238.project2.s2dr.server.app.crypto.ParallelCryptoEngine;
 import com.cs6238.project2.s2dr.server.app.objects.EncryptedDocument;
 import com.cs6238.project2.s2dr.server.app.objects.ServerKeyPair;
-import com.google.common.io.Files;
-import org.apache.shiro.crypto.AesCipherService;
+import com.cs6238.project2.s2dr.server.app.storage.ChunkCodec;
+import com.google.common.io.ByteStreams;
 import org.apache.shiro.crypto.RandomNumberGenerator;
 import org.apache.shiro.crypto.SecureRandomNumberGenerator;
 import org.apache.shiro.util.ByteSource;
@@ -11,47 +17,81 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
-import java.io.File;
-import java.security.KeyFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
-import java.security.spec.RSAPublicKeySpec;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Optional;
 
 public class EncryptionService {
 
     private static final Logger LOG = LoggerFactory.getLogger(EncryptionService.class);
 
     private static final String RSA_ALGORITHM = "RSA";
+    private static final String AES_ALGORITHM = "AES";
+    // documents checked in before the chunked GCM format existed were encrypted with shiro's
+    // `AesCipherService` defaults and are stored as a single `IV || ciphertext` blob
+    private static final String LEGACY_AES_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int LEGACY_AES_IV_BYTE_SIZE = 16;
     private static final String SIGNING_ALGORITHM = "SHA256withRSA";
+    private static final String CONTENT_DIGEST_ALGORITHM = "SHA-256";
+    private static final String DIGEST_SIGNING_ALGORITHM = "NONEwithRSA";
+    // the DER encoding of a SHA-256 `DigestInfo`, up to the digest itself. It is what SHA256withRSA signs
+    private static final byte[] SHA256_DIGEST_INFO_PREFIX = {
+            0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00,
+            0x04, 0x20
+    };
     private static final int AES_KEY_BYTE_SIZE = 16;
+    private static final byte[] CONVERGENCE_SECRET_LABEL =
+            "s2dr convergence secret".getBytes(StandardCharsets.US_ASCII);
+
+    // the plaintext size of each independently encrypted chunk. Only affects newly encrypted documents, the
+    // chunk size is read back from each document's header
+    private static final int CHUNK_SIZE = Integer.getInteger("s2dr.crypto.chunkSize", 64 * 1024);
 
-    private final AesCipherService aesCipher;
     private final RandomNumberGenerator numberGenerator;
     private final ServerKeyPair serverKeyPair;
+    private final ParallelCryptoEngine cryptoEngine;
+    private final DataKeyCache dataKeyCache;
 
     @Inject
-    public EncryptionService(ServerKeyPair serverKeyPair) {
+    public EncryptionService(
+            ServerKeyPair serverKeyPair,
+            ParallelCryptoEngine cryptoEngine,
+            DataKeyCache dataKeyCache) {
 
-        this.aesCipher = new AesCipherService();
         this.numberGenerator = new SecureRandomNumberGenerator();
         this.serverKeyPair = serverKeyPair;
+        this.cryptoEngine = cryptoEngine;
+        this.dataKeyCache = dataKeyCache;
     }
 
-    public EncryptedDocument encryptDocument(File document) {
+    public EncryptedDocument encryptDocument(InputStream document) {
         try {
             // the document itself will be encrypted with AES using a random key
             ByteSource aesKey = numberGenerator.nextBytes(AES_KEY_BYTE_SIZE);
 
-            // encrypt the document contents using AES symmetric encryption
+            // encrypt the document contents using AES-GCM, a window of chunks at a time. Nothing is encrypted yet,
+            // each window is encrypted as whoever consumes the returned stream reads up to it
             LOG.info("Encrypting document using random AES key");
-            ByteSource encryptedDocument = aesCipher.encrypt(Files.toByteArray(document), aesKey.getBytes());
+            ChunkedGcmFormat.Header header = new ChunkedGcmFormat.Header(
+                    CHUNK_SIZE, numberGenerator.nextBytes(ChunkedGcmFormat.NONCE_PREFIX_SIZE).getBytes());
+
+            InputStream encryptedDocument = new ChunkedGcmEncryptingInputStream(
+                    document, new SecretKeySpec(aesKey.getBytes(), AES_ALGORITHM), header, cryptoEngine);
 
             // the AES key then must be encrypted with RSA using the server's public key
-            LOG.info("Encrypting AES key using server public key");
-            Cipher rsaCipher = Cipher.getInstance(RSA_ALGORITHM);
-            rsaCipher.init(Cipher.ENCRYPT_MODE, serverKeyPair.getPublicKey());
-            ByteSource encryptedAesKey = ByteSource.Util.bytes(rsaCipher.doFinal(aesKey.getBytes()));
+            ByteSource encryptedAesKey = ByteSource.Util.bytes(wrapAesKey(aesKey.getBytes()));
 
             // return the encrypted document and the encrypted AES key
             return new EncryptedDocument(encryptedAesKey, encryptedDocument);
@@ -61,42 +101,191 @@ public class EncryptionService {
         }
     }
 
-    public ByteSource decryptDocument(EncryptedDocument encryptedDocument) {
+    // Creates the AES key of a document whose chunks are encrypted by `ConvergentChunkCodec`, and returns it
+    // encrypted with the server's public key, to be stored with the document. The key itself goes straight into
+    // the data key cache, so the check-in (and the check-outs right after it) don't have to decrypt it again.
+    public byte[] newWrappedDocumentKey(String documentName) {
+        try {
+            byte[] aesKeyBytes = numberGenerator.nextBytes(AES_KEY_BYTE_SIZE).getBytes();
+            byte[] wrappedKey = wrapAesKey(aesKeyBytes);
+
+            dataKeyCache.put(documentName, wrappedKey, new SecretKeySpec(aesKeyBytes, AES_ALGORITHM));
+            Arrays.fill(aesKeyBytes, (byte) 0);
+
+            return wrappedKey;
+        } catch (Exception e) {
+            LOG.error("Error creating document key", e);
+            throw new RuntimeException("Internal Server Error");
+        }
+    }
+
+    // returns the codec that encrypts (and decrypts) the chunks of a CONFIDENTIALITY document checked in by
+    // `uploaderName`, with the document key `wrappedDocumentKey`
+    public ChunkCodec openConfidentialChunks(String documentName, String uploaderName, byte[] wrappedDocumentKey) {
         try {
-            // since the AES key was encrypted using the server's public RSA key,
-            // we must decrypt the AES key with RSA using the server's private key
-            LOG.info("Decrypting AES key using server private key");
-            Cipher rsaCipher = Cipher.getInstance(RSA_ALGORITHM);
-            rsaCipher.init(Cipher.DECRYPT_MODE, serverKeyPair.getPrivateKey());
-            ByteSource decryptedAesKey
-                    = ByteSource.Util.bytes(rsaCipher.doFinal(encryptedDocument.getEncryptedAesKey().getBytes()));
+            SecretKey documentKey = unwrapAesKey(documentName, wrappedDocumentKey);
+            return new ConvergentChunkCodec(convergenceSecret(), uploaderName, documentKey, cryptoEngine);
+        } catch (Exception e) {
+            LOG.error("Error opening document key", e);
+            throw new RuntimeException("Internal Server Error");
+        }
+    }
+
+    // returns a stream that decrypts the whole document as it is read
+    public InputStream decryptDocument(String documentName, EncryptedDocument encryptedDocument) {
+        return decryptDocumentRange(documentName, encryptedDocument, 0, Long.MAX_VALUE);
+    }
+
+    // Returns a stream of the plaintext bytes `[offset, offset + length)`. For chunked documents only the chunks
+    // covering the range are read and decrypted. Legacy single-blob documents have to be decrypted from the
+    // start, so everything before `offset` is decrypted and thrown away.
+    public InputStream decryptDocumentRange(
+            String documentName,
+            EncryptedDocument encryptedDocument,
+            long offset,
+            long length) {
+
+        try {
+            SecretKey aesKey = unwrapAesKey(documentName, encryptedDocument.getEncryptedAesKey().getBytes());
+
+            // the chunked header and the legacy IV are the same size, so either way we read that many bytes
+            // and then look at them to find out which format the document is stored in
+            InputStream encryptedContents = encryptedDocument.getEncryptedDocument();
+            byte[] headerOrIv = new byte[ChunkedGcmFormat.HEADER_SIZE];
+            ByteStreams.readFully(encryptedContents, headerOrIv);
+
+            Optional<ChunkedGcmFormat.Header> header = ChunkedGcmFormat.Header.parse(headerOrIv);
 
             // use the decrypted AES key to decrypt the document contents and return
-            LOG.info("Decrypting document using decrypted AES key");
-            return aesCipher.decrypt(
-                    encryptedDocument.getEncryptedDocument().getBytes(),
-                    decryptedAesKey.getBytes());
+            InputStream decrypted;
+            if (header.isPresent()) {
+                LOG.info("Decrypting chunked document using decrypted AES key");
 
+                long firstChunk = offset / header.get().getChunkSize();
+                ByteStreams.skipFully(encryptedContents, ChunkedGcmFormat.storedChunkOffset(header.get(), firstChunk));
 
+                decrypted = new ChunkedGcmDecryptingInputStream(
+                        encryptedContents, aesKey, header.get(), firstChunk, cryptoEngine);
+                ByteStreams.skipFully(decrypted, offset % header.get().getChunkSize());
+            } else {
+                LOG.info("Decrypting legacy document using decrypted AES key");
+
+                Cipher aesStreamCipher = Cipher.getInstance(LEGACY_AES_TRANSFORMATION);
+                aesStreamCipher.init(
+                        Cipher.DECRYPT_MODE,
+                        aesKey,
+                        new IvParameterSpec(Arrays.copyOf(headerOrIv, LEGACY_AES_IV_BYTE_SIZE)));
+
+                decrypted = new CipherInputStream(encryptedContents, aesStreamCipher);
+                ByteStreams.skipFully(decrypted, offset);
+            }
+
+            return ByteStreams.limit(decrypted, length);
         } catch (Exception e) {
             LOG.error("Error decrypting file", e);
             throw new RuntimeException("Internal Server Error");
         }
     }
 
-    public boolean canVerifySignature(
-            ByteSource contents, ByteSource signatureBytes, RSAPublicKeySpec uploaderPubKeySpec) {
+    // drops the cached AES key of a document that is being overwritten or deleted
+    public void invalidateDocumentKey(String documentName) {
+        dataKeyCache.invalidate(documentName);
+    }
+
+    // Works out the decrypted size of a document from the first bytes of its stored contents, without
+    // decrypting anything. Legacy single-blob documents don't record their size, so for those it is empty.
+    public Optional<Long> decryptedLength(InputStream encryptedContents, long storedLength) throws IOException {
+        if (storedLength < ChunkedGcmFormat.HEADER_SIZE) {
+            return Optional.empty();
+        }
 
+        byte[] headerOrIv = new byte[ChunkedGcmFormat.HEADER_SIZE];
+        ByteStreams.readFully(encryptedContents, headerOrIv);
+
+        return ChunkedGcmFormat.Header.parse(headerOrIv)
+                .map(header -> ChunkedGcmFormat.plaintextLength(header, storedLength));
+    }
+
+    private byte[] wrapAesKey(byte[] aesKey) throws Exception {
+        LOG.info("Encrypting AES key using server public key");
+        Cipher rsaCipher = Cipher.getInstance(RSA_ALGORITHM);
+        rsaCipher.init(Cipher.ENCRYPT_MODE, serverKeyPair.getPublicKey());
+        return rsaCipher.doFinal(aesKey);
+    }
+
+    // The key that convergent chunk keys are derived from. It has to stay the same for as long as chunks are
+    // stored with it and must never be stored itself, so it is derived from the server's private key, which
+    // already has to be kept that way.
+    private byte[] convergenceSecret() throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(CONTENT_DIGEST_ALGORITHM);
+        digest.update(CONVERGENCE_SECRET_LABEL);
+        return digest.digest(serverKeyPair.getPrivateKey().getEncoded());
+    }
+
+    private SecretKey unwrapAesKey(String documentName, byte[] encryptedAesKey) throws Exception {
+        Optional<SecretKey> cachedKey = dataKeyCache.get(documentName, encryptedAesKey);
+        if (cachedKey.isPresent()) {
+            LOG.info("Using cached AES key of document \"{}\"", documentName);
+            return cachedKey.get();
+        }
+
+        // since the AES key was encrypted using the server's public RSA key,
+        // we must decrypt the AES key with RSA using the server's private key
+        LOG.info("Decrypting AES key using server private key");
+        Cipher rsaCipher = Cipher.getInstance(RSA_ALGORITHM);
+        rsaCipher.init(Cipher.DECRYPT_MODE, serverKeyPair.getPrivateKey());
+        byte[] aesKeyBytes = rsaCipher.doFinal(encryptedAesKey);
+
+        SecretKey aesKey = new SecretKeySpec(aesKeyBytes, AES_ALGORITHM);
+        Arrays.fill(aesKeyBytes, (byte) 0);
+
+        dataKeyCache.put(documentName, encryptedAesKey, aesKey);
+        return aesKey;
+    }
+
+    // returns a digest of a document's plaintext. For a document whose signature was verified at check-in, a
+    // matching digest is proof enough that it hasn't changed since
+    public MessageDigest beginContentDigest() {
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance(RSA_ALGORITHM);
-            PublicKey publicKey = keyFactory.generatePublic(uploaderPubKeySpec);
+            return MessageDigest.getInstance(CONTENT_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            LOG.error("Error creating content digest", e);
+            throw new RuntimeException("Internal Server Error");
+        }
+    }
+
+    // returns a `Signature` ready to be fed the document contents with `update`, chunk by chunk, and then
+    // checked against the uploader's signature with `verify`
+    public Signature beginSignatureVerification(PublicKey uploaderPublicKey) {
 
+        try {
             LOG.info("Verifying contents against the signature using {}", SIGNING_ALGORITHM);
             Signature signature = Signature.getInstance(SIGNING_ALGORITHM);
-            signature.initVerify(publicKey);
-            signature.update(contents.getBytes());
+            signature.initVerify(uploaderPublicKey);
+
+            return signature;
+        } catch (Exception e) {
+            LOG.error("Error verifying file", e);
+            throw new RuntimeException("Internal Server Error");
+        }
+    }
+
+    // Checks a SHA256withRSA signature against the SHA-256 `contentDigest` of the document, for documents whose
+    // digest was worked out as they arrived in parts (see `UploadSessionService`) rather than in one pass through
+    // `beginSignatureVerification`. The signature is over the encoded digest, so the document isn't hashed again
+    public boolean verifySignedDigest(PublicKey uploaderPublicKey, byte[] contentDigest, byte[] signature) {
+        try {
+            LOG.info("Verifying the content digest against the signature using {}", SIGNING_ALGORITHM);
+            Signature verifier = Signature.getInstance(DIGEST_SIGNING_ALGORITHM);
+            verifier.initVerify(uploaderPublicKey);
+            verifier.update(SHA256_DIGEST_INFO_PREFIX);
+            verifier.update(contentDigest);
 
-            return signature.verify(signatureBytes.getBytes());
+            return verifier.verify(signature);
+        } catch (SignatureException e) {
+            // a signature that can't even be parsed doesn't match
+            LOG.info("The signature is malformed", e);
+            return false;
         } catch (Exception e) {
             LOG.error("Error verifying file", e);
             throw new RuntimeException("Internal Server Error");
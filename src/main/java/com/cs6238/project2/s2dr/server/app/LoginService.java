@@ -1,5 +1,6 @@
 package com.cs6238.project2.s2dr.server.app;
 
+import com.cs6238.project2.s2dr.server.app.crypto.PublicKeyCache;
 import com.cs6238.project2.s2dr.server.config.authentication.X509Token;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.authc.AuthenticationException;
@@ -19,10 +20,12 @@ public class LoginService {
     private static final Logger LOG = LoggerFactory.getLogger(LoginService.class);
 
     private final LoginDao loginDao;
+    private final PublicKeyCache publicKeyCache;
 
     @Inject
-    public LoginService(LoginDao loginDao) {
+    public LoginService(LoginDao loginDao, PublicKeyCache publicKeyCache) {
         this.loginDao = loginDao;
+        this.publicKeyCache = publicKeyCache;
     }
 
     public void login(X509Certificate certificate) throws SQLException {
@@ -45,6 +48,10 @@ public class LoginService {
         }
 
         currentUser.login(token);
+
+        // the user's documents will be verified with this key, so have it ready before anyone checks them out.
+        // It is the same key that was stored for the user, since logging in matched the certificate's signature
+        publicKeyCache.put(token.getSubjectCommonName(), certificate.getPublicKey());
     }
 
     public void addNewUser(X509Token token, RSAPublicKeySpec publicKeySpec) throws SQLException {
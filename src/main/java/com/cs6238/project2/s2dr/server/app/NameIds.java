@@ -0,0 +1,194 @@
+package com.cs6238.project2.s2dr.server.app;
+
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The integer ids of users and documents (see `s2dr.sql`) by their names, and the other way around, so that
+// looking a grant up by the names the REST API uses doesn't have to look the ids up first. Every user and
+// document is loaded when the server starts (see `warm`), and whatever was added since is loaded the first time
+// it is asked for.
+//
+// A user keeps its id for good. A document's name is given up when it is deleted (its row is renamed to a
+// tombstone), so it is forgotten once the delete has committed. Like `AuthorizationCache`, a lookup that was
+// running while something was forgotten isn't kept, and neither are ids read inside a transaction, which may
+// belong to a document that is rolled back.
+public class NameIds {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NameIds.class);
+
+    // the id the grants to 'ALL' are kept under, which isn't a user of its own. Real ids start at 1
+    public static final int ALL_USERS_ID = 0;
+    private static final String ALL_USERS = "ALL";
+
+    private final IdMap users = new IdMap("Users", "userName", "userId");
+    private final IdMap documents = new IdMap("Documents", "documentName", "documentId");
+
+    // loads every user and document
+    public void warm(ConnectionPool connectionPool) throws SQLException {
+        Connection conn = connectionPool.borrow();
+        try {
+            users.loadAll(conn);
+            documents.loadAll(conn);
+        } finally {
+            conn.close();
+        }
+        LOG.info("Loaded the ids of {} users and {} documents", users.size(), documents.size());
+    }
+
+    public Optional<Integer> getUserId(Connection conn, String userName) throws SQLException {
+        if (userName.equals(ALL_USERS)) {
+            return Optional.of(ALL_USERS_ID);
+        }
+        return users.getId(conn, userName);
+    }
+
+    public Optional<String> getUserName(Connection conn, int userId) throws SQLException {
+        if (userId == ALL_USERS_ID) {
+            return Optional.of(ALL_USERS);
+        }
+        return users.getName(conn, userId);
+    }
+
+    public Optional<Integer> getDocumentId(Connection conn, String documentName) throws SQLException {
+        return documents.getId(conn, documentName);
+    }
+
+    // once the document's delete has committed
+    public void forgetDocument(String documentName) {
+        documents.forget(documentName);
+    }
+
+    private static class IdMap {
+
+        private final String table;
+        private final String nameColumn;
+        private final String idColumn;
+
+        private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+        private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<>();
+        private final AtomicLong invalidations = new AtomicLong();
+
+        IdMap(String table, String nameColumn, String idColumn) {
+            this.table = table;
+            this.nameColumn = nameColumn;
+            this.idColumn = idColumn;
+        }
+
+        int size() {
+            return ids.size();
+        }
+
+        void loadAll(Connection conn) throws SQLException {
+            String query =
+                    "SELECT " + nameColumn + ",\n" +
+                    "       " + idColumn + "\n" +
+                    "  FROM s2dr." + table;
+
+            LOG.debug("Query:\n{}", query);
+
+            PreparedStatement ps = null;
+            try {
+                ps = conn.prepareStatement(query);
+
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    ids.put(rs.getString(nameColumn), rs.getInt(idColumn));
+                    names.put(rs.getInt(idColumn), rs.getString(nameColumn));
+                }
+            } finally {
+                if (ps != null) {
+                    ps.close();
+                }
+            }
+        }
+
+        Optional<Integer> getId(Connection conn, String name) throws SQLException {
+            Integer id = ids.get(name);
+            if (id != null) {
+                return Optional.of(id);
+            }
+
+            return load(conn, nameColumn, name).map(Map.Entry::getValue);
+        }
+
+        Optional<String> getName(Connection conn, int id) throws SQLException {
+            String name = names.get(id);
+            if (name != null) {
+                return Optional.of(name);
+            }
+
+            return load(conn, idColumn, id).map(Map.Entry::getKey);
+        }
+
+        // looks the name and id up by one of them, and keeps them if they can be kept
+        private Optional<Map.Entry<String, Integer>> load(Connection conn, String keyColumn, Object key)
+                throws SQLException {
+
+            String query =
+                    "SELECT " + nameColumn + ",\n" +
+                    "       " + idColumn + "\n" +
+                    "  FROM s2dr." + table + "\n" +
+                    " WHERE " + keyColumn + " = (?)";
+
+            LOG.debug("Query:\n{}", query);
+
+            long invalidationsBeforeLoad = invalidations.get();
+            String name;
+            int id;
+            PreparedStatement ps = null;
+            try {
+                ps = conn.prepareStatement(query);
+                ps.setObject(1, key);
+
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                name = rs.getString(nameColumn);
+                id = rs.getInt(idColumn);
+            } finally {
+                if (ps != null) {
+                    ps.close();
+                }
+            }
+
+            if (conn.getAutoCommit()) {
+                put(name, id, invalidationsBeforeLoad);
+            }
+            return Optional.of(new AbstractMap.SimpleImmutableEntry<>(name, id));
+        }
+
+        private void put(String name, int id, long invalidationsBeforeLoad) {
+            // checked before and after, a `forget` in between is caught by the second check
+            if (invalidations.get() != invalidationsBeforeLoad) {
+                return;
+            }
+            ids.put(name, id);
+            names.put(id, name);
+            if (invalidations.get() != invalidationsBeforeLoad) {
+                ids.remove(name, id);
+                names.remove(id, name);
+            }
+        }
+
+        void forget(String name) {
+            invalidations.incrementAndGet();
+            Integer id = ids.remove(name);
+            if (id != null) {
+                names.remove(id, name);
+            }
+        }
+    }
+}
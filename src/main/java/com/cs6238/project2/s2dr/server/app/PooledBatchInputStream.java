@@ -0,0 +1,90 @@
+package com.cs6238.project2.s2dr.server.app;
+
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+// Reads contents kept in the database a batch at a time, with a connection borrowed from the pool for each batch
+// and handed back before any of it is read. Check-outs are sent with these, so a client that takes its time reading
+// a document only keeps a connection for as long as each batch takes to look up, not for as long as the response.
+//
+// Every batch is looked up again from scratch, so subclasses have to make sure they go on reading the contents they
+// started with (and fail when those are gone) rather than whatever is stored under the same name by then.
+abstract class PooledBatchInputStream extends InputStream {
+
+    private final ConnectionPool connectionPool;
+
+    private byte[] piece = new byte[0];
+    private int position = 0;
+    private boolean finished = false;
+
+    PooledBatchInputStream(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    // looks up the next batch with `connection`, and returns false if there are none left
+    protected abstract boolean fetchBatch(Connection connection) throws SQLException, IOException;
+
+    // the next piece of the contents from the batch fetched last, or null once it has all been handed out. Called
+    // without a connection
+    protected abstract byte[] nextPiece() throws IOException;
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == piece.length && !advance()) {
+            return -1;
+        }
+
+        int read = Math.min(length, piece.length - position);
+        System.arraycopy(piece, position, buffer, offset, read);
+        position += read;
+        return read;
+    }
+
+    private boolean advance() throws IOException {
+        while (!finished) {
+            byte[] next = nextPiece();
+            if (next != null) {
+                // empty pieces are skipped, `read` mustn't return 0
+                if (next.length > 0) {
+                    piece = next;
+                    position = 0;
+                    return true;
+                }
+                continue;
+            }
+
+            try {
+                Connection connection = connectionPool.borrow();
+                try {
+                    finished = !fetchBatch(connection);
+                } finally {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                throw new IOException("Unable to read the next batch of the document", e);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        piece = new byte[0];
+        position = 0;
+    }
+}
@@ -1,13 +1,23 @@
 package com.cs6238.project2.s2dr.server.app;
 
+import com.cs6238.project2.s2dr.server.app.exceptions.DocumentConflictException;
 import com.cs6238.project2.s2dr.server.app.exceptions.DocumentIntegrityVerificationException;
+import com.cs6238.project2.s2dr.server.app.exceptions.InvalidDeltaException;
+import com.cs6238.project2.s2dr.server.app.exceptions.InvalidUploadException;
 import com.cs6238.project2.s2dr.server.app.exceptions.NoQueryResultsException;
+import com.cs6238.project2.s2dr.server.app.exceptions.RangeNotSatisfiableException;
 import com.cs6238.project2.s2dr.server.app.exceptions.UnexpectedQueryResultsException;
 import com.cs6238.project2.s2dr.server.app.exceptions.UserLacksPermissionException;
+import com.cs6238.project2.s2dr.server.app.objects.BlockSignatures;
+import com.cs6238.project2.s2dr.server.app.objects.BulkDelegationItem;
+import com.cs6238.project2.s2dr.server.app.objects.BulkDelegationResult;
+import com.cs6238.project2.s2dr.server.app.objects.ByteRange;
 import com.cs6238.project2.s2dr.server.app.objects.CurrentUser;
 import com.cs6238.project2.s2dr.server.app.objects.DelegatePermissionParams;
-import com.cs6238.project2.s2dr.server.app.objects.DocumentDownload;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentCheckout;
 import com.cs6238.project2.s2dr.server.app.objects.SecurityFlag;
+import com.cs6238.project2.s2dr.server.app.objects.UploadSessionStatus;
+import com.cs6238.project2.s2dr.server.app.storage.FileRegion;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.subject.Subject;
 import org.glassfish.jersey.media.multipart.ContentDisposition;
@@ -20,42 +30,72 @@ import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.File;
-import java.io.FileNotFoundException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.cert.X509Certificate;
 import java.sql.SQLException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 @Path("s2dr")
 public class RestEndpoint {
 
     private static final Logger LOG = LoggerFactory.getLogger(RestEndpoint.class);
 
+    // JAX-RS doesn't define constants for the range headers
+    private static final String RANGE = "Range";
+    private static final String IF_RANGE = "If-Range";
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+    private static final String CONTENT_RANGE = "Content-Range";
+
+    private static final String GZIP = "gzip";
+
+    // Tomcat sends the file named by these request attributes itself once the servlet returns, with `sendfile(2)`,
+    // when the connector supports it (NIO and APR, but not over TLS). `end` is exclusive
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     private final CurrentUser currentUser;
     private final DocumentService documentService;
     private final LoginService loginService;
+    private final UploadSessionService uploadSessionService;
 
     @Inject
     RestEndpoint(
             CurrentUser currentUser,
             DocumentService documentService,
-            LoginService loginService) {
+            LoginService loginService,
+            UploadSessionService uploadSessionService) {
 
         this.currentUser = currentUser;
         this.documentService = documentService;
         this.loginService = loginService;
+        this.uploadSessionService = uploadSessionService;
     }
 
     @POST
@@ -81,11 +121,11 @@ public class RestEndpoint {
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces(MediaType.APPLICATION_JSON)
     public Response uploadDocument(
-            @FormDataParam("document") File document,
+            @FormDataParam("document") InputStream document,
             @FormDataParam("documentName") String documentName,
             @FormDataParam("securityFlags") String securityFlags,
             @FormDataParam("signature") InputStream signature)
-            throws SQLException, FileNotFoundException, URISyntaxException, UnexpectedQueryResultsException {
+            throws SQLException, IOException, URISyntaxException, UnexpectedQueryResultsException {
 
         LOG.info("User \'{}\" requesting to check-in document \"{}\"", currentUser.getUserName(), documentName);
 
@@ -104,6 +144,18 @@ public class RestEndpoint {
                     .status(Response.Status.UNAUTHORIZED)
                     .entity(e.getMessage())
                     .build();
+        } catch (DocumentIntegrityVerificationException e) {
+            // return a 400, nothing was stored
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity("The document does not match its signature")
+                    .build();
+        } catch (DocumentConflictException e) {
+            // return a 409, the client may simply try again
+            return Response
+                    .status(Response.Status.CONFLICT)
+                    .entity(e.getMessage())
+                    .build();
         }
 
         LOG.info("Successfully uploaded document");
@@ -117,16 +169,22 @@ public class RestEndpoint {
     @GET
     @Path("/document/{documentName}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public Response downloadDocument(@PathParam("documentName") String documentName)
-            throws SQLException, UnexpectedQueryResultsException {
+    public Response downloadDocument(
+            @PathParam("documentName") String documentName,
+            @QueryParam("version") Integer version,
+            @HeaderParam(RANGE) String rangeHeader,
+            @HeaderParam(IF_RANGE) String ifRangeHeader,
+            @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncodingHeader,
+            @Context HttpServletRequest request)
+            throws SQLException, IOException, UnexpectedQueryResultsException {
         
         LOG.info("User \"{}\" requesting to check-out document \"{}\"", currentUser.getUserName(), documentName);
 
-        DocumentDownload download;
+        DocumentCheckout checkout;
         try {
-            download = documentService.downloadDocument(documentName);
+            checkout = documentService.downloadDocument(documentName, Optional.ofNullable(version));
         } catch (NoQueryResultsException e) {
-            // return a 404
+            // return a 404 (also for versions that don't exist, or aren't kept anymore)
             return Response
                     .status(Response.Status.NOT_FOUND)
                     .build();
@@ -136,21 +194,134 @@ public class RestEndpoint {
                     .status(Response.Status.UNAUTHORIZED)
                     .entity(e.getMessage())
                     .build();
-        } catch (DocumentIntegrityVerificationException e) {
-            return Response
-                    .status(Response.Status.NOT_FOUND) // this probably isn't the correct status code
-                    .entity("Unable to verify the integrity of the document")
+        }
+
+        EntityTag entityTag = getEntityTag(checkout);
+        Date lastModified = new Date(checkout.getDownload().getLastModifiedMillis());
+
+        // ranges can only be served when we know how long the document is. Otherwise (and when the client's
+        // copy is out of date according to `If-Range`) the Range header is ignored and the whole document is sent
+        Optional<ByteRange> range = Optional.empty();
+        if (rangeHeader != null
+                && checkout.getContentLength().isPresent()
+                && ifRangeMatches(ifRangeHeader, entityTag, lastModified)) {
+            try {
+                range = ByteRange.parse(rangeHeader, checkout.getContentLength().get());
+            } catch (RangeNotSatisfiableException e) {
+                // return a 416
+                return Response
+                        .status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(CONTENT_RANGE, "bytes */" + checkout.getContentLength().get())
+                        .build();
+            }
+        }
+        Optional<ByteRange> requestedRange = range;
+
+        // compressed documents are sent as they are stored to clients that accept gzip, unless they asked for a range
+        // (which is a range of the uncompressed document)
+        boolean compressible = documentService.canSendCompressed(checkout);
+        boolean sendGzip = compressible && !requestedRange.isPresent() && acceptsGzip(acceptEncodingHeader);
+
+        // Documents kept unchanged in one region of a file are sent by the container without ever being read by us.
+        // Ones kept unchanged in several regions are transferred from their files, the rest are streamed to the
+        // client as they are read (and decrypted) from the database
+        Optional<List<FileRegion>> regions = sendGzip
+                ? Optional.empty()
+                : documentService.locateDocument(checkout, requestedRange);
+
+        // that was the last of what the check-out needs the request's connection for. The contents are read with
+        // connections borrowed a batch at a time, so a slow client doesn't keep one from the other requests
+        documentService.releaseConnection();
+
+        if (sendGzip) {
+            LOG.info("Sending document \"{}\" gzip encoded", documentName);
+            StreamingOutput compressedContents = output -> {
+                try {
+                    documentService.streamCompressedDocument(checkout, output);
+                } catch (SQLException e) {
+                    LOG.error("Error streaming document \"{}\"", documentName, e);
+                    throw new WebApplicationException(e);
+                }
+            };
+
+            // the length of the gzip stream isn't known until it has been sent
+            return Response.ok(compressedContents)
+                    .header("Content-Disposition", ContentDisposition.type("attachment")
+                            .fileName(checkout.getDocumentName())
+                            .build())
+                    .header(HttpHeaders.CONTENT_ENCODING, GZIP)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .header(ACCEPT_RANGES, "bytes")
+                    .tag(new EntityTag(entityTag.getValue() + "-" + GZIP))
+                    .lastModified(lastModified)
                     .build();
         }
 
+        boolean sendfile = regions.isPresent()
+                && regions.get().size() == 1
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT));
+
+        StreamingOutput contents = output -> {
+            if (regions.isPresent()) {
+                documentService.transferDocument(checkout, regions.get(), output);
+                return;
+            }
+
+            try {
+                documentService.streamDocument(checkout, requestedRange, output);
+            } catch (DocumentIntegrityVerificationException e) {
+                // small documents are still buffered at this point, so the client gets this response. Larger ones
+                // have already been partially sent, and the exception aborts the response instead of completing it
+                throw new WebApplicationException(Response
+                        .status(Response.Status.NOT_FOUND) // this probably isn't the correct status code
+                        .entity("Unable to verify the integrity of the document")
+                        .build());
+            } catch (SQLException | UnexpectedQueryResultsException e) {
+                LOG.error("Error streaming document \"{}\"", documentName, e);
+                throw new WebApplicationException(e);
+            }
+        };
+
         ContentDisposition contentDisposition = ContentDisposition.type("attachment")
-                .fileName(download.getDocumentName())
+                .fileName(checkout.getDocumentName())
                 .build();
 
-        // return HTTP 200
-        return Response
-                .ok(download.getContents())
+        Response.ResponseBuilder response;
+        if (requestedRange.isPresent()) {
+            // return HTTP 206 with just the requested part of the document
+            LOG.info("Sending bytes {} of document \"{}\"", requestedRange.get().toContentRange(), documentName);
+            response = Response
+                    .status(Response.Status.PARTIAL_CONTENT)
+                    .header(CONTENT_RANGE, requestedRange.get().toContentRange())
+                    .header(HttpHeaders.CONTENT_LENGTH, requestedRange.get().getLength());
+        } else {
+            // return HTTP 200
+            response = Response.ok();
+            if (checkout.getContentLength().isPresent()) {
+                response.header(HttpHeaders.CONTENT_LENGTH, checkout.getContentLength().get());
+            }
+        }
+
+        if (sendfile) {
+            FileRegion region = regions.get().get(0);
+            LOG.info("Sending document \"{}\" with sendfile", documentName);
+            response.type(MediaType.APPLICATION_OCTET_STREAM);
+            request.setAttribute(SENDFILE_FILENAME, region.getFile().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, region.getPosition());
+            request.setAttribute(SENDFILE_END, region.getEnd());
+        } else {
+            response.entity(contents);
+        }
+
+        if (compressible) {
+            response.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+
+        return response
                 .header("Content-Disposition", contentDisposition)
+                .header(ACCEPT_RANGES, checkout.getContentLength().isPresent() ? "bytes" : "none")
+                .tag(entityTag)
+                .lastModified(lastModified)
                 .build();
     }
 
@@ -186,6 +357,108 @@ public class RestEndpoint {
                 .build();
     }
 
+    // the block signatures a client needs to send its edited copy of the document as a delta
+    @GET
+    @Path("/document/{documentName}/blocks")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getBlockSignatures(
+            @PathParam("documentName") String documentName,
+            @QueryParam("blockSize") Integer blockSize)
+            throws SQLException, IOException, UnexpectedQueryResultsException {
+
+        BlockSignatures signatures;
+        try {
+            signatures = documentService.getBlockSignatures(documentName, Optional.ofNullable(blockSize));
+        } catch (NoQueryResultsException e) {
+            // return a 404
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .build();
+        } catch (UserLacksPermissionException e) {
+            // return a 401
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(e.getMessage())
+                    .build();
+        } catch (DocumentIntegrityVerificationException e) {
+            // return a 404, like a check-out of the document would
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .entity("The document failed its integrity check")
+                    .build();
+        } catch (DocumentConflictException e) {
+            // return a 409, the document can only be overwritten whole
+            return Response
+                    .status(Response.Status.CONFLICT)
+                    .entity(e.getMessage())
+                    .build();
+        }
+
+        return Response.ok(signatures).build();
+    }
+
+    // overwrites the document with the contents the delta rebuilds out of version `baseVersion` of it
+    @POST
+    @Path("/document/{documentName}/delta")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response uploadDelta(
+            @PathParam("documentName") String documentName,
+            @FormDataParam("delta") InputStream delta,
+            @FormDataParam("baseVersion") int baseVersion,
+            @FormDataParam("securityFlags") String securityFlags,
+            @FormDataParam("signature") InputStream signature)
+            throws SQLException, IOException, URISyntaxException, UnexpectedQueryResultsException {
+
+        LOG.info("User \"{}\" requesting to check-in a delta of document \"{}\"",
+                currentUser.getUserName(), documentName);
+
+        Set<SecurityFlag> securityFlagSet = new HashSet<>();
+        for (String flag: securityFlags.split(",")) {
+            securityFlagSet.add(SecurityFlag.valueOf(flag.trim().toUpperCase()));
+        }
+
+        try {
+            documentService.uploadDelta(delta, documentName, baseVersion, securityFlagSet, signature);
+        } catch (NoQueryResultsException e) {
+            // return a 404, there is nothing to apply the delta to
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .build();
+        } catch (UserLacksPermissionException e) {
+            // return a 401
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(e.getMessage())
+                    .build();
+        } catch (InvalidDeltaException e) {
+            // return a 400, nothing was stored
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        } catch (DocumentIntegrityVerificationException e) {
+            // return a 400, nothing was stored
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity("The document does not match its signature")
+                    .build();
+        } catch (DocumentConflictException e) {
+            // return a 409, the client has to fetch the block signatures of the current version and try again
+            return Response
+                    .status(Response.Status.CONFLICT)
+                    .entity(e.getMessage())
+                    .build();
+        }
+
+        LOG.info("Successfully applied the delta");
+
+        // return HTTP 201 with URI to the resource
+        return Response
+                .created(new URI("/s2dr/document/" + documentName))
+                .build();
+    }
+
     @PUT
     @Path("/document/{documentName}")
     @Consumes(MediaType.APPLICATION_JSON)
@@ -207,6 +480,29 @@ public class RestEndpoint {
         return Response.ok().build();
     }
 
+    // Delegates any number of permissions, on any number of documents, in one request. Each item is what
+    // `delegate` takes, plus the document, and is answered by a result with the status `delegate` would have
+    // returned for it. Those that aren't allowed don't keep the others from being granted
+    @POST
+    @Path("/delegations")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response delegateInBulk(List<BulkDelegationItem> items) throws SQLException {
+
+        if (items == null) {
+            // return a 400
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity("A list of delegations is required")
+                    .build();
+        }
+
+        List<BulkDelegationResult> results = documentService.delegatePermissions(items);
+
+        // return 200, whether or not each of them was granted
+        return Response.ok(results).build();
+    }
+
     @DELETE
     @Path("/document/{documentName}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -227,6 +523,246 @@ public class RestEndpoint {
         return Response.ok().build();
     }
 
+    // Starts an upload of the document in parts, for documents too large to be sent in a single request. The
+    // security flags and the signature are the ones `/upload` takes, the parts are sent to `/parts/{partNumber}`
+    @POST
+    @Path("/upload/sessions")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response createUploadSession(
+            @FormDataParam("documentName") String documentName,
+            @FormDataParam("securityFlags") String securityFlags,
+            @FormDataParam("signature") InputStream signature)
+            throws SQLException, IOException, URISyntaxException {
+
+        LOG.info("User \"{}\" requesting to check-in document \"{}\" in parts",
+                currentUser.getUserName(), documentName);
+
+        Set<SecurityFlag> securityFlagSet = new HashSet<>();
+        for (String flag: securityFlags.split(",")) {
+            securityFlagSet.add(SecurityFlag.valueOf(flag.trim().toUpperCase()));
+        }
+
+        UploadSessionStatus status;
+        try {
+            status = uploadSessionService.createSession(documentName, securityFlagSet, signature);
+        } catch (UserLacksPermissionException e) {
+            // return a 401
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(e.getMessage())
+                    .build();
+        }
+
+        // return HTTP 201 with URI to the session
+        return Response
+                .created(new URI("/s2dr/upload/sessions/" + status.getSessionId()))
+                .entity(status)
+                .build();
+    }
+
+    // which parts of the upload were received, to resume it after a failure
+    @GET
+    @Path("/upload/sessions/{sessionId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getUploadSession(@PathParam("sessionId") String sessionId) throws SQLException {
+
+        try {
+            return Response.ok(uploadSessionService.getStatus(sessionId)).build();
+        } catch (NoQueryResultsException e) {
+            // return a 404, the session was committed, aborted or has expired
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .build();
+        } catch (UserLacksPermissionException e) {
+            // return a 401
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(e.getMessage())
+                    .build();
+        }
+    }
+
+    // parts can be sent in any order, and over several connections at once
+    @PUT
+    @Path("/upload/sessions/{sessionId}/parts/{partNumber}")
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response uploadPart(
+            @PathParam("sessionId") String sessionId,
+            @PathParam("partNumber") int partNumber,
+            InputStream part)
+            throws SQLException, IOException {
+
+        try {
+            uploadSessionService.uploadPart(sessionId, partNumber, part);
+        } catch (NoQueryResultsException e) {
+            // return a 404, the session was committed, aborted or has expired
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .build();
+        } catch (UserLacksPermissionException e) {
+            // return a 401
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(e.getMessage())
+                    .build();
+        } catch (InvalidUploadException e) {
+            // return a 400, nothing of the part was kept
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        } catch (DocumentConflictException e) {
+            // return a 409, parts can't be replaced once they were received
+            return Response
+                    .status(Response.Status.CONFLICT)
+                    .entity(e.getMessage())
+                    .build();
+        }
+
+        // return 200
+        return Response.ok().build();
+    }
+
+    // checks the parts received in as the document
+    @POST
+    @Path("/upload/sessions/{sessionId}/commit")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response commitUpload(@PathParam("sessionId") String sessionId)
+            throws SQLException, IOException, URISyntaxException {
+
+        String documentName;
+        try {
+            documentName = uploadSessionService.getStatus(sessionId).getDocumentName();
+            uploadSessionService.commitUpload(sessionId);
+        } catch (NoQueryResultsException e) {
+            // return a 404, the session was committed, aborted or has expired
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .build();
+        } catch (UserLacksPermissionException e) {
+            // return a 401
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(e.getMessage())
+                    .build();
+        } catch (InvalidUploadException e) {
+            // return a 400, the session is left as it was
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        } catch (DocumentIntegrityVerificationException e) {
+            // return a 400, the session is left as it was
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity("The document does not match its signature")
+                    .build();
+        } catch (DocumentConflictException e) {
+            // return a 409
+            return Response
+                    .status(Response.Status.CONFLICT)
+                    .entity(e.getMessage())
+                    .build();
+        }
+
+        LOG.info("Successfully checked in upload \"{}\"", sessionId);
+
+        // return HTTP 201 with URI to the resource
+        return Response
+                .created(new URI("/s2dr/document/" + documentName))
+                .build();
+    }
+
+    @DELETE
+    @Path("/upload/sessions/{sessionId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response abortUpload(@PathParam("sessionId") String sessionId) throws SQLException {
+
+        try {
+            uploadSessionService.abortUpload(sessionId);
+        } catch (NoQueryResultsException e) {
+            // return a 404, the session was committed, aborted or has expired
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .build();
+        } catch (UserLacksPermissionException e) {
+            // return a 401
+            return Response
+                    .status(Response.Status.UNAUTHORIZED)
+                    .entity(e.getMessage())
+                    .build();
+        }
+
+        // return 200
+        return Response.ok().build();
+    }
+
+    // identifies one version of a document. Changes whenever the document is overwritten
+    private static EntityTag getEntityTag(DocumentCheckout checkout) {
+        return new EntityTag(String.format("%x-%x",
+                checkout.getDownload().getLastModifiedMillis(),
+                checkout.getDownload().getStoredLength()));
+    }
+
+    // whether an `Accept-Encoding` header allows gzip, i.e. names it (or `*`, if it doesn't name it) without `q=0`
+    private static boolean acceptsGzip(String acceptEncodingHeader) {
+        if (acceptEncodingHeader == null) {
+            return false;
+        }
+
+        Optional<Boolean> gzip = Optional.empty();
+        Optional<Boolean> any = Optional.empty();
+        for (String coding: acceptEncodingHeader.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase();
+
+            boolean accepted = true;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzip = Optional.of(accepted);
+            } else if (name.equals("*")) {
+                any = Optional.of(accepted);
+            }
+        }
+        return gzip.orElse(any.orElse(false));
+    }
+
+    // `If-Range` holds either an entity tag or an HTTP date. A range is only sent if it matches the
+    // current version of the document exactly
+    private static boolean ifRangeMatches(String ifRangeHeader, EntityTag entityTag, Date lastModified) {
+        if (ifRangeHeader == null) {
+            return true;
+        }
+
+        String ifRange = ifRangeHeader.trim();
+        if (ifRange.startsWith("W/")) {
+            // weak tags never match for ranges
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals("\"" + entityTag.getValue() + "\"");
+        }
+
+        try {
+            long ifRangeSeconds = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return ifRangeSeconds == TimeUnit.MILLISECONDS.toSeconds(lastModified.getTime());
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
     @POST
     @Path("/logout")
     @Produces(MediaType.APPLICATION_JSON)
@@ -0,0 +1,108 @@
+package com.cs6238.project2.s2dr.server.app;
+
+import com.cs6238.project2.s2dr.server.app.storage.ContentCoding;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.security.MessageDigest;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// What the server keeps in memory about the uploads in parts in progress, between the requests that upload their
+// parts (see `UploadSessionService`): the content coding their parts are stored with, and the digest of their
+// first parts. None of it has to survive a restart: the coding is read back from the parts that were stored, and
+// the digest is worked out again from them.
+public class UploadProgress {
+
+    private final Cache<String, SessionProgress> sessions = CacheBuilder.newBuilder()
+            .expireAfterAccess(UploadSessionService.SESSION_HOURS, TimeUnit.HOURS)
+            .build();
+
+    public SessionProgress get(String sessionId) {
+        try {
+            return sessions.get(sessionId, SessionProgress::new);
+        } catch (ExecutionException e) {
+            // creating a `SessionProgress` doesn't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // once the session was committed or aborted
+    public void forget(String sessionId) {
+        sessions.invalidate(sessionId);
+    }
+
+    public static class SessionProgress {
+
+        // only one request at a time digests the parts, in order
+        private final ReentrantLock digestLock = new ReentrantLock();
+
+        // the digest of the parts up to and including `digestedParts`. Guarded by `digestLock`
+        private Optional<MessageDigest> digest = Optional.empty();
+        private int digestedParts = 0;
+
+        // guarded by `this`
+        private Optional<ContentCoding> contentCoding = Optional.empty();
+
+        public synchronized Optional<ContentCoding> getContentCoding() {
+            return contentCoding;
+        }
+
+        public synchronized void setContentCoding(ContentCoding contentCoding) {
+            this.contentCoding = Optional.of(contentCoding);
+        }
+
+        // Takes the digest lock if part `partNumber` is the next one to be digested and no other request is
+        // digesting, so that the part can be digested as it is received rather than read back afterwards
+        public boolean tryLockDigestFor(int partNumber) {
+            if (!digestLock.tryLock()) {
+                return false;
+            }
+            if (digestedParts + 1 != partNumber) {
+                digestLock.unlock();
+                return false;
+            }
+            return true;
+        }
+
+        public boolean tryLockDigest() {
+            return digestLock.tryLock();
+        }
+
+        public void lockDigest() {
+            digestLock.lock();
+        }
+
+        public void unlockDigest() {
+            digestLock.unlock();
+        }
+
+        // the number of the last part digested, 0 if none were. Only while holding the digest lock
+        public int getDigestedParts() {
+            return digestedParts;
+        }
+
+        // A copy of the digest so far, to be fed the next part and handed back to `digested` once that part is
+        // stored. The digest itself isn't touched, so a part that fails to be stored leaves it as it was. Only
+        // while holding the digest lock
+        public MessageDigest copyDigest(MessageDigest emptyDigest) {
+            if (!digest.isPresent()) {
+                return emptyDigest;
+            }
+            try {
+                return (MessageDigest) digest.get().clone();
+            } catch (CloneNotSupportedException e) {
+                // SHA-256 digests of every JRE can be cloned
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // `partDigest` (see `copyDigest`) was fed the next part. Only while holding the digest lock
+        public void digested(MessageDigest partDigest) {
+            digest = Optional.of(partDigest);
+            digestedParts++;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.cs6238.project2.s2dr.server.app;
+
+import com.cs6238.project2.s2dr.server.app.exceptions.DocumentConflictException;
+import com.cs6238.project2.s2dr.server.app.exceptions.NoQueryResultsException;
+import com.cs6238.project2.s2dr.server.app.objects.EnumBits;
+import com.cs6238.project2.s2dr.server.app.objects.SecurityFlag;
+import com.cs6238.project2.s2dr.server.app.objects.UploadPart;
+import com.cs6238.project2.s2dr.server.app.objects.UploadSession;
+import com.cs6238.project2.s2dr.server.app.storage.ContentCoding;
+import com.cs6238.project2.s2dr.server.config.database.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+// The rows of uploads in parts that haven't been committed yet, see `UploadSessionService`. The parts' chunks are
+// stored by `DocumentContentDao`.
+public class UploadSessionDao {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UploadSessionDao.class);
+
+    private final Connection conn;
+
+    @Inject
+    public UploadSessionDao(Connection conn) {
+        this.conn = conn;
+    }
+
+    // a part is stored in a single transaction, so a part that was cut short leaves nothing behind
+    public Transaction beginTransaction() throws SQLException {
+        return Transaction.begin(conn);
+    }
+
+    public void createSession(UploadSession session) throws SQLException {
+
+        String query =
+                "INSERT INTO s2dr.UploadSessions\n" +
+                "  (sessionId, documentName, userName, securityFlags, encryptionKey, signature, chunkIndexStride,\n" +
+                "   expires)\n" +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+        LOG.debug("Query:\n{}", query);
+
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(query);
+
+            ps.setString(1, session.getSessionId());
+            ps.setString(2, session.getDocumentName());
+            ps.setString(3, session.getUserName());
+            ps.setInt(4, EnumBits.toBits(session.getSecurityFlags()));
+            ps.setBytes(5, session.getEncryptionKey().orElse(null)); // nullable field
+            ps.setBytes(6, session.getSignature().orElse(null)); // nullable field
+            ps.setInt(7, session.getChunkIndexStride());
+            ps.setTimestamp(8, new Timestamp(session.getExpiresMillis()));
+
+            ps.executeUpdate();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    // throws `NoQueryResultsException` if there is no such session, or it has expired
+    public UploadSession getSession(String sessionId) throws SQLException, NoQueryResultsException {
+
+        String query =
+                "SELECT sessionId,\n" +
+                "       documentName,\n" +
+                "       userName,\n" +
+                "       securityFlags,\n" +
+                "       encryptionKey,\n" +
+                "       signature,\n" +
+                "       chunkIndexStride,\n" +
+                "       expires\n" +
+                "  FROM s2dr.UploadSessions\n" +
+                " WHERE sessionId = ?\n" +
+                "   AND expires > NOW()";
+
+        LOG.debug("Query:\n{}", query);
+
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(query);
+            ps.setString(1, sessionId);
+
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next()) {
+                throw new NoQueryResultsException("There is no upload in progress by the given id");
+            }
+
+            return UploadSession.builder()
+                    .setSessionId(rs.getString("sessionId"))
+                    .setDocumentName(rs.getString("documentName"))
+                    .setUserName(rs.getString("userName"))
+                    .setSecurityFlags(EnumBits.fromBits(SecurityFlag.class, rs.getInt("securityFlags")))
+                    .setEncryptionKey(Optional.ofNullable(rs.getBytes("encryptionKey")))
+                    .setSignature(Optional.ofNullable(rs.getBytes("signature")))
+                    .setChunkIndexStride(rs.getInt("chunkIndexStride"))
+                    .setExpiresMillis(rs.getTimestamp("expires").getTime())
+                    .build();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    // Claims part `partNumber` of the session for the transaction storing it. Throws `DocumentConflictException` if
+    // the part was already received, or is being received by another request
+    public void addPart(String sessionId, int partNumber) throws SQLException, DocumentConflictException {
+
+        // the length, CRC and coding are filled in by `completePart`, before the transaction commits
+        String query =
+                "INSERT INTO s2dr.UploadParts\n" +
+                "  (sessionId, partNumber, partLength, partCrc32, contentCoding)\n" +
+                "VALUES (?, ?, 0, 0, 'identity')";
+
+        LOG.debug("Query:\n{}", query);
+
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(query);
+            ps.setString(1, sessionId);
+            ps.setInt(2, partNumber);
+
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            if (DocumentDao.DUPLICATE_KEY_SQL_STATE.equals(e.getSQLState())) {
+                throw new DocumentConflictException(String.format(
+                        "Part %d of upload \"%s\" was already received", partNumber, sessionId));
+            }
+            throw e;
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    public void completePart(String sessionId, UploadPart part) throws SQLException {
+
+        String query =
+                "UPDATE s2dr.UploadParts\n" +
+                "   SET partLength = ?,\n" +
+                "       partCrc32 = ?,\n" +
+                "       contentCoding = ?\n" +
+                " WHERE sessionId = ?\n" +
+                "   AND partNumber = ?";
+
+        LOG.debug("Query:\n{}", query);
+
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(query);
+            ps.setLong(1, part.getPartLength());
+            ps.setLong(2, part.getPartCrc32());
+            ps.setString(3, part.getContentCoding().getName());
+            ps.setString(4, sessionId);
+            ps.setInt(5, part.getPartNumber());
+
+            ps.executeUpdate();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    // the parts of the session that were received, in order
+    public List<UploadPart> getParts(String sessionId) throws SQLException {
+
+        String query =
+                "SELECT partNumber,\n" +
+                "       partLength,\n" +
+                "       partCrc32,\n" +
+                "       contentCoding\n" +
+                "  FROM s2dr.UploadParts\n" +
+                " WHERE sessionId = ?\n" +
+                " ORDER BY partNumber";
+
+        LOG.debug("Query:\n{}", query);
+
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(query);
+            ps.setString(1, sessionId);
+
+            List<UploadPart> parts = new ArrayList<>();
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                parts.add(new UploadPart(
+                        rs.getInt("partNumber"),
+                        rs.getLong("partLength"),
+                        rs.getLong("partCrc32"),
+                        ContentCoding.fromName(rs.getString("contentCoding"))));
+            }
+            return parts;
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    // Deletes the session and its parts. The parts' manifests must have been adopted by the document or released
+    // (see `DocumentContentDao`) first
+    public void deleteSession(String sessionId) throws SQLException {
+
+        String partsQuery =
+                "DELETE\n" +
+                "  FROM s2dr.UploadParts\n" +
+                " WHERE sessionId = ?";
+
+        String sessionQuery =
+                "DELETE\n" +
+                "  FROM s2dr.UploadSessions\n" +
+                " WHERE sessionId = ?";
+
+        LOG.debug("Query:\n{}", partsQuery);
+        LOG.debug("Query:\n{}", sessionQuery);
+
+        for (String query: new String[]{partsQuery, sessionQuery}) {
+            PreparedStatement ps = null;
+            try {
+                ps = conn.prepareStatement(query);
+                ps.setString(1, sessionId);
+                ps.executeUpdate();
+            } finally {
+                if (ps != null) {
+                    ps.close();
+                }
+            }
+        }
+    }
+}
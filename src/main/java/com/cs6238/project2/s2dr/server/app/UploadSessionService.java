@@ -0,0 +1,450 @@
+package com.cs6238.project2.s2dr.server.app;
+
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao.StagedContents;
+import com.cs6238.project2.s2dr.server.app.UploadProgress.SessionProgress;
+import com.cs6238.project2.s2dr.server.app.crypto.PublicKeyCache;
+import com.cs6238.project2.s2dr.server.app.exceptions.DocumentConflictException;
+import com.cs6238.project2.s2dr.server.app.exceptions.DocumentIntegrityVerificationException;
+import com.cs6238.project2.s2dr.server.app.exceptions.InvalidUploadException;
+import com.cs6238.project2.s2dr.server.app.exceptions.NoQueryResultsException;
+import com.cs6238.project2.s2dr.server.app.exceptions.UserLacksPermissionException;
+import com.cs6238.project2.s2dr.server.app.objects.CurrentUser;
+import com.cs6238.project2.s2dr.server.app.objects.SecurityFlag;
+import com.cs6238.project2.s2dr.server.app.objects.UploadPart;
+import com.cs6238.project2.s2dr.server.app.objects.UploadSession;
+import com.cs6238.project2.s2dr.server.app.objects.UploadSessionStatus;
+import com.cs6238.project2.s2dr.server.app.storage.ChunkCodec;
+import com.cs6238.project2.s2dr.server.app.storage.ContentCoding;
+import com.cs6238.project2.s2dr.server.app.storage.DeflateChunkCodec;
+import com.cs6238.project2.s2dr.server.app.storage.PlainChunkCodec;
+import com.cs6238.project2.s2dr.server.config.database.Transaction;
+import com.google.common.io.ByteStreams;
+import org.apache.shiro.util.ByteSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+// Uploads of a document in parts, for documents too large to be sent (and sent again, when the connection drops)
+// in a single request. A client creates a session, uploads the parts, from as many connections at once as it
+// likes and in any order, asks which parts were received to resume after a failure, and finally commits the
+// session, which checks the document in.
+//
+// Every part is stored as chunks as it arrives, like a document of its own (see `DocumentContentDao`): it is
+// compressed and encrypted with the session's document key on the way, and the parts received in order are
+// digested for INTEGRITY as they arrive, too. Parts that arrive ahead of the ones before them are read back and
+// digested once those are in. Committing only has to verify the signature against the digest and move the parts'
+// manifests over to the document, which doesn't depend on the document's size.
+public class UploadSessionService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UploadSessionService.class);
+
+    // `-Ds2dr.upload.maxPartBytes`. Parts can be smaller, and don't have to be the same size
+    static final long MAX_PART_BYTES = Long.getLong("s2dr.upload.maxPartBytes", 64L * 1024 * 1024);
+
+    // `-Ds2dr.upload.sessionHours`. Sessions that aren't committed by then are discarded by `DocumentShredder`
+    static final long SESSION_HOURS = Long.getLong("s2dr.upload.sessionHours", 24);
+
+    private final CurrentUser currentUser;
+    private final DocumentService documentService;
+    private final DocumentDao documentDao;
+    private final DocumentContentDao documentContentDao;
+    private final UploadSessionDao uploadSessionDao;
+    private final EncryptionService encryptionService;
+    private final PublicKeyCache publicKeyCache;
+    private final UploadProgress uploadProgress;
+
+    @Inject
+    public UploadSessionService(
+            CurrentUser currentUser,
+            DocumentService documentService,
+            DocumentDao documentDao,
+            DocumentContentDao documentContentDao,
+            UploadSessionDao uploadSessionDao,
+            EncryptionService encryptionService,
+            PublicKeyCache publicKeyCache,
+            UploadProgress uploadProgress) {
+
+        this.currentUser = currentUser;
+        this.documentService = documentService;
+        this.documentDao = documentDao;
+        this.documentContentDao = documentContentDao;
+        this.uploadSessionDao = uploadSessionDao;
+        this.encryptionService = encryptionService;
+        this.publicKeyCache = publicKeyCache;
+        this.uploadProgress = uploadProgress;
+    }
+
+    // The security flags (and the signature, for INTEGRITY) are the ones the document will be checked in with, so
+    // that the parts can be encrypted and verified as they arrive
+    public UploadSessionStatus createSession(String documentName,
+                                             Set<SecurityFlag> securityFlags,
+                                             InputStream signature)
+            throws SQLException, IOException, UserLacksPermissionException {
+
+        documentService.checkCanCheckIn(documentName);
+
+        Optional<byte[]> documentSignature = Optional.empty();
+        if (securityFlags.contains(SecurityFlag.INTEGRITY)) {
+            documentSignature = Optional.of(ByteSource.Util.bytes(signature).getBytes());
+        }
+
+        Optional<byte[]> encryptionKey = Optional.empty();
+        if (securityFlags.contains(SecurityFlag.CONFIDENTIALITY)) {
+            encryptionKey = Optional.of(encryptionService.newWrappedDocumentKey(documentName));
+        }
+
+        UploadSession session = UploadSession.builder()
+                .setSessionId(UUID.randomUUID().toString())
+                .setDocumentName(documentName)
+                .setUserName(currentUser.getUserName())
+                .setSecurityFlags(securityFlags.isEmpty()
+                        ? EnumSet.noneOf(SecurityFlag.class) : EnumSet.copyOf(securityFlags))
+                .setEncryptionKey(encryptionKey)
+                .setSignature(documentSignature)
+                .setChunkIndexStride(DocumentContentDao.chunkIndexStride(MAX_PART_BYTES))
+                .setExpiresMillis(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(SESSION_HOURS))
+                .build();
+
+        LOG.info("User \"{}\" starting upload \"{}\" of document \"{}\"",
+                currentUser.getUserName(), session.getSessionId(), documentName);
+        uploadSessionDao.createSession(session);
+
+        return getStatus(session, new ArrayList<>());
+    }
+
+    public UploadSessionStatus getStatus(String sessionId)
+            throws SQLException, NoQueryResultsException, UserLacksPermissionException {
+
+        UploadSession session = getOwnSession(sessionId);
+        return getStatus(session, uploadSessionDao.getParts(sessionId));
+    }
+
+    private UploadSessionStatus getStatus(UploadSession session, List<UploadPart> parts) {
+        List<Integer> receivedParts = new ArrayList<>();
+        long receivedBytes = 0;
+        for (UploadPart part: parts) {
+            receivedParts.add(part.getPartNumber());
+            receivedBytes += part.getPartLength();
+        }
+
+        return new UploadSessionStatus(
+                session.getSessionId(),
+                session.getDocumentName(),
+                MAX_PART_BYTES,
+                maxParts(session),
+                receivedParts,
+                receivedBytes,
+                session.getExpiresMillis());
+    }
+
+    // every part has `chunkIndexStride` chunk indexes to itself, and there are only so many indexes
+    private static int maxParts(UploadSession session) {
+        return Integer.MAX_VALUE / session.getChunkIndexStride();
+    }
+
+    // only the user who created a session can see it, upload to it or commit it
+    private UploadSession getOwnSession(String sessionId)
+            throws SQLException, NoQueryResultsException, UserLacksPermissionException {
+
+        UploadSession session = uploadSessionDao.getSession(sessionId);
+        if (!session.getUserName().equals(currentUser.getUserName())) {
+            LOG.info("User \"{}\" is not the user who started upload \"{}\"", currentUser.getUserName(), sessionId);
+            throw new UserLacksPermissionException("Only the user who started an upload can continue it");
+        }
+        return session;
+    }
+
+    // Stores part `partNumber` of the upload, which is at most `MAX_PART_BYTES` long. A part can only be received
+    // once: uploading a part that was already received is a `DocumentConflictException`, and of two uploads of the
+    // same part at the same time, the one that finishes last is
+    public void uploadPart(String sessionId, int partNumber, InputStream part)
+            throws SQLException,
+            IOException,
+            NoQueryResultsException,
+            UserLacksPermissionException,
+            InvalidUploadException,
+            DocumentConflictException {
+
+        UploadSession session = getOwnSession(sessionId);
+        if (partNumber < 1 || partNumber > maxParts(session)) {
+            throw new InvalidUploadException(String.format(
+                    "Parts are numbered from 1 to %d, not %d", maxParts(session), partNumber));
+        }
+        // checked again when the part is stored
+        if (uploadSessionDao.getParts(sessionId).stream().anyMatch(p -> p.getPartNumber() == partNumber)) {
+            throw new DocumentConflictException(String.format(
+                    "Part %d of upload \"%s\" was already received", partNumber, sessionId));
+        }
+
+        SessionProgress progress = uploadProgress.get(sessionId);
+
+        // the part is read ahead of everything below to pick the coding, if that wasn't done already
+        BufferedInputStream bufferedPart = new BufferedInputStream(part, DocumentService.COMPRESSION_SAMPLE_SIZE);
+        ContentCoding contentCoding = getContentCoding(session, progress, bufferedPart);
+        ChunkCodec chunkCodec = contentCoding.wrap(openChunkCodec(session));
+
+        CheckedInputStream checkedPart = new CheckedInputStream(bufferedPart, new CRC32());
+        PartLengthLimit limitedPart = new PartLengthLimit(checkedPart, MAX_PART_BYTES);
+
+        // the part can be digested as it is stored if the parts before it have been
+        boolean digesting = session.hasSecurityFlag(SecurityFlag.INTEGRITY) && progress.tryLockDigestFor(partNumber);
+        try {
+            InputStream contents = limitedPart;
+            MessageDigest partDigest = null;
+            if (digesting) {
+                partDigest = progress.copyDigest(encryptionService.beginContentDigest());
+                contents = new DigestInputStream(limitedPart, partDigest);
+            }
+
+            int firstChunkIndex = (partNumber - 1) * session.getChunkIndexStride();
+            StagedContents stagedPart;
+            try {
+                // the chunks are stored before the transaction below begins, so it doesn't hold on to their rows for
+                // as long as the part takes to stream
+                stagedPart = documentContentDao.stageContents(firstChunkIndex, contents, chunkCodec);
+            } catch (IOException e) {
+                if (limitedPart.isExceeded()) {
+                    throw new InvalidUploadException(String.format(
+                            "Part %d is longer than %d bytes", partNumber, MAX_PART_BYTES));
+                }
+                throw e;
+            }
+
+            boolean committed = false;
+            Transaction transaction = uploadSessionDao.beginTransaction();
+            try {
+                uploadSessionDao.addPart(sessionId, partNumber);
+                documentContentDao.adoptStagedPart(stagedPart, sessionId, partNumber);
+                uploadSessionDao.completePart(sessionId, new UploadPart(
+                        partNumber, stagedPart.getLength(), checkedPart.getChecksum().getValue(), contentCoding));
+
+                transaction.commit();
+                committed = true;
+            } finally {
+                transaction.end();
+                if (!committed) {
+                    documentContentDao.discardStagedContents(stagedPart.getStagingId());
+                }
+            }
+
+            LOG.info("Received part {} of upload \"{}\"", partNumber, sessionId);
+            if (digesting) {
+                progress.digested(partDigest);
+            }
+        } finally {
+            if (digesting) {
+                progress.unlockDigest();
+            }
+        }
+
+        // digest the parts that arrived ahead of this one, unless another request is at it already
+        if (session.hasSecurityFlag(SecurityFlag.INTEGRITY) && progress.tryLockDigest()) {
+            try {
+                digestReceivedParts(session, progress);
+            } finally {
+                progress.unlockDigest();
+            }
+        }
+    }
+
+    // Every part of an upload has to be stored with the same content coding, so the first part to arrive picks it
+    // from its first bytes, like `DocumentService.uploadDocument` does. After a restart, it is the coding of the
+    // parts received before it
+    private ContentCoding getContentCoding(UploadSession session, SessionProgress progress, BufferedInputStream part)
+            throws SQLException, IOException {
+
+        synchronized (progress) {
+            if (!progress.getContentCoding().isPresent()) {
+                List<UploadPart> received = uploadSessionDao.getParts(session.getSessionId());
+                if (!received.isEmpty()) {
+                    progress.setContentCoding(received.get(0).getContentCoding());
+                } else if (DocumentService.COMPRESS) {
+                    progress.setContentCoding(DocumentService.chooseContentCoding(part));
+                } else {
+                    progress.setContentCoding(ContentCoding.IDENTITY);
+                }
+            }
+            return progress.getContentCoding().get();
+        }
+    }
+
+    private ChunkCodec openChunkCodec(UploadSession session) {
+        if (!session.hasSecurityFlag(SecurityFlag.CONFIDENTIALITY)) {
+            return PlainChunkCodec.INSTANCE;
+        }
+        return encryptionService.openConfidentialChunks(
+                session.getDocumentName(), session.getUserName(), session.getEncryptionKey().get());
+    }
+
+    // Reads back the parts that were received but not digested yet, in order, up to the first one that is missing.
+    // Only while holding the digest lock
+    private void digestReceivedParts(UploadSession session, SessionProgress progress)
+            throws SQLException, IOException {
+
+        ChunkCodec chunkCodec = null;
+        for (UploadPart part: uploadSessionDao.getParts(session.getSessionId())) {
+            if (part.getPartNumber() <= progress.getDigestedParts()) {
+                continue;
+            }
+            if (part.getPartNumber() != progress.getDigestedParts() + 1) {
+                return;
+            }
+
+            if (chunkCodec == null) {
+                chunkCodec = part.getContentCoding().wrap(openChunkCodec(session));
+            }
+
+            LOG.info("Digesting part {} of upload \"{}\"", part.getPartNumber(), session.getSessionId());
+            MessageDigest partDigest = progress.copyDigest(encryptionService.beginContentDigest());
+            InputStream contents = documentContentDao.openUploadPart(
+                    session.getSessionId(), part.getPartNumber(), chunkCodec);
+            try {
+                ByteStreams.copy(new DigestInputStream(contents, partDigest), ByteStreams.nullOutputStream());
+            } finally {
+                contents.close();
+            }
+            progress.digested(partDigest);
+        }
+    }
+
+    // Checks the parts received in as the document, which they must all be part of, from part 1 up without gaps.
+    // The session is gone afterwards
+    public void commitUpload(String sessionId)
+            throws SQLException,
+            IOException,
+            NoQueryResultsException,
+            UserLacksPermissionException,
+            InvalidUploadException,
+            DocumentIntegrityVerificationException,
+            DocumentConflictException {
+
+        UploadSession session = getOwnSession(sessionId);
+        List<UploadPart> parts = uploadSessionDao.getParts(sessionId);
+
+        long contentCrc32 = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            UploadPart part = parts.get(i);
+            if (part.getPartNumber() != i + 1) {
+                throw new InvalidUploadException(String.format(
+                        "Part %d of upload \"%s\" was never received", i + 1, sessionId));
+            }
+            if (part.getContentCoding() != parts.get(0).getContentCoding()) {
+                // only if the server restarted while the first parts were being received. Start over
+                throw new InvalidUploadException(String.format(
+                        "The parts of upload \"%s\" were stored with different codings", sessionId));
+            }
+            contentCrc32 = DeflateChunkCodec.combineCrc32(contentCrc32, part.getPartCrc32(), part.getPartLength());
+        }
+
+        Optional<byte[]> verifiedContentDigest = Optional.empty();
+        if (session.hasSecurityFlag(SecurityFlag.INTEGRITY)) {
+            verifiedContentDigest = Optional.of(verifyDigest(session, parts));
+        }
+
+        LOG.info("User \"{}\" committing upload \"{}\"", currentUser.getUserName(), sessionId);
+        documentService.checkInUpload(session, parts, contentCrc32, verifiedContentDigest);
+        uploadProgress.forget(sessionId);
+    }
+
+    // finishes digesting the parts, and checks the digest against the session's signature
+    private byte[] verifyDigest(UploadSession session, List<UploadPart> parts)
+            throws SQLException, IOException, NoQueryResultsException, DocumentIntegrityVerificationException {
+
+        SessionProgress progress = uploadProgress.get(session.getSessionId());
+        byte[] contentDigest;
+        progress.lockDigest();
+        try {
+            digestReceivedParts(session, progress);
+            if (progress.getDigestedParts() != parts.size()) {
+                throw new IOException(String.format("Only %d of the %d parts of upload \"%s\" were digested",
+                        progress.getDigestedParts(), parts.size(), session.getSessionId()));
+            }
+            contentDigest = progress.copyDigest(encryptionService.beginContentDigest()).digest();
+        } finally {
+            progress.unlockDigest();
+        }
+
+        PublicKey uploaderPublicKey = publicKeyCache.get(session.getUserName(), documentDao::getUserPubKeySpec);
+        if (!encryptionService.verifySignedDigest(uploaderPublicKey, contentDigest, session.getSignature().get())) {
+            LOG.info("Upload \"{}\" does not match its signature. Rejecting the commit", session.getSessionId());
+            throw new DocumentIntegrityVerificationException();
+        }
+
+        LOG.info("Signature of upload \"{}\" verified", session.getSessionId());
+        return contentDigest;
+    }
+
+    // discards the session and the parts received so far
+    public void abortUpload(String sessionId)
+            throws SQLException, NoQueryResultsException, UserLacksPermissionException {
+
+        getOwnSession(sessionId);
+
+        LOG.info("User \"{}\" aborting upload \"{}\"", currentUser.getUserName(), sessionId);
+        Transaction transaction = uploadSessionDao.beginTransaction();
+        try {
+            documentContentDao.releaseUpload(sessionId);
+            uploadSessionDao.deleteSession(sessionId);
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+        uploadProgress.forget(sessionId);
+    }
+
+    // fails the read once more than `maxLength` bytes were read, so that nothing of a part that is too long is kept
+    private static class PartLengthLimit extends FilterInputStream {
+
+        private final long maxLength;
+        private long length = 0;
+        private boolean exceeded = false;
+
+        PartLengthLimit(InputStream in, long maxLength) {
+            super(in);
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                this.length += read;
+                if (this.length > maxLength) {
+                    exceeded = true;
+                    throw new IOException("The part is longer than " + maxLength + " bytes");
+                }
+            }
+            return read;
+        }
+
+        boolean isExceeded() {
+            return exceeded;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.cs6238.project2.s2dr.server.app.crypto;
+
+import com.google.common.io.ByteStreams;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Decrypts a `ChunkedGcmFormat` document as it is read, a window of chunks at a time (see
+// `ParallelCryptoEngine`). `storedChunks` must be positioned at the start of chunk `firstChunkIndex` (i.e. past
+// the header, and past any chunks that should be skipped).
+public class ChunkedGcmDecryptingInputStream extends InputStream {
+
+    private final InputStream storedChunks;
+    private final SecretKey key;
+    private final ChunkedGcmFormat.Header header;
+    private final ParallelCryptoEngine engine;
+
+    private final Deque<byte[]> pending = new ArrayDeque<>();
+    private int pendingPosition = 0;
+
+    private long chunkIndex;
+    private boolean lastChunkRead = false;
+    private int lookahead = -1;
+
+    public ChunkedGcmDecryptingInputStream(
+            InputStream storedChunks,
+            SecretKey key,
+            ChunkedGcmFormat.Header header,
+            long firstChunkIndex,
+            ParallelCryptoEngine engine) {
+
+        this.storedChunks = storedChunks;
+        this.key = key;
+        this.header = header;
+        this.engine = engine;
+        this.chunkIndex = firstChunkIndex;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        if (!fillPending()) {
+            return -1;
+        }
+
+        byte[] chunk = pending.peek();
+        int count = Math.min(length, chunk.length - pendingPosition);
+        System.arraycopy(chunk, pendingPosition, buffer, offset, count);
+        advance(count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipping still has to authenticate every chunk it passes over, so just read through them
+        long skipped = 0;
+        while (skipped < n && fillPending()) {
+            int count = (int) Math.min(n - skipped, pending.peek().length - pendingPosition);
+            advance(count);
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        storedChunks.close();
+    }
+
+    // returns false once every chunk has been read
+    private boolean fillPending() throws IOException {
+        while (pending.isEmpty()) {
+            if (lastChunkRead) {
+                return false;
+            }
+            decryptNextWindow();
+        }
+        return true;
+    }
+
+    private void advance(int count) {
+        pendingPosition += count;
+        if (pendingPosition == pending.peek().length) {
+            pending.remove();
+            pendingPosition = 0;
+        }
+    }
+
+    private void decryptNextWindow() throws IOException {
+        List<ChunkedGcmFormat.Chunk> window = new ArrayList<>(engine.getWindowChunks());
+        while (window.size() < engine.getWindowChunks() && !lastChunkRead) {
+            window.add(readNextChunk());
+        }
+
+        for (byte[] plaintext: engine.decryptChunks(key, header, window)) {
+            // the last chunk may legitimately be empty
+            if (plaintext.length > 0) {
+                pending.add(plaintext);
+            }
+        }
+    }
+
+    private ChunkedGcmFormat.Chunk readNextChunk() throws IOException {
+        byte[] storedChunk = new byte[header.getStoredChunkSize()];
+
+        int filled = 0;
+        if (lookahead != -1) {
+            storedChunk[filled++] = (byte) lookahead;
+            lookahead = -1;
+        }
+        filled += ByteStreams.read(storedChunks, storedChunk, filled, storedChunk.length - filled);
+
+        boolean lastChunk = filled < storedChunk.length;
+        if (!lastChunk) {
+            lookahead = storedChunks.read();
+            lastChunk = lookahead == -1;
+        }
+
+        if (filled < ChunkedGcmFormat.TAG_SIZE) {
+            throw new IOException(String.format("Chunk %d of the document is truncated", chunkIndex));
+        }
+
+        lastChunkRead = lastChunk;
+        return new ChunkedGcmFormat.Chunk(chunkIndex++, lastChunk, storedChunk, filled);
+    }
+}
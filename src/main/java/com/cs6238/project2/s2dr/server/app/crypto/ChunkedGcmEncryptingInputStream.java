@@ -0,0 +1,110 @@
+package com.cs6238.project2.s2dr.server.app.crypto;
+
+import com.google.common.io.ByteStreams;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Produces a `ChunkedGcmFormat` document from a plaintext stream as it is read. Chunks are read a window at a
+// time and handed to the `ParallelCryptoEngine` together, so a large document is encrypted on several cores.
+public class ChunkedGcmEncryptingInputStream extends InputStream {
+
+    private final InputStream plaintext;
+    private final SecretKey key;
+    private final ChunkedGcmFormat.Header header;
+    private final ParallelCryptoEngine engine;
+
+    // the encrypted chunks that haven't been handed to the reader yet. Starts out as the header
+    private final Deque<byte[]> pending = new ArrayDeque<>();
+    private int pendingPosition = 0;
+
+    private long chunkIndex = 0;
+    private boolean lastChunkWritten = false;
+
+    // we only know a full chunk is the last one once we've tried to read past it
+    private int lookahead = -1;
+
+    public ChunkedGcmEncryptingInputStream(
+            InputStream plaintext,
+            SecretKey key,
+            ChunkedGcmFormat.Header header,
+            ParallelCryptoEngine engine) {
+
+        this.plaintext = plaintext;
+        this.key = key;
+        this.header = header;
+        this.engine = engine;
+        this.pending.add(header.toBytes());
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (pending.isEmpty()) {
+            if (lastChunkWritten) {
+                return -1;
+            }
+            encryptNextWindow();
+        }
+
+        byte[] chunk = pending.peek();
+        int count = Math.min(length, chunk.length - pendingPosition);
+        System.arraycopy(chunk, pendingPosition, buffer, offset, count);
+        pendingPosition += count;
+        if (pendingPosition == chunk.length) {
+            pending.remove();
+            pendingPosition = 0;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        plaintext.close();
+    }
+
+    private void encryptNextWindow() throws IOException {
+        List<ChunkedGcmFormat.Chunk> window = new ArrayList<>(engine.getWindowChunks());
+        while (window.size() < engine.getWindowChunks() && !lastChunkWritten) {
+            window.add(readNextChunk());
+        }
+
+        pending.addAll(engine.encryptChunks(key, header, window));
+    }
+
+    private ChunkedGcmFormat.Chunk readNextChunk() throws IOException {
+        // every chunk gets its own buffer, since the whole window may be encrypted at the same time
+        byte[] plaintextChunk = new byte[header.getChunkSize()];
+
+        int filled = 0;
+        if (lookahead != -1) {
+            plaintextChunk[filled++] = (byte) lookahead;
+            lookahead = -1;
+        }
+        filled += ByteStreams.read(plaintext, plaintextChunk, filled, plaintextChunk.length - filled);
+
+        boolean lastChunk = filled < plaintextChunk.length;
+        if (!lastChunk) {
+            lookahead = plaintext.read();
+            lastChunk = lookahead == -1;
+        }
+
+        lastChunkWritten = lastChunk;
+        return new ChunkedGcmFormat.Chunk(chunkIndex++, lastChunk, plaintextChunk, filled);
+    }
+}
@@ -0,0 +1,195 @@
+package com.cs6238.project2.s2dr.server.app.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// The on-disk layout of a CONFIDENTIALITY document:
+//
+//      | magic "S2DRGCM1" (8) | chunk size (4) | nonce prefix (4) | chunk 0 | chunk 1 | ... | chunk n-1 |
+//
+// Every chunk holds `chunkSize` bytes of plaintext (only the last one may be shorter, or even empty) encrypted
+// with AES-GCM, followed by its 16 byte tag. The nonce of chunk i is `nonce prefix || i`, and the header, i and
+// whether the chunk is the last one are authenticated as associated data, so chunks can't be reordered, moved
+// between documents or cut off the end without failing decryption.
+//
+// Because all chunks but the last are the same size, the position of any chunk follows from its index and no
+// separate index has to be stored. That is what lets any byte range, or any set of chunks in parallel, be
+// decrypted on its own (see `ParallelCryptoEngine`).
+public final class ChunkedGcmFormat {
+
+    public static final int HEADER_SIZE = 16;
+    public static final int TAG_SIZE = 16;
+    public static final int NONCE_PREFIX_SIZE = 4;
+
+    // the largest chunk size documents are encrypted with (and so the largest a header can have), which keeps a
+    // chunk and its tag within an int, and the buffers chunks are decrypted into a sensible size
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] MAGIC = "S2DRGCM1".getBytes(StandardCharsets.US_ASCII);
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_SIZE = 12;
+
+    private ChunkedGcmFormat() {}
+
+    public static class Header {
+
+        private final int chunkSize;
+        private final byte[] noncePrefix;
+
+        public Header(int chunkSize, byte[] noncePrefix) {
+            checkArgument(chunkSize > 0 && chunkSize <= MAX_CHUNK_SIZE,
+                    "chunkSize must be between 1 and %s", MAX_CHUNK_SIZE);
+            checkArgument(noncePrefix.length == NONCE_PREFIX_SIZE, "nonce prefix must be 4 bytes");
+
+            this.chunkSize = chunkSize;
+            this.noncePrefix = noncePrefix.clone();
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        // size of a full chunk as it is stored, i.e. including its tag
+        public int getStoredChunkSize() {
+            return chunkSize + TAG_SIZE;
+        }
+
+        public byte[] toBytes() {
+            return ByteBuffer.allocate(HEADER_SIZE)
+                    .put(MAGIC)
+                    .putInt(chunkSize)
+                    .put(noncePrefix)
+                    .array();
+        }
+
+        // returns empty if `bytes` doesn't start with the chunked format's magic, which means the document was
+        // stored as a single AES/CBC blob before this format existed (and `bytes` is actually its IV). A chunk size
+        // no document is encrypted with means the header was tampered with, which would fail authentication anyway
+        public static Optional<Header> parse(byte[] bytes) throws IOException {
+            if (bytes.length < HEADER_SIZE || !Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length))) {
+                return Optional.empty();
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, MAGIC.length, HEADER_SIZE - MAGIC.length);
+            int chunkSize = buffer.getInt();
+            byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+            buffer.get(noncePrefix);
+
+            if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+                throw new IOException("The header of the document failed authentication");
+            }
+            return Optional.of(new Header(chunkSize, noncePrefix));
+        }
+    }
+
+    // a single chunk waiting to be encrypted or decrypted: `data[0, length)` is its plaintext or stored form
+    public static class Chunk {
+
+        private final long index;
+        private final boolean last;
+        private final byte[] data;
+        private final int length;
+
+        public Chunk(long index, boolean last, byte[] data, int length) {
+            this.index = index;
+            this.last = last;
+            this.data = data;
+            this.length = length;
+        }
+
+        public long getIndex() {
+            return index;
+        }
+
+        public boolean isLast() {
+            return last;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    public static Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance(TRANSFORMATION);
+    }
+
+    // encrypts a single chunk. `plaintext[offset, offset + length)` becomes `length + TAG_SIZE` bytes
+    public static byte[] encryptChunk(
+            Cipher cipher,
+            SecretKey key,
+            Header header,
+            long chunkIndex,
+            boolean lastChunk,
+            byte[] plaintext,
+            int offset,
+            int length) throws GeneralSecurityException {
+
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce(header, chunkIndex)));
+        cipher.updateAAD(associatedData(header, chunkIndex, lastChunk));
+        return cipher.doFinal(plaintext, offset, length);
+    }
+
+    public static byte[] decryptChunk(
+            Cipher cipher,
+            SecretKey key,
+            Header header,
+            long chunkIndex,
+            boolean lastChunk,
+            byte[] storedChunk,
+            int offset,
+            int length) throws GeneralSecurityException, IOException {
+
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce(header, chunkIndex)));
+        cipher.updateAAD(associatedData(header, chunkIndex, lastChunk));
+        try {
+            return cipher.doFinal(storedChunk, offset, length);
+        } catch (AEADBadTagException e) {
+            throw new IOException(String.format("Chunk %d of the document failed authentication", chunkIndex), e);
+        }
+    }
+
+    // the number of chunks a document of `storedLength` bytes (header included) is made of
+    public static long chunkCount(Header header, long storedLength) {
+        long chunkBytes = storedLength - HEADER_SIZE;
+        return (chunkBytes + header.getStoredChunkSize() - 1) / header.getStoredChunkSize();
+    }
+
+    public static long plaintextLength(Header header, long storedLength) {
+        return storedLength - HEADER_SIZE - chunkCount(header, storedLength) * TAG_SIZE;
+    }
+
+    // where chunk `chunkIndex` starts, counted from the end of the header
+    public static long storedChunkOffset(Header header, long chunkIndex) {
+        return chunkIndex * header.getStoredChunkSize();
+    }
+
+    private static byte[] nonce(Header header, long chunkIndex) {
+        return ByteBuffer.allocate(NONCE_SIZE)
+                .put(header.noncePrefix)
+                .putLong(chunkIndex)
+                .array();
+    }
+
+    private static byte[] associatedData(Header header, long chunkIndex, boolean lastChunk) {
+        return ByteBuffer.allocate(HEADER_SIZE + Long.BYTES + 1)
+                .put(header.toBytes())
+                .putLong(chunkIndex)
+                .put((byte) (lastChunk ? 1 : 0))
+                .array();
+    }
+}
@@ -0,0 +1,179 @@
+package com.cs6238.project2.s2dr.server.app.crypto;
+
+import com.cs6238.project2.s2dr.server.app.storage.ChunkCodec;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+// Encrypts the chunks of CONFIDENTIALITY documents so that they can still be deduplicated, but only among the
+// documents of the same uploader.
+//
+// A chunk is encrypted with AES-GCM under a key derived from the chunk itself (convergent encryption): the
+// HMAC of the uploader's name and the chunk's SHA-256, keyed with a secret only the server has. Equal chunks
+// checked in by the same uploader therefore encrypt to the same stored chunk, while the same chunk checked in by
+// anyone else encrypts to an unrelated one, so nobody can find out whether another user has stored a given
+// chunk. Since a key only ever encrypts the one chunk it was derived from, the fixed nonce is never reused for
+// different plaintexts.
+//
+// Chunks are stored under an HMAC of the same inputs rather than under their ciphertext's hash, so a chunk that is
+// already stored is recognized without encrypting it again. The chunk keys are wrapped with the document's own
+// AES key, which is wrapped with the server's RSA key like the key of any other encrypted document, and kept in
+// the document's manifest.
+//
+// Hashing and encrypting the chunks of a check-in is most of what it costs, so batches of chunks are described
+// and encoded on the `ParallelCryptoEngine`.
+public class ConvergentChunkCodec implements ChunkCodec {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String AES_ALGORITHM = "AES";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int CHUNK_KEY_SIZE = 16;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_BITS = 128;
+
+    private static final byte[] KEY_LABEL = "s2dr chunk key".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HASH_LABEL = "s2dr chunk hash".getBytes(StandardCharsets.US_ASCII);
+
+    private final SecretKey convergenceSecret;
+    private final byte[] uploaderName;
+    private final SecretKey documentKey;
+    private final ParallelCryptoEngine cryptoEngine;
+
+    // `convergenceSecret` is the server's secret HMAC key, `documentKey` the document's unwrapped AES key
+    public ConvergentChunkCodec(
+            byte[] convergenceSecret,
+            String uploaderName,
+            SecretKey documentKey,
+            ParallelCryptoEngine cryptoEngine) {
+
+        this.convergenceSecret = new SecretKeySpec(convergenceSecret, HMAC_ALGORITHM);
+        this.uploaderName = uploaderName.getBytes(StandardCharsets.UTF_8);
+        this.documentKey = documentKey;
+        this.cryptoEngine = cryptoEngine;
+    }
+
+    @Override
+    public ChunkDescriptor describe(byte[] chunk, int chunkIndex) {
+        Mac mac = newMac();
+        byte[] contentHash = sha256(chunk);
+        byte[] chunkHash = derive(mac, HASH_LABEL, contentHash);
+        byte[] chunkKey = Arrays.copyOf(derive(mac, KEY_LABEL, contentHash), CHUNK_KEY_SIZE);
+
+        try {
+            // the document key encrypts one chunk key per chunk index, so the index is a unique nonce for it
+            byte[] wrappedKey = crypt(Cipher.ENCRYPT_MODE, documentKey, indexNonce(chunkIndex), chunkHash, chunkKey);
+            return new ChunkDescriptor(chunkHash, Optional.of(wrappedKey));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to wrap chunk key", e);
+        } finally {
+            Arrays.fill(chunkKey, (byte) 0);
+        }
+    }
+
+    @Override
+    public byte[] encode(ChunkDescriptor descriptor, byte[] chunk) {
+        byte[] chunkKey = Arrays.copyOf(derive(newMac(), KEY_LABEL, sha256(chunk)), CHUNK_KEY_SIZE);
+        try {
+            return crypt(Cipher.ENCRYPT_MODE, new SecretKeySpec(chunkKey, AES_ALGORITHM),
+                    new byte[NONCE_SIZE], descriptor.getChunkHash(), chunk);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to encrypt chunk", e);
+        } finally {
+            Arrays.fill(chunkKey, (byte) 0);
+        }
+    }
+
+    @Override
+    public byte[] decode(ChunkDescriptor descriptor, int chunkIndex, byte[] storedChunk) throws IOException {
+        byte[] chunkHash = descriptor.getChunkHash();
+        byte[] chunkKey = null;
+        try {
+            chunkKey = crypt(Cipher.DECRYPT_MODE, documentKey, indexNonce(chunkIndex), chunkHash,
+                    descriptor.getWrappedKey().orElseThrow(() -> new IOException("Chunk key is missing")));
+            return crypt(Cipher.DECRYPT_MODE, new SecretKeySpec(chunkKey, AES_ALGORITHM),
+                    new byte[NONCE_SIZE], chunkHash, storedChunk);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Chunk " + chunkIndex + " failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt chunk " + chunkIndex, e);
+        } finally {
+            if (chunkKey != null) {
+                Arrays.fill(chunkKey, (byte) 0);
+            }
+        }
+    }
+
+    @Override
+    public List<ChunkDescriptor> describeAll(List<byte[]> chunks, int firstChunkIndex) throws IOException {
+        return cryptoEngine.process(positions(chunks), i -> chunks.get(i).length,
+                i -> describe(chunks.get(i), firstChunkIndex + i));
+    }
+
+    @Override
+    public List<byte[]> encodeAll(List<ChunkDescriptor> descriptors, List<byte[]> chunks) throws IOException {
+        return cryptoEngine.process(positions(chunks), i -> chunks.get(i).length,
+                i -> encode(descriptors.get(i), chunks.get(i)));
+    }
+
+    private static List<Integer> positions(List<byte[]> chunks) {
+        List<Integer> positions = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            positions.add(i);
+        }
+        return positions;
+    }
+
+    // `Mac` isn't thread safe, and chunks are described on several threads at once
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(convergenceSecret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to set up convergent chunk encryption", e);
+        }
+    }
+
+    private byte[] derive(Mac mac, byte[] label, byte[] contentHash) {
+        mac.update(label);
+        mac.update((byte) 0);
+        mac.update(uploaderName);
+        mac.update((byte) 0);
+        return mac.doFinal(contentHash);
+    }
+
+    private static byte[] indexNonce(int chunkIndex) {
+        return ByteBuffer.allocate(NONCE_SIZE).putInt(NONCE_SIZE - Integer.BYTES, chunkIndex).array();
+    }
+
+    private static byte[] crypt(int mode, SecretKey key, byte[] nonce, byte[] associatedData, byte[] input)
+            throws GeneralSecurityException {
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(input);
+    }
+
+    private static byte[] sha256(byte[] chunk) {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM).digest(chunk);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is always available", e);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.cs6238.project2.s2dr.server.app.crypto;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+// Keeps the AES keys of recently checked-out CONFIDENTIALITY documents, so that checking out a hot document
+// doesn't need an RSA private key operation every time just to unwrap the same key again.
+//
+// Entries are keyed by the document name *and* a fingerprint of the wrapped key as it is stored, so an entry
+// can never be used for a different version of the document, even if an invalidation were missed. Keys are
+// zeroed as soon as they leave the cache, whether evicted, expired or invalidated.
+public class DataKeyCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DataKeyCache.class);
+
+    private static final String PROPERTY_PREFIX = "s2dr.crypto.keyCache.";
+
+    private final Cache<CacheKey, CachedKey> keys;
+
+    public DataKeyCache(long maximumSize, long expireAfterAccessSeconds) {
+        checkArgument(maximumSize >= 0, "maximumSize must not be negative");
+        checkArgument(expireAfterAccessSeconds > 0, "expireAfterAccessSeconds must be positive");
+
+        this.keys = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccessSeconds, TimeUnit.SECONDS)
+                .removalListener((RemovalListener<CacheKey, CachedKey>) removal -> removal.getValue().destroy())
+                .recordStats()
+                .build();
+    }
+
+    // `-Ds2dr.crypto.keyCache.maximumSize` and `-Ds2dr.crypto.keyCache.expireAfterAccessSeconds`.
+    // A maximum size of 0 disables the cache
+    public static DataKeyCache fromSystemProperties() {
+        long maximumSize = Long.getLong(PROPERTY_PREFIX + "maximumSize", 1000);
+        long expireAfterAccessSeconds = Long.getLong(PROPERTY_PREFIX + "expireAfterAccessSeconds", 300);
+
+        LOG.info("Creating data key cache holding at most {} keys for {} seconds after their last use",
+                maximumSize, expireAfterAccessSeconds);
+
+        return new DataKeyCache(maximumSize, expireAfterAccessSeconds);
+    }
+
+    public Optional<SecretKey> get(String documentName, byte[] wrappedKey) {
+        CachedKey cached = keys.getIfPresent(new CacheKey(documentName, wrappedKey));
+        if (cached == null) {
+            return Optional.empty();
+        }
+
+        // the entry may have been evicted (and zeroed) between the lookup and now, which is just another miss
+        return cached.toSecretKey();
+    }
+
+    public void put(String documentName, byte[] wrappedKey, SecretKey key) {
+        keys.put(new CacheKey(documentName, wrappedKey), new CachedKey(key.getEncoded(), key.getAlgorithm()));
+    }
+
+    // drops every key cached for the document, whatever version of it they belong to
+    public void invalidate(String documentName) {
+        keys.asMap().keySet().removeIf(cacheKey -> cacheKey.documentName.equals(documentName));
+    }
+
+    public void invalidateAll() {
+        keys.invalidateAll();
+    }
+
+    // hit and miss counts since the server started
+    public CacheStats getStats() {
+        return keys.stats();
+    }
+
+    public long size() {
+        return keys.size();
+    }
+
+    private static class CacheKey {
+
+        private final String documentName;
+        private final HashCode wrappedKeyFingerprint;
+
+        CacheKey(String documentName, byte[] wrappedKey) {
+            this.documentName = requireNonNull(documentName);
+            this.wrappedKeyFingerprint = Hashing.sha256().hashBytes(wrappedKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return EqualsBuilder.reflectionEquals(this, o);
+        }
+
+        @Override
+        public int hashCode() {
+            return HashCodeBuilder.reflectionHashCode(this);
+        }
+    }
+
+    // `SecretKeySpec` copies its bytes and can't be destroyed, so the cache keeps the raw bytes itself and only
+    // hands out copies of them
+    private static class CachedKey {
+
+        private final byte[] encoded;
+        private final String algorithm;
+        private boolean destroyed = false;
+
+        CachedKey(byte[] encoded, String algorithm) {
+            this.encoded = encoded;
+            this.algorithm = algorithm;
+        }
+
+        synchronized Optional<SecretKey> toSecretKey() {
+            if (destroyed) {
+                return Optional.empty();
+            }
+            return Optional.of(new SecretKeySpec(encoded, algorithm));
+        }
+
+        synchronized void destroy() {
+            Arrays.fill(encoded, (byte) 0);
+            destroyed = true;
+        }
+    }
+}
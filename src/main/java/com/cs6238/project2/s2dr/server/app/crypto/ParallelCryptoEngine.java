@@ -0,0 +1,136 @@
+package com.cs6238.project2.s2dr.server.app.crypto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.ToIntFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Encrypts and decrypts windows of `ChunkedGcmFormat` chunks (and batches of convergently encrypted chunks, see
+// `ConvergentChunkCodec`). Since every chunk is independent, a window that is large enough is spread over a
+// ForkJoin pool shared by all requests. Small windows (which is all a small document ever has) are handled on the
+// calling thread, where handing the work off would cost more than it saves.
+public class ParallelCryptoEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelCryptoEngine.class);
+
+    private static final String PROPERTY_PREFIX = "s2dr.crypto.";
+
+    private final ForkJoinPool pool;
+    private final int windowChunks;
+    private final long parallelThresholdBytes;
+
+    // `Cipher` isn't thread safe, so every thread (pool worker or request thread) keeps its own
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return ChunkedGcmFormat.newCipher();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    });
+
+    public ParallelCryptoEngine(int parallelism, int windowChunks, long parallelThresholdBytes) {
+        checkArgument(parallelism > 0, "parallelism must be positive");
+        checkArgument(windowChunks > 0, "windowChunks must be positive");
+
+        this.pool = new ForkJoinPool(parallelism);
+        this.windowChunks = windowChunks;
+        this.parallelThresholdBytes = parallelThresholdBytes;
+    }
+
+    // `-Ds2dr.crypto.parallelism`, `-Ds2dr.crypto.windowChunks` and `-Ds2dr.crypto.parallelThresholdBytes`
+    public static ParallelCryptoEngine fromSystemProperties() {
+        int parallelism = Integer.getInteger(
+                PROPERTY_PREFIX + "parallelism", Runtime.getRuntime().availableProcessors());
+        int windowChunks = Integer.getInteger(PROPERTY_PREFIX + "windowChunks", parallelism * 2);
+        long parallelThresholdBytes = Long.getLong(PROPERTY_PREFIX + "parallelThresholdBytes", 512 * 1024);
+
+        LOG.info("Creating crypto engine with parallelism {}, windows of {} chunks and a parallel threshold of {} bytes",
+                parallelism, windowChunks, parallelThresholdBytes);
+
+        return new ParallelCryptoEngine(parallelism, windowChunks, parallelThresholdBytes);
+    }
+
+    // how many chunks the streams should collect before handing them to the engine. This bounds the memory
+    // a single request can use to `windowChunks` chunks, whatever the size of the document
+    public int getWindowChunks() {
+        return windowChunks;
+    }
+
+    // returns the stored form (ciphertext + tag) of every chunk, in the same order
+    public List<byte[]> encryptChunks(SecretKey key, ChunkedGcmFormat.Header header, List<ChunkedGcmFormat.Chunk> chunks)
+            throws IOException {
+
+        return process(chunks, ChunkedGcmFormat.Chunk::getLength, chunk -> ChunkedGcmFormat.encryptChunk(
+                ciphers.get(), key, header, chunk.getIndex(), chunk.isLast(), chunk.getData(), 0, chunk.getLength()));
+    }
+
+    // returns the plaintext of every chunk, in the same order
+    public List<byte[]> decryptChunks(SecretKey key, ChunkedGcmFormat.Header header, List<ChunkedGcmFormat.Chunk> chunks)
+            throws IOException {
+
+        return process(chunks, ChunkedGcmFormat.Chunk::getLength, chunk -> ChunkedGcmFormat.decryptChunk(
+                ciphers.get(), key, header, chunk.getIndex(), chunk.isLast(), chunk.getData(), 0, chunk.getLength()));
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    interface ChunkOperation<C, R> {
+        R apply(C chunk) throws GeneralSecurityException, IOException;
+    }
+
+    // returns what `operation` made of every chunk, in the same order. The window is only spread over the pool if
+    // the `chunkLength`s of its chunks add up to the parallel threshold
+    <C, R> List<R> process(List<C> chunks, ToIntFunction<C> chunkLength, ChunkOperation<C, R> operation)
+            throws IOException {
+
+        long windowBytes = 0;
+        for (C chunk: chunks) {
+            windowBytes += chunkLength.applyAsInt(chunk);
+        }
+
+        List<R> results = new ArrayList<>(chunks.size());
+        try {
+            if (chunks.size() < 2 || windowBytes < parallelThresholdBytes) {
+                for (C chunk: chunks) {
+                    results.add(operation.apply(chunk));
+                }
+                return results;
+            }
+
+            List<Callable<R>> tasks = new ArrayList<>(chunks.size());
+            for (C chunk: chunks) {
+                tasks.add(() -> operation.apply(chunk));
+            }
+
+            // `invokeAll` waits for every task, and hands the futures back in submission order
+            for (Future<R> result: pool.invokeAll(tasks)) {
+                results.add(result.get());
+            }
+            return results;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to process document chunk", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing document chunks", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to process document chunk", e.getCause());
+        }
+    }
+}
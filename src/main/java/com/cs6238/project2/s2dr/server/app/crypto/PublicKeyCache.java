@@ -0,0 +1,82 @@
+package com.cs6238.project2.s2dr.server.app.crypto;
+
+import com.cs6238.project2.s2dr.server.app.exceptions.NoQueryResultsException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.sql.SQLException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Keeps every user's public key ready to verify signatures with, so that an INTEGRITY check-out neither
+// queries the Users table nor rebuilds the key from its modulus and exponent. Keys are added when users log
+// in and loaded on a miss; the least recently used ones are evicted once the cache is full.
+public class PublicKeyCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PublicKeyCache.class);
+
+    private static final String RSA_ALGORITHM = "RSA";
+    private static final String PROPERTY_PREFIX = "s2dr.crypto.publicKeyCache.";
+
+    // how a missing key is fetched, usually `DocumentDao::getUserPubKeySpec`
+    public interface KeySpecLoader {
+        RSAPublicKeySpec load(String userName) throws SQLException, NoQueryResultsException;
+    }
+
+    private final Cache<String, PublicKey> keys;
+
+    public PublicKeyCache(long maximumSize) {
+        checkArgument(maximumSize >= 0, "maximumSize must not be negative");
+
+        this.keys = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    // `-Ds2dr.crypto.publicKeyCache.maximumSize`. A maximum size of 0 disables the cache
+    public static PublicKeyCache fromSystemProperties() {
+        long maximumSize = Long.getLong(PROPERTY_PREFIX + "maximumSize", 1000);
+
+        LOG.info("Creating public key cache holding at most {} keys", maximumSize);
+
+        return new PublicKeyCache(maximumSize);
+    }
+
+    public PublicKey get(String userName, KeySpecLoader loader) throws SQLException, NoQueryResultsException {
+        PublicKey publicKey = keys.getIfPresent(userName);
+        if (publicKey != null) {
+            return publicKey;
+        }
+
+        // two requests missing at the same time will both load the key, which is harmless
+        LOG.info("Public key of \"{}\" is not cached. Loading it", userName);
+        publicKey = toPublicKey(loader.load(userName));
+        keys.put(userName, publicKey);
+        return publicKey;
+    }
+
+    public void put(String userName, PublicKey publicKey) {
+        keys.put(userName, publicKey);
+    }
+
+    public CacheStats getStats() {
+        return keys.stats();
+    }
+
+    private static PublicKey toPublicKey(RSAPublicKeySpec publicKeySpec) {
+        try {
+            return KeyFactory.getInstance(RSA_ALGORITHM).generatePublic(publicKeySpec);
+        } catch (GeneralSecurityException e) {
+            LOG.error("Error building public key", e);
+            throw new RuntimeException("Internal Server Error");
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.cs6238.project2.s2dr.server.app.crypto;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Optional;
+
+// Checks a document against its signature while it is being checked in, and computes the SHA-256 that later
+// check-outs compare against instead of verifying the signature again. Once the end of the document is read,
+// a signature that doesn't match makes the read fail, so whatever is consuming the stream (i.e. the database
+// insert) fails with it and the document is never stored.
+public class SignatureVerifyingInputStream extends FilterInputStream {
+
+    private final Signature verifier;
+    private final byte[] expectedSignature;
+    private final MessageDigest digest;
+
+    private boolean verified = false;
+    private boolean signatureMismatch = false;
+    private byte[] contentDigest;
+
+    // `verifier` must already be initialized with the uploader's public key
+    public SignatureVerifyingInputStream(
+            InputStream document,
+            Signature verifier,
+            byte[] expectedSignature,
+            MessageDigest digest) {
+
+        super(document);
+        this.verifier = verifier;
+        this.expectedSignature = expectedSignature.clone();
+        this.digest = digest;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        if (read == -1) {
+            verifyOnce();
+            return -1;
+        }
+
+        try {
+            verifier.update(buffer, offset, read);
+        } catch (SignatureException e) {
+            throw new IOException("Unable to verify the document's signature", e);
+        }
+        digest.update(buffer, offset, read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // every byte has to go through the signature, so nothing can be skipped over unread
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    // true if the whole document was read and it didn't match the signature
+    public boolean isSignatureMismatch() {
+        return signatureMismatch;
+    }
+
+    // the SHA-256 of everything that was read. Only present once the whole document has been read and matched
+    // its signature
+    public Optional<byte[]> getContentDigest() {
+        return verified ? Optional.of(contentDigest.clone()) : Optional.empty();
+    }
+
+    private void verifyOnce() throws IOException {
+        if (verified) {
+            return;
+        }
+        if (signatureMismatch) {
+            throw new IOException("The document does not match its signature");
+        }
+
+        try {
+            if (!verifier.verify(expectedSignature)) {
+                signatureMismatch = true;
+                throw new IOException("The document does not match its signature");
+            }
+        } catch (SignatureException e) {
+            // a malformed signature can't match either
+            signatureMismatch = true;
+            throw new IOException("The document does not match its signature", e);
+        }
+
+        verified = true;
+        contentDigest = digest.digest();
+    }
+}
@@ -0,0 +1,80 @@
+package com.cs6238.project2.s2dr.server.app.delta;
+
+import com.cs6238.project2.s2dr.server.app.objects.BlockSignatures.BlockSignature;
+import com.google.common.io.BaseEncoding;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Computes the signature of every `blockSize` bytes written to it (the last block may be shorter): its rolling
+// checksum and the first `STRONG_HASH_BYTES` of its SHA-256. Nothing written is kept apart from the block being
+// signed, so a document of any size can be streamed through it.
+public class BlockSignatureOutputStream extends OutputStream {
+
+    // like rsync, only enough of the strong hash to tell blocks with the same weak checksum apart
+    public static final int STRONG_HASH_BYTES = 16;
+
+    private final byte[] block;
+    private final MessageDigest digest;
+    private final List<BlockSignature> signatures = new ArrayList<>();
+
+    private int blockLength = 0;
+
+    public BlockSignatureOutputStream(int blockSize) {
+        checkArgument(blockSize > 0, "blockSize must be positive");
+        this.block = new byte[blockSize];
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            int copied = Math.min(length, block.length - blockLength);
+            System.arraycopy(buffer, offset, block, blockLength, copied);
+            blockLength += copied;
+            offset += copied;
+            length -= copied;
+
+            if (blockLength == block.length) {
+                signBlock();
+            }
+        }
+    }
+
+    private void signBlock() {
+        digest.update(block, 0, blockLength);
+        byte[] strongHash = digest.digest();
+
+        signatures.add(new BlockSignature(
+                RollingChecksum.of(block, 0, blockLength),
+                BaseEncoding.base16().lowerCase().encode(strongHash, 0, STRONG_HASH_BYTES)));
+        blockLength = 0;
+    }
+
+    // signs the last, shorter block, if there is one
+    @Override
+    public void close() {
+        if (blockLength > 0) {
+            signBlock();
+        }
+    }
+
+    public List<BlockSignature> getSignatures() {
+        return signatures;
+    }
+}
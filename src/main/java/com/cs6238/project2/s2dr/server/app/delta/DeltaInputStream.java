@@ -0,0 +1,158 @@
+package com.cs6238.project2.s2dr.server.app.delta;
+
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao.ChunkedContents;
+import com.cs6238.project2.s2dr.server.app.exceptions.InvalidDeltaException;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads the new contents of a document out of a delta against its current contents (the basis), without holding
+// more than one decoded chunk of the basis in memory. A delta is written by a client that has the basis's block
+// signatures (see `BlockSignatureOutputStream`), and is, in big-endian:
+//
+//     blockSize: int32
+//     targetLength: int64                                      the length of the contents it rebuilds
+//     commands, each of which is one of
+//         COPY (1):    firstBlock: int32, blockCount: int32    copy blocks of the basis
+//         LITERAL (2): length: int32, bytes[length]            bytes the basis doesn't have
+//     END (0)
+//
+// A copy of blocks that runs to the end of the basis ends with the basis's shorter last block. Anything that
+// doesn't follow the format, or refers to blocks the basis doesn't have, is an `InvalidDeltaException`. So is a
+// delta whose target length is longer than the caller allows, or that rebuilds anything but its target length:
+// a few bytes of copies can stand for any number of bytes of contents, so the commands are checked against the
+// target length before they are carried out.
+public class DeltaInputStream extends InputStream {
+
+    public static final int END = 0;
+    public static final int COPY = 1;
+    public static final int LITERAL = 2;
+
+    private final DataInputStream delta;
+    private final ChunkedContents basis;
+    private final int blockSize;
+    private final long targetLength;
+
+    // what is left of the current command
+    private int command = -1;
+    private long position;
+    private long remaining = 0;
+
+    // how much of the target length the commands so far rebuild
+    private long rebuilt = 0;
+
+    public DeltaInputStream(InputStream delta, ChunkedContents basis, long maxTargetLength) throws IOException {
+        this.delta = new DataInputStream(delta);
+        this.basis = basis;
+        this.blockSize = readInt("block size");
+        if (blockSize <= 0) {
+            throw new InvalidDeltaException("The delta's block size must be positive, not " + blockSize);
+        }
+        this.targetLength = readLong("target length");
+        if (targetLength < 0 || targetLength > maxTargetLength) {
+            throw new InvalidDeltaException(String.format(
+                    "The delta's target length must be between 0 and %d bytes, not %d", maxTargetLength, targetLength));
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (remaining == 0) {
+            if (command == END) {
+                return -1;
+            }
+            nextCommand();
+        }
+
+        int read;
+        if (command == COPY) {
+            read = basis.read(position, buffer, offset, (int) Math.min(length, remaining));
+            if (read == -1) {
+                throw new IOException("The basis ended before its length " + basis.getLength());
+            }
+            position += read;
+        } else {
+            read = delta.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read == -1) {
+                throw new InvalidDeltaException("The delta ended in the middle of a literal");
+            }
+        }
+
+        remaining -= read;
+        return read;
+    }
+
+    private void nextCommand() throws IOException {
+        command = readInt("command");
+        switch (command) {
+            case END:
+                if (delta.read() != -1) {
+                    throw new InvalidDeltaException("The delta goes on after its end");
+                }
+                if (rebuilt != targetLength) {
+                    throw new InvalidDeltaException(String.format(
+                            "The delta rebuilds %d bytes, not its target length of %d", rebuilt, targetLength));
+                }
+                break;
+            case COPY:
+                int firstBlock = readInt("first block");
+                int blockCount = readInt("block count");
+                position = (long) firstBlock * blockSize;
+                if (firstBlock < 0 || blockCount <= 0 || position >= basis.getLength()) {
+                    throw new InvalidDeltaException(String.format(
+                            "The basis doesn't have %d blocks of %d bytes from block %d",
+                            blockCount, blockSize, firstBlock));
+                }
+                remaining = Math.min((long) blockCount * blockSize, basis.getLength() - position);
+                break;
+            case LITERAL:
+                remaining = readInt("literal length");
+                if (remaining <= 0) {
+                    throw new InvalidDeltaException("A literal's length must be positive, not " + remaining);
+                }
+                break;
+            default:
+                throw new InvalidDeltaException("Unknown delta command " + command);
+        }
+
+        if (remaining > targetLength - rebuilt) {
+            throw new InvalidDeltaException(String.format(
+                    "The delta rebuilds more than its target length of %d bytes", targetLength));
+        }
+        rebuilt += remaining;
+    }
+
+    private int readInt(String what) throws IOException {
+        try {
+            return delta.readInt();
+        } catch (EOFException e) {
+            throw new InvalidDeltaException("The delta ended where its " + what + " should be");
+        }
+    }
+
+    private long readLong(String what) throws IOException {
+        try {
+            return delta.readLong();
+        } catch (EOFException e) {
+            throw new InvalidDeltaException("The delta ended where its " + what + " should be");
+        }
+    }
+
+    // the basis is closed by whoever opened it
+    @Override
+    public void close() throws IOException {
+        delta.close();
+    }
+}
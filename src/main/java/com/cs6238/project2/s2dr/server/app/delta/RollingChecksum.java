@@ -0,0 +1,40 @@
+package com.cs6238.project2.s2dr.server.app.delta;
+
+// rsync's weak checksum of a block: `a` is the sum of its bytes and `b` the sum of the running values of `a`, both
+// modulo 2^16, and the checksum is `a + 2^16 * b`. It can be rolled along by a byte at a time, which is how a client
+// finds blocks of the current version of a document in its edited copy at any offset, before confirming a match
+// with the block's strong hash.
+public final class RollingChecksum {
+
+    private final int blockLength;
+
+    private int a;
+    private int b;
+
+    // the checksum of `block[offset, offset + length)`, ready to be rolled along
+    public RollingChecksum(byte[] block, int offset, int length) {
+        this.blockLength = length;
+        for (int i = 0; i < length; i++) {
+            int x = block[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        a &= 0xffff;
+        b &= 0xffff;
+    }
+
+    public static int of(byte[] block, int offset, int length) {
+        return new RollingChecksum(block, offset, length).getValue();
+    }
+
+    // moves the block one byte along: `out` leaves it at the start and `in` joins it at the end
+    public void roll(byte out, byte in) {
+        int x = out & 0xff;
+        a = (a - x + (in & 0xff)) & 0xffff;
+        b = (b - blockLength * x + a) & 0xffff;
+    }
+
+    public int getValue() {
+        return a | (b << 16);
+    }
+}
@@ -0,0 +1,7 @@
+package com.cs6238.project2.s2dr.server.app.exceptions;
+
+public class DocumentConflictException extends Exception {
+    public DocumentConflictException(String message) {
+        super(message);
+    }
+}
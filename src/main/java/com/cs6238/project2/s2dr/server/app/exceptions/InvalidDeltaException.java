@@ -0,0 +1,10 @@
+package com.cs6238.project2.s2dr.server.app.exceptions;
+
+import java.io.IOException;
+
+// thrown while a delta is being read, by the stream that applies it, hence an `IOException`
+public class InvalidDeltaException extends IOException {
+    public InvalidDeltaException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,8 @@
+package com.cs6238.project2.s2dr.server.app.exceptions;
+
+// a part that can't be part of its upload, or an upload that can't be committed as it is
+public class InvalidUploadException extends Exception {
+    public InvalidUploadException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package com.cs6238.project2.s2dr.server.app.exceptions;
+
+public class RangeNotSatisfiableException extends Exception {
+    public RangeNotSatisfiableException(String message) {
+        super(message);
+    }
+}
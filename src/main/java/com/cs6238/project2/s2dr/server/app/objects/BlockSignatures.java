@@ -0,0 +1,93 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+// The signatures of the blocks of one version of a document, which a client compares its edited copy against to
+// check the copy in as a delta (see `DeltaInputStream`). Returned as JSON by `RestEndpoint.getBlockSignatures`.
+public class BlockSignatures {
+
+    private final int version;
+    private final int blockSize;
+    private final long contentLength;
+    private final List<BlockSignature> blocks;
+
+    public BlockSignatures(int version, int blockSize, long contentLength, List<BlockSignature> blocks) {
+        this.version = version;
+        this.blockSize = blockSize;
+        this.contentLength = contentLength;
+        this.blocks = requireNonNull(blocks);
+    }
+
+    // the version the delta has to be applied to
+    public int getVersion() {
+        return version;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public List<BlockSignature> getBlocks() {
+        return blocks;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+
+    // the rolling checksum of a block (see `RollingChecksum`) and a hex prefix of its SHA-256
+    public static class BlockSignature {
+
+        private final int weak;
+        private final String strong;
+
+        public BlockSignature(int weak, String strong) {
+            this.weak = weak;
+            this.strong = requireNonNull(strong);
+        }
+
+        public int getWeak() {
+            return weak;
+        }
+
+        public String getStrong() {
+            return strong;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return EqualsBuilder.reflectionEquals(this, o);
+        }
+
+        @Override
+        public int hashCode() {
+            return HashCodeBuilder.reflectionHashCode(this);
+        }
+
+        @Override
+        public String toString() {
+            return ReflectionToStringBuilder.toString(this);
+        }
+    }
+}
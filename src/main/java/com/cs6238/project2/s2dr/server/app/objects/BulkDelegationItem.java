@@ -0,0 +1,81 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import java.util.Optional;
+import java.util.Set;
+
+// One of the delegations sent to `RestEndpoint.delegateInBulk`: the fields of `DelegatePermissionParams`, and the
+// document they are for.
+public class BulkDelegationItem {
+
+    private String documentName;
+    private Set<DocumentPermission> permissions;
+    private String userName;
+    private Long timeLimitMillis;
+    private boolean canPropogate;
+
+    @SuppressWarnings("unused")
+    // this default is required for Jackson
+    public BulkDelegationItem() {}
+
+    public BulkDelegationItem(
+            String documentName,
+            Set<DocumentPermission> permissions,
+            String userName,
+            Long timeLimitMillis,
+            boolean canPropogate) {
+
+        this.documentName = documentName;
+        this.permissions = permissions;
+        this.userName = userName;
+        this.timeLimitMillis = timeLimitMillis;
+        this.canPropogate = canPropogate;
+    }
+
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    public Set<DocumentPermission> getPermissions() {
+        return permissions;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public Optional<Long> getTimeLimitMillis() {
+        return Optional.ofNullable(timeLimitMillis);
+    }
+
+    public boolean getCanPropogate() {
+        return canPropogate;
+    }
+
+    // whether every field that has no default was sent
+    public boolean hasRequiredFields() {
+        return documentName != null && userName != null && permissions != null && !permissions.isEmpty();
+    }
+
+    public DelegatePermissionParams toDelegatePermissionParams() {
+        return new DelegatePermissionParams(permissions, userName, timeLimitMillis, canPropogate);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
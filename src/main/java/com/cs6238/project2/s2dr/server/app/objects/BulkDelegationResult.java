@@ -0,0 +1,68 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+// What became of one of the delegations sent to `RestEndpoint.delegateInBulk`. `status` is the status
+// `PUT /s2dr/document/{documentName}` would have returned for it on its own, and `message` says why it wasn't
+// granted.
+public class BulkDelegationResult {
+
+    public static final int GRANTED = 200;
+    public static final int INVALID = 400;
+    public static final int DENIED = 401;
+    public static final int NOT_FOUND = 404;
+
+    private final String documentName;
+    private final String userName;
+    private final int status;
+    private final String message;
+
+    private BulkDelegationResult(String documentName, String userName, int status, String message) {
+        this.documentName = documentName;
+        this.userName = userName;
+        this.status = status;
+        this.message = message;
+    }
+
+    public static BulkDelegationResult granted(BulkDelegationItem item) {
+        return new BulkDelegationResult(item.getDocumentName(), item.getUserName(), GRANTED, null);
+    }
+
+    public static BulkDelegationResult failed(BulkDelegationItem item, int status, String message) {
+        return new BulkDelegationResult(item.getDocumentName(), item.getUserName(), status, message);
+    }
+
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    // null if it was granted
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
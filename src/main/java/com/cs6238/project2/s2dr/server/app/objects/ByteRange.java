@@ -0,0 +1,104 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import com.cs6238.project2.s2dr.server.app.exceptions.RangeNotSatisfiableException;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// a single, satisfiable range of bytes requested through an HTTP `Range` header (RFC 7233)
+public class ByteRange {
+
+    private static final Pattern SINGLE_RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$", Pattern.CASE_INSENSITIVE);
+
+    private final long first;
+    private final long last;
+    private final long contentLength;
+
+    public ByteRange(long first, long last, long contentLength) {
+        checkArgument(0 <= first && first <= last && last < contentLength, "Invalid byte range");
+
+        this.first = first;
+        this.last = last;
+        this.contentLength = contentLength;
+    }
+
+    // Returns empty when the header should be ignored and the whole document sent instead. The spec allows
+    // that for headers we can't parse, and we also do it for multiple ranges, which nobody needs in practice.
+    public static Optional<ByteRange> parse(String rangeHeader, long contentLength)
+            throws RangeNotSatisfiableException {
+
+        Matcher matcher = SINGLE_RANGE.matcher(rangeHeader.trim());
+        if (!matcher.matches()) {
+            return Optional.empty();
+        }
+
+        String firstPosition = matcher.group(1);
+        String lastPosition = matcher.group(2);
+        try {
+            if (firstPosition.isEmpty()) {
+                if (lastPosition.isEmpty()) {
+                    return Optional.empty();
+                }
+
+                // "bytes=-n" asks for the last n bytes
+                long suffixLength = Long.parseLong(lastPosition);
+                if (suffixLength == 0 || contentLength == 0) {
+                    throw new RangeNotSatisfiableException("Requested an empty suffix of the document");
+                }
+                return Optional.of(new ByteRange(
+                        Math.max(0, contentLength - suffixLength), contentLength - 1, contentLength));
+            }
+
+            long first = Long.parseLong(firstPosition);
+            long last = lastPosition.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPosition);
+            if (last < first) {
+                return Optional.empty();
+            }
+            if (first >= contentLength) {
+                throw new RangeNotSatisfiableException("Requested range starts past the end of the document");
+            }
+            return Optional.of(new ByteRange(first, Math.min(last, contentLength - 1), contentLength));
+        } catch (NumberFormatException e) {
+            // positions too large to be a long
+            return Optional.empty();
+        }
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long getLength() {
+        return last - first + 1;
+    }
+
+    // the value of the `Content-Range` response header
+    public String toContentRange() {
+        return String.format("bytes %d-%d/%d", first, last, contentLength);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
@@ -0,0 +1,89 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import java.security.spec.RSAPublicKeySpec;
+import java.util.EnumSet;
+
+import static java.util.Objects.requireNonNull;
+
+// Everything needed to check out a document, other than the current user's permissions on it: the document's
+// metadata, its security flags and the uploader's public key. Fetched with a single query by
+// `DocumentDao.getDocumentAccess`.
+public class DocumentAccess {
+
+    public static class Builder {
+        private DocumentDownload download;
+        private EnumSet<SecurityFlag> securityFlags = EnumSet.noneOf(SecurityFlag.class);
+        private RSAPublicKeySpec uploaderPubKeySpec;
+
+        public Builder setDownload(DocumentDownload download) {
+            this.download = download;
+            return this;
+        }
+
+        public Builder setSecurityFlags(EnumSet<SecurityFlag> securityFlags) {
+            this.securityFlags = securityFlags;
+            return this;
+        }
+
+        public Builder setUploaderPubKeySpec(RSAPublicKeySpec uploaderPubKeySpec) {
+            this.uploaderPubKeySpec = uploaderPubKeySpec;
+            return this;
+        }
+
+        public DocumentAccess build() {
+            return new DocumentAccess(
+                    download,
+                    securityFlags,
+                    uploaderPubKeySpec);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final DocumentDownload download;
+    private final EnumSet<SecurityFlag> securityFlags;
+    private final RSAPublicKeySpec uploaderPubKeySpec;
+
+    private DocumentAccess(
+            DocumentDownload download,
+            EnumSet<SecurityFlag> securityFlags,
+            RSAPublicKeySpec uploaderPubKeySpec) {
+
+        this.download = requireNonNull(download);
+        this.securityFlags = requireNonNull(securityFlags);
+        this.uploaderPubKeySpec = requireNonNull(uploaderPubKeySpec);
+    }
+
+    public DocumentDownload getDownload() {
+        return download;
+    }
+
+    public EnumSet<SecurityFlag> getSecurityFlags() {
+        return EnumSet.copyOf(securityFlags);
+    }
+
+    public RSAPublicKeySpec getUploaderPubKeySpec() {
+        return uploaderPubKeySpec;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
@@ -0,0 +1,114 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import java.security.PublicKey;
+import java.util.EnumSet;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+// A check-out that has already passed the permission checks. It carries everything needed to stream the
+// document's contents to the user afterwards.
+public class DocumentCheckout {
+
+    public static class Builder {
+        private DocumentDownload download;
+        private EnumSet<SecurityFlag> securityFlags = EnumSet.noneOf(SecurityFlag.class);
+        private Optional<PublicKey> uploaderPublicKey = Optional.empty();
+        private Optional<Long> contentLength = Optional.empty();
+
+        public Builder setDownload(DocumentDownload download) {
+            this.download = download;
+            return this;
+        }
+
+        public Builder setSecurityFlags(EnumSet<SecurityFlag> securityFlags) {
+            this.securityFlags = securityFlags;
+            return this;
+        }
+
+        public Builder setUploaderPublicKey(Optional<PublicKey> uploaderPublicKey) {
+            this.uploaderPublicKey = uploaderPublicKey;
+            return this;
+        }
+
+        public Builder setContentLength(Optional<Long> contentLength) {
+            this.contentLength = contentLength;
+            return this;
+        }
+
+        public DocumentCheckout build() {
+            return new DocumentCheckout(
+                    download,
+                    securityFlags,
+                    uploaderPublicKey,
+                    contentLength);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final DocumentDownload download;
+    private final EnumSet<SecurityFlag> securityFlags;
+    private final Optional<PublicKey> uploaderPublicKey;
+    private final Optional<Long> contentLength;
+
+    private DocumentCheckout(
+            DocumentDownload download,
+            EnumSet<SecurityFlag> securityFlags,
+            Optional<PublicKey> uploaderPublicKey,
+            Optional<Long> contentLength) {
+
+        this.download = requireNonNull(download);
+        this.securityFlags = requireNonNull(securityFlags);
+        this.uploaderPublicKey = requireNonNull(uploaderPublicKey);
+        this.contentLength = requireNonNull(contentLength);
+    }
+
+    public DocumentDownload getDownload() {
+        return download;
+    }
+
+    public String getDocumentName() {
+        return download.getDocumentName();
+    }
+
+    public EnumSet<SecurityFlag> getSecurityFlags() {
+        return EnumSet.copyOf(securityFlags);
+    }
+
+    public boolean hasSecurityFlag(SecurityFlag securityFlag) {
+        return securityFlags.contains(securityFlag);
+    }
+
+    // only present when the INTEGRITY flag is set
+    public Optional<PublicKey> getUploaderPublicKey() {
+        return uploaderPublicKey;
+    }
+
+    // the size of the document as the user will receive it. Empty for legacy encrypted documents, whose size
+    // is only known once they have been decrypted
+    public Optional<Long> getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
@@ -1,22 +1,30 @@
 package com.cs6238.project2.s2dr.server.app.objects;
 
+import com.cs6238.project2.s2dr.server.app.storage.ContentCoding;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
 
-import java.io.InputStream;
 import java.util.Optional;
 
 import static java.util.Objects.requireNonNull;
 
+// everything about a stored document except its contents, which are streamed separately
 public class DocumentDownload {
 
     public static class Builder {
         private String documentName;
         private String uploadUserName;
-        private byte[] contents;
         private Optional<byte[]> encryptionKey = Optional.empty();
         private Optional<byte[]> signature = Optional.empty();
+        private Optional<byte[]> verifiedContentDigest = Optional.empty();
+        private long storedLength;
+        private boolean chunked;
+        private ContentCoding contentCoding = ContentCoding.IDENTITY;
+        private Optional<Long> contentCrc32 = Optional.empty();
+        private long lastModifiedMillis;
+        private int version = 1;
+        private boolean archived;
 
         public Builder setDocumentName(String documentName) {
             this.documentName = documentName;
@@ -28,11 +36,6 @@ public class DocumentDownload {
             return this;
         }
 
-        public Builder setContents(byte[] contents) {
-            this.contents = contents;
-            return this;
-        }
-
         public Builder setEncryptionKey(Optional<byte[]> encryptionKey) {
             this.encryptionKey = encryptionKey;
             return this;
@@ -43,13 +46,60 @@ public class DocumentDownload {
             return this;
         }
 
+        public Builder setVerifiedContentDigest(Optional<byte[]> verifiedContentDigest) {
+            this.verifiedContentDigest = verifiedContentDigest;
+            return this;
+        }
+
+        public Builder setStoredLength(long storedLength) {
+            this.storedLength = storedLength;
+            return this;
+        }
+
+        public Builder setChunked(boolean chunked) {
+            this.chunked = chunked;
+            return this;
+        }
+
+        public Builder setContentCoding(ContentCoding contentCoding) {
+            this.contentCoding = contentCoding;
+            return this;
+        }
+
+        public Builder setContentCrc32(Optional<Long> contentCrc32) {
+            this.contentCrc32 = contentCrc32;
+            return this;
+        }
+
+        public Builder setLastModifiedMillis(long lastModifiedMillis) {
+            this.lastModifiedMillis = lastModifiedMillis;
+            return this;
+        }
+
+        public Builder setVersion(int version) {
+            this.version = version;
+            return this;
+        }
+
+        public Builder setArchived(boolean archived) {
+            this.archived = archived;
+            return this;
+        }
+
         public DocumentDownload build() {
             return new DocumentDownload(
                     documentName,
                     uploadUserName,
-                    contents,
                     encryptionKey,
-                    signature);
+                    signature,
+                    verifiedContentDigest,
+                    storedLength,
+                    chunked,
+                    contentCoding,
+                    contentCrc32,
+                    lastModifiedMillis,
+                    version,
+                    archived);
         }
     }
 
@@ -59,22 +109,43 @@ public class DocumentDownload {
 
     private final String documentName;
     private final String uploadUserName;
-    private final byte[] contents;
     private final Optional<byte[]> encryptionKey;
     private final Optional<byte[]> signature;
+    private final Optional<byte[]> verifiedContentDigest;
+    private final long storedLength;
+    private final boolean chunked;
+    private final ContentCoding contentCoding;
+    private final Optional<Long> contentCrc32;
+    private final long lastModifiedMillis;
+    private final int version;
+    private final boolean archived;
 
     private DocumentDownload(
             String documentName,
             String uploadUserName,
-            byte[] contents,
             Optional<byte[]> encryptionKey,
-            Optional<byte[]> signature) {
+            Optional<byte[]> signature,
+            Optional<byte[]> verifiedContentDigest,
+            long storedLength,
+            boolean chunked,
+            ContentCoding contentCoding,
+            Optional<Long> contentCrc32,
+            long lastModifiedMillis,
+            int version,
+            boolean archived) {
 
         this.documentName = requireNonNull(documentName);
         this.uploadUserName = requireNonNull(uploadUserName);
-        this.contents = requireNonNull(contents);
         this.encryptionKey = encryptionKey;
         this.signature = signature;
+        this.verifiedContentDigest = requireNonNull(verifiedContentDigest);
+        this.storedLength = storedLength;
+        this.chunked = chunked;
+        this.contentCoding = requireNonNull(contentCoding);
+        this.contentCrc32 = requireNonNull(contentCrc32);
+        this.lastModifiedMillis = lastModifiedMillis;
+        this.version = version;
+        this.archived = archived;
     }
 
     public String getDocumentName() {
@@ -85,10 +156,6 @@ public class DocumentDownload {
         return uploadUserName;
     }
 
-    public byte[] getContents() {
-        return contents;
-    }
-
     public Optional<byte[]> getEncryptionKey() {
         return encryptionKey;
     }
@@ -97,6 +164,46 @@ public class DocumentDownload {
         return signature;
     }
 
+    // the SHA-256 of the document's plaintext, only present if its signature was verified at check-in
+    public Optional<byte[]> getVerifiedContentDigest() {
+        return verifiedContentDigest;
+    }
+
+    // the size of the contents as they are stored, i.e. after encryption. For documents stored as chunks, it is
+    // the size of the plaintext, since their chunks are encrypted one by one
+    public long getStoredLength() {
+        return storedLength;
+    }
+
+    // true if the contents are stored as chunks by `DocumentContentDao` rather than in the document's BLOB
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    // how the document's chunks were transformed before they were stored. Always `IDENTITY` for documents that
+    // aren't stored as chunks
+    public ContentCoding getContentCoding() {
+        return contentCoding;
+    }
+
+    // the CRC-32 of the document's plaintext, only present for documents stored as chunks
+    public Optional<Long> getContentCrc32() {
+        return contentCrc32;
+    }
+
+    public long getLastModifiedMillis() {
+        return lastModifiedMillis;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    // true if this is an earlier version of the document, kept in `s2dr.DocumentVersions`
+    public boolean isArchived() {
+        return archived;
+    }
+
     @Override
     public boolean equals(Object o) {
         return EqualsBuilder.reflectionEquals(this, o);
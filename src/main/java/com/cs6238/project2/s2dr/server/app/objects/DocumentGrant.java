@@ -0,0 +1,145 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Optional;
+
+// A row of `s2dr.DocumentGrants`: the permissions a user (or 'ALL') was granted on a document, which of them they
+// can propagate, and until when they have each of them, if not for good. Expired permissions stay in the row
+// until `ExpiredPermissionSweeper` clears them, so they are only ever looked at through `isGranted`.
+public class DocumentGrant {
+
+    // the bit of a permission (see `EnumBits`) shifted by this says whether it can be propagated
+    public static final int PROPAGATE_SHIFT = DocumentPermission.values().length;
+
+    private final int permissionBits;
+    private final Map<DocumentPermission, Long> timeLimitsMillis;
+
+    public DocumentGrant(int permissionBits, Map<DocumentPermission, Long> timeLimitsMillis) {
+        this.permissionBits = permissionBits;
+        this.timeLimitsMillis = new EnumMap<>(DocumentPermission.class);
+        this.timeLimitsMillis.putAll(timeLimitsMillis);
+    }
+
+    // reads the `permissions` and time limit columns of the current row
+    public static DocumentGrant fromResultSet(ResultSet rs) throws SQLException {
+        Map<DocumentPermission, Long> timeLimitsMillis = new EnumMap<>(DocumentPermission.class);
+        for (DocumentPermission permission: DocumentPermission.values()) {
+            Timestamp timeLimit = rs.getTimestamp(timeLimitColumn(permission));
+            if (timeLimit != null) {
+                timeLimitsMillis.put(permission, timeLimit.getTime());
+            }
+        }
+        return new DocumentGrant(rs.getInt("permissions"), timeLimitsMillis);
+    }
+
+    // the column of `s2dr.DocumentGrants` that holds the permission's time limit
+    public static String timeLimitColumn(DocumentPermission permission) {
+        switch (permission) {
+            case READ:
+                return "readUntil";
+            case WRITE:
+                return "writeUntil";
+            case OWNER:
+                return "ownerUntil";
+            default:
+                throw new IllegalArgumentException(
+                        String.format("Was not expecting DocumentPermission %s", permission));
+        }
+    }
+
+    // the permission's bit, and the bit that says whether it can be propagated
+    public static int grantBits(DocumentPermission permission) {
+        return permissionBits(permission, true);
+    }
+
+    public static int permissionBits(DocumentPermission permission, boolean canPropagate) {
+        int bit = EnumBits.bit(permission);
+        return canPropagate ? bit | (bit << PROPAGATE_SHIFT) : bit;
+    }
+
+    // the permissions that allow a user to propagate the permission further, for instance having OWNER allows a
+    // user to propagate READ
+    public static EnumSet<DocumentPermission> delegatingPermissions(DocumentPermission permission) {
+        switch (permission) {
+            case READ:
+                return EnumSet.of(DocumentPermission.READ, DocumentPermission.OWNER);
+            case WRITE:
+                return EnumSet.of(DocumentPermission.WRITE, DocumentPermission.OWNER);
+            case OWNER:
+                return EnumSet.of(DocumentPermission.OWNER);
+            default:
+                throw new IllegalArgumentException(
+                        String.format("Was not expecting DocumentPermission %s", permission));
+        }
+    }
+
+    public boolean isGranted(DocumentPermission permission, long nowMillis) {
+        Long timeLimitMillis = timeLimitsMillis.get(permission);
+        return (permissionBits & EnumBits.bit(permission)) != 0
+                && (timeLimitMillis == null || timeLimitMillis > nowMillis);
+    }
+
+    public boolean canPropagate(DocumentPermission permission, long nowMillis) {
+        return isGranted(permission, nowMillis)
+                && (permissionBits & (EnumBits.bit(permission) << PROPAGATE_SHIFT)) != 0;
+    }
+
+    // empty for a permission that is granted for good
+    public Optional<Long> getTimeLimitMillis(DocumentPermission permission) {
+        return Optional.ofNullable(timeLimitsMillis.get(permission));
+    }
+
+    // whether the permission can be delegated by the user this was granted to
+    public boolean canDelegate(DocumentPermission permission, long nowMillis) {
+        for (DocumentPermission delegatingPermission: delegatingPermissions(permission)) {
+            if (canPropagate(delegatingPermission, nowMillis)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The time limit of the permission when it is delegated: the earliest of the time limits of the permissions
+    // that allow delegating it, or empty if one of them is granted for good. Only meaningful if `canDelegate`
+    public Optional<Long> getDelegationTimeLimitMillis(DocumentPermission permission, long nowMillis) {
+        Optional<Long> earliestTimeLimitMillis = Optional.empty();
+        for (DocumentPermission delegatingPermission: delegatingPermissions(permission)) {
+            if (!isGranted(delegatingPermission, nowMillis)) {
+                continue;
+            }
+
+            Optional<Long> timeLimitMillis = getTimeLimitMillis(delegatingPermission);
+            if (!timeLimitMillis.isPresent()) {
+                return Optional.empty();
+            }
+            if (!earliestTimeLimitMillis.isPresent() || timeLimitMillis.get() < earliestTimeLimitMillis.get()) {
+                earliestTimeLimitMillis = timeLimitMillis;
+            }
+        }
+        return earliestTimeLimitMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
@@ -0,0 +1,86 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Optional;
+
+// Permissions granted to a user (or 'ALL') on a document in one go, see `DocumentDao.grantPermissions`. Each of
+// them replaces the grantee's permission of the same kind (its time limit, and whether it can be propagated), and
+// the grantee's other permissions are left as they are.
+public class DocumentGrantUpdate {
+
+    private final int documentId;
+    private final int userId;
+    private final EnumSet<DocumentPermission> permissions;
+    private final boolean canPropagate;
+    private final Map<DocumentPermission, Long> timeLimitsMillis;
+
+    // The document and the grantee are the ids `DocumentDao.getDocumentId` and `getUserId` resolved their names
+    // to. `timeLimitsMillis` are absolute, a permission without one is granted for good
+    public DocumentGrantUpdate(
+            int documentId,
+            int userId,
+            DelegatePermissionParams params,
+            Map<DocumentPermission, Long> timeLimitsMillis) {
+
+        this.documentId = documentId;
+        this.userId = userId;
+        this.permissions = params.getPermissions();
+        this.canPropagate = params.getCanPropogate();
+        this.timeLimitsMillis = new EnumMap<>(DocumentPermission.class);
+        this.timeLimitsMillis.putAll(timeLimitsMillis);
+    }
+
+    public int getDocumentId() {
+        return documentId;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public boolean replaces(DocumentPermission permission) {
+        return permissions.contains(permission);
+    }
+
+    // the bits (see `DocumentGrant`) of the grantee's permissions that are replaced
+    public int getReplacedBits() {
+        int bits = 0;
+        for (DocumentPermission permission: permissions) {
+            bits |= DocumentGrant.grantBits(permission);
+        }
+        return bits;
+    }
+
+    public int getPermissionBits() {
+        int bits = 0;
+        for (DocumentPermission permission: permissions) {
+            bits |= DocumentGrant.permissionBits(permission, canPropagate);
+        }
+        return bits;
+    }
+
+    public Optional<Long> getTimeLimitMillis(DocumentPermission permission) {
+        return Optional.ofNullable(timeLimitsMillis.get(permission));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
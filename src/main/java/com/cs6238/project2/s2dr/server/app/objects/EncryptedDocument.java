@@ -5,14 +5,16 @@ import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
 import org.apache.shiro.util.ByteSource;
 
+import java.io.InputStream;
+
 public class EncryptedDocument {
 
     private final ByteSource encryptedAesKey;
-    private final ByteSource encryptedDocument;
+    private final InputStream encryptedDocument;
 
     public EncryptedDocument(
             ByteSource encryptedAesKey,
-            ByteSource encryptedDocument) {
+            InputStream encryptedDocument) {
 
         this.encryptedAesKey = encryptedAesKey;
         this.encryptedDocument = encryptedDocument;
@@ -22,7 +24,8 @@ public class EncryptedDocument {
         return encryptedAesKey;
     }
 
-    public ByteSource getEncryptedDocument() {
+    // the encrypted contents are produced (or consumed) lazily, so this stream can only be read once
+    public InputStream getEncryptedDocument() {
         return encryptedDocument;
     }
 
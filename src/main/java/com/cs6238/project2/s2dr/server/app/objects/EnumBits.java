@@ -0,0 +1,41 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Sets of enum constants stored as the bits of an INT column, the bit of each constant being `1 << ordinal()`
+// (`DocumentPermission`s in `s2dr.DocumentGrants`, `SecurityFlag`s in `s2dr.Documents` and the tables that keep
+// them along with it). Constants of those enums must only ever be added at the end, or the stored bits change
+// meaning.
+public final class EnumBits {
+
+    private EnumBits() {}
+
+    public static <E extends Enum<E>> int bit(E constant) {
+        return 1 << constant.ordinal();
+    }
+
+    public static <E extends Enum<E>> int toBits(Set<E> constants) {
+        int bits = 0;
+        for (E constant: constants) {
+            bits |= bit(constant);
+        }
+        return bits;
+    }
+
+    // bits that no constant stands for are ignored
+    public static <E extends Enum<E>> EnumSet<E> fromBits(Class<E> enumClass, int bits) {
+        E[] constants = enumClass.getEnumConstants();
+        checkArgument(constants.length < Integer.SIZE, "%s has too many constants to fit an INT", enumClass);
+
+        EnumSet<E> set = EnumSet.noneOf(enumClass);
+        for (E constant: constants) {
+            if ((bits & bit(constant)) != 0) {
+                set.add(constant);
+            }
+        }
+        return set;
+    }
+}
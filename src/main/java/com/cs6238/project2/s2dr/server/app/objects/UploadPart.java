@@ -0,0 +1,56 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import com.cs6238.project2.s2dr.server.app.storage.ContentCoding;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import static java.util.Objects.requireNonNull;
+
+// a part of an upload that was received, see `UploadSession`
+public class UploadPart {
+
+    private final int partNumber;
+    private final long partLength;
+    private final long partCrc32;
+    private final ContentCoding contentCoding;
+
+    public UploadPart(int partNumber, long partLength, long partCrc32, ContentCoding contentCoding) {
+        this.partNumber = partNumber;
+        this.partLength = partLength;
+        this.partCrc32 = partCrc32;
+        this.contentCoding = requireNonNull(contentCoding);
+    }
+
+    public int getPartNumber() {
+        return partNumber;
+    }
+
+    public long getPartLength() {
+        return partLength;
+    }
+
+    public long getPartCrc32() {
+        return partCrc32;
+    }
+
+    // every part of an upload is stored with the same coding, see `UploadSessionService.uploadPart`
+    public ContentCoding getContentCoding() {
+        return contentCoding;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
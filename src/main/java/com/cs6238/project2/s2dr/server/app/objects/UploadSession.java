@@ -0,0 +1,165 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import java.util.EnumSet;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+// An upload of a document in parts that hasn't been committed yet, as it is stored in `s2dr.UploadSessions`
+public class UploadSession {
+
+    public static class Builder {
+        private String sessionId;
+        private String documentName;
+        private String userName;
+        private EnumSet<SecurityFlag> securityFlags = EnumSet.noneOf(SecurityFlag.class);
+        private Optional<byte[]> encryptionKey = Optional.empty();
+        private Optional<byte[]> signature = Optional.empty();
+        private int chunkIndexStride;
+        private long expiresMillis;
+
+        public Builder setSessionId(String sessionId) {
+            this.sessionId = sessionId;
+            return this;
+        }
+
+        public Builder setDocumentName(String documentName) {
+            this.documentName = documentName;
+            return this;
+        }
+
+        public Builder setUserName(String userName) {
+            this.userName = userName;
+            return this;
+        }
+
+        public Builder setSecurityFlags(EnumSet<SecurityFlag> securityFlags) {
+            this.securityFlags = securityFlags;
+            return this;
+        }
+
+        public Builder setEncryptionKey(Optional<byte[]> encryptionKey) {
+            this.encryptionKey = encryptionKey;
+            return this;
+        }
+
+        public Builder setSignature(Optional<byte[]> signature) {
+            this.signature = signature;
+            return this;
+        }
+
+        public Builder setChunkIndexStride(int chunkIndexStride) {
+            this.chunkIndexStride = chunkIndexStride;
+            return this;
+        }
+
+        public Builder setExpiresMillis(long expiresMillis) {
+            this.expiresMillis = expiresMillis;
+            return this;
+        }
+
+        public UploadSession build() {
+            return new UploadSession(
+                    sessionId,
+                    documentName,
+                    userName,
+                    securityFlags,
+                    encryptionKey,
+                    signature,
+                    chunkIndexStride,
+                    expiresMillis);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final String sessionId;
+    private final String documentName;
+    private final String userName;
+    private final EnumSet<SecurityFlag> securityFlags;
+    private final Optional<byte[]> encryptionKey;
+    private final Optional<byte[]> signature;
+    private final int chunkIndexStride;
+    private final long expiresMillis;
+
+    private UploadSession(
+            String sessionId,
+            String documentName,
+            String userName,
+            EnumSet<SecurityFlag> securityFlags,
+            Optional<byte[]> encryptionKey,
+            Optional<byte[]> signature,
+            int chunkIndexStride,
+            long expiresMillis) {
+
+        this.sessionId = requireNonNull(sessionId);
+        this.documentName = requireNonNull(documentName);
+        this.userName = requireNonNull(userName);
+        this.securityFlags = requireNonNull(securityFlags);
+        this.encryptionKey = requireNonNull(encryptionKey);
+        this.signature = requireNonNull(signature);
+        this.chunkIndexStride = chunkIndexStride;
+        this.expiresMillis = expiresMillis;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    // the user who created the session, and who the document is checked in by
+    public String getUserName() {
+        return userName;
+    }
+
+    public EnumSet<SecurityFlag> getSecurityFlags() {
+        return EnumSet.copyOf(securityFlags);
+    }
+
+    public boolean hasSecurityFlag(SecurityFlag securityFlag) {
+        return securityFlags.contains(securityFlag);
+    }
+
+    // the wrapped document key, only present when the CONFIDENTIALITY flag is set
+    public Optional<byte[]> getEncryptionKey() {
+        return encryptionKey;
+    }
+
+    // only present when the INTEGRITY flag is set
+    public Optional<byte[]> getSignature() {
+        return signature;
+    }
+
+    // the chunks of part `n` are numbered from `(n - 1) * chunkIndexStride`
+    public int getChunkIndexStride() {
+        return chunkIndexStride;
+    }
+
+    public long getExpiresMillis() {
+        return expiresMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
@@ -0,0 +1,85 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+// What a client needs to know to (carry on) uploading the parts of a document. Returned as JSON by
+// `RestEndpoint.createUploadSession` and `RestEndpoint.getUploadSession`.
+public class UploadSessionStatus {
+
+    private final String sessionId;
+    private final String documentName;
+    private final long maxPartBytes;
+    private final int maxParts;
+    private final List<Integer> receivedParts;
+    private final long receivedBytes;
+    private final long expiresMillis;
+
+    public UploadSessionStatus(
+            String sessionId,
+            String documentName,
+            long maxPartBytes,
+            int maxParts,
+            List<Integer> receivedParts,
+            long receivedBytes,
+            long expiresMillis) {
+
+        this.sessionId = requireNonNull(sessionId);
+        this.documentName = requireNonNull(documentName);
+        this.maxPartBytes = maxPartBytes;
+        this.maxParts = maxParts;
+        this.receivedParts = requireNonNull(receivedParts);
+        this.receivedBytes = receivedBytes;
+        this.expiresMillis = expiresMillis;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    public long getMaxPartBytes() {
+        return maxPartBytes;
+    }
+
+    public int getMaxParts() {
+        return maxParts;
+    }
+
+    // the numbers of the parts that were received, in order. Only these survive a dropped connection
+    public List<Integer> getReceivedParts() {
+        return receivedParts;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    // the session (and the parts received so far) is discarded if it isn't committed by then
+    public long getExpiresMillis() {
+        return expiresMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
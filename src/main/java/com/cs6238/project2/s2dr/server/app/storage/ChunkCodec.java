@@ -0,0 +1,62 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+// Turns the chunks of a document into what is stored for them, and back. `DocumentContentDao` stores every chunk
+// once under the hash `describe` gives it, so a codec decides which chunks can be shared: equal chunks must get
+// equal hashes, and chunks that must not be shared (between uploaders, say) must not.
+public interface ChunkCodec {
+
+    // Identifies a chunk without encoding it, so that a chunk that is already stored never has to be encoded
+    // again. `chunkIndex` is the chunk's position in the document being stored.
+    ChunkDescriptor describe(byte[] chunk, int chunkIndex);
+
+    // the bytes stored for a chunk that isn't stored yet
+    byte[] encode(ChunkDescriptor descriptor, byte[] chunk);
+
+    // the chunk that was stored as `storedChunk`
+    byte[] decode(ChunkDescriptor descriptor, int chunkIndex, byte[] storedChunk) throws IOException;
+
+    // `describe` for a batch of chunks numbered from `firstChunkIndex`, in the same order. A codec whose work is
+    // worth spreading over several threads (see `ConvergentChunkCodec`) does that here
+    default List<ChunkDescriptor> describeAll(List<byte[]> chunks, int firstChunkIndex) throws IOException {
+        List<ChunkDescriptor> descriptors = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            descriptors.add(describe(chunks.get(i), firstChunkIndex + i));
+        }
+        return descriptors;
+    }
+
+    // `encode` for a batch of chunks, in the same order
+    default List<byte[]> encodeAll(List<ChunkDescriptor> descriptors, List<byte[]> chunks) throws IOException {
+        List<byte[]> encoded = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            encoded.add(encode(descriptors.get(i), chunks.get(i)));
+        }
+        return encoded;
+    }
+
+    // A chunk's hash, and the key it is encoded with if it is encrypted. The key is kept (wrapped) with the
+    // document's manifest rather than with the chunk, since only documents that can decrypt it may refer to it.
+    class ChunkDescriptor {
+
+        private final byte[] chunkHash;
+        private final Optional<byte[]> wrappedKey;
+
+        public ChunkDescriptor(byte[] chunkHash, Optional<byte[]> wrappedKey) {
+            this.chunkHash = chunkHash.clone();
+            this.wrappedKey = wrappedKey.map(byte[]::clone);
+        }
+
+        public byte[] getChunkHash() {
+            return chunkHash.clone();
+        }
+
+        public Optional<byte[]> getWrappedKey() {
+            return wrappedKey.map(byte[]::clone);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+import java.util.Optional;
+
+import static com.google.common.base.Preconditions.checkState;
+
+// Where a stored chunk's bytes are: either in its own row of `s2dr.ContentChunks`, or at `offset` in one of the
+// segment files of `SegmentFileDocumentStore`. The row records whichever it is.
+public final class ChunkLocation {
+
+    private final Optional<byte[]> rowContents;
+    private final int segmentId;
+    private final long offset;
+    private final int length;
+
+    private ChunkLocation(Optional<byte[]> rowContents, int segmentId, long offset, int length) {
+        this.rowContents = rowContents;
+        this.segmentId = segmentId;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public static ChunkLocation inRow(byte[] contents) {
+        return new ChunkLocation(Optional.of(contents), -1, -1, contents.length);
+    }
+
+    public static ChunkLocation inSegment(int segmentId, long offset, int length) {
+        return new ChunkLocation(Optional.empty(), segmentId, offset, length);
+    }
+
+    public boolean isInRow() {
+        return rowContents.isPresent();
+    }
+
+    // the bytes kept in the chunk's row, only present if `isInRow`
+    public Optional<byte[]> getRowContents() {
+        return rowContents;
+    }
+
+    public int getSegmentId() {
+        checkState(!isInRow(), "The chunk is kept in its row");
+        return segmentId;
+    }
+
+    public long getOffset() {
+        checkState(!isInRow(), "The chunk is kept in its row");
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,37 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+// How a document's chunks are transformed before they are encrypted (if at all) and stored. Recorded in
+// `s2dr.Documents.contentCoding`, under the names HTTP uses for the same codings.
+public enum ContentCoding {
+    IDENTITY("identity"),
+    DEFLATE("deflate");
+
+    private final String name;
+
+    ContentCoding(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static ContentCoding fromName(String name) {
+        for (ContentCoding contentCoding: values()) {
+            if (contentCoding.name.equals(name)) {
+                return contentCoding;
+            }
+        }
+        throw new IllegalArgumentException("Unknown content coding \"" + name + "\"");
+    }
+
+    // returns the codec that stores chunks with this coding, and then with `codec`
+    public ChunkCodec wrap(ChunkCodec codec) {
+        switch (this) {
+            case DEFLATE:
+                return new DeflateChunkCodec(codec);
+            default:
+                return codec;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Splits a stream into chunks whose boundaries depend on the content rather than on their position (FastCDC's
+// gear hash with normalized chunking), so that inserting or removing bytes in a document only changes the chunks
+// around the edit, and the rest of the document splits into exactly the same chunks as before. That is what lets
+// `DocumentContentDao` store near-identical documents mostly as references to chunks it already has.
+//
+// Chunks are between a quarter of and four times the average size. Boundaries are less likely before the average
+// size and more likely after it, which keeps most chunks close to it.
+public class ContentDefinedChunker {
+
+    // the gear table has to be the same every time the server starts, or the same document would split
+    // differently (and stop deduplicating) after a restart. `Random`'s sequence for a given seed is part of its spec
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x5332445243444331L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+    // the top bits of the hash depend on the last 64 bytes, the low bits only on the last few, so the masks
+    // select top bits. One more bit than the average needs before it, one less after
+    private final long smallMask;
+    private final long largeMask;
+
+    private final byte[] buffer;
+    private int start = 0;
+    private int end = 0;
+    private boolean eof = false;
+
+    public ContentDefinedChunker(InputStream in, int averageSize) {
+        checkArgument(averageSize >= 256 && Integer.bitCount(averageSize) == 1,
+                "averageSize must be a power of two of at least 256");
+
+        this.in = in;
+        this.minSize = averageSize / 4;
+        this.averageSize = averageSize;
+        this.maxSize = averageSize * 4;
+
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        this.smallMask = -1L << (64 - (bits + 1));
+        this.largeMask = -1L << (64 - (bits - 1));
+
+        this.buffer = new byte[maxSize * 2];
+    }
+
+    // the most chunks `length` bytes can be split into: every chunk but the last is at least a quarter of the average
+    public static long maxChunks(long length, int averageSize) {
+        return length / (averageSize / 4) + 1;
+    }
+
+    // returns the next chunk, or empty once the whole stream has been split. An empty stream has no chunks
+    public Optional<byte[]> nextChunk() throws IOException {
+        fill();
+
+        int available = end - start;
+        if (available == 0) {
+            return Optional.empty();
+        }
+
+        int length = findBoundary(available);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return Optional.of(chunk);
+    }
+
+    // makes sure at least `maxSize` bytes are buffered, unless the stream ends first
+    private void fill() throws IOException {
+        if (end - start >= maxSize || eof) {
+            return;
+        }
+
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+
+        while (end < buffer.length) {
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read == -1) {
+                eof = true;
+                return;
+            }
+            end += read;
+        }
+    }
+
+    private int findBoundary(int available) {
+        if (available <= minSize) {
+            return available;
+        }
+
+        int limit = Math.min(available, maxSize);
+        int normal = Math.min(limit, averageSize);
+
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[buffer[start + i] & 0xff];
+            if ((hash & smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[buffer[start + i] & 0xff];
+            if ((hash & largeMask) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,39 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Optional;
+
+// Keeps every chunk in its row of `s2dr.ContentChunks`, i.e. inside the H2 database file, which is how chunks
+// were stored before segment files existed. The database takes care of making them durable.
+public class DatabaseDocumentStore implements DocumentStore {
+
+    @Override
+    public ChunkLocation write(byte[] chunk) {
+        return ChunkLocation.inRow(chunk);
+    }
+
+    @Override
+    public void sync(Collection<ChunkLocation> locations) {}
+
+    @Override
+    public byte[] read(ChunkLocation location) throws IOException {
+        if (!location.isInRow()) {
+            throw new IOException("Chunk is stored in segment file " + location.getSegmentId()
+                    + ", but the server is set up to store chunks in the database. Run DocumentStoreMigration, or"
+                    + " set -Ds2dr.store=segments");
+        }
+        return location.getRowContents().get();
+    }
+
+    @Override
+    public void erase(ChunkLocation location) {}
+
+    @Override
+    public Optional<FileRegion> fileRegion(ChunkLocation location) {
+        return Optional.empty();
+    }
+
+    @Override
+    public void close() {}
+}
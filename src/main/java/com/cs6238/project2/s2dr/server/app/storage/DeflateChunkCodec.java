@@ -0,0 +1,232 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compresses every chunk with DEFLATE before handing it to another codec (which encrypts it, or stores it as it
+// is), so that compressible documents take up less storage, and less of them has to be encrypted and decrypted.
+//
+// The other codec only ever sees the compressed chunk, so that is also what chunks are deduplicated by. A given
+// compressed chunk is always stored as the same bytes, whichever documents it is part of, so documents with and
+// without compression can share the store. Each chunk is compressed on its own (raw DEFLATE, ended with a sync
+// flush), so the compressed chunks of a document, one after the other, are a valid DEFLATE stream too. That is
+// what lets a document be sent to clients as gzip without decompressing it, see `writeGzipHeader`.
+public class DeflateChunkCodec implements ChunkCodec {
+
+    // `-Ds2dr.compression.level`, 1 (fastest) to 9 (smallest). Only affects chunks stored from then on, but chunks
+    // compressed at a different level won't deduplicate with the new ones
+    private static final int LEVEL = Integer.getInteger("s2dr.compression.level", 6);
+
+    // `-Ds2dr.compression.maxSampleRatio`. Documents whose sample doesn't compress to at most this fraction of its
+    // size are stored uncompressed
+    private static final double MAX_SAMPLE_RATIO = Double.parseDouble(
+            System.getProperty("s2dr.compression.maxSampleRatio", "0.9"));
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // a final, empty block with fixed Huffman codes, which ends a DEFLATE stream
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, // magic
+            Deflater.DEFLATED, // compression method
+            0, // flags
+            0, 0, 0, 0, // modification time, unknown
+            0, // extra flags
+            (byte) 0xff // operating system, unknown
+    };
+
+    private final ChunkCodec codec;
+
+    // The chunks that were described last, and what they compressed to: `describe` (or `describeAll`) and `encode`
+    // (or `encodeAll`) are called one after the other with the same chunks, which only need compressing once
+    private final Map<byte[], byte[]> describedChunks = new IdentityHashMap<>();
+
+    DeflateChunkCodec(ChunkCodec codec) {
+        this.codec = codec;
+    }
+
+    // whether a document whose first bytes are `sample[0, length)` is worth compressing
+    public static boolean isCompressible(byte[] sample, int length) {
+        if (length == 0) {
+            return false;
+        }
+        return compress(sample, length).length <= length * MAX_SAMPLE_RATIO;
+    }
+
+    @Override
+    public ChunkDescriptor describe(byte[] chunk, int chunkIndex) {
+        compressDescribed(Collections.singletonList(chunk));
+        return codec.describe(compressed(chunk), chunkIndex);
+    }
+
+    @Override
+    public byte[] encode(ChunkDescriptor descriptor, byte[] chunk) {
+        return codec.encode(descriptor, compressed(chunk));
+    }
+
+    // the other codec gets the whole batch, compressed, so it can still spread its own work over several threads
+    @Override
+    public List<ChunkDescriptor> describeAll(List<byte[]> chunks, int firstChunkIndex) throws IOException {
+        compressDescribed(chunks);
+        return codec.describeAll(compressed(chunks), firstChunkIndex);
+    }
+
+    @Override
+    public List<byte[]> encodeAll(List<ChunkDescriptor> descriptors, List<byte[]> chunks) throws IOException {
+        return codec.encodeAll(descriptors, compressed(chunks));
+    }
+
+    @Override
+    public byte[] decode(ChunkDescriptor descriptor, int chunkIndex, byte[] storedChunk) throws IOException {
+        return decompress(codec.decode(descriptor, chunkIndex, storedChunk));
+    }
+
+    private void compressDescribed(List<byte[]> chunks) {
+        describedChunks.clear();
+        for (byte[] chunk: chunks) {
+            describedChunks.put(chunk, compress(chunk, chunk.length));
+        }
+    }
+
+    private byte[] compressed(byte[] chunk) {
+        byte[] compressedChunk = describedChunks.get(chunk);
+        return compressedChunk != null ? compressedChunk : compress(chunk, chunk.length);
+    }
+
+    private List<byte[]> compressed(List<byte[]> chunks) {
+        List<byte[]> compressedChunks = new ArrayList<>(chunks.size());
+        for (byte[] chunk: chunks) {
+            compressedChunks.add(compressed(chunk));
+        }
+        return compressedChunks;
+    }
+
+    private static byte[] compress(byte[] chunk, int length) {
+        Deflater deflater = new Deflater(LEVEL, true);
+        try {
+            deflater.setInput(chunk, 0, length);
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int deflated;
+            do {
+                // a sync flush ends the chunk on a byte boundary without ending the stream
+                deflated = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, deflated);
+            } while (deflated == buffer.length);
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] compressedChunk) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressedChunk);
+
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(compressedChunk.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int inflated;
+            while ((inflated = inflater.inflate(buffer)) > 0 || !inflater.needsInput()) {
+                if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    break;
+                }
+                chunk.write(buffer, 0, inflated);
+            }
+            return chunk.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Chunk is not valid DEFLATE data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // A DEFLATE document is sent as gzip by writing this header, its compressed chunks as they are, and then
+    // `writeGzipTrailer` with the CRC-32 and length of its plaintext.
+    public static void writeGzipHeader(OutputStream output) throws IOException {
+        output.write(GZIP_HEADER);
+    }
+
+    public static void writeGzipTrailer(OutputStream output, long crc32, long length) throws IOException {
+        output.write(FINAL_BLOCK);
+        writeIntLittleEndian(output, crc32);
+        writeIntLittleEndian(output, length); // modulo 2^32, as gzip wants it
+    }
+
+    private static void writeIntLittleEndian(OutputStream output, long value) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            output.write((int) (value >>> (8 * i)) & 0xff);
+        }
+    }
+
+    // The CRC-32 of two byte sequences one after the other, from the CRC-32 of each and the length of the second
+    // (zlib's `crc32_combine`), which is how the CRC-32 of a document uploaded in parts is put together from theirs.
+    // The CRC of the first is moved along by `length2` zeros with powers of the CRC's shift matrix in GF(2)
+    public static long combineCrc32(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // the operator for one zero bit
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // two and then four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // one zero byte (eight zero bits) first, then squared for every bit of the length
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+}
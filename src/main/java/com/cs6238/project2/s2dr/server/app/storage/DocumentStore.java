@@ -0,0 +1,51 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Optional;
+
+// Keeps the bytes of stored chunks (see `DocumentContentDao`). The database only records where each chunk is.
+//
+// `-Ds2dr.store=segments` (the default) appends chunks to segment files on disk, see `SegmentFileDocumentStore`.
+// `-Ds2dr.store=database` keeps them in the database, in their rows of `s2dr.ContentChunks`, see
+// `DatabaseDocumentStore`. Chunks already stored one way have to be moved with `DocumentStoreMigration` before
+// the server is switched to the other.
+public interface DocumentStore extends Closeable {
+
+    // writes the bytes of a chunk that isn't stored yet, and returns where they were written
+    ChunkLocation write(byte[] chunk) throws IOException;
+
+    // Makes the chunks written to `locations` durable. Must be called before the transaction that refers to them
+    // is committed, so the database never refers to a chunk that a crash could lose.
+    void sync(Collection<ChunkLocation> locations) throws IOException;
+
+    byte[] read(ChunkLocation location) throws IOException;
+
+    // Overwrites a chunk's bytes with zeros (see `DocumentShredder`). Chunks kept in their rows are overwritten by
+    // updating the row instead.
+    void erase(ChunkLocation location) throws IOException;
+
+    // the part of a file a chunk is kept in, if it is kept in a file at all
+    Optional<FileRegion> fileRegion(ChunkLocation location);
+
+    static DocumentStore fromSystemProperties() throws IOException {
+        String store = System.getProperty("s2dr.store", "segments");
+        switch (store) {
+            case "segments":
+                return segmentsFromSystemProperties();
+            case "database":
+                return new DatabaseDocumentStore();
+            default:
+                throw new IllegalArgumentException("Unknown document store \"" + store + "\"");
+        }
+    }
+
+    // `-Ds2dr.store.directory` and `-Ds2dr.store.segmentSizeBytes`, whichever store is configured
+    static SegmentFileDocumentStore segmentsFromSystemProperties() throws IOException {
+        return new SegmentFileDocumentStore(
+                Paths.get(System.getProperty("s2dr.store.directory", "s2dr-segments")),
+                Long.getLong("s2dr.store.segmentSizeBytes", 256L * 1024 * 1024));
+    }
+}
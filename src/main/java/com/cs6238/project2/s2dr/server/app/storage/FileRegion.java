@@ -0,0 +1,47 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+import java.nio.file.Path;
+
+// `count` bytes at `position` in `file`. Documents whose stored bytes are their contents can be sent straight from
+// the files they are kept in (see `DocumentContentDao.locateContents`), without being read into memory first.
+public final class FileRegion {
+
+    private final Path file;
+    private final long position;
+    private final long count;
+
+    public FileRegion(Path file, long position, long count) {
+        this.file = file;
+        this.position = position;
+        this.count = count;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getEnd() {
+        return position + count;
+    }
+
+    // whether `next` starts right where this region ends, so the two can be sent as one
+    public boolean isFollowedBy(FileRegion next) {
+        return file.equals(next.file) && getEnd() == next.position;
+    }
+
+    public FileRegion extendBy(long count) {
+        return new FileRegion(file, position, this.count + count);
+    }
+
+    public FileRegion slice(long skip, long count) {
+        return new FileRegion(file, position + skip, count);
+    }
+}
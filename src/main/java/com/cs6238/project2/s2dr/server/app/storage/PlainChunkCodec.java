@@ -0,0 +1,35 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+
+// Stores chunks as they are, under their SHA-256. Used for documents without CONFIDENTIALITY, whose chunks may be
+// shared by any number of documents, whoever checked them in.
+public final class PlainChunkCodec implements ChunkCodec {
+
+    public static final PlainChunkCodec INSTANCE = new PlainChunkCodec();
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private PlainChunkCodec() {}
+
+    @Override
+    public ChunkDescriptor describe(byte[] chunk, int chunkIndex) {
+        try {
+            return new ChunkDescriptor(MessageDigest.getInstance(HASH_ALGORITHM).digest(chunk), Optional.empty());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is always available", e);
+        }
+    }
+
+    @Override
+    public byte[] encode(ChunkDescriptor descriptor, byte[] chunk) {
+        return chunk;
+    }
+
+    @Override
+    public byte[] decode(ChunkDescriptor descriptor, int chunkIndex, byte[] storedChunk) {
+        return storedChunk;
+    }
+}
@@ -0,0 +1,219 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Appends chunks to segment files in a directory of their own, so that the database only holds where each chunk
+// is, and stays small no matter how much is stored.
+//
+// New chunks are appended to the newest segment until it reaches `segmentSizeBytes`, after which a new segment
+// is started. Appending only reserves space under a lock, so concurrent check-ins write their chunks in parallel.
+// Segments are read through memory mappings, so reading a chunk is a copy out of the page cache rather than a
+// system call, and the chunks don't take up any heap (or database cache) while they aren't being read.
+//
+// Chunks are never moved. A shredded chunk is overwritten with zeros where it is, and the space it took up isn't
+// reused.
+public class SegmentFileDocumentStore implements DocumentStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentFileDocumentStore.class);
+
+    private static final String SEGMENT_FILE_FORMAT = "segment-%08d.dat";
+    private static final Pattern SEGMENT_FILE_PATTERN = Pattern.compile("segment-(\\d{8})\\.dat");
+
+    private final Path directory;
+    private final long segmentSizeBytes;
+
+    private final ConcurrentMap<Integer, FileChannel> channels = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, MappedByteBuffer> mappings = new ConcurrentHashMap<>();
+
+    // guarded by `this`
+    private int activeSegmentId;
+    private long activeSegmentSize;
+
+    public SegmentFileDocumentStore(Path directory, long segmentSizeBytes) throws IOException {
+        // a mapping, and so a segment, can't be larger than 2 GiB
+        checkArgument(segmentSizeBytes > 0 && segmentSizeBytes <= Integer.MAX_VALUE,
+                "segmentSizeBytes must be between 1 and %s", Integer.MAX_VALUE);
+
+        this.directory = directory;
+        this.segmentSizeBytes = segmentSizeBytes;
+
+        Files.createDirectories(directory);
+
+        // carry on appending to the newest segment
+        int newestSegmentId = 0;
+        DirectoryStream<Path> segments = Files.newDirectoryStream(directory);
+        try {
+            for (Path segment: segments) {
+                Matcher matcher = SEGMENT_FILE_PATTERN.matcher(segment.getFileName().toString());
+                if (matcher.matches()) {
+                    newestSegmentId = Math.max(newestSegmentId, Integer.parseInt(matcher.group(1)));
+                }
+            }
+        } finally {
+            segments.close();
+        }
+
+        this.activeSegmentId = newestSegmentId;
+        this.activeSegmentSize = channel(newestSegmentId).size();
+
+        LOG.info("Storing chunks in segment files in {}, appending to segment {} ({} bytes)",
+                directory.toAbsolutePath(), activeSegmentId, activeSegmentSize);
+    }
+
+    @Override
+    public ChunkLocation write(byte[] chunk) throws IOException {
+        ChunkLocation location = reserve(chunk.length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long position = location.getOffset();
+        FileChannel channel = channel(location.getSegmentId());
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        return location;
+    }
+
+    private synchronized ChunkLocation reserve(int length) {
+        if (activeSegmentSize > 0 && activeSegmentSize + length > segmentSizeBytes) {
+            activeSegmentId++;
+            activeSegmentSize = 0;
+            LOG.info("Starting segment {}", activeSegmentId);
+        }
+
+        ChunkLocation location = ChunkLocation.inSegment(activeSegmentId, activeSegmentSize, length);
+        activeSegmentSize += length;
+        return location;
+    }
+
+    @Override
+    public void sync(Collection<ChunkLocation> locations) throws IOException {
+        Set<Integer> segmentIds = new HashSet<>();
+        for (ChunkLocation location: locations) {
+            if (!location.isInRow()) {
+                segmentIds.add(location.getSegmentId());
+            }
+        }
+
+        // the file's metadata is only needed to find the data again if the file grew, which is always the case
+        for (Integer segmentId: segmentIds) {
+            channel(segmentId).force(true);
+        }
+    }
+
+    @Override
+    public byte[] read(ChunkLocation location) throws IOException {
+        if (location.isInRow()) {
+            // stored before the server was set up to store chunks in segment files
+            return location.getRowContents().get();
+        }
+
+        long end = location.getOffset() + location.getLength();
+        ByteBuffer buffer = mapping(location.getSegmentId(), end).duplicate();
+        buffer.position((int) location.getOffset());
+
+        byte[] chunk = new byte[location.getLength()];
+        buffer.get(chunk);
+        return chunk;
+    }
+
+    @Override
+    public void erase(ChunkLocation location) throws IOException {
+        if (location.isInRow()) {
+            return;
+        }
+
+        ByteBuffer zeros = ByteBuffer.allocate(location.getLength());
+        long position = location.getOffset();
+        FileChannel channel = channel(location.getSegmentId());
+        while (zeros.hasRemaining()) {
+            position += channel.write(zeros, position);
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public Optional<FileRegion> fileRegion(ChunkLocation location) {
+        if (location.isInRow()) {
+            return Optional.empty();
+        }
+        return Optional.of(new FileRegion(
+                segmentPath(location.getSegmentId()), location.getOffset(), location.getLength()));
+    }
+
+    // Returns a mapping of the segment that covers at least its first `end` bytes. The newest segment keeps
+    // growing, so its mapping is replaced with a larger one whenever a chunk past its end is read.
+    private MappedByteBuffer mapping(int segmentId, long end) throws IOException {
+        MappedByteBuffer mapping = mappings.get(segmentId);
+        if (mapping != null && mapping.capacity() >= end) {
+            return mapping;
+        }
+
+        synchronized (mappings) {
+            mapping = mappings.get(segmentId);
+            if (mapping == null || mapping.capacity() < end) {
+                FileChannel channel = channel(segmentId);
+                long size = channel.size();
+                if (size < end) {
+                    throw new IOException(String.format(
+                            "Segment %d is only %d bytes long, but a chunk ends at %d", segmentId, size, end));
+                }
+
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mappings.put(segmentId, mapping);
+            }
+            return mapping;
+        }
+    }
+
+    private FileChannel channel(int segmentId) throws IOException {
+        FileChannel channel = channels.get(segmentId);
+        if (channel != null) {
+            return channel;
+        }
+
+        synchronized (channels) {
+            channel = channels.get(segmentId);
+            if (channel == null) {
+                channel = FileChannel.open(segmentPath(segmentId),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channels.put(segmentId, channel);
+            }
+            return channel;
+        }
+    }
+
+    private Path segmentPath(int segmentId) {
+        return directory.resolve(String.format(SEGMENT_FILE_FORMAT, segmentId));
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mappings stay valid after their channels are closed, until they are garbage collected
+        mappings.clear();
+        for (FileChannel channel: channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+    }
+}
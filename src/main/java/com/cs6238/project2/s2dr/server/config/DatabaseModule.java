@@ -1,30 +1,39 @@
 package com.cs6238.project2.s2dr.server.config;
 
+import com.cs6238.project2.s2dr.server.app.NameIds;
+import com.cs6238.project2.s2dr.server.app.storage.DocumentStore;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPoolConfig;
+import com.cs6238.project2.s2dr.server.config.database.DocumentShredder;
+import com.cs6238.project2.s2dr.server.config.database.ExpiredPermissionSweeper;
+import com.cs6238.project2.s2dr.server.config.database.RequestConnection;
+import com.cs6238.project2.s2dr.server.config.database.SchemaUpgrade;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public class DatabaseModule extends AbstractModule {
 
-    // change the database url to "jdbc:h2:mem:s2dr;" and uncomment the return statement
-    // in the provider that contains the "INIT=runscript..." to use an in-memory database
-    // that is created from the `s2dr.sql` script
-    private static final String DATABASE_URL = "jdbc:h2:s2dr;";
+    // change the database url to "jdbc:h2:mem:s2dr;DB_CLOSE_DELAY=-1;" and uncomment the `INIT=runscript...`
+    // url in the pool provider to use an in-memory database that is created from the `s2dr.sql` script.
+    // MVCC lets the pooled sessions read while another session is writing instead of queueing on table locks
+    public static final String DATABASE_URL = "jdbc:h2:s2dr;MVCC=TRUE;LOCK_TIMEOUT=10000;";
     private static final String H2_DRIVER = "org.h2.Driver";
     private static final String SQL_SCRIPT_NAME = "s2dr.sql";
 
     @Override
-    protected void configure() {}
+    protected void configure() {
+        bind(ExpiredPermissionSweeper.class).in(Singleton.class);
+        bind(DocumentShredder.class).in(Singleton.class);
+    }
 
     @Provides
     @Singleton
-    private Connection getDatabaseConnection() throws SQLException, ClassNotFoundException {
+    private ConnectionPool getConnectionPool() throws SQLException, ClassNotFoundException {
         Class.forName(H2_DRIVER);
 
         // Right now, our H2 database is persisted at `${projectRoot}/s2dr.h2.db`. Changes to that file
@@ -32,15 +41,49 @@ public class DatabaseModule extends AbstractModule {
         // start over with your machine-local database, you should:
         //      1.) make sure the servlet is not running
         //      2.) delete the `${projectRoot}/s2dr.h2.db` file
-        //      3.) un-comment this return statement and comment out the one below
+        //      3.) un-comment this url and comment out the one below
         //      4.) start the servlet
         //      5.) login (at least one interaction with the database is needed for H2 to "create" the database.
         //              Logging in will do it.)
         //      6.) stop the servlet
-        //      7.) comment this return statement back out and uncomment the one below
-        // This will re-create the database following the schema that is defined in the `s2dr.sql` script
-//        return DriverManager.getConnection(DATABASE_URL + "INIT=runscript from'classpath:/" + SQL_SCRIPT_NAME + "'");
+        //      7.) comment this url back out and uncomment the one below
+        // This will re-create the database following the schema that is defined in the `s2dr.sql` script.
+        // Set `-Ds2dr.db.pool.minSize=0 -Ds2dr.db.pool.maxSize=1` while doing this, since the script
+        // would otherwise be run once for every pooled connection.
+//        String url = DATABASE_URL + "INIT=runscript from'classpath:/" + SQL_SCRIPT_NAME + "'";
+
+        String url = DATABASE_URL;
+
+        ConnectionPool connectionPool = new ConnectionPool(ConnectionPoolConfig.builder()
+                .setUrl(url)
+                .applySystemProperties()
+                .build());
+
+        // databases created from an older `s2dr.sql` are brought up to date before anything uses them
+        SchemaUpgrade.apply(connectionPool);
 
-        return DriverManager.getConnection(DATABASE_URL);
+        return connectionPool;
+    }
+
+    // the ids of every user and document, loaded once the schema is up to date
+    @Provides
+    @Singleton
+    private NameIds getNameIds(ConnectionPool connectionPool) throws SQLException {
+        NameIds nameIds = new NameIds();
+        nameIds.warm(connectionPool);
+        return nameIds;
+    }
+
+    // where the contents of documents stored as chunks are kept, see `-Ds2dr.store`
+    @Provides
+    @Singleton
+    private DocumentStore getDocumentStore() throws IOException {
+        return DocumentStore.fromSystemProperties();
+    }
+
+    // every DAO in a request shares the connection that the request borrowed from the pool
+    @Provides
+    private Connection getDatabaseConnection(RequestConnection requestConnection) throws SQLException {
+        return requestConnection.get();
     }
 }
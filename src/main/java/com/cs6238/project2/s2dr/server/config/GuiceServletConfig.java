@@ -2,9 +2,21 @@ package com.cs6238.project2.s2dr.server.config;
 
 import com.cs6238.project2.s2dr.server.app.DocumentService;
 import com.cs6238.project2.s2dr.server.app.LoginService;
+import com.cs6238.project2.s2dr.server.app.NameIds;
+import com.cs6238.project2.s2dr.server.app.UploadProgress;
+import com.cs6238.project2.s2dr.server.app.UploadSessionService;
+import com.cs6238.project2.s2dr.server.app.crypto.DataKeyCache;
+import com.cs6238.project2.s2dr.server.app.crypto.ParallelCryptoEngine;
+import com.cs6238.project2.s2dr.server.app.crypto.PublicKeyCache;
 import com.cs6238.project2.s2dr.server.app.objects.CurrentUser;
 import com.cs6238.project2.s2dr.server.app.objects.ServerKeyPair;
+import com.cs6238.project2.s2dr.server.app.storage.DocumentStore;
+import com.cs6238.project2.s2dr.server.config.authentication.AuthorizationCache;
 import com.cs6238.project2.s2dr.server.config.authentication.UserAuthShiroModule;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
+import com.cs6238.project2.s2dr.server.config.database.DocumentShredder;
+import com.cs6238.project2.s2dr.server.config.database.ExpiredPermissionSweeper;
+import com.cs6238.project2.s2dr.server.config.database.RequestConnectionFilter;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
@@ -20,12 +32,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
+import java.io.IOException;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.X509Certificate;
-import java.sql.Connection;
-import java.sql.SQLException;
 
 public class GuiceServletConfig extends GuiceServletContextListener {
 
@@ -47,9 +58,16 @@ public class GuiceServletConfig extends GuiceServletContextListener {
                         // will not require this
                         bind(DocumentService.class);
                         bind(LoginService.class);
+                        bind(UploadSessionService.class);
+
+                        // the uploads in parts in progress, shared by the requests uploading their parts
+                        bind(UploadProgress.class).in(Singleton.class);
 
                         bind(CurrentUser.class).in(SessionScoped.class);
 
+                        // must wrap the shiro filter, since logging in also uses the request's connection
+                        filter("/*").through(RequestConnectionFilter.class);
+
                         // include shiro filters to the guice filter
                         ShiroWebModule.bindGuiceFilter(binder());
                     }
@@ -57,6 +75,7 @@ public class GuiceServletConfig extends GuiceServletContextListener {
                 new DatabaseModule(),
                 new H2ServerGuiceModule(),
                 new ServerKeyPairGuiceModule(),
+                new CryptoGuiceModule(),
                 new UserAuthShiroModule(servletContext));
 
         return injector;
@@ -70,6 +89,15 @@ public class GuiceServletConfig extends GuiceServletContextListener {
 
         super.contextInitialized(servletContextEvent);
 
+        // load the ids of every user and document before the first request needs them
+        injector.getInstance(NameIds.class);
+
+        // start deleting expired document permissions in the background
+        injector.getInstance(ExpiredPermissionSweeper.class).startAsync();
+
+        // start overwriting deleted documents (including any left over from the last run) in the background
+        injector.getInstance(DocumentShredder.class).startAsync();
+
         // uncomment these lines to interact with the H2 server. You will also need to
         // uncomment the H2ServerRunner code below in `contextDestroyed` to prevent
         // rogue threads
@@ -81,14 +109,32 @@ public class GuiceServletConfig extends GuiceServletContextListener {
     public void contextDestroyed(ServletContextEvent servletContextEvent) {
         super.contextDestroyed(servletContextEvent);
 
-        // close the database connection
-        Connection conn = injector.getInstance(Connection.class);
+        // the sweeper and the shredder use the pool, so they have to be stopped first. A shred that is cut short
+        // is rolled back and done again the next time the server starts
+        injector.getInstance(ExpiredPermissionSweeper.class).stopAsync().awaitTerminated();
+        injector.getInstance(DocumentShredder.class).stopAsync().awaitTerminated();
+
+        // close all of the pooled database connections
+        injector.getInstance(ConnectionPool.class).close();
+
+        // close the segment files the chunks of stored documents are kept in
         try {
-            conn.close();
-        } catch (SQLException e) {
-            LOG.error("Unable to close the database connection");
+            injector.getInstance(DocumentStore.class).close();
+        } catch (IOException e) {
+            LOG.error("Unable to close the document store", e);
         }
 
+        // stop the threads that encrypt and decrypt document chunks
+        injector.getInstance(ParallelCryptoEngine.class).shutdown();
+
+        // forget (and zero) every cached document key
+        DataKeyCache dataKeyCache = injector.getInstance(DataKeyCache.class);
+        LOG.info("Data key cache statistics: {}", dataKeyCache.getStats());
+        dataKeyCache.invalidateAll();
+
+        LOG.info("Public key cache statistics: {}", injector.getInstance(PublicKeyCache.class).getStats());
+        LOG.info("Authorization cache statistics: {}", injector.getInstance(AuthorizationCache.class).getStats());
+
         // uncomment these lines if you are interacting with the H2 server
 //        H2ServerRunner runner = injector.getInstance(H2ServerRunner.class);
 //        runner.triggerShutdown();
@@ -103,7 +149,34 @@ public class GuiceServletConfig extends GuiceServletContextListener {
         }
     }
 
-    static class ServerKeyPairGuiceModule extends AbstractModule {
+    static class CryptoGuiceModule extends AbstractModule {
+
+        @Override
+        protected void configure() {}
+
+        // a single pool shared by every request, so concurrent check-ins and check-outs can't use more
+        // threads between them than there are cores
+        @Provides
+        @Singleton
+        private ParallelCryptoEngine provideParallelCryptoEngine() {
+            return ParallelCryptoEngine.fromSystemProperties();
+        }
+
+        @Provides
+        @Singleton
+        private DataKeyCache provideDataKeyCache() {
+            return DataKeyCache.fromSystemProperties();
+        }
+
+        @Provides
+        @Singleton
+        private PublicKeyCache providePublicKeyCache() {
+            return PublicKeyCache.fromSystemProperties();
+        }
+    }
+
+    // also used by the command line tools that need the server's key pair
+    public static class ServerKeyPairGuiceModule extends AbstractModule {
 
         // in a real system we would not hardcode the password, but it's only a school project
         private static final String DEFAULT_CERT_PASSWORD = "changeit";
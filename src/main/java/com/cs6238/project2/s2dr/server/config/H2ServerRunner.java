@@ -1,5 +1,6 @@
 package com.cs6238.project2.s2dr.server.config;
 
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.h2.tools.Server;
 import org.slf4j.Logger;
@@ -12,18 +13,22 @@ public class H2ServerRunner extends AbstractExecutionThreadService {
 
     private static final Logger LOG = LoggerFactory.getLogger(H2ServerRunner.class);
 
-    private final Connection connection;
+    private final ConnectionPool connectionPool;
+
+    // the web console keeps its own connection borrowed for as long as it is running
+    private Connection connection;
 
     boolean isRunning = false;
 
     @Inject
-    public H2ServerRunner(Connection connection) {
-        this.connection = connection;
+    public H2ServerRunner(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
     }
 
     @Override
     protected void startUp() {
         try {
+            connection = connectionPool.borrow();
             Server.startWebServer(connection);
             isRunning = true;
             this.run();
@@ -44,5 +49,13 @@ public class H2ServerRunner extends AbstractExecutionThreadService {
     protected void triggerShutdown() {
         isRunning = false;
     }
+
+    @Override
+    protected void shutDown() throws Exception {
+        if (connection != null) {
+            // hands the connection back to the pool
+            connection.close();
+        }
+    }
 }
 
@@ -1,7 +1,10 @@
 package com.cs6238.project2.s2dr.server.config.authentication;
 
+import com.cs6238.project2.s2dr.server.app.NameIds;
 import com.cs6238.project2.s2dr.server.app.exceptions.NoQueryResultsException;
 import com.cs6238.project2.s2dr.server.app.exceptions.TooManyQueryResultsException;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentGrant;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentPermission;
 import com.cs6238.project2.s2dr.server.app.objects.User;
 import com.cs6238.project2.s2dr.server.config.GuiceServletConfig;
 
@@ -12,11 +15,12 @@ import java.sql.SQLException;
 
 public class AuthenticationDao {
 
-    private static final Connection connection = GuiceServletConfig.injector.getInstance(Connection.class);
-
     public static User getUser(X509Token token)
             throws SQLException, NoQueryResultsException, TooManyQueryResultsException {
 
+        // the connection belongs to the current request, so it has to be looked up on every call
+        Connection connection = GuiceServletConfig.injector.getInstance(Connection.class);
+
         String query =
                 "SELECT userName" +
                 "  FROM s2dr.Users" +
@@ -52,4 +56,50 @@ public class AuthenticationDao {
             }
         }
     }
+
+    // every unexpired permission of the user, and every one granted to 'ALL'
+    public static DocumentAuthorizationInfo getAuthorizationInfo(Connection connection, String userName)
+            throws SQLException {
+
+        String query =
+                "SELECT d.documentName,\n" +
+                "       g.permissions,\n" +
+                "       g.readUntil,\n" +
+                "       g.writeUntil,\n" +
+                "       g.ownerUntil\n" +
+                "  FROM s2dr.DocumentGrants g\n" +
+                "  JOIN s2dr.Documents d\n" +
+                "    ON d.documentId = g.documentId\n" +
+                " WHERE g.userId = (SELECT u.userId\n" +
+                "                     FROM s2dr.Users u\n" +
+                "                    WHERE u.userName = (?))\n" +
+                "    OR g.userId = (?)";
+
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(query);
+            ps.setString(1, userName);
+            ps.setInt(2, NameIds.ALL_USERS_ID);
+
+            DocumentAuthorizationInfo authorization = new DocumentAuthorizationInfo();
+            long nowMillis = System.currentTimeMillis();
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                DocumentGrant grant = DocumentGrant.fromResultSet(rs);
+                for (DocumentPermission permission: DocumentPermission.values()) {
+                    if (grant.isGranted(permission, nowMillis)) {
+                        authorization.addPermission(
+                                rs.getString("documentName"),
+                                permission,
+                                grant.getTimeLimitMillis(permission).orElse(null));
+                    }
+                }
+            }
+            return authorization;
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,92 @@
+package com.cs6238.project2.s2dr.server.config.authentication;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Keeps every user's document permissions (see `DocumentAuthorizationInfo`) ready for `UserAuthRealm`, so that
+// checking a permission doesn't query the DocumentGrants table. The least recently used users are evicted
+// once the cache is full.
+//
+// Whatever changes a user's permissions invalidates that user once it has committed, or every user, for
+// permissions granted to 'ALL'. A load that was running while something was invalidated may have read the
+// permissions from before the change, so it isn't cached (see `getInvalidations`).
+public class AuthorizationCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AuthorizationCache.class);
+
+    private static final String PROPERTY_PREFIX = "s2dr.permissions.cache.";
+
+    // the grantee that stands for every user
+    public static final String ALL_USERS = "ALL";
+
+    private final Cache<String, DocumentAuthorizationInfo> authorizations;
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public AuthorizationCache(long maximumSize) {
+        checkArgument(maximumSize >= 0, "maximumSize must not be negative");
+
+        this.authorizations = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    // `-Ds2dr.permissions.cache.maximumSize`. A maximum size of 0 disables the cache
+    public static AuthorizationCache fromSystemProperties() {
+        long maximumSize = Long.getLong(PROPERTY_PREFIX + "maximumSize", 1000);
+
+        LOG.info("Creating authorization cache holding the permissions of at most {} users", maximumSize);
+
+        return new AuthorizationCache(maximumSize);
+    }
+
+    // the user's permissions, unless they aren't cached or one of them has expired since
+    public Optional<DocumentAuthorizationInfo> get(String userName) {
+        DocumentAuthorizationInfo authorization = authorizations.getIfPresent(userName);
+        if (authorization != null && authorization.isStale()) {
+            LOG.info("A permission of \"{}\" has expired. Reloading them", userName);
+            authorizations.invalidate(userName);
+            return Optional.empty();
+        }
+        return Optional.ofNullable(authorization);
+    }
+
+    // to be read before loading a user's permissions, and handed to `put` with them
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public void put(String userName, DocumentAuthorizationInfo authorization, long invalidationsBeforeLoad) {
+        // checked before and after, an invalidation in between is caught by the second check
+        if (invalidations.get() != invalidationsBeforeLoad) {
+            return;
+        }
+        authorizations.put(userName, authorization);
+        if (invalidations.get() != invalidationsBeforeLoad) {
+            authorizations.invalidate(userName);
+        }
+    }
+
+    // after the permissions granted to `userName` have changed. 'ALL' invalidates every user
+    public void invalidate(String userName) {
+        invalidations.incrementAndGet();
+        if (userName.equals(ALL_USERS)) {
+            LOG.info("Permissions granted to every user changed. Invalidating all cached permissions");
+            authorizations.invalidateAll();
+        } else {
+            authorizations.invalidate(userName);
+        }
+    }
+
+    public CacheStats getStats() {
+        return authorizations.stats();
+    }
+}
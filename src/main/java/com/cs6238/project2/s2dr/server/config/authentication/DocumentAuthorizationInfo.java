@@ -0,0 +1,69 @@
+package com.cs6238.project2.s2dr.server.config.authentication;
+
+import com.cs6238.project2.s2dr.server.app.objects.DocumentPermission;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Every unexpired permission a user has, on every document, including the ones granted to 'ALL'. Kept by
+// document, so that checking a permission is a lookup rather than a walk through all of them. Permissions with a
+// time limit make the whole thing stale once the first of them expires (see `isStale`).
+public class DocumentAuthorizationInfo implements AuthorizationInfo {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, EnumSet<DocumentPermission>> permissionsByDocument = new HashMap<>();
+    private long validUntilMillis = Long.MAX_VALUE;
+
+    public void addPermission(String documentName, DocumentPermission permission, Long timeLimitMillis) {
+        permissionsByDocument
+                .computeIfAbsent(documentName, name -> EnumSet.noneOf(DocumentPermission.class))
+                .add(permission);
+
+        if (timeLimitMillis != null) {
+            validUntilMillis = Math.min(validUntilMillis, timeLimitMillis);
+        }
+    }
+
+    public boolean isPermitted(DocumentLevelPermission permission) {
+        EnumSet<DocumentPermission> permissions = permissionsByDocument.get(permission.getDocumentName());
+        return permissions != null
+                && (permissions.contains(permission.getPermission())
+                        || permissions.contains(DocumentPermission.OWNER));
+    }
+
+    // whether one of the permissions has expired since they were loaded
+    public boolean isStale() {
+        return System.currentTimeMillis() >= validUntilMillis;
+    }
+
+    @Override
+    public Collection<String> getRoles() {
+        return Collections.emptySet();
+    }
+
+    // `document:<permission>:<documentName>`, see `DocumentLevelPermission`. Only for Shiro's own checks, which
+    // resolve every one of them on every check: `UserAuthRealm` looks permissions up with `isPermitted` instead
+    @Override
+    public Collection<String> getStringPermissions() {
+        List<String> stringPermissions = new ArrayList<>();
+        for (Map.Entry<String, EnumSet<DocumentPermission>> document: permissionsByDocument.entrySet()) {
+            for (DocumentPermission permission: document.getValue()) {
+                stringPermissions.add(new DocumentLevelPermission(permission, document.getKey()).toString());
+            }
+        }
+        return stringPermissions;
+    }
+
+    @Override
+    public Collection<Permission> getObjectPermissions() {
+        return Collections.emptySet();
+    }
+}
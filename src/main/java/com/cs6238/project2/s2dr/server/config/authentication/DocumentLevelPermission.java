@@ -0,0 +1,70 @@
+package com.cs6238.project2.s2dr.server.config.authentication;
+
+import com.cs6238.project2.s2dr.server.app.objects.DocumentPermission;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.shiro.authz.Permission;
+
+import static java.util.Objects.requireNonNull;
+
+// A permission on a single document, written `document:<permission>:<documentName>` (e.g. `document:READ:notes`).
+// Document names can contain anything, including the `:` and `,` that Shiro's `WildcardPermission` splits on, so
+// everything after the second `:` is the name. OWNER implies READ and WRITE on the same document, like it does
+// everywhere else.
+public class DocumentLevelPermission implements Permission {
+
+    private static final String PREFIX = "document";
+    private static final String SEPARATOR = ":";
+
+    private final DocumentPermission permission;
+    private final String documentName;
+
+    public DocumentLevelPermission(DocumentPermission permission, String documentName) {
+        this.permission = requireNonNull(permission);
+        this.documentName = requireNonNull(documentName);
+    }
+
+    // the `PermissionResolver` of `UserAuthRealm`
+    public static DocumentLevelPermission parse(String permissionString) {
+        String[] parts = permissionString.split(SEPARATOR, 3);
+        if (parts.length != 3 || !parts[0].equals(PREFIX)) {
+            throw new IllegalArgumentException(String.format(
+                    "\"%s\" is not a document permission", permissionString));
+        }
+        return new DocumentLevelPermission(DocumentPermission.valueOf(parts[1]), parts[2]);
+    }
+
+    public DocumentPermission getPermission() {
+        return permission;
+    }
+
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    @Override
+    public boolean implies(Permission p) {
+        if (!(p instanceof DocumentLevelPermission)) {
+            return false;
+        }
+
+        DocumentLevelPermission other = (DocumentLevelPermission) p;
+        return documentName.equals(other.documentName)
+                && (permission == other.permission || permission == DocumentPermission.OWNER);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return PREFIX + SEPARATOR + permission.name() + SEPARATOR + documentName;
+    }
+}
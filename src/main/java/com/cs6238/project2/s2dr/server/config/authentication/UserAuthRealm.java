@@ -9,26 +9,103 @@ import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.apache.shiro.authz.AuthorizationException;
 import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
 import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Optional;
 
+// Authenticates users by their certificate, and authorizes them by their document permissions, which are the
+// `document:<permission>:<documentName>` permissions of `DocumentLevelPermission`. A user's permissions are loaded
+// all at once and kept in the `AuthorizationCache` rather than Shiro's own cache, which can't be invalidated for
+// the 'ALL' grantee or when a time limit passes.
 public class UserAuthRealm extends AuthorizingRealm {
 
     private static final Logger LOG = LoggerFactory.getLogger(AuthorizingRealm.class);
 
+    private final AuthorizationCache authorizationCache;
+    private final Provider<Connection> connectionProvider;
+
+    @Inject
+    public UserAuthRealm(AuthorizationCache authorizationCache, Provider<Connection> connectionProvider) {
+        this.authorizationCache = authorizationCache;
+        this.connectionProvider = connectionProvider;
+
+        setAuthorizationCachingEnabled(false);
+        setPermissionResolver(DocumentLevelPermission::parse);
+    }
+
     @Override
     public boolean supports(AuthenticationToken token) {
         return token instanceof X509Token;
     }
 
+    // whether the user has `permission` (or OWNER) on its document, or everyone does
+    public boolean isPermitted(String userName, DocumentLevelPermission permission) {
+        return getAuthorizationInfo(userName).isPermitted(permission);
+    }
+
+    // after the permissions granted to `userName` (or 'ALL') have changed and the change has been committed
+    public void invalidateAuthorization(String userName) {
+        authorizationCache.invalidate(userName);
+    }
+
+    @Override
+    protected boolean isPermitted(Permission permission, AuthorizationInfo info) {
+        if (permission instanceof DocumentLevelPermission && info instanceof DocumentAuthorizationInfo) {
+            return ((DocumentAuthorizationInfo) info).isPermitted((DocumentLevelPermission) permission);
+        }
+        return super.isPermitted(permission, info);
+    }
+
+    @Override
+    protected AuthorizationInfo getAuthorizationInfo(PrincipalCollection principals) {
+        if (principals == null) {
+            return null;
+        }
+        return getAuthorizationInfo(((User) principals.getPrimaryPrincipal()).getUserName());
+    }
+
+    // loads the permissions, without the cache
     @Override
     protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals) {
-        return null;
+        try {
+            return AuthenticationDao.getAuthorizationInfo(
+                    connectionProvider.get(), ((User) principals.getPrimaryPrincipal()).getUserName());
+        } catch (SQLException e) {
+            throw new AuthorizationException("Unable to load the permissions of " + principals, e);
+        }
+    }
+
+    private DocumentAuthorizationInfo getAuthorizationInfo(String userName) {
+        Optional<DocumentAuthorizationInfo> cached = authorizationCache.get(userName);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+
+        LOG.info("Permissions of \"{}\" are not cached. Loading them", userName);
+        long invalidations = authorizationCache.getInvalidations();
+        try {
+            // the request's connection, the one every DAO of the request uses
+            Connection connection = connectionProvider.get();
+            DocumentAuthorizationInfo authorization = AuthenticationDao.getAuthorizationInfo(connection, userName);
+
+            // inside a transaction, the permissions may include changes that are still to be rolled back
+            if (connection.getAutoCommit()) {
+                authorizationCache.put(userName, authorization, invalidations);
+            }
+            return authorization;
+        } catch (SQLException e) {
+            throw new AuthorizationException("Unable to load the permissions of " + userName, e);
+        }
     }
 
     @Override
@@ -1,6 +1,8 @@
 package com.cs6238.project2.s2dr.server.config.authentication;
 
+import com.google.inject.Exposed;
 import com.google.inject.Key;
+import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import org.apache.shiro.guice.web.ShiroWebModule;
 
@@ -16,10 +18,22 @@ public class UserAuthShiroModule extends ShiroWebModule {
     protected void configureShiroWeb() {
         bindRealm().to(UserAuthRealm.class);
 
+        // a single realm, which `DocumentService` asks for permissions (and tells when they change) directly
+        bind(UserAuthRealm.class).in(Singleton.class);
+        expose(UserAuthRealm.class);
+
         // allow anonymous users to reach the login endpoint without authenticating
         addFilterChain("/s2dr/login", ANON);
 
         // filter all requests through the authorization filter
         addFilterChain("/**", Key.get(UserAuthFilter.class));
     }
+
+    // shared by every request, see `-Ds2dr.permissions.cache.maximumSize`
+    @Provides
+    @Singleton
+    @Exposed
+    private AuthorizationCache provideAuthorizationCache() {
+        return AuthorizationCache.fromSystemProperties();
+    }
 }
@@ -0,0 +1,270 @@
+package com.cs6238.project2.s2dr.server.config.database;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A small bounded pool of JDBC connections. At most `maxSize` connections are ever open, callers wait up to
+// `acquireTimeoutMillis` for one to free up, and connections that are held for too long are reported as leaks.
+// Connections handed out by `borrow()` are returned to the pool by calling `close()` on them.
+public class ConnectionPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final ConnectionPoolConfig config;
+
+    // one permit per connection that may be borrowed at the same time
+    private final Semaphore permits;
+    private final BlockingDeque<Connection> idleConnections = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> borrowedConnections = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+
+    private final AtomicInteger waitingThreads = new AtomicInteger();
+    private final AtomicLong totalBorrows = new AtomicLong();
+    private final AtomicLong totalTimeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong leaksDetected = new AtomicLong();
+    private final AtomicLong connectionsCreated = new AtomicLong();
+    private final AtomicLong connectionsDestroyed = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    public ConnectionPool(ConnectionPoolConfig config) throws SQLException {
+        this.config = config;
+        this.permits = new Semaphore(config.getMaxSize(), true);
+
+        LOG.info("Creating database connection pool {}", config);
+        for (int i = 0; i < config.getMinSize(); i++) {
+            idleConnections.offerLast(createConnection());
+        }
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("s2dr-connection-pool-housekeeper")
+                .setDaemon(true)
+                .build());
+        this.housekeeper.scheduleWithFixedDelay(
+                this::housekeep,
+                config.getHousekeepingIntervalMillis(),
+                config.getHousekeepingIntervalMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool has been closed");
+        }
+
+        long waitStart = System.nanoTime();
+        boolean acquired;
+        waitingThreads.incrementAndGet();
+        try {
+            acquired = permits.tryAcquire(config.getAcquireTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        } finally {
+            waitingThreads.decrementAndGet();
+        }
+
+        long waitNanos = System.nanoTime() - waitStart;
+        if (!acquired) {
+            totalTimeouts.incrementAndGet();
+            LOG.warn("Timed out waiting for a database connection. Pool stats: {}", getStats());
+            throw new SQLTimeoutException(String.format(
+                    "Timed out after %d ms waiting for a database connection", config.getAcquireTimeoutMillis()));
+        }
+        recordWait(waitNanos);
+
+        try {
+            Connection rawConnection = takeValidConnection();
+
+            // only capture the (fairly expensive) stack trace when we will actually use it to report a leak
+            Throwable borrowTrace = config.getLeakDetectionThresholdMillis() > 0
+                    ? new Throwable("Connection borrowed here")
+                    : null;
+
+            PooledConnection pooledConnection = new PooledConnection(this, rawConnection, borrowTrace);
+            borrowedConnections.add(pooledConnection);
+            totalBorrows.incrementAndGet();
+
+            return pooledConnection.getProxy();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(PooledConnection pooledConnection) {
+        if (!borrowedConnections.remove(pooledConnection)) {
+            // already released
+            return;
+        }
+
+        Connection rawConnection = pooledConnection.getRawConnection();
+        try {
+            if (closed || rawConnection.isClosed()) {
+                destroy(rawConnection);
+                return;
+            }
+
+            // never hand an open transaction to the next borrower
+            if (!rawConnection.getAutoCommit()) {
+                rawConnection.rollback();
+                rawConnection.setAutoCommit(true);
+            }
+
+            // most recently used connections are handed out first
+            idleConnections.offerFirst(rawConnection);
+        } catch (SQLException e) {
+            LOG.warn("Unable to reset a returned connection. Discarding it", e);
+            destroy(rawConnection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    public ConnectionPoolStats getStats() {
+        return ConnectionPoolStats.builder()
+                .setActiveConnections(borrowedConnections.size())
+                .setIdleConnections(idleConnections.size())
+                .setWaitingThreads(waitingThreads.get())
+                .setTotalBorrows(totalBorrows.get())
+                .setTotalTimeouts(totalTimeouts.get())
+                .setTotalWaitMillis(TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get()))
+                .setMaxWaitMillis(TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()))
+                .setValidationFailures(validationFailures.get())
+                .setLeaksDetected(leaksDetected.get())
+                .setConnectionsCreated(connectionsCreated.get())
+                .setConnectionsDestroyed(connectionsDestroyed.get())
+                .build();
+    }
+
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+
+        Connection idleConnection;
+        while ((idleConnection = idleConnections.pollFirst()) != null) {
+            destroy(idleConnection);
+        }
+
+        if (!borrowedConnections.isEmpty()) {
+            LOG.warn("Closing the connection pool while {} connections are still borrowed",
+                    borrowedConnections.size());
+        }
+        for (PooledConnection pooledConnection: borrowedConnections) {
+            destroy(pooledConnection.getRawConnection());
+        }
+        borrowedConnections.clear();
+
+        LOG.info("Closed the database connection pool. Final stats: {}", getStats());
+    }
+
+    private Connection takeValidConnection() throws SQLException {
+        Connection rawConnection;
+        while ((rawConnection = idleConnections.pollFirst()) != null) {
+            if (!config.getValidateOnBorrow() || isValid(rawConnection)) {
+                return rawConnection;
+            }
+
+            LOG.warn("Discarding a pooled connection that failed validation");
+            validationFailures.incrementAndGet();
+            destroy(rawConnection);
+        }
+
+        // nothing idle, but we hold a permit, so we are allowed to open another connection
+        return createConnection();
+    }
+
+    private boolean isValid(Connection rawConnection) {
+        try {
+            return rawConnection.isValid(config.getValidationTimeoutSeconds());
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection createConnection() throws SQLException {
+        Connection rawConnection = DriverManager.getConnection(config.getUrl());
+        connectionsCreated.incrementAndGet();
+        return rawConnection;
+    }
+
+    private void destroy(Connection rawConnection) {
+        try {
+            rawConnection.close();
+        } catch (SQLException e) {
+            LOG.warn("Unable to close a database connection", e);
+        }
+        connectionsDestroyed.incrementAndGet();
+    }
+
+    private void recordWait(long waitNanos) {
+        totalWaitNanos.addAndGet(waitNanos);
+
+        long currentMax = maxWaitNanos.get();
+        while (waitNanos > currentMax && !maxWaitNanos.compareAndSet(currentMax, waitNanos)) {
+            currentMax = maxWaitNanos.get();
+        }
+    }
+
+    private void housekeep() {
+        try {
+            reportLeaks();
+            topUpIdleConnections();
+            LOG.debug("Connection pool stats: {}", getStats());
+        } catch (RuntimeException e) {
+            // never let an exception kill the housekeeping thread
+            LOG.error("Connection pool housekeeping failed", e);
+        }
+    }
+
+    private void reportLeaks() {
+        long threshold = config.getLeakDetectionThresholdMillis();
+        if (threshold <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (PooledConnection pooledConnection: borrowedConnections) {
+            long heldMillis = now - pooledConnection.getBorrowedAtMillis();
+            if (heldMillis > threshold && pooledConnection.markLeakReported()) {
+                leaksDetected.incrementAndGet();
+                LOG.warn(String.format("Possible connection leak. A connection has been held for %d ms", heldMillis),
+                        pooledConnection.getBorrowTrace());
+            }
+        }
+    }
+
+    private void topUpIdleConnections() {
+        while (!closed
+                && idleConnections.size() + borrowedConnections.size() < config.getMinSize()
+                && permits.tryAcquire()) {
+            try {
+                idleConnections.offerLast(createConnection());
+            } catch (SQLException e) {
+                LOG.warn("Unable to open a connection while topping up the pool", e);
+                return;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+}
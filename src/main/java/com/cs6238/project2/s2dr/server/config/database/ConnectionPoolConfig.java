@@ -0,0 +1,179 @@
+package com.cs6238.project2.s2dr.server.config.database;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+public class ConnectionPoolConfig {
+
+    // every setting can be overridden with a system property, e.g. `-Ds2dr.db.pool.maxSize=50`
+    private static final String PROPERTY_PREFIX = "s2dr.db.pool.";
+
+    public static class Builder {
+        private String url;
+        private int minSize = 2;
+        private int maxSize = 20;
+        private long acquireTimeoutMillis = 5000;
+        private boolean validateOnBorrow = true;
+        private int validationTimeoutSeconds = 2;
+        private long leakDetectionThresholdMillis = 60000;
+        private long housekeepingIntervalMillis = 10000;
+
+        public Builder setUrl(String url) {
+            this.url = url;
+            return this;
+        }
+
+        public Builder setMinSize(int minSize) {
+            this.minSize = minSize;
+            return this;
+        }
+
+        public Builder setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        public Builder setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+            this.acquireTimeoutMillis = acquireTimeoutMillis;
+            return this;
+        }
+
+        public Builder setValidateOnBorrow(boolean validateOnBorrow) {
+            this.validateOnBorrow = validateOnBorrow;
+            return this;
+        }
+
+        public Builder setValidationTimeoutSeconds(int validationTimeoutSeconds) {
+            this.validationTimeoutSeconds = validationTimeoutSeconds;
+            return this;
+        }
+
+        // a value of zero disables leak detection
+        public Builder setLeakDetectionThresholdMillis(long leakDetectionThresholdMillis) {
+            this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+            return this;
+        }
+
+        public Builder setHousekeepingIntervalMillis(long housekeepingIntervalMillis) {
+            this.housekeepingIntervalMillis = housekeepingIntervalMillis;
+            return this;
+        }
+
+        // applies any `s2dr.db.pool.*` system properties on top of the current values
+        public Builder applySystemProperties() {
+            minSize = Integer.getInteger(PROPERTY_PREFIX + "minSize", minSize);
+            maxSize = Integer.getInteger(PROPERTY_PREFIX + "maxSize", maxSize);
+            acquireTimeoutMillis = Long.getLong(PROPERTY_PREFIX + "acquireTimeoutMillis", acquireTimeoutMillis);
+            validateOnBorrow = Boolean.parseBoolean(
+                    System.getProperty(PROPERTY_PREFIX + "validateOnBorrow", String.valueOf(validateOnBorrow)));
+            validationTimeoutSeconds = Integer.getInteger(
+                    PROPERTY_PREFIX + "validationTimeoutSeconds", validationTimeoutSeconds);
+            leakDetectionThresholdMillis = Long.getLong(
+                    PROPERTY_PREFIX + "leakDetectionThresholdMillis", leakDetectionThresholdMillis);
+            housekeepingIntervalMillis = Long.getLong(
+                    PROPERTY_PREFIX + "housekeepingIntervalMillis", housekeepingIntervalMillis);
+            return this;
+        }
+
+        public ConnectionPoolConfig build() {
+            return new ConnectionPoolConfig(
+                    url,
+                    minSize,
+                    maxSize,
+                    acquireTimeoutMillis,
+                    validateOnBorrow,
+                    validationTimeoutSeconds,
+                    leakDetectionThresholdMillis,
+                    housekeepingIntervalMillis);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final String url;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final boolean validateOnBorrow;
+    private final int validationTimeoutSeconds;
+    private final long leakDetectionThresholdMillis;
+    private final long housekeepingIntervalMillis;
+
+    private ConnectionPoolConfig(
+            String url,
+            int minSize,
+            int maxSize,
+            long acquireTimeoutMillis,
+            boolean validateOnBorrow,
+            int validationTimeoutSeconds,
+            long leakDetectionThresholdMillis,
+            long housekeepingIntervalMillis) {
+
+        checkArgument(minSize >= 0, "minSize must not be negative");
+        checkArgument(maxSize > 0 && maxSize >= minSize, "maxSize must be positive and at least minSize");
+        checkArgument(acquireTimeoutMillis >= 0, "acquireTimeoutMillis must not be negative");
+        checkArgument(housekeepingIntervalMillis > 0, "housekeepingIntervalMillis must be positive");
+
+        this.url = requireNonNull(url);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validateOnBorrow = validateOnBorrow;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+        this.housekeepingIntervalMillis = housekeepingIntervalMillis;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getAcquireTimeoutMillis() {
+        return acquireTimeoutMillis;
+    }
+
+    public boolean getValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    public int getValidationTimeoutSeconds() {
+        return validationTimeoutSeconds;
+    }
+
+    public long getLeakDetectionThresholdMillis() {
+        return leakDetectionThresholdMillis;
+    }
+
+    public long getHousekeepingIntervalMillis() {
+        return housekeepingIntervalMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
@@ -0,0 +1,198 @@
+package com.cs6238.project2.s2dr.server.config.database;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+// a point-in-time snapshot of the pool counters. Obtained through `ConnectionPool.getStats()`
+public class ConnectionPoolStats {
+
+    public static class Builder {
+        private int activeConnections;
+        private int idleConnections;
+        private int waitingThreads;
+        private long totalBorrows;
+        private long totalTimeouts;
+        private long totalWaitMillis;
+        private long maxWaitMillis;
+        private long validationFailures;
+        private long leaksDetected;
+        private long connectionsCreated;
+        private long connectionsDestroyed;
+
+        public Builder setActiveConnections(int activeConnections) {
+            this.activeConnections = activeConnections;
+            return this;
+        }
+
+        public Builder setIdleConnections(int idleConnections) {
+            this.idleConnections = idleConnections;
+            return this;
+        }
+
+        public Builder setWaitingThreads(int waitingThreads) {
+            this.waitingThreads = waitingThreads;
+            return this;
+        }
+
+        public Builder setTotalBorrows(long totalBorrows) {
+            this.totalBorrows = totalBorrows;
+            return this;
+        }
+
+        public Builder setTotalTimeouts(long totalTimeouts) {
+            this.totalTimeouts = totalTimeouts;
+            return this;
+        }
+
+        public Builder setTotalWaitMillis(long totalWaitMillis) {
+            this.totalWaitMillis = totalWaitMillis;
+            return this;
+        }
+
+        public Builder setMaxWaitMillis(long maxWaitMillis) {
+            this.maxWaitMillis = maxWaitMillis;
+            return this;
+        }
+
+        public Builder setValidationFailures(long validationFailures) {
+            this.validationFailures = validationFailures;
+            return this;
+        }
+
+        public Builder setLeaksDetected(long leaksDetected) {
+            this.leaksDetected = leaksDetected;
+            return this;
+        }
+
+        public Builder setConnectionsCreated(long connectionsCreated) {
+            this.connectionsCreated = connectionsCreated;
+            return this;
+        }
+
+        public Builder setConnectionsDestroyed(long connectionsDestroyed) {
+            this.connectionsDestroyed = connectionsDestroyed;
+            return this;
+        }
+
+        public ConnectionPoolStats build() {
+            return new ConnectionPoolStats(
+                    activeConnections,
+                    idleConnections,
+                    waitingThreads,
+                    totalBorrows,
+                    totalTimeouts,
+                    totalWaitMillis,
+                    maxWaitMillis,
+                    validationFailures,
+                    leaksDetected,
+                    connectionsCreated,
+                    connectionsDestroyed);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final int activeConnections;
+    private final int idleConnections;
+    private final int waitingThreads;
+    private final long totalBorrows;
+    private final long totalTimeouts;
+    private final long totalWaitMillis;
+    private final long maxWaitMillis;
+    private final long validationFailures;
+    private final long leaksDetected;
+    private final long connectionsCreated;
+    private final long connectionsDestroyed;
+
+    private ConnectionPoolStats(
+            int activeConnections,
+            int idleConnections,
+            int waitingThreads,
+            long totalBorrows,
+            long totalTimeouts,
+            long totalWaitMillis,
+            long maxWaitMillis,
+            long validationFailures,
+            long leaksDetected,
+            long connectionsCreated,
+            long connectionsDestroyed) {
+
+        this.activeConnections = activeConnections;
+        this.idleConnections = idleConnections;
+        this.waitingThreads = waitingThreads;
+        this.totalBorrows = totalBorrows;
+        this.totalTimeouts = totalTimeouts;
+        this.totalWaitMillis = totalWaitMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        this.validationFailures = validationFailures;
+        this.leaksDetected = leaksDetected;
+        this.connectionsCreated = connectionsCreated;
+        this.connectionsDestroyed = connectionsDestroyed;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    public int getWaitingThreads() {
+        return waitingThreads;
+    }
+
+    public long getTotalBorrows() {
+        return totalBorrows;
+    }
+
+    public long getTotalTimeouts() {
+        return totalTimeouts;
+    }
+
+    public long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public double getAverageWaitMillis() {
+        return totalBorrows == 0 ? 0 : (double) totalWaitMillis / totalBorrows;
+    }
+
+    public long getValidationFailures() {
+        return validationFailures;
+    }
+
+    public long getLeaksDetected() {
+        return leaksDetected;
+    }
+
+    public long getConnectionsCreated() {
+        return connectionsCreated;
+    }
+
+    public long getConnectionsDestroyed() {
+        return connectionsDestroyed;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return EqualsBuilder.reflectionEquals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this);
+    }
+}
@@ -0,0 +1,558 @@
+package com.cs6238.project2.s2dr.server.config.database;
+
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao;
+import com.cs6238.project2.s2dr.server.app.UploadSessionDao;
+import com.cs6238.project2.s2dr.server.app.storage.ChunkLocation;
+import com.cs6238.project2.s2dr.server.app.storage.DocumentStore;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// Overwrites the contents of deleted documents with zeros before deleting them for good. Deleting a document
+// only renames its row to a tombstone and queues it in `s2dr.ShredQueue` (see `DocumentDao.queueForShredding`),
+// so the delete request doesn't have to wait for the overwrite. Since the queue is a table, a shred that hasn't
+// happened yet when the server stops is picked up again when it starts.
+//
+// Each document is shredded in its own transaction, so a failed (or interrupted) overwrite leaves the document
+// queued, and the overwrite is streamed in fixed-size chunks at a limited rate, so that shredding a large
+// document neither holds the whole thing in memory nor starves the requests of the database.
+//
+// Documents stored as chunks (see `DocumentContentDao`) give up their references on their chunks instead. A chunk
+// can be shared by several documents, so it is only overwritten and deleted once no document refers to it anymore,
+// which is also what happens to the chunks that only the old contents of an overwritten document referred to (once
+// they are no longer kept as an earlier version of it).
+// Chunks kept in segment files are overwritten where they are by the `DocumentStore`, at the same limited rate.
+//
+// Uploads in parts that were never committed (see `UploadSessionService`) give up the chunks of their parts once
+// they expire, before the chunks are shredded, and so do the staged contents (see `DocumentContentDao.stageContents`)
+// of check-ins that stopped staging without releasing them, once nothing has been staged under them for a while.
+public class DocumentShredder extends AbstractScheduledService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DocumentShredder.class);
+
+    private static final String PROPERTY_PREFIX = "s2dr.shredder.";
+
+    // `-Ds2dr.shredder.intervalSeconds`, `-Ds2dr.shredder.chunkSize` and `-Ds2dr.shredder.maxBytesPerSecond`
+    private static final long INTERVAL_SECONDS = Long.getLong(PROPERTY_PREFIX + "intervalSeconds", 5);
+    private static final int CHUNK_SIZE = Integer.getInteger(PROPERTY_PREFIX + "chunkSize", 64 * 1024);
+    private static final double MAX_BYTES_PER_SECOND = Double.parseDouble(
+            System.getProperty(PROPERTY_PREFIX + "maxBytesPerSecond", String.valueOf(32 * 1024 * 1024)));
+
+    // `-Ds2dr.shredder.abandonedStagingMinutes`. A check-in whose client stalls for longer than this fails when it
+    // is committed
+    private static final int ABANDONED_STAGING_MINUTES =
+            Integer.getInteger(PROPERTY_PREFIX + "abandonedStagingMinutes", 60);
+
+    private final ConnectionPool connectionPool;
+    private final DocumentStore documentStore;
+    private final RateLimiter rateLimiter;
+
+    @Inject
+    public DocumentShredder(ConnectionPool connectionPool, DocumentStore documentStore) {
+        this.connectionPool = connectionPool;
+        this.documentStore = documentStore;
+        this.rateLimiter = RateLimiter.create(MAX_BYTES_PER_SECOND);
+    }
+
+    @Override
+    protected void runOneIteration() {
+        try {
+            long shredded = shredQueued();
+            if (shredded > 0) {
+                LOG.info("Shredded {} deleted documents", shredded);
+            }
+
+            long discarded = discardExpiredUploads();
+            if (discarded > 0) {
+                LOG.info("Discarded {} expired uploads", discarded);
+            }
+
+            long abandoned = discardAbandonedStagings();
+            if (abandoned > 0) {
+                LOG.info("Released {} abandoned staged contents", abandoned);
+            }
+
+            long shreddedChunks = shredOrphanedChunks();
+            if (shreddedChunks > 0) {
+                LOG.info("Shredded {} chunks no document refers to anymore", shreddedChunks);
+            }
+        } catch (SQLException | IOException e) {
+            // an exception would stop the service for good, so just try again next time
+            LOG.error("Unable to shred deleted documents", e);
+        }
+    }
+
+    @Override
+    protected Scheduler scheduler() {
+        return Scheduler.newFixedDelaySchedule(0, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // shreds queued documents, oldest first, until the queue is empty (or the service is being stopped), and
+    // returns how many were shredded
+    private long shredQueued() throws SQLException, IOException {
+        long shredded = 0;
+        Optional<String> tombstoneName;
+        while (isRunning() && (tombstoneName = nextQueued()).isPresent()) {
+            shred(tombstoneName.get());
+            shredded++;
+        }
+        return shredded;
+    }
+
+    // discards the uploads in parts that expired before they were committed, and returns how many were discarded
+    private long discardExpiredUploads() throws SQLException {
+        long discarded = 0;
+        Optional<String> sessionId;
+        while (isRunning() && (sessionId = nextExpiredUpload()).isPresent()) {
+            discardUpload(sessionId.get());
+            discarded++;
+        }
+        return discarded;
+    }
+
+    private Optional<String> nextExpiredUpload() throws SQLException {
+        String query =
+                "SELECT sessionId\n" +
+                "  FROM s2dr.UploadSessions\n" +
+                " WHERE expires <= NOW()\n" +
+                " ORDER BY expires\n" +
+                " LIMIT 1";
+
+        Connection connection = connectionPool.borrow();
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(query);
+            ResultSet rs = ps.executeQuery();
+
+            return rs.next() ? Optional.of(rs.getString("sessionId")) : Optional.empty();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    private void discardUpload(String sessionId) throws SQLException {
+        Connection connection = connectionPool.borrow();
+        try {
+            Transaction transaction = Transaction.begin(connection);
+            try {
+                LOG.debug("Discarding expired upload \"{}\"", sessionId);
+                new DocumentContentDao(connection, documentStore).releaseUpload(sessionId);
+                new UploadSessionDao(connection).deleteSession(sessionId);
+
+                transaction.commit();
+            } finally {
+                transaction.end();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    // releases the staged contents nothing was staged under for `ABANDONED_STAGING_MINUTES`, and returns how many
+    // were released
+    private long discardAbandonedStagings() throws SQLException {
+        long discarded = 0;
+        Optional<String> stagingId;
+        while (isRunning() && (stagingId = nextAbandonedStaging()).isPresent()) {
+            discardStaging(stagingId.get());
+            discarded++;
+        }
+        return discarded;
+    }
+
+    private Optional<String> nextAbandonedStaging() throws SQLException {
+        String query =
+                "SELECT stagingId\n" +
+                "  FROM s2dr.StagedManifests\n" +
+                " GROUP BY stagingId\n" +
+                "HAVING MAX(stagedAt) <= DATEADD('MINUTE', ?, NOW())\n" +
+                " LIMIT 1";
+
+        Connection connection = connectionPool.borrow();
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(query);
+            ps.setInt(1, -ABANDONED_STAGING_MINUTES);
+            ResultSet rs = ps.executeQuery();
+
+            return rs.next() ? Optional.of(rs.getString("stagingId")) : Optional.empty();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    private void discardStaging(String stagingId) throws SQLException {
+        Connection connection = connectionPool.borrow();
+        try {
+            Transaction transaction = Transaction.begin(connection);
+            try {
+                LOG.debug("Releasing abandoned staged contents \"{}\"", stagingId);
+                new DocumentContentDao(connection, documentStore).releaseStagedContents(stagingId);
+
+                transaction.commit();
+            } finally {
+                transaction.end();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private Optional<String> nextQueued() throws SQLException {
+        String query =
+                "SELECT tombstoneName\n" +
+                "  FROM s2dr.ShredQueue\n" +
+                " ORDER BY queuedAt\n" +
+                " LIMIT 1";
+
+        Connection connection = connectionPool.borrow();
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(query);
+            ResultSet rs = ps.executeQuery();
+
+            return rs.next() ? Optional.of(rs.getString("tombstoneName")) : Optional.empty();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    // every document borrows (and returns) its own connection, so the shredder never keeps one away from the
+    // requests for longer than a single document
+    private void shred(String tombstoneName) throws SQLException, IOException {
+        Connection connection = connectionPool.borrow();
+        try {
+            Transaction transaction = Transaction.begin(connection);
+            try {
+                long length = getContentsLength(connection, tombstoneName);
+
+                LOG.debug("Overwriting {} bytes of deleted document \"{}\"", length, tombstoneName);
+                overwriteContents(connection, tombstoneName, length);
+
+                // the chunks it was stored as (if any) are shredded once no other document refers to them either,
+                // and so are those of its earlier versions
+                DocumentContentDao documentContentDao = new DocumentContentDao(connection, documentStore);
+                documentContentDao.releaseContents(tombstoneName);
+                documentContentDao.releaseVersions(tombstoneName, Integer.MAX_VALUE);
+                overwriteVersionContents(connection, tombstoneName);
+                overwriteVersionKeys(connection, tombstoneName);
+
+                execute(connection, "DELETE FROM s2dr.DocumentVersions WHERE documentName = ?", tombstoneName);
+                execute(connection, "DELETE FROM s2dr.ShredQueue WHERE tombstoneName = ?", tombstoneName);
+                execute(connection, "DELETE FROM s2dr.Documents WHERE documentName = ?", tombstoneName);
+
+                transaction.commit();
+            } finally {
+                transaction.end();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    // the database knows how long the contents are without reading them
+    private static long getContentsLength(Connection connection, String tombstoneName) throws SQLException {
+        String query =
+                "SELECT LENGTH(contents) AS contentsLength\n" +
+                "  FROM s2dr.Documents\n" +
+                " WHERE documentName = ?";
+
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(query);
+            ps.setString(1, tombstoneName);
+            ResultSet rs = ps.executeQuery();
+
+            if (!rs.next()) {
+                // the queue's foreign key keeps this from happening, but there would be nothing to overwrite
+                return 0;
+            }
+            return rs.getLong("contentsLength");
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    // the data key and signature are overwritten too, since the data key is all that is needed to decrypt
+    // whatever might be left of a CONFIDENTIALITY document's contents
+    private void overwriteContents(Connection connection, String tombstoneName, long length) throws SQLException {
+        String query =
+                "UPDATE s2dr.Documents\n" +
+                "   SET contents = ?,\n" +
+                "       encryptionKey = NULL,\n" +
+                "       signature = NULL,\n" +
+                "       contentDigest = NULL\n" +
+                " WHERE documentName = ?";
+
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(query);
+            ps.setBinaryStream(1, new ZeroInputStream(length, CHUNK_SIZE, rateLimiter), length);
+            ps.setString(2, tombstoneName);
+            ps.executeUpdate();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    // earlier versions of a document stored in its own BLOB have BLOBs of their own, which are overwritten like it
+    private void overwriteVersionContents(Connection connection, String tombstoneName) throws SQLException {
+        String lengthsQuery =
+                "SELECT version,\n" +
+                "       LENGTH(contents) AS contentsLength\n" +
+                "  FROM s2dr.DocumentVersions\n" +
+                " WHERE documentName = ?\n" +
+                "   AND contents IS NOT NULL";
+
+        String overwriteQuery =
+                "UPDATE s2dr.DocumentVersions\n" +
+                "   SET contents = ?\n" +
+                " WHERE documentName = ?\n" +
+                "   AND version = ?";
+
+        Map<Integer, Long> lengths = new LinkedHashMap<>();
+        PreparedStatement ps1 = null;
+        try {
+            ps1 = connection.prepareStatement(lengthsQuery);
+            ps1.setString(1, tombstoneName);
+            ResultSet rs = ps1.executeQuery();
+            while (rs.next()) {
+                lengths.put(rs.getInt("version"), rs.getLong("contentsLength"));
+            }
+        } finally {
+            if (ps1 != null) {
+                ps1.close();
+            }
+        }
+
+        for (Map.Entry<Integer, Long> version: lengths.entrySet()) {
+            LOG.debug("Overwriting {} bytes of version {} of deleted document \"{}\"",
+                    version.getValue(), version.getKey(), tombstoneName);
+
+            PreparedStatement ps2 = null;
+            try {
+                ps2 = connection.prepareStatement(overwriteQuery);
+                ps2.setBinaryStream(1, new ZeroInputStream(version.getValue(), CHUNK_SIZE, rateLimiter),
+                        version.getValue());
+                ps2.setString(2, tombstoneName);
+                ps2.setInt(3, version.getKey());
+                ps2.executeUpdate();
+            } finally {
+                if (ps2 != null) {
+                    ps2.close();
+                }
+            }
+        }
+    }
+
+    // the data keys of earlier versions are all that is needed to decrypt their chunks, like the document's own
+    private static void overwriteVersionKeys(Connection connection, String tombstoneName) throws SQLException {
+        execute(connection,
+                "UPDATE s2dr.DocumentVersions\n" +
+                "   SET encryptionKey = NULL,\n" +
+                "       signature = NULL,\n" +
+                "       contentDigest = NULL\n" +
+                " WHERE documentName = ?",
+                tombstoneName);
+    }
+
+    // shreds chunks with no references left until there are none (or the service is being stopped), and returns how
+    // many were shredded
+    private long shredOrphanedChunks() throws SQLException, IOException {
+        long shredded = 0;
+        Optional<byte[]> chunkHash;
+        while (isRunning() && (chunkHash = nextOrphanedChunk()).isPresent()) {
+            if (shredChunk(chunkHash.get())) {
+                shredded++;
+            }
+        }
+        return shredded;
+    }
+
+    private Optional<byte[]> nextOrphanedChunk() throws SQLException {
+        String query =
+                "SELECT chunkHash\n" +
+                "  FROM s2dr.ContentChunks\n" +
+                " WHERE refCount = 0\n" +
+                " LIMIT 1";
+
+        Connection connection = connectionPool.borrow();
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(query);
+            ResultSet rs = ps.executeQuery();
+
+            return rs.next() ? Optional.of(rs.getBytes("chunkHash")) : Optional.empty();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    // A check-in may start referring to the chunk again at any time before this commits. The chunk's row is locked
+    // first, and only while nothing refers to it, so in that case it is left alone; otherwise check-ins that want
+    // it wait until it is gone, and store it again. Returns whether it was shredded
+    private boolean shredChunk(byte[] chunkHash) throws SQLException, IOException {
+        String lockQuery =
+                "UPDATE s2dr.ContentChunks\n" +
+                "   SET refCount = 0\n" +
+                " WHERE chunkHash = ?\n" +
+                "   AND refCount = 0";
+
+        String locationQuery =
+                "SELECT contents,\n" +
+                "       segmentId,\n" +
+                "       segmentOffset,\n" +
+                "       storedLength\n" +
+                "  FROM s2dr.ContentChunks\n" +
+                " WHERE chunkHash = ?";
+
+        String overwriteQuery =
+                "UPDATE s2dr.ContentChunks\n" +
+                "   SET contents = ?\n" +
+                " WHERE chunkHash = ?";
+
+        String deleteQuery =
+                "DELETE\n" +
+                "  FROM s2dr.ContentChunks\n" +
+                " WHERE chunkHash = ?";
+
+        ChunkLocation location;
+        Connection connection = connectionPool.borrow();
+        try {
+            Transaction transaction = Transaction.begin(connection);
+            try {
+                PreparedStatement ps = null;
+                try {
+                    ps = connection.prepareStatement(lockQuery);
+                    ps.setBytes(1, chunkHash);
+                    if (ps.executeUpdate() == 0) {
+                        return false;
+                    }
+                    ps.close();
+
+                    ps = connection.prepareStatement(locationQuery);
+                    ps.setBytes(1, chunkHash);
+                    ResultSet rs = ps.executeQuery();
+                    if (!rs.next()) {
+                        return false;
+                    }
+
+                    location = DocumentContentDao.readChunkLocation(rs);
+                    ps.close();
+
+                    if (location.isInRow()) {
+                        long length = location.getLength();
+                        ps = connection.prepareStatement(overwriteQuery);
+                        ps.setBinaryStream(1, new ZeroInputStream(length, CHUNK_SIZE, rateLimiter), length);
+                        ps.setBytes(2, chunkHash);
+                        ps.executeUpdate();
+                        ps.close();
+                    }
+
+                    ps = connection.prepareStatement(deleteQuery);
+                    ps.setBytes(1, chunkHash);
+                    ps.executeUpdate();
+                } finally {
+                    if (ps != null) {
+                        ps.close();
+                    }
+                }
+
+                transaction.commit();
+            } finally {
+                transaction.end();
+            }
+        } finally {
+            connection.close();
+        }
+
+        // a chunk kept in a segment file can't be rolled back with the transaction, so it is only overwritten once
+        // its row is gone for good. Until then a check-in could still have started referring to it again
+        if (!location.isInRow()) {
+            rateLimiter.acquire(location.getLength());
+            documentStore.erase(location);
+        }
+        return true;
+    }
+
+    private static void execute(Connection connection, String query, String tombstoneName) throws SQLException {
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(query);
+            ps.setString(1, tombstoneName);
+            ps.executeUpdate();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    // `length` zeros, handed out at most `chunkSize` at a time and no faster than the rate limiter allows
+    private static class ZeroInputStream extends InputStream {
+
+        private final int chunkSize;
+        private final RateLimiter rateLimiter;
+
+        private long remaining;
+
+        ZeroInputStream(long length, int chunkSize, RateLimiter rateLimiter) {
+            this.remaining = length;
+            this.chunkSize = chunkSize;
+            this.rateLimiter = rateLimiter;
+        }
+
+        @Override
+        public int read() {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (remaining == 0) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+
+            int read = (int) Math.min(Math.min(length, chunkSize), remaining);
+            rateLimiter.acquire(read);
+            Arrays.fill(buffer, offset, offset + read, (byte) 0);
+
+            remaining -= read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.cs6238.project2.s2dr.server.config.database;
+
+import com.cs6238.project2.s2dr.server.app.objects.DocumentGrant;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentPermission;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+// Expired permissions are ignored by every permission check, but nothing ever cleared them, so the DocumentGrants
+// table only ever grew. This clears them in the background (and deletes the grants left without any permissions),
+// a small batch (and a short transaction) at a time, so that it never holds locks on the table for long, and at a
+// limited rate, so that catching up on a large backlog doesn't starve the requests of the database.
+public class ExpiredPermissionSweeper extends AbstractScheduledService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExpiredPermissionSweeper.class);
+
+    private static final String PROPERTY_PREFIX = "s2dr.permissions.sweeper.";
+
+    // `-Ds2dr.permissions.sweeper.intervalSeconds`, `-Ds2dr.permissions.sweeper.batchSize` and
+    // `-Ds2dr.permissions.sweeper.maxRowsPerSecond`
+    private static final long INTERVAL_SECONDS = Long.getLong(PROPERTY_PREFIX + "intervalSeconds", 60);
+    private static final int BATCH_SIZE = Integer.getInteger(PROPERTY_PREFIX + "batchSize", 500);
+    private static final double MAX_ROWS_PER_SECOND = Double.parseDouble(
+            System.getProperty(PROPERTY_PREFIX + "maxRowsPerSecond", "5000"));
+
+    private final ConnectionPool connectionPool;
+    private final RateLimiter rateLimiter;
+
+    @Inject
+    public ExpiredPermissionSweeper(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+        this.rateLimiter = RateLimiter.create(MAX_ROWS_PER_SECOND);
+    }
+
+    @Override
+    protected void runOneIteration() {
+        try {
+            long swept = sweep();
+            if (swept > 0) {
+                LOG.info("Cleared expired document permissions from {} grants", swept);
+            }
+        } catch (SQLException e) {
+            // an exception would stop the service for good, so just try again next time
+            LOG.error("Unable to clear expired document permissions", e);
+        }
+    }
+
+    @Override
+    protected Scheduler scheduler() {
+        return Scheduler.newFixedDelaySchedule(INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Clears batches until no expired permissions are left (or the service is being stopped), and returns how many
+    // grants were cleared. Each batch deletes the grants whose permissions have all expired, and then takes the
+    // expired permissions out of the ones that still have others
+    private long sweep() throws SQLException {
+        StringBuilder unexpiredPermissions = new StringBuilder();
+        StringBuilder unexpiredTimeLimits = new StringBuilder();
+        StringBuilder clearedTimeLimits = new StringBuilder();
+        for (DocumentPermission permission: DocumentPermission.values()) {
+            String timeLimit = DocumentGrant.timeLimitColumn(permission);
+            unexpiredPermissions.append(unexpiredPermissions.length() == 0 ? "" : "\n         + ").append(String.format(
+                    "CASE WHEN %1$s IS NULL OR %1$s > NOW() THEN BITAND(permissions, %2$d) ELSE 0 END",
+                    timeLimit, DocumentGrant.grantBits(permission)));
+            unexpiredTimeLimits.append(unexpiredTimeLimits.length() == 0 ? "" : ", ").append(String.format(
+                    "CASE WHEN %1$s > NOW() THEN %1$s END", timeLimit));
+            clearedTimeLimits.append(String.format(
+                    "       %1$s = CASE WHEN %1$s > NOW() THEN %1$s END,\n", timeLimit));
+        }
+
+        String deleteQuery =
+                "DELETE\n" +
+                "  FROM s2dr.DocumentGrants\n" +
+                " WHERE nextExpiry <= NOW()\n" +
+                "   AND " + unexpiredPermissions + " = 0\n" +
+                " LIMIT ?";
+
+        String clearQuery =
+                "UPDATE s2dr.DocumentGrants\n" +
+                "   SET permissions = " + unexpiredPermissions + ",\n" +
+                clearedTimeLimits +
+                "       nextExpiry = LEAST(" + unexpiredTimeLimits + ")\n" +
+                " WHERE _ROWID_ IN (SELECT _ROWID_\n" +
+                "                     FROM s2dr.DocumentGrants\n" +
+                "                    WHERE nextExpiry <= NOW()\n" +
+                "                    LIMIT ?)";
+
+        LOG.debug("Query:\n{}", deleteQuery);
+        LOG.debug("Query:\n{}", clearQuery);
+
+        long swept = 0;
+        int batchDeleted;
+        int batchCleared;
+        do {
+            batchDeleted = runBatch(deleteQuery);
+            batchCleared = runBatch(clearQuery);
+
+            swept += batchDeleted + batchCleared;
+            if (batchDeleted + batchCleared > 0) {
+                rateLimiter.acquire(batchDeleted + batchCleared);
+            }
+        } while ((batchDeleted == BATCH_SIZE || batchCleared == BATCH_SIZE) && isRunning());
+
+        return swept;
+    }
+
+    // returns how many rows the batch changed
+    private int runBatch(String query) throws SQLException {
+        // every batch borrows (and returns) its own connection, so the sweeper never keeps one away from the
+        // requests for longer than a single batch
+        Connection connection = connectionPool.borrow();
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(query);
+            ps.setInt(1, BATCH_SIZE);
+
+            return ps.executeUpdate();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.cs6238.project2.s2dr.server.config.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Wraps a single borrow of a pooled connection. Callers only ever see `getProxy()`, whose `close()` hands the
+// underlying connection back to the pool instead of closing it. Every borrow gets a fresh proxy, so a stale
+// reference from a previous request can't be used to reach a connection that now belongs to someone else.
+class PooledConnection implements InvocationHandler {
+
+    private final ConnectionPool pool;
+    private final Connection rawConnection;
+    private final Throwable borrowTrace;
+    private final long borrowedAtMillis;
+    private final Connection proxy;
+
+    private final AtomicBoolean returned = new AtomicBoolean(false);
+    private final AtomicBoolean leakReported = new AtomicBoolean(false);
+
+    PooledConnection(ConnectionPool pool, Connection rawConnection, Throwable borrowTrace) {
+        this.pool = pool;
+        this.rawConnection = rawConnection;
+        this.borrowTrace = borrowTrace;
+        this.borrowedAtMillis = System.currentTimeMillis();
+        this.proxy = (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class},
+                this);
+    }
+
+    Connection getProxy() {
+        return proxy;
+    }
+
+    Connection getRawConnection() {
+        return rawConnection;
+    }
+
+    long getBorrowedAtMillis() {
+        return borrowedAtMillis;
+    }
+
+    Throwable getBorrowTrace() {
+        return borrowTrace;
+    }
+
+    // returns true only the first time it is called, so that a leak is reported once
+    boolean markLeakReported() {
+        return leakReported.compareAndSet(false, true);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "close":
+                if (returned.compareAndSet(false, true)) {
+                    pool.release(this);
+                }
+                return null;
+            case "isClosed":
+                return returned.get() || rawConnection.isClosed();
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "PooledConnection[" + rawConnection + "]";
+            default:
+                break;
+        }
+
+        if (returned.get()) {
+            throw new SQLException("This connection has already been returned to the pool");
+        }
+
+        try {
+            return method.invoke(rawConnection, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.cs6238.project2.s2dr.server.config.database;
+
+import com.google.inject.servlet.RequestScoped;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+// Holds the connection used by a single HTTP request. The connection is only borrowed from the pool the first
+// time something in the request actually needs it, and `RequestConnectionFilter` hands it back once the
+// response has been written.
+@RequestScoped
+public class RequestConnection {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestConnection.class);
+
+    private final ConnectionPool connectionPool;
+
+    private Connection connection;
+
+    @Inject
+    public RequestConnection(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    public Connection get() throws SQLException {
+        if (connection == null) {
+            connection = connectionPool.borrow();
+        }
+        return connection;
+    }
+
+    public void release() {
+        if (connection == null) {
+            return;
+        }
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.error("Unable to return the request's connection to the pool", e);
+        } finally {
+            connection = null;
+        }
+    }
+}
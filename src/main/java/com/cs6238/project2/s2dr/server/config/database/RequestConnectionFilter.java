@@ -0,0 +1,42 @@
+package com.cs6238.project2.s2dr.server.config.database;
+
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import javax.inject.Inject;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+
+// returns the request's database connection (if one was borrowed) to the pool once the request is finished
+@Singleton
+public class RequestConnectionFilter implements Filter {
+
+    private final Provider<RequestConnection> requestConnection;
+
+    @Inject
+    public RequestConnectionFilter(Provider<RequestConnection> requestConnection) {
+        this.requestConnection = requestConnection;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {}
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            requestConnection.get().release();
+        }
+    }
+
+    @Override
+    public void destroy() {}
+}
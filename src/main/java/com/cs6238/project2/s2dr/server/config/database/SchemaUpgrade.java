@@ -0,0 +1,82 @@
+package com.cs6238.project2.s2dr.server.config.database;
+
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+// Brings an existing database up to date with `s2dr.sql`. Every statement in the upgrade script is idempotent,
+// so it is simply run every time the server starts. Changes that can't be made that way (moving rows out of a
+// table that is dropped afterwards) are one-off migration scripts, run after it for as long as the column they
+// migrate away from exists. Each one drops it last.
+public final class SchemaUpgrade {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SchemaUpgrade.class);
+
+    private static final String UPGRADE_SCRIPT_NAME = "s2dr-upgrade.sql";
+
+    // migration script -> the table and column (in the s2dr schema) it migrates away from, in the order they are run
+    private static final Map<String, String[]> MIGRATIONS = ImmutableMap.of(
+            "s2dr-migrate-bitmasks.sql", new String[] {"DOCUMENTPERMISSIONS", "PERMISSION"},
+            "s2dr-migrate-ids.sql", new String[] {"DOCUMENTGRANTS", "DOCUMENTNAME"});
+
+    private SchemaUpgrade() {}
+
+    public static void apply(ConnectionPool connectionPool) throws SQLException {
+        LOG.info("Applying schema upgrades from {}", UPGRADE_SCRIPT_NAME);
+
+        Connection conn = connectionPool.borrow();
+        try {
+            runScript(conn, UPGRADE_SCRIPT_NAME);
+
+            for (Map.Entry<String, String[]> migration: MIGRATIONS.entrySet()) {
+                if (columnExists(conn, migration.getValue()[0], migration.getValue()[1])) {
+                    LOG.info("Migrating the database with {}", migration.getKey());
+                    runScript(conn, migration.getKey());
+                }
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static void runScript(Connection conn, String scriptName) throws SQLException {
+        Statement statement = conn.createStatement();
+        try {
+            statement.execute("RUNSCRIPT FROM 'classpath:/" + scriptName + "'");
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static boolean columnExists(Connection conn, String tableName, String columnName) throws SQLException {
+        String query =
+                "SELECT COLUMN_NAME\n" +
+                "  FROM INFORMATION_SCHEMA.COLUMNS\n" +
+                " WHERE TABLE_SCHEMA = 'S2DR'\n" +
+                "   AND TABLE_NAME = (?)\n" +
+                "   AND COLUMN_NAME = (?)";
+
+        LOG.debug("Query:\n{}", query);
+
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(query);
+            ps.setString(1, tableName);
+            ps.setString(2, columnName);
+
+            ResultSet rs = ps.executeQuery();
+            return rs.next();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+}
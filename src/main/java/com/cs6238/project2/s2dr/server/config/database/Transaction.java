@@ -0,0 +1,57 @@
+package com.cs6238.project2.s2dr.server.config.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+// A transaction on the request's connection. It is meant to be used as
+//
+//      Transaction transaction = Transaction.begin(connection);
+//      try {
+//          ...
+//          transaction.commit();
+//      } finally {
+//          transaction.end();
+//      }
+//
+// so that anything not committed by the time `end` is called (because something threw) is rolled back, and
+// the connection is back in auto-commit mode either way.
+public class Transaction {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Transaction.class);
+
+    private final Connection connection;
+    private boolean finished = false;
+
+    private Transaction(Connection connection) {
+        this.connection = connection;
+    }
+
+    public static Transaction begin(Connection connection) throws SQLException {
+        connection.setAutoCommit(false);
+        return new Transaction(connection);
+    }
+
+    public void commit() throws SQLException {
+        connection.commit();
+        connection.setAutoCommit(true);
+        finished = true;
+    }
+
+    public void end() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        try {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            // the pool rolls back again (or discards the connection) when it is returned, so this isn't fatal
+            LOG.error("Unable to roll back transaction", e);
+        }
+    }
+}
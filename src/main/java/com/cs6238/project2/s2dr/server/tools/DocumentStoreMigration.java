@@ -0,0 +1,347 @@
+package com.cs6238.project2.s2dr.server.tools;
+
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao;
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao.StagedContents;
+import com.cs6238.project2.s2dr.server.app.EncryptionService;
+import com.cs6238.project2.s2dr.server.app.crypto.DataKeyCache;
+import com.cs6238.project2.s2dr.server.app.crypto.ParallelCryptoEngine;
+import com.cs6238.project2.s2dr.server.app.objects.EncryptedDocument;
+import com.cs6238.project2.s2dr.server.app.objects.ServerKeyPair;
+import com.cs6238.project2.s2dr.server.app.storage.ChunkCodec;
+import com.cs6238.project2.s2dr.server.app.storage.ChunkLocation;
+import com.cs6238.project2.s2dr.server.app.storage.DatabaseDocumentStore;
+import com.cs6238.project2.s2dr.server.app.storage.DocumentStore;
+import com.cs6238.project2.s2dr.server.app.storage.PlainChunkCodec;
+import com.cs6238.project2.s2dr.server.config.DatabaseModule;
+import com.cs6238.project2.s2dr.server.config.GuiceServletConfig;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPoolConfig;
+import com.cs6238.project2.s2dr.server.config.database.SchemaUpgrade;
+import com.cs6238.project2.s2dr.server.config.database.Transaction;
+import com.google.inject.Guice;
+import org.apache.shiro.util.ByteSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+// Moves the contents of existing documents into the document store the server is configured with (`-Ds2dr.store`,
+// see `DocumentStore`). Run it with `gradle migrateDocumentStore`, passing the same `-Ds2dr.store*` properties
+// the server runs with, while the server is stopped.
+//
+// Documents stored whole in their own BLOB are split into chunks and stored like newly checked-in ones
+// (CONFIDENTIALITY documents are decrypted and encrypted again chunk by chunk, under a new document key). Chunks
+// kept in the other store are then copied into the configured one. Both steps commit as they go, so a migration
+// that is cut short can simply be run again. Finally the database is compacted, which is what gives the space the
+// BLOBs took up back to the file system.
+public class DocumentStoreMigration {
+
+    private static final String H2_DRIVER = "org.h2.Driver";
+
+    // chunks are copied (and synced) this many at a time
+    private static final int CHUNK_BATCH_SIZE = 256;
+
+    private final ConnectionPool connectionPool;
+    private final DocumentStore documentStore;
+    private final EncryptionService encryptionService;
+
+    // the segment files chunks are copied out of, when moving them into the database
+    private Optional<DocumentStore> segmentStore = Optional.empty();
+
+    DocumentStoreMigration(
+            ConnectionPool connectionPool,
+            DocumentStore documentStore,
+            EncryptionService encryptionService) {
+
+        this.connectionPool = connectionPool;
+        this.documentStore = documentStore;
+        this.encryptionService = encryptionService;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Class.forName(H2_DRIVER);
+
+        ConnectionPool connectionPool = new ConnectionPool(ConnectionPoolConfig.builder()
+                .setUrl(DatabaseModule.DATABASE_URL)
+                .applySystemProperties()
+                .build());
+        DocumentStore documentStore = DocumentStore.fromSystemProperties();
+        ParallelCryptoEngine cryptoEngine = ParallelCryptoEngine.fromSystemProperties();
+        try {
+            SchemaUpgrade.apply(connectionPool);
+
+            ServerKeyPair serverKeyPair = Guice.createInjector(new GuiceServletConfig.ServerKeyPairGuiceModule())
+                    .getInstance(ServerKeyPair.class);
+            EncryptionService encryptionService = new EncryptionService(
+                    serverKeyPair, cryptoEngine, DataKeyCache.fromSystemProperties());
+
+            DocumentStoreMigration migration =
+                    new DocumentStoreMigration(connectionPool, documentStore, encryptionService);
+            try {
+                System.out.printf("Split %d documents into chunks%n", migration.migrateDocuments());
+                System.out.printf("Moved %d chunks into the configured document store%n", migration.migrateChunks());
+            } finally {
+                migration.close();
+            }
+
+            System.out.println("Compacting the database");
+            migration.compact();
+        } finally {
+            cryptoEngine.shutdown();
+            documentStore.close();
+            connectionPool.close();
+        }
+    }
+
+    // returns how many documents were split into chunks
+    long migrateDocuments() throws SQLException, IOException {
+        // deleted documents waiting to be shredded are left to the shredder
+        String query =
+                "SELECT d.documentName\n" +
+                "  FROM s2dr.Documents d\n" +
+                " WHERE d.chunked = FALSE\n" +
+                "   AND d.contents IS NOT NULL\n" +
+                "   AND NOT EXISTS (SELECT 1 FROM s2dr.ShredQueue q WHERE q.tombstoneName = d.documentName)";
+
+        List<String> documentNames = new ArrayList<>();
+        Connection connection = connectionPool.borrow();
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(query);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                documentNames.add(rs.getString("documentName"));
+            }
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+
+        for (String documentName: documentNames) {
+            migrateDocument(documentName);
+        }
+        return documentNames.size();
+    }
+
+    // each document is stored as chunks (see `DocumentContentDao.stageContents`), which become its contents in a
+    // transaction of its own. The signature and content digest still hold, since the plaintext doesn't change
+    private void migrateDocument(String documentName) throws SQLException, IOException {
+        String selectQuery =
+                "SELECT uploadUser,\n" +
+                "       encryptionKey,\n" +
+                "       contents\n" +
+                "  FROM s2dr.Documents\n" +
+                " WHERE documentName = ?";
+
+        String updateQuery =
+                "UPDATE s2dr.Documents\n" +
+                "   SET contents = NULL,\n" +
+                "       chunked = TRUE,\n" +
+                "       contentLength = ?,\n" +
+                "       encryptionKey = ?\n" +
+                " WHERE documentName = ?";
+
+        Connection connection = connectionPool.borrow();
+        try {
+            DocumentContentDao documentContentDao = new DocumentContentDao(connection, documentStore);
+            StagedContents stagedContents;
+            Optional<byte[]> encryptionKey;
+
+            PreparedStatement ps = null;
+            try {
+                ps = connection.prepareStatement(selectQuery);
+                ps.setString(1, documentName);
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next()) {
+                    return;
+                }
+
+                InputStream contents = rs.getBinaryStream("contents");
+                ChunkCodec chunkCodec = PlainChunkCodec.INSTANCE;
+                encryptionKey = Optional.ofNullable(rs.getBytes("encryptionKey"));
+                if (encryptionKey.isPresent()) {
+                    contents = encryptionService.decryptDocument(documentName,
+                            new EncryptedDocument(ByteSource.Util.bytes(encryptionKey.get()), contents));
+
+                    encryptionKey = Optional.of(encryptionService.newWrappedDocumentKey(documentName));
+                    chunkCodec = encryptionService.openConfidentialChunks(
+                            documentName, rs.getString("uploadUser"), encryptionKey.get());
+                }
+
+                try {
+                    stagedContents = documentContentDao.stageContents(0, contents, chunkCodec);
+                } finally {
+                    contents.close();
+                }
+            } finally {
+                if (ps != null) {
+                    ps.close();
+                }
+            }
+
+            boolean committed = false;
+            Transaction transaction = Transaction.begin(connection);
+            try {
+                documentContentDao.adoptStagedContents(stagedContents, documentName);
+
+                ps = null;
+                try {
+                    ps = connection.prepareStatement(updateQuery);
+                    ps.setLong(1, stagedContents.getLength());
+                    ps.setBytes(2, encryptionKey.orElse(null));
+                    ps.setString(3, documentName);
+                    ps.executeUpdate();
+                } finally {
+                    if (ps != null) {
+                        ps.close();
+                    }
+                }
+
+                transaction.commit();
+                committed = true;
+            } finally {
+                transaction.end();
+                if (!committed) {
+                    documentContentDao.discardStagedContents(stagedContents.getStagingId());
+                }
+                encryptionService.invalidateDocumentKey(documentName);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    // returns how many chunks were moved into the configured store
+    long migrateChunks() throws SQLException, IOException {
+        long moved = 0;
+        int batch;
+        while ((batch = migrateChunkBatch()) > 0) {
+            moved += batch;
+        }
+        return moved;
+    }
+
+    // Copies a batch of chunks that aren't in the configured store into it. The copies are synced before the rows
+    // are pointed at them, and the originals are only overwritten once that is committed. Returns the batch's size
+    private int migrateChunkBatch() throws SQLException, IOException {
+        boolean intoDatabase = documentStore instanceof DatabaseDocumentStore;
+
+        String selectQuery =
+                "SELECT chunkHash,\n" +
+                "       contents,\n" +
+                "       segmentId,\n" +
+                "       segmentOffset,\n" +
+                "       storedLength\n" +
+                "  FROM s2dr.ContentChunks\n" +
+                " WHERE contents IS " + (intoDatabase ? "NULL" : "NOT NULL") + "\n" +
+                " LIMIT " + CHUNK_BATCH_SIZE;
+
+        String updateQuery =
+                "UPDATE s2dr.ContentChunks\n" +
+                "   SET contents = ?,\n" +
+                "       segmentId = ?,\n" +
+                "       segmentOffset = ?,\n" +
+                "       storedLength = ?\n" +
+                " WHERE chunkHash = ?";
+
+        List<byte[]> chunkHashes = new ArrayList<>();
+        List<ChunkLocation> oldLocations = new ArrayList<>();
+        List<ChunkLocation> newLocations = new ArrayList<>();
+
+        Connection connection = connectionPool.borrow();
+        try {
+            Transaction transaction = Transaction.begin(connection);
+            try {
+                PreparedStatement ps = null;
+                try {
+                    ps = connection.prepareStatement(selectQuery);
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next()) {
+                        ChunkLocation location = DocumentContentDao.readChunkLocation(rs);
+                        byte[] chunk = location.isInRow() ? location.getRowContents().get() : readSegment(location);
+
+                        chunkHashes.add(rs.getBytes("chunkHash"));
+                        oldLocations.add(location);
+                        newLocations.add(documentStore.write(chunk));
+                    }
+                    ps.close();
+
+                    documentStore.sync(newLocations);
+
+                    ps = connection.prepareStatement(updateQuery);
+                    for (int i = 0; i < chunkHashes.size(); i++) {
+                        ChunkLocation location = newLocations.get(i);
+                        ps.setBytes(1, location.getRowContents().orElse(null));
+                        if (location.isInRow()) {
+                            ps.setNull(2, Types.INTEGER);
+                            ps.setNull(3, Types.BIGINT);
+                        } else {
+                            ps.setInt(2, location.getSegmentId());
+                            ps.setLong(3, location.getOffset());
+                        }
+                        ps.setInt(4, location.getLength());
+                        ps.setBytes(5, chunkHashes.get(i));
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                } finally {
+                    if (ps != null) {
+                        ps.close();
+                    }
+                }
+
+                transaction.commit();
+            } finally {
+                transaction.end();
+            }
+        } finally {
+            connection.close();
+        }
+
+        // chunks that were in their rows are gone with the old row versions, and the compaction drops those
+        for (ChunkLocation location: oldLocations) {
+            if (!location.isInRow()) {
+                segmentStore.get().erase(location);
+            }
+        }
+        return chunkHashes.size();
+    }
+
+    private byte[] readSegment(ChunkLocation location) throws IOException {
+        if (!segmentStore.isPresent()) {
+            segmentStore = Optional.of(DocumentStore.segmentsFromSystemProperties());
+        }
+        return segmentStore.get().read(location);
+    }
+
+    // rewrites the database file without the space that the moved contents took up. This closes the database
+    void compact() throws SQLException {
+        Connection connection = connectionPool.borrow();
+        Statement statement = null;
+        try {
+            statement = connection.createStatement();
+            statement.execute("SHUTDOWN COMPACT");
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+            connection.close();
+        }
+    }
+
+    void close() throws IOException {
+        if (segmentStore.isPresent()) {
+            segmentStore.get().close();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.cs6238.project2.s2dr.server.tools;
+
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentDownload;
+import com.cs6238.project2.s2dr.server.app.storage.DatabaseDocumentStore;
+import com.cs6238.project2.s2dr.server.app.storage.DocumentStore;
+import com.cs6238.project2.s2dr.server.app.storage.FileRegion;
+import com.cs6238.project2.s2dr.server.app.storage.PlainChunkCodec;
+import com.cs6238.project2.s2dr.server.app.storage.SegmentFileDocumentStore;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPoolConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+// Compares the ways an unencrypted document can be sent to a client: read from chunks kept in H2 and copied, read
+// from segment files and copied (both what `DocumentService.streamDocument` does), transferred from the segment
+// files through the servlet's output stream (`DocumentService.transferDocument`), and sent by the kernel with
+// `sendfile(2)`, which is what Tomcat does when `RestEndpoint` hands it the file. The document is sent over a
+// loopback socket to a thread that throws it away.
+//
+// Run it with `gradle downloadBenchmark`, optionally passing `-PbenchmarkArgs="<megabytes>"`. Besides the
+// throughput, it prints the CPU time and the heap the sending thread used, which is where the paths differ the
+// most. Like `ParallelCryptoBenchmark`, the numbers only mean something on an otherwise idle machine.
+public class DownloadBenchmark {
+
+    private static final int DEFAULT_DOCUMENT_MEGABYTES = 128;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final String DOCUMENT_NAME = "benchmark";
+    private static final String USER_NAME = "benchmark";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // one way of sending the document down `socket`
+    private interface Sender {
+        void send(SocketChannel socket) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int documentMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_DOCUMENT_MEGABYTES;
+
+        // random contents don't deduplicate, so every chunk is stored (and read) once
+        byte[] document = new byte[documentMegabytes * 1024 * 1024];
+        new Random(0).nextBytes(document);
+
+        Class.forName("org.h2.Driver");
+        Path directory = Files.createTempDirectory("s2dr-download-benchmark");
+
+        DocumentStore databaseStore = new DatabaseDocumentStore();
+        DocumentStore segmentStore = new SegmentFileDocumentStore(directory.resolve("segments"), 1L << 30);
+        String databaseUrl = "jdbc:h2:" + directory.resolve("database").toAbsolutePath();
+        String segmentUrl = "jdbc:h2:" + directory.resolve("segment-index").toAbsolutePath();
+        Connection databaseConnection = createDatabase(databaseUrl, databaseStore, document);
+        Connection segmentConnection = createDatabase(segmentUrl, segmentStore, document);
+        document = null;
+
+        // check-outs read their chunks with connections from the pool, a batch at a time
+        ConnectionPool databasePool = new ConnectionPool(ConnectionPoolConfig.builder().setUrl(databaseUrl).build());
+        ConnectionPool segmentPool = new ConnectionPool(ConnectionPoolConfig.builder().setUrl(segmentUrl).build());
+
+        ServerSocketChannel sink = startSink();
+        try {
+            DocumentContentDao inDatabase = new DocumentContentDao(databaseConnection, databaseStore);
+            DocumentContentDao inSegments = new DocumentContentDao(segmentConnection, segmentStore);
+            DocumentDownload inDatabaseDownload = checkOut(databaseConnection);
+            DocumentDownload inSegmentsDownload = checkOut(segmentConnection);
+            List<FileRegion> regions = inSegments.locateContents(DOCUMENT_NAME, 0, Long.MAX_VALUE).get();
+
+            System.out.printf("%d MiB document, %d file regions, %d available processors%n",
+                    documentMegabytes, regions.size(), Runtime.getRuntime().availableProcessors());
+            System.out.printf("%-32s %12s %16s %18s%n", "path", "MiB/s", "CPU ms per GiB", "heap KiB per MiB");
+
+            measure("H2 chunks, copied", documentMegabytes, sink, socket ->
+                    copy(inDatabase.openContents(inDatabaseDownload, 0, PlainChunkCodec.INSTANCE, databasePool),
+                            socket));
+            measure("segment files, copied", documentMegabytes, sink, socket ->
+                    copy(inSegments.openContents(inSegmentsDownload, 0, PlainChunkCodec.INSTANCE, segmentPool),
+                            socket));
+            measure("segment files, transferTo", documentMegabytes, sink, socket ->
+                    transfer(regions, Channels.newChannel(Channels.newOutputStream(socket))));
+            measure("segment files, sendfile", documentMegabytes, sink, socket ->
+                    transfer(regions, socket));
+        } finally {
+            sink.close();
+            databasePool.close();
+            segmentPool.close();
+            databaseConnection.close();
+            segmentConnection.close();
+            databaseStore.close();
+            segmentStore.close();
+            deleteRecursively(directory);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        List<Path> paths = Files.walk(directory).sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        for (Path path: paths) {
+            Files.delete(path);
+        }
+    }
+
+    private static Connection createDatabase(String url, DocumentStore documentStore, byte[] document)
+            throws SQLException, IOException {
+
+        Connection connection = DriverManager.getConnection(url);
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("RUNSCRIPT FROM 'classpath:/s2dr.sql'");
+            statement.execute("INSERT INTO s2dr.Users (userName, signature, pubKeyModulus, pubKeyExponent)\n" +
+                    "VALUES ('" + USER_NAME + "', X'00', X'00', X'00')");
+        } finally {
+            statement.close();
+        }
+
+        PreparedStatement ps = connection.prepareStatement(
+                "INSERT INTO s2dr.Documents (documentName, uploadUser, chunked, contentLength) VALUES (?, ?, TRUE, ?)");
+        try {
+            ps.setString(1, DOCUMENT_NAME);
+            ps.setString(2, USER_NAME);
+            ps.setLong(3, document.length);
+            ps.executeUpdate();
+        } finally {
+            ps.close();
+        }
+
+        DocumentContentDao documentContentDao = new DocumentContentDao(connection, documentStore);
+        documentContentDao.adoptStagedContents(
+                documentContentDao.stageContents(0, new ByteArrayInputStream(document), PlainChunkCodec.INSTANCE),
+                DOCUMENT_NAME);
+        return connection;
+    }
+
+    // the document as a check-out finds it
+    private static DocumentDownload checkOut(Connection connection) throws SQLException {
+        PreparedStatement ps = connection.prepareStatement(
+                "SELECT contentLength, lastModified FROM s2dr.Documents WHERE documentName = ?");
+        try {
+            ps.setString(1, DOCUMENT_NAME);
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+
+            return DocumentDownload.builder()
+                    .setDocumentName(DOCUMENT_NAME)
+                    .setUploadUserName(USER_NAME)
+                    .setStoredLength(rs.getLong("contentLength"))
+                    .setChunked(true)
+                    .setLastModifiedMillis(rs.getTimestamp("lastModified").getTime())
+                    .build();
+        } finally {
+            ps.close();
+        }
+    }
+
+    // accepts connections and throws away whatever is sent on them
+    private static ServerSocketChannel startSink() throws IOException {
+        ServerSocketChannel sink = ServerSocketChannel.open();
+        sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        Thread drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE * 4);
+            try {
+                while (true) {
+                    SocketChannel connection = sink.accept();
+                    try {
+                        while (connection.read(buffer) != -1) {
+                            buffer.clear();
+                        }
+                    } finally {
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                // the sink was closed
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+        return sink;
+    }
+
+    private static void measure(String path, int documentMegabytes, ServerSocketChannel sink, Sender sender)
+            throws Exception {
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            send(sink, sender);
+        }
+
+        long nanos = 0;
+        long cpuNanos = 0;
+        long allocatedBytes = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long cpuStart = THREADS.getCurrentThreadCpuTime();
+            long allocatedStart = allocatedBytes();
+            long start = System.nanoTime();
+
+            send(sink, sender);
+
+            nanos += System.nanoTime() - start;
+            cpuNanos += THREADS.getCurrentThreadCpuTime() - cpuStart;
+            allocatedBytes += allocatedBytes() - allocatedStart;
+        }
+
+        double megabytes = (double) documentMegabytes * MEASURED_ROUNDS;
+        System.out.printf("%-32s %12.1f %16.1f %18.1f%n",
+                path,
+                megabytes / (nanos / 1e9),
+                cpuNanos / 1e6 / (megabytes / 1024),
+                allocatedBytes / 1024.0 / megabytes);
+    }
+
+    private static void send(ServerSocketChannel sink, Sender sender) throws Exception {
+        SocketChannel socket = SocketChannel.open(sink.getLocalAddress());
+        try {
+            sender.send(socket);
+        } finally {
+            socket.close();
+        }
+    }
+
+    // the bytes the current thread has allocated on the heap so far, where the JVM keeps count
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static void copy(InputStream contents, SocketChannel socket) throws IOException {
+        OutputStream output = Channels.newOutputStream(socket);
+        try {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int read;
+            while ((read = contents.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            contents.close();
+        }
+    }
+
+    private static void transfer(List<FileRegion> regions, WritableByteChannel target) throws IOException {
+        for (FileRegion region: regions) {
+            FileChannel source = FileChannel.open(region.getFile(), StandardOpenOption.READ);
+            try {
+                long position = region.getPosition();
+                while (position < region.getEnd()) {
+                    position += source.transferTo(position, region.getEnd() - position, target);
+                }
+            } finally {
+                source.close();
+            }
+        }
+    }
+}
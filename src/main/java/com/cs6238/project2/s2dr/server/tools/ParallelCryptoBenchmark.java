@@ -0,0 +1,106 @@
+package com.cs6238.project2.s2dr.server.tools;
+
+import com.cs6238.project2.s2dr.server.app.crypto.ChunkedGcmDecryptingInputStream;
+import com.cs6238.project2.s2dr.server.app.crypto.ChunkedGcmEncryptingInputStream;
+import com.cs6238.project2.s2dr.server.app.crypto.ChunkedGcmFormat;
+import com.cs6238.project2.s2dr.server.app.crypto.ParallelCryptoEngine;
+import com.google.common.io.ByteStreams;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+
+// Measures how chunked AES-GCM encryption and decryption throughput scales with the size of the crypto pool.
+// Run it with `gradle cryptoBenchmark`, optionally passing `-PbenchmarkArgs="<megabytes> <maxParallelism>"`.
+// The numbers only mean something on an otherwise idle machine, and parallelism past the number of cores
+// isn't expected to help.
+public class ParallelCryptoBenchmark {
+
+    private static final int DEFAULT_DOCUMENT_MEGABYTES = 64;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURED_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int documentMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_DOCUMENT_MEGABYTES;
+        int maxParallelism = args.length > 1
+                ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        SecureRandom random = new SecureRandom();
+        byte[] document = new byte[documentMegabytes * 1024 * 1024];
+        random.nextBytes(document);
+
+        byte[] keyBytes = new byte[16];
+        random.nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+
+        byte[] noncePrefix = new byte[ChunkedGcmFormat.NONCE_PREFIX_SIZE];
+        random.nextBytes(noncePrefix);
+        ChunkedGcmFormat.Header header = new ChunkedGcmFormat.Header(CHUNK_SIZE, noncePrefix);
+
+        System.out.printf("%d MiB document, %d KiB chunks, %d available processors%n",
+                documentMegabytes, CHUNK_SIZE / 1024, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-12s %16s %16s%n", "parallelism", "encrypt MiB/s", "decrypt MiB/s");
+
+        for (int parallelism = 1; parallelism <= maxParallelism; parallelism *= 2) {
+            // a threshold of 0 forces every window onto the pool, so the serial path isn't what gets measured
+            ParallelCryptoEngine engine = new ParallelCryptoEngine(parallelism, parallelism * 2, 0);
+            try {
+                byte[] encrypted = encrypt(engine, key, header, document);
+                for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                    encrypt(engine, key, header, document);
+                    decrypt(engine, key, header, encrypted);
+                }
+
+                long encryptNanos = 0;
+                long decryptNanos = 0;
+                for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                    long start = System.nanoTime();
+                    encrypt(engine, key, header, document);
+                    encryptNanos += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    decrypt(engine, key, header, encrypted);
+                    decryptNanos += System.nanoTime() - start;
+                }
+
+                System.out.printf("%-12d %16.1f %16.1f%n",
+                        parallelism,
+                        throughput(documentMegabytes, encryptNanos),
+                        throughput(documentMegabytes, decryptNanos));
+            } finally {
+                engine.shutdown();
+            }
+        }
+    }
+
+    private static byte[] encrypt(ParallelCryptoEngine engine, SecretKey key, ChunkedGcmFormat.Header header,
+                                  byte[] document) throws IOException {
+
+        InputStream encrypting = new ChunkedGcmEncryptingInputStream(
+                new ByteArrayInputStream(document), key, header, engine);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream(document.length + document.length / 64);
+        ByteStreams.copy(encrypting, encrypted);
+        return encrypted.toByteArray();
+    }
+
+    private static void decrypt(ParallelCryptoEngine engine, SecretKey key, ChunkedGcmFormat.Header header,
+                                byte[] encrypted) throws IOException {
+
+        InputStream stored = new ByteArrayInputStream(encrypted);
+        ByteStreams.skipFully(stored, ChunkedGcmFormat.HEADER_SIZE);
+
+        ByteStreams.copy(
+                new ChunkedGcmDecryptingInputStream(stored, key, header, 0, engine), ByteStreams.nullOutputStream());
+    }
+
+    private static double throughput(int documentMegabytes, long totalNanos) {
+        return documentMegabytes * MEASURED_ROUNDS / (totalNanos / 1e9);
+    }
+}
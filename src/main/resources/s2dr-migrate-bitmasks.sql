@@ -0,0 +1,57 @@
+-- Moves the permissions and security flags of a database from before they were kept as bitmasks (see `s2dr.sql`)
+-- into their new tables and columns, which `s2dr-upgrade.sql` has created by then. `SchemaUpgrade` runs this for
+-- as long as s2dr.DocumentPermissions exists. It is dropped last, so a migration that was interrupted is simply run
+-- again, and every statement before that must leave the same result when it is.
+
+-- Expired permissions aren't carried over. A permission that was granted more than once keeps the latest of its
+-- time limits, or none if one of them had none, and can be propagated if one of them could
+DELETE FROM s2dr.DocumentGrants;
+
+INSERT INTO s2dr.DocumentGrants (documentName, userName, permissions, readUntil, writeUntil, ownerUntil)
+SELECT documentName,
+       userName,
+       MAX(CASE WHEN permission <> 'READ' THEN 0 WHEN canPropogate = 'TRUE' THEN 9 ELSE 1 END)
+         + MAX(CASE WHEN permission <> 'WRITE' THEN 0 WHEN canPropogate = 'TRUE' THEN 18 ELSE 2 END)
+         + MAX(CASE WHEN permission <> 'OWNER' THEN 0 WHEN canPropogate = 'TRUE' THEN 36 ELSE 4 END),
+       CASE WHEN COUNT(CASE WHEN permission = 'READ' AND timeLimit IS NULL THEN 1 END) = 0
+            THEN MAX(CASE WHEN permission = 'READ' THEN timeLimit END) END,
+       CASE WHEN COUNT(CASE WHEN permission = 'WRITE' AND timeLimit IS NULL THEN 1 END) = 0
+            THEN MAX(CASE WHEN permission = 'WRITE' THEN timeLimit END) END,
+       CASE WHEN COUNT(CASE WHEN permission = 'OWNER' AND timeLimit IS NULL THEN 1 END) = 0
+            THEN MAX(CASE WHEN permission = 'OWNER' THEN timeLimit END) END
+  FROM s2dr.DocumentPermissions
+ WHERE timeLimit IS NULL
+    OR timeLimit > NOW()
+ GROUP BY documentName, userName;
+
+UPDATE s2dr.DocumentGrants
+   SET nextExpiry = LEAST(readUntil, writeUntil, ownerUntil);
+
+UPDATE s2dr.Documents d
+   SET securityFlags = (SELECT COALESCE(SUM(CASE s.securityFlag
+                                                WHEN 'CONFIDENTIALITY' THEN 1
+                                                WHEN 'INTEGRITY' THEN 2
+                                                WHEN 'NONE' THEN 4
+                                            END), 0)
+                          FROM s2dr.DocumentSecurity s
+                         WHERE s.documentName = d.documentName);
+
+-- Earlier versions and uploads kept their flags as a comma separated list of names. Lists that were already
+-- turned into bits are left alone
+UPDATE s2dr.DocumentVersions
+   SET securityFlags = CASE WHEN LOCATE('CONFIDENTIALITY', securityFlags) > 0 THEN 1 ELSE 0 END
+                       + CASE WHEN LOCATE('INTEGRITY', securityFlags) > 0 THEN 2 ELSE 0 END
+                       + CASE WHEN LOCATE('NONE', securityFlags) > 0 THEN 4 ELSE 0 END
+ WHERE securityFlags IS NULL
+    OR NOT securityFlags REGEXP '^[0-9]+$';
+ALTER TABLE s2dr.DocumentVersions ALTER COLUMN securityFlags INT NOT NULL;
+
+UPDATE s2dr.UploadSessions
+   SET securityFlags = CASE WHEN LOCATE('CONFIDENTIALITY', securityFlags) > 0 THEN 1 ELSE 0 END
+                       + CASE WHEN LOCATE('INTEGRITY', securityFlags) > 0 THEN 2 ELSE 0 END
+                       + CASE WHEN LOCATE('NONE', securityFlags) > 0 THEN 4 ELSE 0 END
+ WHERE NOT securityFlags REGEXP '^[0-9]+$';
+ALTER TABLE s2dr.UploadSessions ALTER COLUMN securityFlags INT NOT NULL;
+
+DROP TABLE s2dr.DocumentSecurity;
+DROP TABLE s2dr.DocumentPermissions;
@@ -0,0 +1,44 @@
+-- Moves the grants of a database from before users and documents had integer ids (see `s2dr.sql`) into a table
+-- keyed on them, which then takes the place of s2dr.DocumentGrants. `SchemaUpgrade` runs this for as long as
+-- s2dr.DocumentGrants has a documentName column, after `s2dr-upgrade.sql` has given every user and document its
+-- id. Grants to users that don't exist (nothing stopped them from being made) aren't carried over. A migration
+-- that was interrupted is run again, and merges the same rows again.
+CREATE TABLE IF NOT EXISTS s2dr.DocumentGrantsById
+(
+  documentId INT NOT NULL,
+  userId INT NOT NULL,
+  permissions INT NOT NULL,
+  readUntil TIMESTAMP,
+  writeUntil TIMESTAMP,
+  ownerUntil TIMESTAMP,
+  nextExpiry TIMESTAMP,
+  PRIMARY KEY (documentId, userId),
+  FOREIGN KEY (documentId) REFERENCES s2dr.Documents(documentId)
+);
+
+MERGE INTO s2dr.DocumentGrantsById
+  (documentId, userId, permissions, readUntil, writeUntil, ownerUntil, nextExpiry)
+  KEY (documentId, userId)
+SELECT d.documentId,
+       CASE WHEN g.userName = 'ALL' THEN 0 ELSE u.userId END,
+       g.permissions,
+       g.readUntil,
+       g.writeUntil,
+       g.ownerUntil,
+       g.nextExpiry
+  FROM s2dr.DocumentGrants g
+  JOIN s2dr.Documents d
+    ON d.documentName = g.documentName
+  LEFT JOIN s2dr.Users u
+    ON u.userName = g.userName
+ WHERE g.userName = 'ALL'
+    OR u.userId IS NOT NULL;
+
+-- takes its indexes with it, they are made again for the new table below
+DROP TABLE s2dr.DocumentGrants;
+ALTER TABLE s2dr.DocumentGrantsById RENAME TO s2dr.DocumentGrants;
+
+CREATE INDEX IF NOT EXISTS s2dr.DocumentGrantsByUser
+  ON s2dr.DocumentGrants (userId);
+CREATE INDEX IF NOT EXISTS s2dr.DocumentGrantsExpiry
+  ON s2dr.DocumentGrants (nextExpiry);
@@ -0,0 +1,193 @@
+-- Upgrades a database that was created from an older version of `s2dr.sql`. This script is run every time the
+-- server starts, so every statement in it must be safe to run more than once. Anything added here must also be
+-- added to `s2dr.sql`, which is what new databases are created from.
+
+-- used to answer conditional (If-Range) requests
+ALTER TABLE s2dr.Documents ADD COLUMN IF NOT EXISTS lastModified TIMESTAMP DEFAULT CURRENT_TIMESTAMP() NOT NULL;
+
+-- SHA-256 of the plaintext of INTEGRITY documents whose signature was verified when they were checked in
+ALTER TABLE s2dr.Documents ADD COLUMN IF NOT EXISTS contentDigest BINARY(32);
+ALTER TABLE s2dr.Documents ADD COLUMN IF NOT EXISTS signatureVerified BOOLEAN DEFAULT FALSE NOT NULL;
+
+-- see `s2dr.sql` for what this is used for
+CREATE TABLE IF NOT EXISTS s2dr.ShredQueue
+(
+  tombstoneName VARCHAR (255) NOT NULL,
+  queuedAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP() NOT NULL,
+  PRIMARY KEY (tombstoneName),
+  FOREIGN KEY (tombstoneName) REFERENCES s2dr.Documents(documentName)
+);
+
+-- documents can be stored as deduplicated chunks instead of in their own BLOB, see `s2dr.sql`
+ALTER TABLE s2dr.Documents ALTER COLUMN contents SET NULL;
+ALTER TABLE s2dr.Documents ADD COLUMN IF NOT EXISTS chunked BOOLEAN DEFAULT FALSE NOT NULL;
+ALTER TABLE s2dr.Documents ADD COLUMN IF NOT EXISTS contentLength BIGINT;
+
+CREATE TABLE IF NOT EXISTS s2dr.ContentChunks
+(
+  chunkHash BINARY(32) NOT NULL,
+  contents BLOB NOT NULL,
+  refCount INT NOT NULL,
+  PRIMARY KEY (chunkHash)
+);
+
+CREATE INDEX IF NOT EXISTS s2dr.ContentChunksOrphans
+  ON s2dr.ContentChunks (refCount);
+
+CREATE TABLE IF NOT EXISTS s2dr.DocumentManifests
+(
+  documentName VARCHAR (255) NOT NULL,
+  chunkIndex INT NOT NULL,
+  chunkHash BINARY(32) NOT NULL,
+  chunkOffset BIGINT NOT NULL,
+  chunkLength INT NOT NULL,
+  wrappedKey BINARY(32),
+  PRIMARY KEY (documentName, chunkIndex),
+  FOREIGN KEY (documentName) REFERENCES s2dr.Documents(documentName) ON UPDATE CASCADE,
+  FOREIGN KEY (chunkHash) REFERENCES s2dr.ContentChunks(chunkHash)
+);
+
+-- chunks can be kept in segment files instead of in the database, see `s2dr.sql`
+ALTER TABLE s2dr.ContentChunks ALTER COLUMN contents SET NULL;
+ALTER TABLE s2dr.ContentChunks ADD COLUMN IF NOT EXISTS segmentId INT;
+ALTER TABLE s2dr.ContentChunks ADD COLUMN IF NOT EXISTS segmentOffset BIGINT;
+ALTER TABLE s2dr.ContentChunks ADD COLUMN IF NOT EXISTS storedLength INT;
+UPDATE s2dr.ContentChunks SET storedLength = LENGTH(contents) WHERE storedLength IS NULL;
+ALTER TABLE s2dr.ContentChunks ALTER COLUMN storedLength SET NOT NULL;
+
+-- chunks can be compressed before they are stored, see `s2dr.sql`
+ALTER TABLE s2dr.Documents ADD COLUMN IF NOT EXISTS contentCoding VARCHAR (16) DEFAULT 'identity' NOT NULL;
+ALTER TABLE s2dr.Documents ADD CONSTRAINT IF NOT EXISTS check_content_coding
+  CHECK (contentCoding IN ('identity', 'deflate'));
+ALTER TABLE s2dr.Documents ADD COLUMN IF NOT EXISTS contentCrc32 BIGINT;
+
+-- earlier versions of documents are kept, see `s2dr.sql`
+ALTER TABLE s2dr.Documents ADD COLUMN IF NOT EXISTS version INT DEFAULT 1 NOT NULL;
+CREATE TABLE IF NOT EXISTS s2dr.DocumentVersions
+(
+  documentName VARCHAR (255) NOT NULL,
+  version INT NOT NULL,
+  uploadUser VARCHAR(255) NOT NULL,
+  encryptionKey BLOB,
+  signature BLOB,
+  lastModified TIMESTAMP NOT NULL,
+  contentDigest BINARY(32),
+  signatureVerified BOOLEAN NOT NULL,
+  contentLength BIGINT NOT NULL,
+  contentCoding VARCHAR (16) NOT NULL,
+  contentCrc32 BIGINT,
+  securityFlags VARCHAR (255),
+  PRIMARY KEY (documentName, version),
+  FOREIGN KEY (documentName) REFERENCES s2dr.Documents(documentName) ON UPDATE CASCADE,
+  FOREIGN KEY (uploadUser) REFERENCES s2dr.Users(userName)
+);
+
+CREATE TABLE IF NOT EXISTS s2dr.VersionManifests
+(
+  documentName VARCHAR (255) NOT NULL,
+  version INT NOT NULL,
+  chunkIndex INT NOT NULL,
+  chunkHash BINARY(32) NOT NULL,
+  chunkOffset BIGINT NOT NULL,
+  chunkLength INT NOT NULL,
+  wrappedKey BINARY(32),
+  PRIMARY KEY (documentName, version, chunkIndex),
+  FOREIGN KEY (documentName, version) REFERENCES s2dr.DocumentVersions(documentName, version) ON UPDATE CASCADE,
+  FOREIGN KEY (chunkHash) REFERENCES s2dr.ContentChunks(chunkHash)
+);
+
+-- documents can be uploaded in parts, see `s2dr.sql`
+-- Uploads of a document in parts (see `UploadSessionService`), from the session's creation until it is committed
+-- or abandoned. The document key of a CONFIDENTIALITY upload is created with the session, so parts can be
+-- encrypted as they arrive. `chunkIndexStride` is how many chunk indexes every part has to itself
+CREATE TABLE IF NOT EXISTS s2dr.UploadSessions
+(
+  sessionId VARCHAR (36) NOT NULL,
+  documentName VARCHAR (255) NOT NULL,
+  userName VARCHAR (255) NOT NULL,
+  securityFlags VARCHAR (255) NOT NULL,
+  encryptionKey BLOB,
+  signature BLOB,
+  chunkIndexStride INT NOT NULL,
+  expires TIMESTAMP NOT NULL,
+  PRIMARY KEY (sessionId),
+  FOREIGN KEY (userName) REFERENCES s2dr.Users(userName)
+);
+
+CREATE INDEX IF NOT EXISTS s2dr.UploadSessionsExpiry
+  ON s2dr.UploadSessions (expires);
+
+-- The parts of an upload that were received, each stored as chunks like a document of its own
+CREATE TABLE IF NOT EXISTS s2dr.UploadParts
+(
+  sessionId VARCHAR (36) NOT NULL,
+  partNumber INT NOT NULL,
+  partLength BIGINT NOT NULL,
+  partCrc32 BIGINT NOT NULL,
+  contentCoding VARCHAR (16) NOT NULL,
+  PRIMARY KEY (sessionId, partNumber),
+  FOREIGN KEY (sessionId) REFERENCES s2dr.UploadSessions(sessionId)
+);
+
+-- The chunks of the received parts, with offsets from the start of their part. They become the document's manifest
+-- when the upload is committed
+CREATE TABLE IF NOT EXISTS s2dr.UploadManifests
+(
+  sessionId VARCHAR (36) NOT NULL,
+  partNumber INT NOT NULL,
+  chunkIndex INT NOT NULL,
+  chunkHash BINARY(32) NOT NULL,
+  chunkOffset BIGINT NOT NULL,
+  chunkLength INT NOT NULL,
+  wrappedKey BINARY(32),
+  PRIMARY KEY (sessionId, chunkIndex),
+  FOREIGN KEY (sessionId, partNumber) REFERENCES s2dr.UploadParts(sessionId, partNumber),
+  FOREIGN KEY (chunkHash) REFERENCES s2dr.ContentChunks(chunkHash)
+);
+
+-- permissions and security flags are kept as bitmasks, see `s2dr.sql`. The rows of s2dr.DocumentPermissions and
+-- s2dr.DocumentSecurity are moved into these by `SchemaUpgrade`, which runs `s2dr-migrate-bitmasks.sql` once
+ALTER TABLE s2dr.Documents ADD COLUMN IF NOT EXISTS securityFlags INT DEFAULT 0 NOT NULL;
+
+CREATE TABLE IF NOT EXISTS s2dr.DocumentGrants
+(
+  documentName VARCHAR (255) NOT NULL,
+  userName VARCHAR (255) NOT NULL,
+  permissions INT NOT NULL,
+  readUntil TIMESTAMP,
+  writeUntil TIMESTAMP,
+  ownerUntil TIMESTAMP,
+  nextExpiry TIMESTAMP,
+  PRIMARY KEY (documentName, userName),
+  FOREIGN KEY (documentName) REFERENCES s2dr.Documents(documentName)
+);
+
+CREATE INDEX IF NOT EXISTS s2dr.DocumentGrantsByUser
+  ON s2dr.DocumentGrants (userName);
+CREATE INDEX IF NOT EXISTS s2dr.DocumentGrantsExpiry
+  ON s2dr.DocumentGrants (nextExpiry);
+
+-- users and documents have integer ids, which s2dr.DocumentGrants refers to them by, see `s2dr.sql`. Its rows are
+-- moved over by `SchemaUpgrade`, which runs `s2dr-migrate-ids.sql` once
+ALTER TABLE s2dr.Users ADD COLUMN IF NOT EXISTS userId INT AUTO_INCREMENT NOT NULL;
+ALTER TABLE s2dr.Users ADD CONSTRAINT IF NOT EXISTS unique_user_id UNIQUE (userId);
+ALTER TABLE s2dr.Documents ADD COLUMN IF NOT EXISTS documentId INT AUTO_INCREMENT NOT NULL;
+ALTER TABLE s2dr.Documents ADD CONSTRAINT IF NOT EXISTS unique_document_id UNIQUE (documentId);
+
+-- contents are staged ahead of the check-in's transaction, see `s2dr.sql`
+CREATE TABLE IF NOT EXISTS s2dr.StagedManifests
+(
+  stagingId VARCHAR (36) NOT NULL,
+  chunkIndex INT NOT NULL,
+  chunkHash BINARY(32) NOT NULL,
+  chunkOffset BIGINT NOT NULL,
+  chunkLength INT NOT NULL,
+  wrappedKey BINARY(32),
+  stagedAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP() NOT NULL,
+  PRIMARY KEY (stagingId, chunkIndex),
+  FOREIGN KEY (chunkHash) REFERENCES s2dr.ContentChunks(chunkHash)
+);
+
+-- earlier versions of documents stored in their own BLOB are kept too, see `s2dr.sql`
+ALTER TABLE s2dr.DocumentVersions ADD COLUMN IF NOT EXISTS contents BLOB;
+ALTER TABLE s2dr.DocumentVersions ADD COLUMN IF NOT EXISTS chunked BOOLEAN DEFAULT TRUE NOT NULL;
@@ -1,48 +1,221 @@
 CREATE SCHEMA s2dr;
 
--- Table that will hold "Users" of the system
+-- Table that will hold "Users" of the system. `userId` is what the tables that refer to users a lot (like
+-- `DocumentGrants`) refer to them by, see `NameIds`
 CREATE TABLE s2dr.Users
 (
   userName VARCHAR (255) NOT NULL,
   signature BLOB NOT NULL,
   pubKeyModulus BLOB NOT NULL,
   pubKeyExponent BLOB NOT NULL,
+  userId INT AUTO_INCREMENT NOT NULL,
+  CONSTRAINT unique_user_id UNIQUE (userId),
   PRIMARY KEY (userName)
 );
 
 CREATE TABLE s2dr.Documents
 (
   documentName VARCHAR (255) NOT NULL,
-  contents BLOB NOT NULL,
+  -- null for documents stored as chunks (see `DocumentManifests`)
+  contents BLOB,
   uploadUser VARCHAR(255) NOT NULL,
   encryptionKey BLOB,
   signature BLOB,
+  lastModified TIMESTAMP DEFAULT CURRENT_TIMESTAMP() NOT NULL,
+  contentDigest BINARY(32),
+  signatureVerified BOOLEAN DEFAULT FALSE NOT NULL,
+  chunked BOOLEAN DEFAULT FALSE NOT NULL,
+  contentLength BIGINT,
+  -- how the chunks of a chunked document were transformed before they were encrypted (if at all), see
+  -- `ContentCoding`. The CRC-32 of the contents is what gzip needs to send a compressed document as it is stored
+  contentCoding VARCHAR (16) DEFAULT 'identity' NOT NULL,
+  CONSTRAINT check_content_coding CHECK (contentCoding IN ('identity', 'deflate')),
+  contentCrc32 BIGINT,
+  -- counts the times the document was checked in under this name. Earlier versions are in `DocumentVersions`
+  version INT DEFAULT 1 NOT NULL,
+  -- the bit of every `SecurityFlag` of the document, `1 << ordinal` (CONFIDENTIALITY 1, INTEGRITY 2, NONE 4)
+  securityFlags INT DEFAULT 0 NOT NULL,
+  -- what `DocumentGrants` refers to the document by. Unlike its name, it stays with the document's row when it is
+  -- renamed to a tombstone on delete, and a document checked in by the same name later gets a new one
+  documentId INT AUTO_INCREMENT NOT NULL,
+  CONSTRAINT unique_document_id UNIQUE (documentId),
   PRIMARY KEY (documentName),
   FOREIGN KEY (uploadUser) REFERENCES s2dr.Users(userName)
 );
 
-CREATE TABLE s2dr.DocumentSecurity
+-- Who was granted which permissions on which document, one row for every document and grantee, by their ids.
+-- `permissions` has the bit of every `DocumentPermission` granted (`1 << ordinal`: READ 1, WRITE 2, OWNER 4), and
+-- the same bits shifted by 3 for the ones that can be propagated (READ 8, WRITE 16, OWNER 32). Every permission has
+-- its own time limit, null for none, and `nextExpiry` is the earliest of them. Expired permissions are ignored by every
+-- permission check, and cleared in the background by `ExpiredPermissionSweeper`
+CREATE TABLE s2dr.DocumentGrants
+(
+  documentId INT NOT NULL,
+  -- 0 for the grants to 'ALL'
+  userId INT NOT NULL,
+  permissions INT NOT NULL,
+  readUntil TIMESTAMP,
+  writeUntil TIMESTAMP,
+  ownerUntil TIMESTAMP,
+  nextExpiry TIMESTAMP,
+  PRIMARY KEY (documentId, userId),
+  FOREIGN KEY (documentId) REFERENCES s2dr.Documents(documentId)
+  -- we cannot have a foreign key for Users.userId because we allow "ALL"
+);
+
+-- Every distinct chunk of the documents stored as chunks, stored once no matter how many documents contain it.
+-- `refCount` counts the manifest entries (of documents, of their earlier versions and of the parts of uploads)
+-- that refer to it. Chunks that are no longer referred to are shredded by `DocumentShredder`. A chunk is either
+-- kept in `contents`, or `storedLength` bytes at `segmentOffset` in a segment file of the `DocumentStore`
+CREATE TABLE s2dr.ContentChunks
+(
+  chunkHash BINARY(32) NOT NULL,
+  contents BLOB,
+  segmentId INT,
+  segmentOffset BIGINT,
+  storedLength INT NOT NULL,
+  refCount INT NOT NULL,
+  PRIMARY KEY (chunkHash)
+);
+
+CREATE INDEX s2dr.ContentChunksOrphans
+  ON s2dr.ContentChunks (refCount);
+
+-- The chunks a document is made of, in order. `wrappedKey` is the chunk's key, encrypted with the document's key,
+-- for CONFIDENTIALITY documents. Follows its document when it is renamed to a tombstone on delete
+CREATE TABLE s2dr.DocumentManifests
+(
+  documentName VARCHAR (255) NOT NULL,
+  chunkIndex INT NOT NULL,
+  chunkHash BINARY(32) NOT NULL,
+  chunkOffset BIGINT NOT NULL,
+  chunkLength INT NOT NULL,
+  wrappedKey BINARY(32),
+  PRIMARY KEY (documentName, chunkIndex),
+  FOREIGN KEY (documentName) REFERENCES s2dr.Documents(documentName) ON UPDATE CASCADE,
+  FOREIGN KEY (chunkHash) REFERENCES s2dr.ContentChunks(chunkHash)
+);
+
+-- Earlier versions of documents, kept when a document is overwritten: its row as it was, security flags included,
+-- and the contents of a document stored in its own BLOB. The newest `s2dr.versions.retained` are kept. Follow their
+-- document when it is renamed to a tombstone on delete
+CREATE TABLE s2dr.DocumentVersions
+(
+  documentName VARCHAR (255) NOT NULL,
+  version INT NOT NULL,
+  -- null for versions stored as chunks (see `VersionManifests`)
+  contents BLOB,
+  chunked BOOLEAN DEFAULT TRUE NOT NULL,
+  uploadUser VARCHAR(255) NOT NULL,
+  encryptionKey BLOB,
+  signature BLOB,
+  lastModified TIMESTAMP NOT NULL,
+  contentDigest BINARY(32),
+  signatureVerified BOOLEAN NOT NULL,
+  contentLength BIGINT NOT NULL,
+  contentCoding VARCHAR (16) NOT NULL,
+  contentCrc32 BIGINT,
+  securityFlags INT NOT NULL,
+  PRIMARY KEY (documentName, version),
+  FOREIGN KEY (documentName) REFERENCES s2dr.Documents(documentName) ON UPDATE CASCADE,
+  FOREIGN KEY (uploadUser) REFERENCES s2dr.Users(userName)
+);
+
+-- The manifests of earlier versions, moved here from `DocumentManifests` as they were. A version only refers to
+-- chunks, so one that differs from the next in a few chunks only takes up the space of those chunks
+CREATE TABLE s2dr.VersionManifests
 (
   documentName VARCHAR (255) NOT NULL,
-  securityFlag VARCHAR (255) NOT NULL,
-  CONSTRAINT check_security CHECK (securityFlag IN ('NONE', 'INTEGRITY', 'CONFIDENTIALITY')),
-  PRIMARY KEY (documentName, securityFlag),
-  FOREIGN KEY (documentName) REFERENCES s2dr.Documents(documentName)
+  version INT NOT NULL,
+  chunkIndex INT NOT NULL,
+  chunkHash BINARY(32) NOT NULL,
+  chunkOffset BIGINT NOT NULL,
+  chunkLength INT NOT NULL,
+  wrappedKey BINARY(32),
+  PRIMARY KEY (documentName, version, chunkIndex),
+  FOREIGN KEY (documentName, version) REFERENCES s2dr.DocumentVersions(documentName, version) ON UPDATE CASCADE,
+  FOREIGN KEY (chunkHash) REFERENCES s2dr.ContentChunks(chunkHash)
 );
 
-CREATE TABLE s2dr.DocumentPermissions
+-- Uploads of a document in parts (see `UploadSessionService`), from the session's creation until it is committed
+-- or abandoned. The document key of a CONFIDENTIALITY upload is created with the session, so parts can be
+-- encrypted as they arrive. `chunkIndexStride` is how many chunk indexes every part has to itself
+CREATE TABLE s2dr.UploadSessions
 (
+  sessionId VARCHAR (36) NOT NULL,
   documentName VARCHAR (255) NOT NULL,
-  userName VARCHAR(255) NOT NULL,
-  permission VARCHAR (5) NOT NULL,
-  CONSTRAINT check_permission CHECK (permission IN ('READ', 'WRITE', 'OWNER')),
-  timeLimit TIMESTAMP,
-  canPropogate VARCHAR (5) NOT NULL,
-  CONSTRAINT check_bool CHECK (canPropogate IN ('TRUE', 'FALSE')),
-  FOREIGN KEY (documentName) REFERENCES s2dr.Documents(documentName)
-  -- we cannot set PRIMARY KEY(documentName, userName, permission) because we do not
-    -- delete permissions that have expired based on time. These permissions aren't
-    -- deleted because we ignore them in the permission SELECT query
-  -- we cannot have a foreign key for Users.userName because we allow "ALL"
+  userName VARCHAR (255) NOT NULL,
+  securityFlags INT NOT NULL,
+  encryptionKey BLOB,
+  signature BLOB,
+  chunkIndexStride INT NOT NULL,
+  expires TIMESTAMP NOT NULL,
+  PRIMARY KEY (sessionId),
+  FOREIGN KEY (userName) REFERENCES s2dr.Users(userName)
+);
+
+CREATE INDEX s2dr.UploadSessionsExpiry
+  ON s2dr.UploadSessions (expires);
+
+-- The parts of an upload that were received, each stored as chunks like a document of its own
+CREATE TABLE s2dr.UploadParts
+(
+  sessionId VARCHAR (36) NOT NULL,
+  partNumber INT NOT NULL,
+  partLength BIGINT NOT NULL,
+  partCrc32 BIGINT NOT NULL,
+  contentCoding VARCHAR (16) NOT NULL,
+  PRIMARY KEY (sessionId, partNumber),
+  FOREIGN KEY (sessionId) REFERENCES s2dr.UploadSessions(sessionId)
+);
+
+-- The chunks of the received parts, with offsets from the start of their part. They become the document's manifest
+-- when the upload is committed
+CREATE TABLE s2dr.UploadManifests
+(
+  sessionId VARCHAR (36) NOT NULL,
+  partNumber INT NOT NULL,
+  chunkIndex INT NOT NULL,
+  chunkHash BINARY(32) NOT NULL,
+  chunkOffset BIGINT NOT NULL,
+  chunkLength INT NOT NULL,
+  wrappedKey BINARY(32),
+  PRIMARY KEY (sessionId, chunkIndex),
+  FOREIGN KEY (sessionId, partNumber) REFERENCES s2dr.UploadParts(sessionId, partNumber),
+  FOREIGN KEY (chunkHash) REFERENCES s2dr.ContentChunks(chunkHash)
+);
+
+-- The chunks of contents that are being checked in (or received as a part of an upload), which hold references on
+-- them until the check-in commits and they become a manifest, see `DocumentContentDao.stageContents`. Rows of check-ins
+-- that never finished are released by `DocumentShredder`
+CREATE TABLE s2dr.StagedManifests
+(
+  stagingId VARCHAR (36) NOT NULL,
+  chunkIndex INT NOT NULL,
+  chunkHash BINARY(32) NOT NULL,
+  chunkOffset BIGINT NOT NULL,
+  chunkLength INT NOT NULL,
+  wrappedKey BINARY(32),
+  stagedAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP() NOT NULL,
+  PRIMARY KEY (stagingId, chunkIndex),
+  FOREIGN KEY (chunkHash) REFERENCES s2dr.ContentChunks(chunkHash)
 );
 
+-- Deleted documents whose contents haven't been overwritten yet. Deleting a document renames its row to
+-- `tombstoneName` and queues it here, and `DocumentShredder` overwrites and deletes it in the background
+CREATE TABLE s2dr.ShredQueue
+(
+  tombstoneName VARCHAR (255) NOT NULL,
+  queuedAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP() NOT NULL,
+  PRIMARY KEY (tombstoneName),
+  FOREIGN KEY (tombstoneName) REFERENCES s2dr.Documents(documentName)
+);
+
+-- `UserAuthRealm` loads all of a user's grants (and those to 'ALL') at once when they aren't cached. Every other
+-- permission check looks a single grant up by its primary key
+CREATE INDEX s2dr.DocumentGrantsByUser
+  ON s2dr.DocumentGrants (userId);
+
+-- lets `ExpiredPermissionSweeper` find expired permissions without scanning the table
+CREATE INDEX s2dr.DocumentGrantsExpiry
+  ON s2dr.DocumentGrants (nextExpiry);
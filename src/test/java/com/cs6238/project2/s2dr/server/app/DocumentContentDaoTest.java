@@ -0,0 +1,270 @@
+package com.cs6238.project2.s2dr.server.app;
+
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao.StagedContents;
+import com.cs6238.project2.s2dr.server.app.objects.DocumentDownload;
+import com.cs6238.project2.s2dr.server.app.storage.DatabaseDocumentStore;
+import com.cs6238.project2.s2dr.server.app.storage.DocumentStore;
+import com.cs6238.project2.s2dr.server.app.storage.PlainChunkCodec;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPool;
+import com.cs6238.project2.s2dr.server.config.database.ConnectionPoolConfig;
+import com.cs6238.project2.s2dr.server.config.database.Transaction;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DocumentContentDaoTest {
+
+    // short, so that a check-in that waits on the other one's rows fails quickly
+    private static final int LOCK_TIMEOUT_MILLIS = 2000;
+
+    private final DocumentStore documentStore = new DatabaseDocumentStore();
+
+    private String databaseUrl;
+    private Connection setup;
+
+    @Before
+    public void createDatabase() throws SQLException {
+        databaseUrl = "jdbc:h2:mem:" + UUID.randomUUID() + ";MVCC=TRUE;LOCK_TIMEOUT=" + LOCK_TIMEOUT_MILLIS;
+        setup = DriverManager.getConnection(databaseUrl);
+
+        Statement statement = setup.createStatement();
+        try {
+            statement.execute("RUNSCRIPT FROM 'classpath:/s2dr.sql'");
+            statement.execute("INSERT INTO s2dr.Users (userName, signature, pubKeyModulus, pubKeyExponent)\n" +
+                    "VALUES ('alice', X'00', X'00', X'00')");
+            statement.execute("INSERT INTO s2dr.Documents (documentName, uploadUser, chunked) VALUES\n" +
+                    "('first', 'alice', TRUE), ('second', 'alice', TRUE)");
+        } finally {
+            statement.close();
+        }
+    }
+
+    @After
+    public void dropDatabase() throws SQLException {
+        setup.close();
+    }
+
+    // The first check-in is still streaming its contents when the second one, which shares most of its chunks,
+    // stores and commits its own. Neither waits on the other's chunk rows
+    @Test
+    public void concurrentCheckInsSharingChunks() throws Exception {
+        byte[] shared = randomBytes(1, 2 * 1024 * 1024);
+        byte[] firstTail = randomBytes(2, 256 * 1024);
+        byte[] secondTail = randomBytes(3, 256 * 1024);
+
+        CountDownLatch firstPaused = new CountDownLatch(1);
+        CountDownLatch secondCommitted = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Connection firstConnection = DriverManager.getConnection(databaseUrl);
+        Connection secondConnection = DriverManager.getConnection(databaseUrl);
+        try {
+            Future<?> first = executor.submit(() -> {
+                InputStream contents = new PausingInputStream(shared, firstTail, firstPaused, secondCommitted);
+                checkIn(firstConnection, "first", contents);
+                return null;
+            });
+
+            assertTrue("the first check-in never got past the shared chunks", firstPaused.await(30, TimeUnit.SECONDS));
+
+            long started = System.nanoTime();
+            checkIn(secondConnection, "second", new ByteArrayInputStream(concat(shared, secondTail)));
+            long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            secondCommitted.countDown();
+
+            first.get(30, TimeUnit.SECONDS);
+            assertTrue("the second check-in took " + waitedMillis + " ms", waitedMillis < LOCK_TIMEOUT_MILLIS);
+        } finally {
+            secondCommitted.countDown();
+            executor.shutdownNow();
+            firstConnection.close();
+            secondConnection.close();
+        }
+
+        assertEquals(shared.length + firstTail.length, readContents("first").length);
+        assertEquals(0, count("SELECT COUNT(*) FROM s2dr.StagedManifests"));
+        assertEquals(0, countMiscountedChunks());
+    }
+
+    // staged contents that were released (as abandoned, say) can't be stored anymore, and hold no references
+    @Test
+    public void releasedContentsAreNotStored() throws Exception {
+        DocumentContentDao documentContentDao = new DocumentContentDao(setup, documentStore);
+        StagedContents staged = documentContentDao.stageContents(
+                0, new ByteArrayInputStream(randomBytes(4, 512 * 1024)), PlainChunkCodec.INSTANCE);
+        documentContentDao.discardStagedContents(staged.getStagingId());
+
+        Transaction transaction = Transaction.begin(setup);
+        try {
+            documentContentDao.adoptStagedContents(staged, "first");
+            fail("released contents were stored");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            transaction.end();
+        }
+
+        assertEquals(0, count("SELECT COUNT(*) FROM s2dr.ContentChunks WHERE refCount <> 0"));
+        assertEquals(0, count("SELECT COUNT(*) FROM s2dr.DocumentManifests"));
+    }
+
+    private void checkIn(Connection connection, String documentName, InputStream contents)
+            throws SQLException, IOException {
+
+        DocumentContentDao documentContentDao = new DocumentContentDao(connection, documentStore);
+        StagedContents staged = documentContentDao.stageContents(0, contents, PlainChunkCodec.INSTANCE);
+
+        Transaction transaction = Transaction.begin(connection);
+        try {
+            documentContentDao.adoptStagedContents(staged, documentName);
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+    }
+
+    private byte[] readContents(String documentName) throws SQLException, IOException {
+        DocumentDownload download;
+        PreparedStatement ps = null;
+        try {
+            // only the manifest is written here, not the document's length
+            ps = setup.prepareStatement(
+                    "SELECT (SELECT SUM(m.chunkLength)\n" +
+                    "          FROM s2dr.DocumentManifests m\n" +
+                    "         WHERE m.documentName = d.documentName) AS contentLength,\n" +
+                    "       d.lastModified, d.version\n" +
+                    "  FROM s2dr.Documents d\n" +
+                    " WHERE d.documentName = ?");
+            ps.setString(1, documentName);
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+
+            download = DocumentDownload.builder()
+                    .setDocumentName(documentName)
+                    .setUploadUserName("alice")
+                    .setStoredLength(rs.getLong("contentLength"))
+                    .setChunked(true)
+                    .setLastModifiedMillis(rs.getTimestamp("lastModified").getTime())
+                    .setVersion(rs.getInt("version"))
+                    .build();
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+
+        // check-outs read their chunks a batch at a time, with connections of their own
+        ConnectionPool connectionPool = new ConnectionPool(ConnectionPoolConfig.builder().setUrl(databaseUrl).build());
+        try {
+            InputStream contents = new DocumentContentDao(setup, documentStore)
+                    .openContents(download, 0, PlainChunkCodec.INSTANCE, connectionPool);
+            try {
+                return ByteStreams.toByteArray(contents);
+            } finally {
+                contents.close();
+            }
+        } finally {
+            connectionPool.close();
+        }
+    }
+
+    // chunks whose reference count isn't the number of manifest entries that refer to them
+    private long countMiscountedChunks() throws SQLException {
+        return count(
+                "SELECT COUNT(*)\n" +
+                "  FROM s2dr.ContentChunks c\n" +
+                " WHERE c.refCount <> (SELECT COUNT(*)\n" +
+                "                        FROM s2dr.DocumentManifests m\n" +
+                "                       WHERE m.chunkHash = c.chunkHash)");
+    }
+
+    private long count(String query) throws SQLException {
+        PreparedStatement ps = null;
+        try {
+            ps = setup.prepareStatement(query);
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+            return rs.getLong(1);
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    // `head`, then waits until `resume` before handing out `tail`, the way a client that stalls would
+    private static class PausingInputStream extends InputStream {
+
+        private final InputStream head;
+        private final InputStream tail;
+        private final CountDownLatch paused;
+        private final CountDownLatch resume;
+
+        PausingInputStream(byte[] head, byte[] tail, CountDownLatch paused, CountDownLatch resume) {
+            this.head = new ByteArrayInputStream(head);
+            this.tail = new ByteArrayInputStream(tail);
+            this.paused = paused;
+            this.resume = resume;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = head.read(buffer, offset, length);
+            if (read != -1) {
+                return read;
+            }
+
+            paused.countDown();
+            try {
+                if (!resume.await(30, TimeUnit.SECONDS)) {
+                    throw new IOException("Never resumed");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return tail.read(buffer, offset, length);
+        }
+    }
+}
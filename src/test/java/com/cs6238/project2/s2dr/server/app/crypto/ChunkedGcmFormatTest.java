@@ -0,0 +1,171 @@
+package com.cs6238.project2.s2dr.server.app.crypto;
+
+import com.google.common.io.ByteStreams;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkedGcmFormatTest {
+
+    private static final int CHUNK_SIZE = 64;
+    private static final int STORED_CHUNK_SIZE = CHUNK_SIZE + ChunkedGcmFormat.TAG_SIZE;
+
+    // windows smaller than a document, so that chunks are decrypted over several of them
+    private static final ParallelCryptoEngine ENGINE = new ParallelCryptoEngine(2, 3, 0);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key = new SecretKeySpec(randomBytes(1, 16), "AES");
+
+    // replaced for every document encrypted, since GCM must never see the same key and nonce twice
+    private ChunkedGcmFormat.Header header;
+
+    @AfterClass
+    public static void shutdownEngine() {
+        ENGINE.shutdown();
+    }
+
+    @Test
+    public void encryptedDocumentIsDecrypted() throws IOException {
+        for (int length : new int[] {0, 1, CHUNK_SIZE, CHUNK_SIZE + 1, 10 * CHUNK_SIZE, 10 * CHUNK_SIZE + 7}) {
+            byte[] plaintext = randomBytes(length, length);
+            byte[] stored = encrypt(plaintext);
+
+            assertEquals(length, ChunkedGcmFormat.plaintextLength(header, stored.length));
+            assertArrayEquals("document of " + length + " bytes", plaintext, decrypt(stored, 0));
+        }
+    }
+
+    @Test
+    public void documentIsDecryptedFromAnyChunk() throws IOException {
+        byte[] plaintext = randomBytes(3, 10 * CHUNK_SIZE + 7);
+        byte[] stored = encrypt(plaintext);
+
+        assertArrayEquals(
+                Arrays.copyOfRange(plaintext, 4 * CHUNK_SIZE, plaintext.length),
+                decrypt(stored, 4));
+    }
+
+    @Test
+    public void headerIsParsedBack() throws IOException {
+        header = newHeader();
+        Optional<ChunkedGcmFormat.Header> parsed = ChunkedGcmFormat.Header.parse(header.toBytes());
+        assertTrue(parsed.isPresent());
+        assertArrayEquals(header.toBytes(), parsed.get().toBytes());
+    }
+
+    // a document stored before the chunked format starts with the IV of its AES/CBC blob
+    @Test
+    public void blobIsNotParsedAsAHeader() throws IOException {
+        assertEquals(Optional.empty(), ChunkedGcmFormat.Header.parse(randomBytes(4, 16)));
+        assertEquals(Optional.empty(), ChunkedGcmFormat.Header.parse(Arrays.copyOf(newHeader().toBytes(), 15)));
+    }
+
+    // rather than a chunk size the decrypting stream would allocate, or that overflows with the tag added
+    @Test
+    public void headerWithAnOversizedChunkSizeFailsAuthentication() {
+        for (int chunkSize : new int[] {0, -1, ChunkedGcmFormat.MAX_CHUNK_SIZE + 1, Integer.MAX_VALUE}) {
+            byte[] bytes = newHeader().toBytes();
+            ByteBuffer.wrap(bytes).putInt(8, chunkSize);
+            try {
+                ChunkedGcmFormat.Header.parse(bytes);
+                fail("chunk size " + chunkSize + " was parsed");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void flippedCiphertextBitFailsAuthentication() throws IOException {
+        byte[] stored = encrypt(randomBytes(5, 5 * CHUNK_SIZE));
+        stored[ChunkedGcmFormat.HEADER_SIZE + 2 * STORED_CHUNK_SIZE + 10] ^= 1;
+        decrypt(stored, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void flippedTagBitFailsAuthentication() throws IOException {
+        byte[] stored = encrypt(randomBytes(6, 5 * CHUNK_SIZE));
+        stored[stored.length - 1] ^= 1;
+        decrypt(stored, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void swappedChunksFailAuthentication() throws IOException {
+        byte[] stored = encrypt(randomBytes(7, 5 * CHUNK_SIZE));
+        int first = ChunkedGcmFormat.HEADER_SIZE + STORED_CHUNK_SIZE;
+        int second = first + STORED_CHUNK_SIZE;
+        byte[] chunk = Arrays.copyOfRange(stored, first, second);
+        System.arraycopy(stored, second, stored, first, STORED_CHUNK_SIZE);
+        System.arraycopy(chunk, 0, stored, second, STORED_CHUNK_SIZE);
+        decrypt(stored, 0);
+    }
+
+    // chunks of another document under the same key have another nonce prefix in their associated data
+    @Test(expected = IOException.class)
+    public void chunksUnderAnotherHeaderFailAuthentication() throws IOException {
+        byte[] stored = encrypt(randomBytes(8, 5 * CHUNK_SIZE));
+        ChunkedGcmFormat.Header other = newHeader();
+        ByteStreams.toByteArray(new ChunkedGcmDecryptingInputStream(
+                new ByteArrayInputStream(stored, ChunkedGcmFormat.HEADER_SIZE, stored.length), key, other, 0, ENGINE));
+    }
+
+    // what is left ends with a full chunk that wasn't encrypted as the last one
+    @Test(expected = IOException.class)
+    public void documentCutAtAChunkBoundaryFailsAuthentication() throws IOException {
+        byte[] stored = encrypt(randomBytes(10, 5 * CHUNK_SIZE + 7));
+        decrypt(Arrays.copyOf(stored, ChunkedGcmFormat.HEADER_SIZE + 5 * STORED_CHUNK_SIZE), 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void documentCutInTheMiddleOfAChunkFailsAuthentication() throws IOException {
+        byte[] stored = encrypt(randomBytes(11, 5 * CHUNK_SIZE));
+        decrypt(Arrays.copyOf(stored, ChunkedGcmFormat.HEADER_SIZE + 3 * STORED_CHUNK_SIZE + 40), 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void chunkShorterThanItsTagIsTruncated() throws IOException {
+        byte[] stored = encrypt(randomBytes(12, 5 * CHUNK_SIZE + 7));
+        decrypt(Arrays.copyOf(stored, ChunkedGcmFormat.HEADER_SIZE + 5 * STORED_CHUNK_SIZE + 3), 0);
+    }
+
+    private byte[] encrypt(byte[] plaintext) throws IOException {
+        header = newHeader();
+        return ByteStreams.toByteArray(
+                new ChunkedGcmEncryptingInputStream(new ByteArrayInputStream(plaintext), key, header, ENGINE));
+    }
+
+    private byte[] decrypt(byte[] stored, int firstChunkIndex) throws IOException {
+        int offset = ChunkedGcmFormat.HEADER_SIZE
+                + (int) ChunkedGcmFormat.storedChunkOffset(header, firstChunkIndex);
+        ByteArrayInputStream storedChunks = new ByteArrayInputStream(stored, offset, stored.length - offset);
+        return ByteStreams.toByteArray(
+                new ChunkedGcmDecryptingInputStream(storedChunks, key, header, firstChunkIndex, ENGINE));
+    }
+
+    private static ChunkedGcmFormat.Header newHeader() {
+        byte[] noncePrefix = new byte[ChunkedGcmFormat.NONCE_PREFIX_SIZE];
+        RANDOM.nextBytes(noncePrefix);
+        return new ChunkedGcmFormat.Header(CHUNK_SIZE, noncePrefix);
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
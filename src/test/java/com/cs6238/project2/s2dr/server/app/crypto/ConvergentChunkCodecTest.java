@@ -0,0 +1,92 @@
+package com.cs6238.project2.s2dr.server.app.crypto;
+
+import com.cs6238.project2.s2dr.server.app.storage.ChunkCodec.ChunkDescriptor;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ConvergentChunkCodecTest {
+
+    // every batch is spread over the pool
+    private static final ParallelCryptoEngine ENGINE = new ParallelCryptoEngine(4, 8, 0);
+
+    private static final byte[] CONVERGENCE_SECRET = randomBytes(1, 32);
+
+    @AfterClass
+    public static void shutdownEngine() {
+        ENGINE.shutdown();
+    }
+
+    @Test
+    public void batchIsDescribedAndEncodedLikeOneChunkAtATime() throws IOException {
+        ConvergentChunkCodec codec = codec("alice", 2);
+        List<byte[]> chunks = chunks(3, 64);
+
+        List<ChunkDescriptor> descriptors = codec.describeAll(chunks, 100);
+        List<byte[]> encoded = codec.encodeAll(descriptors, chunks);
+
+        assertEquals(chunks.size(), descriptors.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            ChunkDescriptor descriptor = codec.describe(chunks.get(i), 100 + i);
+            assertArrayEquals(descriptor.getChunkHash(), descriptors.get(i).getChunkHash());
+            assertArrayEquals(descriptor.getWrappedKey().get(), descriptors.get(i).getWrappedKey().get());
+            assertArrayEquals(codec.encode(descriptor, chunks.get(i)), encoded.get(i));
+            assertArrayEquals(chunks.get(i), codec.decode(descriptors.get(i), 100 + i, encoded.get(i)));
+        }
+    }
+
+    // the same chunks, checked in by the same uploader as part of another document, are stored once
+    @Test
+    public void uploadersChunksAreSharedAcrossTheirDocuments() throws IOException {
+        List<byte[]> chunks = chunks(4, 16);
+        List<ChunkDescriptor> first = codec("alice", 5).describeAll(chunks, 0);
+        List<ChunkDescriptor> second = codec("alice", 6).describeAll(chunks, 0);
+
+        for (int i = 0; i < chunks.size(); i++) {
+            assertArrayEquals(first.get(i).getChunkHash(), second.get(i).getChunkHash());
+        }
+    }
+
+    @Test
+    public void otherUploadersChunksAreNotShared() throws IOException {
+        List<byte[]> chunks = chunks(7, 16);
+        List<ChunkDescriptor> alices = codec("alice", 8).describeAll(chunks, 0);
+        List<ChunkDescriptor> bobs = codec("bob", 8).describeAll(chunks, 0);
+
+        for (int i = 0; i < chunks.size(); i++) {
+            assertFalse(Arrays.equals(alices.get(i).getChunkHash(), bobs.get(i).getChunkHash()));
+        }
+    }
+
+    private static ConvergentChunkCodec codec(String uploaderName, long documentKeySeed) {
+        return new ConvergentChunkCodec(CONVERGENCE_SECRET, uploaderName,
+                new SecretKeySpec(randomBytes(documentKeySeed, 16), "AES"), ENGINE);
+    }
+
+    private static List<byte[]> chunks(long seed, int count) {
+        Random random = new Random(seed);
+        List<byte[]> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] chunk = new byte[4096 + random.nextInt(28 * 1024)];
+            random.nextBytes(chunk);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
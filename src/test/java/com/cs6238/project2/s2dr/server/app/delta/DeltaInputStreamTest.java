@@ -0,0 +1,265 @@
+package com.cs6238.project2.s2dr.server.app.delta;
+
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao;
+import com.cs6238.project2.s2dr.server.app.DocumentContentDao.ChunkedContents;
+import com.cs6238.project2.s2dr.server.app.exceptions.InvalidDeltaException;
+import com.cs6238.project2.s2dr.server.app.storage.DatabaseDocumentStore;
+import com.cs6238.project2.s2dr.server.app.storage.PlainChunkCodec;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaInputStreamTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final long MAX_TARGET_LENGTH = 1024 * 1024;
+
+    private Connection connection;
+    private byte[] basisContents;
+    private ChunkedContents basis;
+
+    @Before
+    public void storeBasis() throws SQLException, IOException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:" + UUID.randomUUID());
+
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("RUNSCRIPT FROM 'classpath:/s2dr.sql'");
+            statement.execute("INSERT INTO s2dr.Users (userName, signature, pubKeyModulus, pubKeyExponent)\n" +
+                    "VALUES ('alice', X'00', X'00', X'00')");
+            statement.execute("INSERT INTO s2dr.Documents (documentName, uploadUser, chunked)\n" +
+                    "VALUES ('basis', 'alice', TRUE)");
+        } finally {
+            statement.close();
+        }
+
+        basisContents = new byte[10 * BLOCK_SIZE + 100];
+        new Random(1).nextBytes(basisContents);
+
+        DocumentContentDao documentContentDao = new DocumentContentDao(connection, new DatabaseDocumentStore());
+        documentContentDao.adoptStagedContents(
+                documentContentDao.stageContents(0, new ByteArrayInputStream(basisContents), PlainChunkCodec.INSTANCE),
+                "basis");
+        basis = documentContentDao.openChunkedContents("basis", PlainChunkCodec.INSTANCE);
+    }
+
+    @After
+    public void closeBasis() throws SQLException, IOException {
+        basis.close();
+        connection.close();
+    }
+
+    // an edited copy of the basis, diffed against its block signatures the way a client would, is rebuilt
+    @Test
+    public void editedContentsAreRebuiltFromTheirDelta() throws IOException {
+        byte[] inserted = new byte[777];
+        new Random(2).nextBytes(inserted);
+
+        ByteArrayOutputStream edited = new ByteArrayOutputStream();
+        edited.write(basisContents, 0, 3 * BLOCK_SIZE + 10);
+        edited.write(inserted);
+        edited.write(basisContents, 5 * BLOCK_SIZE, basisContents.length - 5 * BLOCK_SIZE);
+
+        byte[] delta = diff(edited.toByteArray());
+        assertTrue("the delta copies nothing", delta.length < edited.size() / 2);
+        assertArrayEquals(edited.toByteArray(), rebuild(delta));
+    }
+
+    @Test
+    public void copyOfTheLastBlockEndsWithTheBasis() throws IOException {
+        byte[] rebuilt = rebuild(delta(100).copy(10, 5).end());
+        assertArrayEquals(Arrays.copyOfRange(basisContents, 10 * BLOCK_SIZE, basisContents.length), rebuilt);
+    }
+
+    @Test
+    public void emptyDeltaRebuildsNothing() throws IOException {
+        assertEquals(0, rebuild(delta(0).end()).length);
+    }
+
+    @Test
+    public void deltaOfItsTargetLengthIsRebuilt() throws IOException {
+        assertEquals(BLOCK_SIZE + 3, rebuild(delta(BLOCK_SIZE + 3).copy(1, 1).literal(new byte[3]).end()).length);
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void targetLengthOverTheMaximumIsRejected() throws IOException {
+        rebuild(delta(MAX_TARGET_LENGTH + 1).end());
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void negativeTargetLengthIsRejected() throws IOException {
+        rebuild(delta(-1).end());
+    }
+
+    // a few bytes of copies would otherwise rebuild any number of bytes
+    @Test(expected = InvalidDeltaException.class)
+    public void copiesBeyondTheTargetLengthAreRejected() throws IOException {
+        Delta delta = delta(2 * BLOCK_SIZE);
+        for (int i = 0; i < 1000; i++) {
+            delta.copy(0, 1);
+        }
+        rebuild(delta.end());
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void literalBeyondTheTargetLengthIsRejected() throws IOException {
+        rebuild(delta(10).literal(new byte[11]).end());
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void deltaShorterThanItsTargetLengthIsRejected() throws IOException {
+        rebuild(delta(BLOCK_SIZE + 1).copy(0, 1).end());
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void nonPositiveBlockSizeIsRejected() throws IOException {
+        rebuild(new Delta(0, 0).end());
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void truncatedHeaderIsRejected() throws IOException {
+        rebuild(new byte[] {0, 0, 16, 0, 0, 0});
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void copyOutsideTheBasisIsRejected() throws IOException {
+        rebuild(delta(BLOCK_SIZE).copy(11, 1).end());
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void copyOfNegativeBlocksIsRejected() throws IOException {
+        rebuild(delta(BLOCK_SIZE).copy(-1, 1).end());
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void emptyLiteralIsRejected() throws IOException {
+        rebuild(delta(0).literal(new byte[0]).end());
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void truncatedLiteralIsRejected() throws IOException {
+        byte[] delta = delta(10).literal(new byte[10]).end();
+        rebuild(Arrays.copyOf(delta, delta.length - 8));
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void unknownCommandIsRejected() throws IOException {
+        Delta delta = delta(0);
+        delta.out.writeInt(3);
+        rebuild(delta.end());
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void deltaWithoutAnEndIsRejected() throws IOException {
+        byte[] delta = delta(BLOCK_SIZE).copy(0, 1).end();
+        rebuild(Arrays.copyOf(delta, delta.length - 4));
+    }
+
+    @Test(expected = InvalidDeltaException.class)
+    public void bytesAfterTheEndAreRejected() throws IOException {
+        byte[] delta = delta(0).end();
+        rebuild(Arrays.copyOf(delta, delta.length + 1));
+    }
+
+    private byte[] rebuild(byte[] delta) throws IOException {
+        return ByteStreams.toByteArray(new DeltaInputStream(new ByteArrayInputStream(delta), basis, MAX_TARGET_LENGTH));
+    }
+
+    private static Delta delta(long targetLength) throws IOException {
+        return new Delta(BLOCK_SIZE, targetLength);
+    }
+
+    // matches whole blocks of the basis at any offset of `contents` by their signatures, and sends the rest as
+    // literals
+    private byte[] diff(byte[] contents) throws IOException {
+        BlockSignatureOutputStream signatures = new BlockSignatureOutputStream(BLOCK_SIZE);
+        signatures.write(basisContents, 0, basisContents.length);
+        signatures.close();
+
+        Map<Integer, Integer> blocksByChecksum = new HashMap<>();
+        for (int i = 0; i < signatures.getSignatures().size(); i++) {
+            blocksByChecksum.putIfAbsent(signatures.getSignatures().get(i).getWeak(), i);
+        }
+
+        Delta delta = delta(contents.length);
+        int literalStart = 0;
+        int offset = 0;
+        RollingChecksum checksum = null;
+        while (offset + BLOCK_SIZE <= contents.length) {
+            if (checksum == null) {
+                checksum = new RollingChecksum(contents, offset, BLOCK_SIZE);
+            }
+            Integer block = blocksByChecksum.get(checksum.getValue());
+            if (block != null && Arrays.equals(
+                    Arrays.copyOfRange(contents, offset, offset + BLOCK_SIZE),
+                    Arrays.copyOfRange(basisContents, block * BLOCK_SIZE, (block + 1) * BLOCK_SIZE))) {
+                if (literalStart < offset) {
+                    delta.literal(Arrays.copyOfRange(contents, literalStart, offset));
+                }
+                delta.copy(block, 1);
+                offset += BLOCK_SIZE;
+                literalStart = offset;
+                checksum = null;
+            } else if (offset + BLOCK_SIZE < contents.length) {
+                checksum.roll(contents[offset], contents[offset + BLOCK_SIZE]);
+                offset++;
+            } else {
+                break;
+            }
+        }
+        if (literalStart < contents.length) {
+            delta.literal(Arrays.copyOfRange(contents, literalStart, contents.length));
+        }
+        return delta.end();
+    }
+
+    // writes a delta in the format `DeltaInputStream` reads
+    private static class Delta {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Delta(int blockSize, long targetLength) throws IOException {
+            out.writeInt(blockSize);
+            out.writeLong(targetLength);
+        }
+
+        Delta copy(int firstBlock, int blockCount) throws IOException {
+            out.writeInt(DeltaInputStream.COPY);
+            out.writeInt(firstBlock);
+            out.writeInt(blockCount);
+            return this;
+        }
+
+        Delta literal(byte[] literal) throws IOException {
+            out.writeInt(DeltaInputStream.LITERAL);
+            out.writeInt(literal.length);
+            out.write(literal);
+            return this;
+        }
+
+        byte[] end() throws IOException {
+            out.writeInt(DeltaInputStream.END);
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.cs6238.project2.s2dr.server.app.delta;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RollingChecksumTest {
+
+    @Test
+    public void rolledChecksumIsTheChecksumOfTheBlockAtTheNewOffset() {
+        byte[] bytes = new byte[100000];
+        new Random(1).nextBytes(bytes);
+
+        for (int blockLength : new int[] {1, 2, 700, 4096}) {
+            RollingChecksum checksum = new RollingChecksum(bytes, 0, blockLength);
+            for (int offset = 1; offset + blockLength <= bytes.length; offset++) {
+                checksum.roll(bytes[offset - 1], bytes[offset + blockLength - 1]);
+                assertEquals("block of " + blockLength + " bytes at " + offset,
+                        RollingChecksum.of(bytes, offset, blockLength), checksum.getValue());
+            }
+        }
+    }
+
+    // a and b wrap around modulo 2^16 well within a block of 0xff bytes
+    @Test
+    public void rollingWrapsAroundLikeTheChecksum() {
+        byte[] bytes = new byte[3 * 8192];
+        Arrays.fill(bytes, (byte) 0xff);
+        for (int i = 8192; i < bytes.length; i += 3) {
+            bytes[i] = 0;
+        }
+
+        RollingChecksum checksum = new RollingChecksum(bytes, 0, 8192);
+        for (int offset = 1; offset + 8192 <= bytes.length; offset++) {
+            checksum.roll(bytes[offset - 1], bytes[offset + 8191]);
+            assertEquals(RollingChecksum.of(bytes, offset, 8192), checksum.getValue());
+        }
+    }
+
+    @Test
+    public void checksumOfAKnownBlock() {
+        // a = 1 + 2 + 3 = 6, b = 3 * 1 + 2 * 2 + 1 * 3 = 10
+        assertEquals(6 | (10 << 16), RollingChecksum.of(new byte[] {9, 1, 2, 3, 9}, 1, 3));
+    }
+}
@@ -0,0 +1,84 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import com.cs6238.project2.s2dr.server.app.exceptions.RangeNotSatisfiableException;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+
+public class ByteRangeTest {
+
+    private static final long LENGTH = 1000;
+
+    @Test
+    public void closedRange() throws RangeNotSatisfiableException {
+        assertEquals(range(0, 499), ByteRange.parse("bytes=0-499", LENGTH));
+        assertEquals(range(999, 999), ByteRange.parse("bytes=999-999", LENGTH));
+    }
+
+    @Test
+    public void closedRangeIsCutAtTheEnd() throws RangeNotSatisfiableException {
+        assertEquals(range(500, 999), ByteRange.parse("bytes=500-5000", LENGTH));
+    }
+
+    @Test
+    public void openEndedRange() throws RangeNotSatisfiableException {
+        assertEquals(range(900, 999), ByteRange.parse("bytes=900-", LENGTH));
+        assertEquals(range(0, 999), ByteRange.parse("bytes=0-", LENGTH));
+    }
+
+    @Test
+    public void suffixRange() throws RangeNotSatisfiableException {
+        assertEquals(range(900, 999), ByteRange.parse("bytes=-100", LENGTH));
+    }
+
+    @Test
+    public void suffixLongerThanTheDocumentIsTheWholeDocument() throws RangeNotSatisfiableException {
+        assertEquals(range(0, 999), ByteRange.parse("bytes=-5000", LENGTH));
+    }
+
+    @Test
+    public void unitAndWhitespaceAreLenient() throws RangeNotSatisfiableException {
+        assertEquals(range(1, 2), ByteRange.parse(" Bytes=1-2 ", LENGTH));
+    }
+
+    @Test
+    public void contentRange() throws RangeNotSatisfiableException {
+        assertEquals("bytes 900-999/1000", ByteRange.parse("bytes=-100", LENGTH).get().toContentRange());
+        assertEquals(100, ByteRange.parse("bytes=-100", LENGTH).get().getLength());
+    }
+
+    @Test(expected = RangeNotSatisfiableException.class)
+    public void rangeStartingAtTheEndIsUnsatisfiable() throws RangeNotSatisfiableException {
+        ByteRange.parse("bytes=1000-", LENGTH);
+    }
+
+    @Test(expected = RangeNotSatisfiableException.class)
+    public void rangeStartingPastTheEndIsUnsatisfiable() throws RangeNotSatisfiableException {
+        ByteRange.parse("bytes=2000-3000", LENGTH);
+    }
+
+    @Test(expected = RangeNotSatisfiableException.class)
+    public void emptySuffixIsUnsatisfiable() throws RangeNotSatisfiableException {
+        ByteRange.parse("bytes=-0", LENGTH);
+    }
+
+    @Test(expected = RangeNotSatisfiableException.class)
+    public void anyRangeOfAnEmptyDocumentIsUnsatisfiable() throws RangeNotSatisfiableException {
+        ByteRange.parse("bytes=-10", 0);
+    }
+
+    // the whole document is sent for these
+    @Test
+    public void ignoredHeaders() throws RangeNotSatisfiableException {
+        for (String header : new String[] {
+                "bytes=-", "bytes=5-4", "bytes=0-1,5-6", "items=0-1", "bytes=a-b", "bytes=99999999999999999999-"}) {
+            assertEquals(header, Optional.empty(), ByteRange.parse(header, LENGTH));
+        }
+    }
+
+    private static Optional<ByteRange> range(long first, long last) {
+        return Optional.of(new ByteRange(first, last, LENGTH));
+    }
+}
@@ -0,0 +1,45 @@
+package com.cs6238.project2.s2dr.server.app.objects;
+
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class EnumBitsTest {
+
+    @Test
+    public void everySetOfPermissionsRoundTrips() {
+        for (Set<DocumentPermission> permissions : Sets.powerSet(EnumSet.allOf(DocumentPermission.class))) {
+            assertEquals(permissions,
+                    EnumBits.fromBits(DocumentPermission.class, EnumBits.toBits(permissions)));
+        }
+    }
+
+    @Test
+    public void everySetOfSecurityFlagsRoundTrips() {
+        for (Set<SecurityFlag> flags : Sets.powerSet(EnumSet.allOf(SecurityFlag.class))) {
+            assertEquals(flags, EnumBits.fromBits(SecurityFlag.class, EnumBits.toBits(flags)));
+        }
+    }
+
+    // these are stored, so they must never change
+    @Test
+    public void storedBitsKeepTheirMeaning() {
+        assertEquals(1, EnumBits.bit(DocumentPermission.READ));
+        assertEquals(2, EnumBits.bit(DocumentPermission.WRITE));
+        assertEquals(4, EnumBits.bit(DocumentPermission.OWNER));
+
+        assertEquals(1, EnumBits.bit(SecurityFlag.CONFIDENTIALITY));
+        assertEquals(2, EnumBits.bit(SecurityFlag.INTEGRITY));
+        assertEquals(4, EnumBits.bit(SecurityFlag.NONE));
+    }
+
+    @Test
+    public void unknownBitsAreIgnored() {
+        assertEquals(EnumSet.of(DocumentPermission.WRITE), EnumBits.fromBits(DocumentPermission.class, 0xfffffff2));
+        assertEquals(EnumSet.noneOf(SecurityFlag.class), EnumBits.fromBits(SecurityFlag.class, 0));
+    }
+}
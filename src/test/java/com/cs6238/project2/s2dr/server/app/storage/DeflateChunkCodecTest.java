@@ -0,0 +1,61 @@
+package com.cs6238.project2.s2dr.server.app.storage;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeflateChunkCodecTest {
+
+    @Test
+    public void combinedCrc32IsTheCrc32OfBothParts() {
+        Random random = new Random(1);
+        for (int length : new int[] {1, 2, 3, 7, 8, 255, 256, 4096, 65537, 1 << 20}) {
+            byte[] first = new byte[random.nextInt(1000)];
+            byte[] second = new byte[length];
+            random.nextBytes(first);
+            random.nextBytes(second);
+
+            assertEquals("second part of " + length + " bytes",
+                    crc32(first, second),
+                    DeflateChunkCodec.combineCrc32(crc32(first), crc32(second), second.length));
+        }
+    }
+
+    @Test
+    public void combinedCrc32OfAnEmptySecondPartIsTheFirst() {
+        byte[] first = {1, 2, 3};
+        assertEquals(crc32(first), DeflateChunkCodec.combineCrc32(crc32(first), crc32(), 0));
+    }
+
+    @Test
+    public void combinedCrc32OfAnEmptyFirstPartIsTheSecond() {
+        byte[] second = {1, 2, 3};
+        assertEquals(crc32(second), DeflateChunkCodec.combineCrc32(crc32(), crc32(second), second.length));
+    }
+
+    // parts are combined one by one, the way an upload session's are
+    @Test
+    public void crc32sOfManyPartsCombine() {
+        Random random = new Random(2);
+        CRC32 whole = new CRC32();
+        long combined = crc32();
+        for (int i = 0; i < 50; i++) {
+            byte[] part = new byte[random.nextInt(10000)];
+            random.nextBytes(part);
+            whole.update(part);
+            combined = DeflateChunkCodec.combineCrc32(combined, crc32(part), part.length);
+        }
+        assertEquals(whole.getValue(), combined);
+    }
+
+    private static long crc32(byte[]... parts) {
+        CRC32 crc32 = new CRC32();
+        for (byte[] part : parts) {
+            crc32.update(part);
+        }
+        return crc32.getValue();
+    }
+}
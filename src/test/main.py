@@ -2,6 +2,7 @@
 import requests
 import sys
 import hashlib
+import struct
 import time
 
 from OpenSSL import crypto
@@ -42,7 +43,11 @@ class Client:
             'logout': BASE_URL + "logout/",
             'delete': BASE_URL + "document/",
             'delegate': BASE_URL + "document/",
-            'signature': "/signature"
+            'signature': "/signature",
+            'blocks': "/blocks",
+            'delta': "/delta",
+            'sessions': BASE_URL + "upload/sessions/",
+            'delegations': BASE_URL + "delegations"
             }
 
     def __init__(self, cert, key):
@@ -120,6 +125,18 @@ class Client:
             sys.exit(1)
         pass
 
+    # each delegation is a dict with the documentName and what delegate takes
+    def delegate_bulk(self, delegations):
+        try:
+            delegations_request = self.session.post(url=self.URLS['delegations'],
+                                                    json=delegations,
+                                                    cert=(self.cert, self.key),
+                                                    verify=False)
+            return delegations_request
+        except requests.RequestException as e:
+            print e
+            sys.exit(1)
+
     def delete(self, document_id):
         try:
             delete_request = self.session.delete(url=self.URLS['delete'] + str(document_id), cert=(self.cert, self.key), verify=False)
@@ -145,6 +162,84 @@ class Client:
             sys.exit(1)
         return signature_request
 
+    def get_blocks(self, document_id):
+        try:
+            blocks_request = self.session.get(url=self.URLS['download'] + str(document_id) + self.URLS['blocks'],
+                                              cert=(self.cert, self.key),
+                                              verify=False)
+            return blocks_request
+        except requests.RequestException as e:
+            print e
+            sys.exit(1)
+
+    # file_path is the edited copy, it is signed like a check-in of the whole document
+    def upload_delta(self, document_id, file_path, delta, base_version, security_flags):
+        signature = self.sign(file_path)
+        try:
+            _files = {'delta': ('delta', delta),
+                      "baseVersion": str(base_version),
+                      "securityFlags": security_flags,
+                      "signature": signature}
+            delta_request = self.session.post(url=self.URLS['download'] + str(document_id) + self.URLS['delta'],
+                                              files=_files, cert=(self.cert, self.key), verify=False)
+            return delta_request
+        except requests.RequestException as e:
+            print e
+            sys.exit(1)
+
+    # the signature is of the whole document, the parts are sent to the session afterwards
+    def create_upload_session(self, file_path, filename, security_flags):
+        signature = self.sign(file_path)
+        try:
+            _files = {"documentName": filename,
+                      "securityFlags": security_flags,
+                      "signature": signature}
+            session_request = self.session.post(url=self.URLS['sessions'], files=_files,
+                                                cert=(self.cert, self.key), verify=False)
+            return session_request
+        except requests.RequestException as e:
+            print e
+            sys.exit(1)
+
+    def upload_part(self, session_id, part_number, part):
+        try:
+            part_request = self.session.put(url=self.URLS['sessions'] + session_id + "/parts/" + str(part_number),
+                                            data=part,
+                                            headers={'Content-Type': 'application/octet-stream'},
+                                            cert=(self.cert, self.key),
+                                            verify=False)
+            return part_request
+        except requests.RequestException as e:
+            print e
+            sys.exit(1)
+
+    def get_upload_session(self, session_id):
+        try:
+            session_request = self.session.get(url=self.URLS['sessions'] + session_id,
+                                               cert=(self.cert, self.key), verify=False)
+            return session_request
+        except requests.RequestException as e:
+            print e
+            sys.exit(1)
+
+    def commit_upload(self, session_id):
+        try:
+            commit_request = self.session.post(url=self.URLS['sessions'] + session_id + "/commit",
+                                               cert=(self.cert, self.key), verify=False)
+            return commit_request
+        except requests.RequestException as e:
+            print e
+            sys.exit(1)
+
+    def abort_upload(self, session_id):
+        try:
+            abort_request = self.session.delete(url=self.URLS['sessions'] + session_id,
+                                                cert=(self.cert, self.key), verify=False)
+            return abort_request
+        except requests.RequestException as e:
+            print e
+            sys.exit(1)
+
     def logout(self):
         try:
             logout_request = self.session.post(self.URLS['logout'], cert=(self.cert, self.key), verify=False)
@@ -153,6 +248,48 @@ class Client:
             print e
             sys.exit(1)
 
+
+# rsync's weak checksum of a block, as the server's RollingChecksum computes it (a signed int32 in the JSON)
+def rolling_checksum(block):
+    a = 0
+    b = 0
+    for i, x in enumerate(block):
+        a += x
+        b += (len(block) - i) * x
+    value = (a & 0xffff) | ((b & 0xffff) << 16)
+    return value - (1 << 32) if value >= (1 << 31) else value
+
+
+# Builds a delta of `contents` against the blocks the server returned for the current version. For simplicity
+# every offset is checksummed from scratch instead of rolling the checksum along
+def make_delta(blocks, contents):
+    contents = bytearray(contents)
+    block_size = blocks['blockSize']
+    by_weak = {}
+    for index, block in enumerate(blocks['blocks']):
+        by_weak.setdefault(block['weak'], []).append((index, block['strong']))
+
+    delta = struct.pack('>iq', block_size, len(contents))
+    literal_start = 0
+    offset = 0
+    while offset + block_size <= len(contents):
+        window = contents[offset:offset + block_size]
+        strong = hashlib.sha256(window).hexdigest()[:32]
+        match = [index for index, s in by_weak.get(rolling_checksum(window), []) if s == strong]
+        if match:
+            if literal_start < offset:
+                literal = str(contents[literal_start:offset])
+                delta += struct.pack('>ii', 2, len(literal)) + literal
+            delta += struct.pack('>iii', 1, match[0], 1)
+            offset += block_size
+            literal_start = offset
+        else:
+            offset += 1
+    if literal_start < len(contents):
+        literal = str(contents[literal_start:])
+        delta += struct.pack('>ii', 2, len(literal)) + literal
+    return delta + struct.pack('>i', 0)
+
 # Place holders for the different test scenarios we have to run.
 
 
@@ -487,6 +624,174 @@ def test8(client_0, client_1, client_2):
         result = False
     return result
 
+
+def test9(client_0):
+    """
+    Test Case: Updating a document with a delta
+        -Using the first session, check in "delta.txt" with INTEGRITY
+        -Fetch its block signatures and send an edited copy as a delta against them
+        -Check out "delta.txt" and compare it to the edited copy
+        -Send a delta that claims a longer document than it rebuilds, which should be refused
+    :returns: delta result
+    """
+    printOut(9, "HEADER")
+    client_0.login()
+    original = ''.join('line %d of a document that is edited with a delta\n' % i for i in range(2000))
+    edited = original[:30000] + 'a few bytes inserted in the middle\n' + original[40000:]
+    with open('files/delta.txt', 'wb') as f:
+        f.write(original)
+    with open('files/delta_edited.txt', 'wb') as f:
+        f.write(edited)
+
+    printOut(9, "LOG", "Attempting to check in 'delta.txt' with INTEGRITY flag set")
+    request = client_0.upload('files/delta.txt', 'delta.txt', 'INTEGRITY')
+    if request.status_code != 201:
+        printOut(9, "ERROR", "Check in of 'delta.txt' failed, status code: " + str(request.status_code))
+        return False
+
+    request = client_0.get_blocks('delta.txt')
+    if request.status_code != 200:
+        printOut(9, "ERROR", "Fetching the blocks of 'delta.txt' failed, status code: " + str(request.status_code))
+        return False
+    blocks = request.json()
+    delta = make_delta(blocks, edited)
+    printOut(9, "LOG", "Sending a delta of " + str(len(delta)) + " bytes for " + str(len(edited)) + " bytes")
+
+    request = client_0.upload_delta('delta.txt', 'files/delta_edited.txt', delta, blocks['version'], 'INTEGRITY')
+    if request.status_code != 201:
+        printOut(9, "ERROR", "Delta of 'delta.txt' failed, status code: " + str(request.status_code))
+        return False
+
+    request = client_0.download('delta.txt', 'downloads_0/delta_copy.txt')
+    if request.status_code != 200 or open('downloads_0/delta_copy.txt', 'rb').read() != edited:
+        printOut(9, "ERROR", "'delta.txt' doesn't match the edited copy")
+        return False
+    printOut(9, "LOG", "'delta.txt' matches the edited copy")
+
+    printOut(9, "LOG", "Sending a delta that rebuilds less than its target length")
+    request = client_0.get_blocks('delta.txt')
+    blocks = request.json()
+    bad_delta = struct.pack('>iqiiii', blocks['blockSize'], 1 << 20, 1, 0, 1, 0)
+    request = client_0.upload_delta('delta.txt', 'files/delta_edited.txt', bad_delta, blocks['version'], 'INTEGRITY')
+    if request.status_code != 400:
+        printOut(9, "ERROR", "The malformed delta wasn't refused, status code: " + str(request.status_code))
+        return False
+    printOut(9, "LOG", "The malformed delta was refused")
+    return True
+
+
+def test10(client_0):
+    """
+    Test Case: Checking-in a document in parts
+        -Using the first session, start an upload of "parts.txt" with INTEGRITY
+        -Send its parts out of order, then send one of them again, which should be refused
+        -Check that the session lists every part, commit it, and compare the checked out document
+        -Start a second upload and abort it, after which it should be gone
+    :returns: upload result
+    """
+    printOut(10, "HEADER")
+    client_0.login()
+    contents = ''.join('line %d of a document that is checked in in parts\n' % i for i in range(5000))
+    with open('files/parts.txt', 'wb') as f:
+        f.write(contents)
+
+    printOut(10, "LOG", "Attempting to start an upload of 'parts.txt' in parts")
+    request = client_0.create_upload_session('files/parts.txt', 'parts.txt', 'INTEGRITY')
+    if request.status_code != 201:
+        printOut(10, "ERROR", "Starting the upload failed, status code: " + str(request.status_code))
+        return False
+    session = request.json()
+    part_size = min(session['maxPartBytes'], 64 * 1024)
+    parts = [contents[i:i + part_size] for i in range(0, len(contents), part_size)]
+    printOut(10, "LOG", "Sending " + str(len(parts)) + " parts to upload " + session['sessionId'])
+
+    for part_number in reversed(range(1, len(parts) + 1)):
+        request = client_0.upload_part(session['sessionId'], part_number, parts[part_number - 1])
+        if request.status_code != 200:
+            printOut(10, "ERROR", "Part " + str(part_number) + " failed, status code: " + str(request.status_code))
+            return False
+
+    request = client_0.upload_part(session['sessionId'], 1, parts[0])
+    if request.status_code != 409:
+        printOut(10, "ERROR", "Part 1 was accepted twice, status code: " + str(request.status_code))
+        return False
+    printOut(10, "LOG", "Sending part 1 again was refused")
+
+    request = client_0.get_upload_session(session['sessionId'])
+    if request.status_code != 200 or sorted(request.json()['receivedParts']) != range(1, len(parts) + 1):
+        printOut(10, "ERROR", "The upload doesn't list every part")
+        return False
+
+    request = client_0.commit_upload(session['sessionId'])
+    if request.status_code != 201:
+        printOut(10, "ERROR", "Committing the upload failed, status code: " + str(request.status_code))
+        return False
+
+    request = client_0.download('parts.txt', 'downloads_0/parts_copy.txt')
+    if request.status_code != 200 or open('downloads_0/parts_copy.txt', 'rb').read() != contents:
+        printOut(10, "ERROR", "'parts.txt' doesn't match what was uploaded")
+        return False
+    printOut(10, "LOG", "'parts.txt' matches what was uploaded")
+
+    printOut(10, "LOG", "Attempting to abort a second upload of 'parts.txt'")
+    request = client_0.create_upload_session('files/parts.txt', 'parts.txt', 'INTEGRITY')
+    session = request.json()
+    client_0.upload_part(session['sessionId'], 1, parts[0])
+    request = client_0.abort_upload(session['sessionId'])
+    if request.status_code != 200 or client_0.get_upload_session(session['sessionId']).status_code != 404:
+        printOut(10, "ERROR", "Aborting the upload failed")
+        return False
+    printOut(10, "LOG", "The second upload was aborted")
+    return True
+
+
+def test11(client_0, client_1):
+    """
+    Test Case: Delegating on several documents in one request
+        -Using the first session, check in "bulk_0.txt" and "bulk_1.txt"
+        -Delegate checking-out both of them to client_1 in one request, along with a delegation to an unknown
+         user and one on a document client_0 can't delegate
+        -Only the delegations to client_1 should be granted, and client_1 should be able to check out both
+    :returns: delegation result
+    """
+    printOut(11, "HEADER")
+    client_0.login()
+    client_1.login()
+    for name in ['bulk_0.txt', 'bulk_1.txt']:
+        request = client_0.upload('files/0.txt', name, 'INTEGRITY')
+        if request.status_code != 201:
+            printOut(11, "ERROR", "Check in of '" + name + "' failed, status code: " + str(request.status_code))
+            return False
+
+    delegations = [{"documentName": name,
+                    "permissions": ["READ"],
+                    "userName": user,
+                    "timeLimitMillis": dtime.SIXTY,
+                    "canPropogate": False}
+                   for name, user in [('bulk_0.txt', users.CLIENT_1),
+                                      ('bulk_1.txt', users.CLIENT_1),
+                                      ('bulk_0.txt', 'nobody@gtri.gatech.edu'),
+                                      ('not_bulk.txt', users.CLIENT_1)]]
+    printOut(11, "LOG", "Delegating from client_0 -> client_1 on 'bulk_0.txt' and 'bulk_1.txt' in one request")
+    request = client_0.delegate_bulk(delegations)
+    if request.status_code != 200:
+        printOut(11, "ERROR", "Bulk delegation failed, status code: " + str(request.status_code))
+        return False
+
+    statuses = [r['status'] for r in request.json()]
+    printOut(11, "LOG", "Results: " + str(statuses))
+    if statuses != [200, 200, 404, 401]:
+        printOut(11, "ERROR", "Expected statuses [200, 200, 404, 401]")
+        return False
+
+    for name in ['bulk_0.txt', 'bulk_1.txt']:
+        request = client_1.download(name, 'downloads_1/' + name)
+        if request.status_code != 200:
+            printOut(11, "ERROR", "Client 1 was unable to check out '" + name + "'")
+            return False
+    printOut(11, "LOG", "Client 1 checked out both documents")
+    return True
+
 # This silences annoying SSL warning for using a self signed cert
 requests.packages.urllib3.disable_warnings()
 
@@ -549,5 +854,26 @@ if test8_result is True:
 else:
     printOut(8, "FAILED")
 
+# Conducting test 9
+test9_result = test9(client_0)
+if test9_result is True:
+    printOut(9, "SUCCESS")
+else:
+    printOut(9, "FAILED")
+
+# Conducting test 10
+test10_result = test10(client_0)
+if test10_result is True:
+    printOut(10, "SUCCESS")
+else:
+    printOut(10, "FAILED")
+
+# Conducting test 11
+test11_result = test11(client_0, client_1)
+if test11_result is True:
+    printOut(11, "SUCCESS")
+else:
+    printOut(11, "FAILED")
+
 printOut(8, "SLEEP", "Now closing all sessions!")
 